@@ -3,9 +3,13 @@ package willi.boelke.service_discovery_demo.controller;
 import android.util.Log;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 
+import willi.boelke.services.serviceConnection.MessageChannel;
 import willi.boelke.services.serviceConnection.ServiceConnection;
 
 /**
@@ -21,6 +25,9 @@ import willi.boelke.services.serviceConnection.ServiceConnection;
  * when one of the connections was closed and  {@link ControllerListener#onMessageChange(String)}
  * when a new message came through the Socket.
  * <p>
+ * Messages are received through a {@link MessageChannel}, so they need to be
+ * sent through one as well (see {@link WriteThread}).
+ * <p>
  * The thread can be stopped by calling its {@link #cancel()} method.
  * <p>
  *
@@ -43,6 +50,11 @@ public class ReadThread<T extends ServiceConnection, D> extends Thread
     private Thread thread;
     private final CopyOnWriteArrayList<T> connections;
 
+    /**
+     * The message channels of the connections, only used by this thread
+     */
+    private final HashMap<T, MessageChannel> channels = new HashMap<>();
+
     public ReadThread(CopyOnWriteArrayList<T> connections, ControllerListener<T, D> listener)
     {
         this.connections = connections;
@@ -67,10 +79,15 @@ public class ReadThread<T extends ServiceConnection, D> extends Thread
                 {
                     try
                     {
-                        byte[] buffer = new byte[2048];
-                        int bytes;
-                        bytes = connection.getInputStream().read(buffer);
-                        String incomingTransmission = new String(buffer, 0, bytes);
+                        ByteBuffer message = channelOf(connection).receive();
+                        if (message == null)
+                        {
+                            Log.e(TAG, "run: connection closed by the remote side");
+                            disconnectedConnections.add(connection);
+                            continue;
+                        }
+                        String incomingTransmission = new String(message.array(), message.arrayOffset() + message.position(),
+                                message.remaining(), StandardCharsets.UTF_8);
                         listener.onMessageChange(incomingTransmission);
                     }
                     catch (IOException e)
@@ -78,14 +95,6 @@ public class ReadThread<T extends ServiceConnection, D> extends Thread
                         Log.e(TAG, "run: IOException while reading from InputStream, closing connection");
                         disconnectedConnections.add(connection);
                     }
-                    catch (StringIndexOutOfBoundsException e)
-                    {
-                        // this may happen (happened once in all testing) on disconnect
-                        // though maybe also in other cases.
-                        // so lets just go one here
-                        Log.e(TAG, "run: StringIndexOutOfBoundsException while reading from InputStream, closing connection");
-                        disconnectedConnections.add(connection);
-                    }
                 }
                 else
                 {
@@ -96,12 +105,32 @@ public class ReadThread<T extends ServiceConnection, D> extends Thread
         }
     }
 
+    private MessageChannel channelOf(T connection)
+    {
+        MessageChannel channel = this.channels.get(connection);
+        if (channel == null)
+        {
+            channel = new MessageChannel(connection);
+            this.channels.put(connection, channel);
+        }
+        return channel;
+    }
+
     private void closeAndRemove(ArrayList<T> disconnectedConnections)
     {
         for (int i = 0; i < disconnectedConnections.size(); i++)
         {
             T connection = disconnectedConnections.get(i);
-            connection.close();
+            MessageChannel channel = channels.remove(connection);
+            if (channel != null)
+            {
+                // returns the receive buffer of the channel to the pool as well
+                channel.close();
+            }
+            else
+            {
+                connection.close();
+            }
             connections.remove(connection);
             listener.onConnectionLost(connection);
         }
@@ -3,9 +3,17 @@ package willi.boelke.service_discovery_demo.controller;
 import android.util.Log;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 
+import willi.boelke.services.serviceConnection.BufferPool;
+import willi.boelke.services.serviceConnection.MessageChannel;
+import willi.boelke.services.serviceConnection.PooledBuffer;
 import willi.boelke.services.serviceConnection.ServiceConnection;
 import willi.boelke.services.serviceDiscovery.ServiceDescription;
 
@@ -18,6 +26,10 @@ import willi.boelke.services.serviceDiscovery.ServiceDescription;
  * <p>
  * This Thread iterates over the given list of connections and writes a message to
  * them containing a placeholder string and a counter to differentiate messages.
+ * The messages are sent through a {@link MessageChannel}, so the {@link ReadThread}
+ * on the other side receives them one by one.
+ * The message is encoded once per round into a pooled buffer, which is
+ * then sent to all connections, so writing does not allocate per message.
  * <p>
  * If a connection was closed/disconnected the thread will close this side of the connection (the socket)
  * as well as the Streams provided by that socket. The connection will then e removed from the list.
@@ -41,6 +53,17 @@ public class WriteThread<T extends ServiceConnection, D> extends Thread
      * The connections to write to
      */
     private final List<T> connections;
+
+    /**
+     * The message channels of the connections, only used by this thread
+     */
+    private final HashMap<T, MessageChannel> channels = new HashMap<>();
+
+    /**
+     * The text of the current message, reused for every message
+     */
+    private final StringBuilder text = new StringBuilder();
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
     private final ServiceDescription serviceDescription;
     private Thread thread;
     private final ControllerListener<T, D> listener;
@@ -67,32 +90,49 @@ public class WriteThread<T extends ServiceConnection, D> extends Thread
                 this.cancel();
             }
             ArrayList<T> disconnectedConnections = new ArrayList<>();
-            for (T connection : connections)
+            PooledBuffer message = encodeMessage(counter);
+            try
             {
-                if (connection.isConnected() && !connection.isClosed())
+                ByteBuffer buffer = message.buffer();
+                for (T connection : connections)
                 {
-                    try
+                    if (connection.isConnected() && !connection.isClosed())
                     {
-                        String msg = "Test message:" + counter +
-                                "\nService: " + serviceDescription.getInstanceName();
-                        connection.getOutputStream().write(msg.getBytes());
+                        try
+                        {
+                            buffer.rewind();
+                            channelOf(connection).send(buffer);
+                        }
+                        catch (IOException e)
+                        {
+                            Log.i(TAG, "run: IOException while Writing to socket, closing connection");
+                            disconnectedConnections.add(connection);
+                        }
                     }
-                    catch (IOException e)
+                    else
                     {
-                        Log.i(TAG, "run: IOException while Writing to socket, closing connection");
+                        Log.i(TAG, "run: disconnected, closing connection");
                         disconnectedConnections.add(connection);
                     }
                 }
-                else
-                {
-                    Log.i(TAG, "run: disconnected, closing connection");
-                    disconnectedConnections.add(connection);
-                }
+            }
+            finally
+            {
+                message.release();
             }
             for (T disconnected : disconnectedConnections)
             {
                 Log.d(TAG, "run: removed disconnected sockets");
-                disconnected.close();
+                MessageChannel channel = channels.remove(disconnected);
+                if (channel != null)
+                {
+                    // returns the buffers of the channel to the pool as well
+                    channel.close();
+                }
+                else
+                {
+                    disconnected.close();
+                }
                 listener.onConnectionLost(disconnected);
                 connections.remove(disconnected);
             }
@@ -120,6 +160,35 @@ public class WriteThread<T extends ServiceConnection, D> extends Thread
         }
     }
 
+    /**
+     * Encodes the message into a buffer from the {@link BufferPool},
+     * which needs to be released after sending it
+     */
+    private PooledBuffer encodeMessage(int counter)
+    {
+        text.setLength(0);
+        text.append("Test message:").append(counter)
+                .append("\nService: ").append(serviceDescription.getInstanceName());
+        PooledBuffer message = BufferPool.getInstance().acquire((int) (text.length() * encoder.maxBytesPerChar()));
+        ByteBuffer buffer = message.buffer();
+        encoder.reset();
+        encoder.encode(CharBuffer.wrap(text), buffer, true);
+        encoder.flush(buffer);
+        buffer.flip();
+        return message;
+    }
+
+    private MessageChannel channelOf(T connection)
+    {
+        MessageChannel channel = this.channels.get(connection);
+        if (channel == null)
+        {
+            channel = new MessageChannel(connection);
+            this.channels.put(connection, channel);
+        }
+        return channel;
+    }
+
     public void cancel()
     {
         Log.d(TAG, "cancel: stopping write thread");
@@ -34,7 +34,7 @@ public class BluetoothDiscoveryViewModel extends ViewModel implements BluetoothS
     {
         // Should be initialized and started in view bc of context
         engine = BluetoothServiceDiscoveryVTwo.getInstance();
-        engine.registerDiscoverListener(this);
+        engine.registerDiscoverListenerWeakly(this);
     }
 
 
@@ -129,7 +129,7 @@ public class BluetoothDiscoveryViewModel extends ViewModel implements BluetoothS
 
     public void goActive()
     {
-        engine.registerDiscoverListener(this);
+        engine.registerDiscoverListenerWeakly(this);
         engine.notifyAboutAllServices(Boolean.TRUE.equals(this.notifyAboutAll.getValue()));
     }
 
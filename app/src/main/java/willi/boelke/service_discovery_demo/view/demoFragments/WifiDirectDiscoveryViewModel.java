@@ -33,7 +33,7 @@ public class WifiDirectDiscoveryViewModel extends ViewModel implements WifiServi
 
     public WifiDirectDiscoveryViewModel()
     {
-        WifiDirectServiceDiscoveryEngine.getInstance().registerDiscoverListener(this);
+        WifiDirectServiceDiscoveryEngine.getInstance().registerDiscoverListenerWeakly(this);
     }
 
 
@@ -130,6 +130,6 @@ public class WifiDirectDiscoveryViewModel extends ViewModel implements WifiServi
     public void goActive()
     {
         WifiDirectServiceDiscoveryEngine.getInstance().notifyAboutAllServices(Boolean.TRUE.equals(this.notifyAboutAllServices.getValue()));
-        WifiDirectServiceDiscoveryEngine.getInstance().registerDiscoverListener(this);
+        WifiDirectServiceDiscoveryEngine.getInstance().registerDiscoverListenerWeakly(this);
     }
 }
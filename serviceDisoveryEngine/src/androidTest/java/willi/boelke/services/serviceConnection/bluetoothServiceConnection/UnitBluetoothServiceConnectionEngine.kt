@@ -13,11 +13,17 @@ import org.junit.Before
 import org.junit.Rule
 import org.junit.Test
 import org.junit.runner.RunWith
+import willi.boelke.services.serviceConnection.PeerRetryPolicy
 import willi.boelke.services.serviceDiscovery.ServiceDescription
+import willi.boelke.services.serviceDiscovery.ServiceChangeListener
+import willi.boelke.services.serviceDiscovery.bluetoothServiceDiscovery.BluetoothPeer
+import willi.boelke.services.serviceDiscovery.bluetoothServiceDiscovery.DefaultPeerRankingPolicy
 import willi.boelke.services.serviceDiscovery.bluetoothServiceDiscovery.BluetoothServiceDiscoveryListener
 import willi.boelke.services.serviceDiscovery.bluetoothServiceDiscovery.BluetoothServiceDiscoveryVTwo
 import willi.boelke.services.testUtils.*
 import java.io.IOException
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.atomic.AtomicBoolean
 import kotlin.collections.ArrayList
 
 /**
@@ -80,6 +86,7 @@ class UnitBluetoothServiceConnectionEngine {
     private lateinit var mockedDiscoveryVTwo: BluetoothServiceDiscoveryVTwo
 
     private var discoveryListener = CapturingSlot<BluetoothServiceDiscoveryListener>()
+    private var serviceChangeListener = CapturingSlot<ServiceChangeListener<BluetoothDevice>>()
 
     @Before
     fun setup() {
@@ -94,6 +101,11 @@ class UnitBluetoothServiceConnectionEngine {
                 capture(discoveryListener)
             )
         }
+        justRun {
+            mockedDiscoveryVTwo.registerServiceChangeListener(
+                capture(serviceChangeListener)
+            )
+        }
 
         every { mockedBtAdapter.isEnabled } returns true
         every { mockedBtAdapter.isDiscovering } returns false
@@ -236,7 +248,7 @@ class UnitBluetoothServiceConnectionEngine {
         // discovered device with
         val testDeviceOne = getTestDeviceOne()
         discoveryListener.captured.onPeerDiscovered(testDeviceOne)
-        discoveryListener.captured.onServiceDiscovered(testDeviceOne, testDescriptionTwo)
+        serviceChangeListener.captured.onServiceAppeared(testDeviceOne, testDescriptionTwo)
 
         assertEquals(testDeviceOne, client.foundServiceHosts[0])
         assertEquals(testDescriptionTwo, client.foundServices[0])
@@ -260,9 +272,9 @@ class UnitBluetoothServiceConnectionEngine {
         val testDeviceTwo = getTestDeviceTwo()
 
         discoveryListener.captured.onPeerDiscovered(testDeviceOne)
-        discoveryListener.captured.onServiceDiscovered(testDeviceOne, testDescriptionTwo)
+        serviceChangeListener.captured.onServiceAppeared(testDeviceOne, testDescriptionTwo)
         discoveryListener.captured.onPeerDiscovered(testDeviceTwo)
-        discoveryListener.captured.onServiceDiscovered(testDeviceTwo, testDescriptionFour)
+        serviceChangeListener.captured.onServiceAppeared(testDeviceTwo, testDescriptionFour)
 
         assertTrue(clientOne.foundServiceHosts.contains(testDeviceTwo))
         assertFalse(clientOne.foundServiceHosts.contains(testDeviceOne))
@@ -295,7 +307,7 @@ class UnitBluetoothServiceConnectionEngine {
             .startDiscoveryForService(testDescriptionTwo, client)
 
         discoveryListener.captured.onPeerDiscovered(testDeviceOne)
-        discoveryListener.captured.onServiceDiscovered(testDeviceOne, testDescriptionTwo)
+        serviceChangeListener.captured.onServiceAppeared(testDeviceOne, testDescriptionTwo)
         Thread.sleep(500) // waiting for the client connector
         assertEquals(getTestDeviceTwo().name, client.establishedConnections[0].remoteDevice.name)
         assertFalse(client.establishedConnections[0].isServerPeer) // connected as client
@@ -325,9 +337,9 @@ class UnitBluetoothServiceConnectionEngine {
             .startDiscoveryForService(testDescriptionTwo, client)
 
         discoveryListener.captured.onPeerDiscovered(testDeviceTwo)
-        discoveryListener.captured.onServiceDiscovered(testDeviceTwo, testDescriptionTwo)
+        serviceChangeListener.captured.onServiceAppeared(testDeviceTwo, testDescriptionTwo)
         discoveryListener.captured.onPeerDiscovered(testDeviceOne)
-        discoveryListener.captured.onServiceDiscovered(testDeviceOne, testDescriptionTwo)
+        serviceChangeListener.captured.onServiceAppeared(testDeviceOne, testDescriptionTwo)
         Thread.sleep(1000) // waiting for connect thread
         assertTrue(
             client.establishedConnections[0].remoteDevice.equals(testDeviceOne) ||
@@ -361,12 +373,293 @@ class UnitBluetoothServiceConnectionEngine {
             .startDiscoveryForService(testDescriptionTwo, client)
 
         discoveryListener.captured.onPeerDiscovered(testDeviceOne)
-        discoveryListener.captured.onServiceDiscovered(testDeviceOne, testDescriptionTwo)
+        serviceChangeListener.captured.onServiceAppeared(testDeviceOne, testDescriptionTwo)
         Thread.sleep(2000) // wait for the connector thread
         verify(exactly = 1) { testDeviceOne.createRfcommSocketToServiceRecord(testUUIDTwo) }
         verify(exactly = 2) { mockedSocket.close() }
     }
 
+    /**
+     * When the discovery for a service is stopped while a connection attempt
+     * is still running, the attempt is canceled. This should neither
+     * be retried nor count as a failure of the peer.
+     */
+    @Test
+    fun itShouldNotRetryWhenTheDiscoveryIsStoppedWhileConnecting() {
+        // the local service runs, so a failed attempt would be retried right away
+        val mockedServerSocket = mockk<BluetoothServerSocket>()
+        val serverSocketClosed = CountDownLatch(1)
+        every { mockedServerSocket.accept() } answers { serverSocketClosed.await(); throw IOException() }
+        every { mockedServerSocket.close() } answers { serverSocketClosed.countDown() }
+        every {
+            mockedBtAdapter.listenUsingRfcommWithServiceRecord(
+                any(),
+                any()
+            )
+        } returns mockedServerSocket
+        // lower than the address of the peer, the local device connects
+        every { mockedBtAdapter.address } returns "00:00:00:00:00:01"
+        BluetoothServiceConnectionEngine.getInstance().startService(testDescriptionTwo) {}
+
+        val testDeviceOne = getTestDeviceOne()
+        val mockedSocket = getSocketToTestDevice(testDeviceOne)
+        val socketClosed = CountDownLatch(1)
+        every { testDeviceOne.createRfcommSocketToServiceRecord(testUUIDTwo) } returns mockedSocket
+        every { mockedSocket.connect() } answers { socketClosed.await(); throw IOException("socket closed") }
+        every { mockedSocket.close() } answers { socketClosed.countDown() }
+
+        val client = TestClientPeer(true)
+        BluetoothServiceConnectionEngine.getInstance()
+            .startDiscoveryForService(testDescriptionTwo, client)
+        discoveryListener.captured.onPeerDiscovered(testDeviceOne)
+        serviceChangeListener.captured.onServiceAppeared(testDeviceOne, testDescriptionTwo)
+        Thread.sleep(500) // the connector now waits in connect()
+
+        BluetoothServiceConnectionEngine.getInstance().stopDiscoveryForService(testDescriptionTwo)
+        Thread.sleep(1000) // a retry would have started by now
+
+        verify(exactly = 1) { testDeviceOne.createRfcommSocketToServiceRecord(testUUIDTwo) }
+        assertEquals(0, PeerRetryPolicy.getInstance().getFailures(testDeviceOne.address))
+        assertTrue(client.establishedConnections.isEmpty())
+    }
+
+    /**
+     * Both devices run the service and the local address is unknown,
+     * so the addresses cant decide which device connects.
+     * The engine should wait a random time before connecting.
+     */
+    @Test
+    fun itShouldWaitARandomTimeWhenTheLocalAddressIsUnknown() {
+        val mockedServerSocket = mockk<BluetoothServerSocket>()
+        val serverSocketClosed = CountDownLatch(1)
+        every { mockedServerSocket.accept() } answers { serverSocketClosed.await(); throw IOException() }
+        every { mockedServerSocket.close() } answers { serverSocketClosed.countDown() }
+        every {
+            mockedBtAdapter.listenUsingRfcommWithServiceRecord(
+                any(),
+                any()
+            )
+        } returns mockedServerSocket
+        every { mockedBtAdapter.address } returns "02:00:00:00:00:00"
+        BluetoothServiceConnectionEngine.getInstance().startService(testDescriptionTwo) {}
+
+        val testDeviceOne = getTestDeviceOne()
+        val mockedSocket = getSocketToTestDevice(testDeviceOne)
+        every { testDeviceOne.createRfcommSocketToServiceRecord(testUUIDTwo) } returns mockedSocket
+        justRun { mockedSocket.connect() }
+
+        val client = TestClientPeer(true)
+        BluetoothServiceConnectionEngine.getInstance()
+            .startDiscoveryForService(testDescriptionTwo, client)
+        discoveryListener.captured.onPeerDiscovered(testDeviceOne)
+        serviceChangeListener.captured.onServiceAppeared(testDeviceOne, testDescriptionTwo)
+
+        Thread.sleep(100) // less than the shortest random delay
+        verify(exactly = 0) { testDeviceOne.createRfcommSocketToServiceRecord(testUUIDTwo) }
+        Thread.sleep(1500) // more than the longest random delay
+        verify(exactly = 1) { testDeviceOne.createRfcommSocketToServiceRecord(testUUIDTwo) }
+        assertEquals(1, client.establishedConnections.size)
+    }
+
+    /**
+     * When the local address is unknown and the peer connects
+     * to the local service while the engine waits, the engine
+     * should not connect to the peer as well.
+     */
+    @Test
+    fun itShouldNotConnectWhenThePeerConnectedWhileWaiting() {
+        val testDeviceOne = getTestDeviceOne()
+        val mockedServerSocket = mockk<BluetoothServerSocket>()
+        val peerConnects = CountDownLatch(1)
+        val serverSocketClosed = CountDownLatch(1)
+        val incomingSocket = getSocketToTestDevice(testDeviceOne)
+        val accepted = AtomicBoolean(false)
+        every { mockedServerSocket.accept() } answers {
+            if (accepted.getAndSet(true)) {
+                serverSocketClosed.await()
+                throw IOException()
+            }
+            peerConnects.await()
+            incomingSocket
+        }
+        every { mockedServerSocket.close() } answers { serverSocketClosed.countDown() }
+        every {
+            mockedBtAdapter.listenUsingRfcommWithServiceRecord(
+                any(),
+                any()
+            )
+        } returns mockedServerSocket
+        every { mockedBtAdapter.address } returns "02:00:00:00:00:00"
+        BluetoothServiceConnectionEngine.getInstance().startService(testDescriptionTwo) {}
+
+        val mockedSocket = getSocketToTestDevice(testDeviceOne)
+        every { testDeviceOne.createRfcommSocketToServiceRecord(testUUIDTwo) } returns mockedSocket
+        justRun { mockedSocket.connect() }
+
+        val client = TestClientPeer(true)
+        BluetoothServiceConnectionEngine.getInstance()
+            .startDiscoveryForService(testDescriptionTwo, client)
+        discoveryListener.captured.onPeerDiscovered(testDeviceOne)
+        serviceChangeListener.captured.onServiceAppeared(testDeviceOne, testDescriptionTwo)
+        peerConnects.countDown() // the peer connects while the engine waits
+
+        Thread.sleep(1500) // more than the longest random delay
+        verify(exactly = 0) { testDeviceOne.createRfcommSocketToServiceRecord(testUUIDTwo) }
+    }
+
+    /**
+     * When the local address is higher the engine waits for the peer
+     * to connect, the client should get the incoming connection
+     * and the engine should not connect to the peer as well.
+     */
+    @Test
+    fun itShouldNotifyTheClientWhenThePeerConnectedWhileWaiting() {
+        val released = CountDownLatch(1)
+        val peer = mockBlockingHost("00:00:00:00:00:01", released)
+        val mockedServerSocket = mockk<BluetoothServerSocket>()
+        val peerConnects = CountDownLatch(1)
+        val serverSocketClosed = CountDownLatch(1)
+        val incomingSocket = getSocketToTestDevice(peer)
+        val accepted = AtomicBoolean(false)
+        every { mockedServerSocket.accept() } answers {
+            if (accepted.getAndSet(true)) {
+                serverSocketClosed.await()
+                throw IOException()
+            }
+            peerConnects.await()
+            incomingSocket
+        }
+        every { mockedServerSocket.close() } answers { serverSocketClosed.countDown() }
+        every {
+            mockedBtAdapter.listenUsingRfcommWithServiceRecord(
+                any(),
+                any()
+            )
+        } returns mockedServerSocket
+        // higher than the address of the peer, the local device waits
+        every { mockedBtAdapter.address } returns "00:00:00:00:00:02"
+        var serverConnection: BluetoothConnection? = null
+        BluetoothServiceConnectionEngine.getInstance()
+            .startService(testDescriptionTwo) { connection -> serverConnection = connection }
+
+        val client = TestClientPeer(true)
+        BluetoothServiceConnectionEngine.getInstance()
+            .startDiscoveryForService(testDescriptionTwo, client)
+        discoveryListener.captured.onPeerDiscovered(peer)
+        serviceChangeListener.captured.onServiceAppeared(peer, testDescriptionTwo)
+        Thread.sleep(500) // less than the grace period
+        verify(exactly = 0) { peer.createRfcommSocketToServiceRecord(testUUIDTwo) }
+        peerConnects.countDown() // the peer connects while the engine waits
+        Thread.sleep(500)
+
+        assertEquals(1, client.establishedConnections.size)
+        assertSame(serverConnection, client.establishedConnections[0])
+
+        Thread.sleep(1500) // the grace period passed
+        verify(exactly = 0) { peer.createRfcommSocketToServiceRecord(testUUIDTwo) }
+        assertEquals(1, client.establishedConnections.size)
+        released.countDown()
+    }
+
+    /**
+     * A device hosting the second test service, connecting to it blocks
+     * till the socket is closed or the latch is released
+     */
+    private fun mockBlockingHost(address: String, released: CountDownLatch): BluetoothDevice {
+        val device = mockk<BluetoothDevice>()
+        every { device.name } returns address
+        every { device.address } returns address
+        val socket = getSocketToTestDevice(device)
+        val closed = CountDownLatch(1)
+        every { device.createRfcommSocketToServiceRecord(testUUIDTwo) } returns socket
+        every { socket.connect() } answers {
+            while (closed.count > 0 && released.count > 0) {
+                Thread.sleep(10)
+            }
+            if (closed.count == 0L) throw IOException("socket closed")
+        }
+        every { socket.close() } answers { closed.countDown() }
+        return device
+    }
+
+    /**
+     * Only the allowed number of client connectors should run,
+     * the pending attempts should start in the order of the
+     * peer ranking, not in the order they were discovered
+     */
+    @Test
+    fun itShouldConnectToTheHighestRankedPeersFirst() {
+        val released = CountDownLatch(1)
+        val first = mockBlockingHost("00:00:00:00:00:01", released)
+        val far = mockBlockingHost("00:00:00:00:00:02", released)
+        val close = mockBlockingHost("00:00:00:00:00:03", released)
+        val rssi = mapOf(first to (-40).toShort(), far to (-90).toShort(), close to (-50).toShort())
+        every { mockedDiscoveryVTwo.getPeer(any()) } answers {
+            val device = firstArg<BluetoothDevice>()
+            BluetoothPeer(device, rssi.getValue(device), BluetoothPeer.DEVICE_CLASS_UNKNOWN)
+        }
+        every { mockedDiscoveryVTwo.peerRankingPolicy } returns DefaultPeerRankingPolicy()
+
+        BluetoothServiceConnectionEngine.getInstance().setMaxRunningClientConnectors(1)
+        val client = TestClientPeer(true)
+        BluetoothServiceConnectionEngine.getInstance()
+            .startDiscoveryForService(testDescriptionTwo, client)
+        serviceChangeListener.captured.onServiceAppeared(first, testDescriptionTwo)
+        serviceChangeListener.captured.onServiceAppeared(far, testDescriptionTwo)
+        serviceChangeListener.captured.onServiceAppeared(close, testDescriptionTwo)
+        Thread.sleep(500)
+        // only one connector runs
+        verify(exactly = 1) { first.createRfcommSocketToServiceRecord(testUUIDTwo) }
+        verify(exactly = 0) { far.createRfcommSocketToServiceRecord(testUUIDTwo) }
+        verify(exactly = 0) { close.createRfcommSocketToServiceRecord(testUUIDTwo) }
+
+        released.countDown()
+        Thread.sleep(1000)
+        verifyOrder {
+            first.createRfcommSocketToServiceRecord(testUUIDTwo)
+            close.createRfcommSocketToServiceRecord(testUUIDTwo)
+            far.createRfcommSocketToServiceRecord(testUUIDTwo)
+        }
+        assertEquals(3, client.establishedConnections.size)
+    }
+
+    /**
+     * When the discovery of a service is stopped its running attempts are canceled,
+     * the pending attempts of other services should take their place
+     */
+    @Test
+    fun itShouldStartPendingAttemptsAfterStoppingADiscovery() {
+        val released = CountDownLatch(1)
+        val blocking = mockBlockingHost("00:00:00:00:00:01", released)
+        val testDeviceTwo = getTestDeviceTwo()
+        val mockedSocket = getSocketToTestDevice(testDeviceTwo)
+        every { testDeviceTwo.createRfcommSocketToServiceRecord(testDescriptionFour.serviceUuid) } returns mockedSocket
+        justRun { mockedSocket.connect() }
+
+        BluetoothServiceConnectionEngine.getInstance().setMaxRunningClientConnectors(1)
+        val clientOne = TestClientPeer(true)
+        val clientTwo = TestClientPeer(true)
+        BluetoothServiceConnectionEngine.getInstance()
+            .startDiscoveryForService(testDescriptionTwo, clientOne)
+        BluetoothServiceConnectionEngine.getInstance()
+            .startDiscoveryForService(testDescriptionFour, clientTwo)
+        serviceChangeListener.captured.onServiceAppeared(blocking, testDescriptionTwo)
+        serviceChangeListener.captured.onServiceAppeared(testDeviceTwo, testDescriptionFour)
+        Thread.sleep(500)
+        verify(exactly = 0) { testDeviceTwo.createRfcommSocketToServiceRecord(testDescriptionFour.serviceUuid) }
+
+        BluetoothServiceConnectionEngine.getInstance().stopDiscoveryForService(testDescriptionTwo)
+        Thread.sleep(500)
+        verify(exactly = 1) { testDeviceTwo.createRfcommSocketToServiceRecord(testDescriptionFour.serviceUuid) }
+        assertEquals(1, clientTwo.establishedConnections.size)
+        released.countDown()
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun itShouldRunAtLeastOneClientConnector() {
+        BluetoothServiceConnectionEngine.getInstance().setMaxRunningClientConnectors(0)
+    }
+
     /**
      * When a Service was started client connections should be accepted
      * after a connection was accepted the server socket should be reopened
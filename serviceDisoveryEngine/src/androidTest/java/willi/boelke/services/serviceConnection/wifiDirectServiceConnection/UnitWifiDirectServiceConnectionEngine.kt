@@ -27,6 +27,7 @@ import willi.boelke.services.serviceDiscovery.wifiDirectServiceDiscovery.WifiDir
 import willi.boelke.services.serviceDiscovery.wifiDirectServiceDiscovery.WifiServiceDiscoveryListener
 import willi.boelke.services.testUtils.*
 import java.io.IOException
+import java.net.ServerSocket
 import java.net.Socket
 import java.net.SocketAddress
 import java.util.*
@@ -278,6 +279,56 @@ class UnitWifiDirectServiceConnectionEngine {
         assertFalse(result)
     }
 
+    /**
+     * The port is advertised in the TXT record under a key
+     * reserved for the engine, services cant use it
+     */
+    @Test
+    fun itShouldNotRegisterAServiceUsingThePortRecordKey() {
+        val attributes = HashMap<String, String>()
+        attributes[WifiDirectConnectionEngine.PORT_RECORD_KEY] = "1234"
+        val description = ServiceDescription("reserved key service", attributes, "_reserved._tcp")
+        val result = WifiDirectConnectionEngine.getInstance().registerService(description, TestPeer())
+        assertFalse(result)
+        verify(exactly = 0) { mockedDiscovery.startService(any()) }
+    }
+
+    /**
+     * If the port is taken the server should be bound to an ephemeral one,
+     * which then is advertised
+     */
+    @Test
+    fun itShouldAdvertiseAnotherPortWhenThePortIsTaken() {
+        val blocking = ServerSocket(0)
+        WifiDirectConnectionEngine.getInstance().setPort(blocking.localPort)
+        val advertised = CapturingSlot<ServiceDescription>()
+        justRun { mockedDiscovery.startService(capture(advertised)) }
+
+        assertTrue(WifiDirectConnectionEngine.getInstance().registerService(testDescriptionOne, TestPeer()))
+        val port = advertised.captured.txtRecord[WifiDirectConnectionEngine.PORT_RECORD_KEY]
+        assertNotNull(port)
+        assertFalse(port == blocking.localPort.toString())
+        blocking.close()
+    }
+
+    /**
+     * A client invited by a group owner it did not discover does not know
+     * its port, it should connect on the configured port after a while
+     */
+    @Test
+    fun itShouldConnectOnTheConfiguredPortWhenThePortOfTheGroupOwnerIsUnknown() {
+        val groupOwner = ServerSocket(0)
+        groupOwner.soTimeout = 10000
+        WifiDirectConnectionEngine.getInstance().setPort(groupOwner.localPort)
+        // the group info is never delivered, so no port is known
+        WifiDirectConnectionEngine.getInstance().connectToGroupOwner("127.0.0.1")
+
+        val accepted = groupOwner.accept()
+        assertTrue(accepted.isConnected)
+        accepted.close()
+        groupOwner.close()
+    }
+
     /**
      * When a service was discovered the peer will be notified
      */
@@ -0,0 +1,137 @@
+package willi.boelke.services.serviceDiscovery
+
+import androidx.test.internal.runner.junit4.AndroidJUnit4ClassRunner
+import junit.framework.TestCase.assertEquals
+import junit.framework.TestCase.assertFalse
+import junit.framework.TestCase.assertTrue
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.util.*
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+@RunWith(AndroidJUnit4ClassRunner::class)
+class UnitEngineExecutor {
+
+    private lateinit var executor: EngineExecutor
+
+    @Before
+    fun setup() {
+        executor = EngineExecutor("TestEngineThread")
+    }
+
+    @After
+    fun teardown() {
+        executor.shutdown()
+    }
+
+    /**
+     * Tasks passed on through `execute`, `dispatch`
+     * and `runAndWait` run in the order they where passed on
+     */
+    @Test
+    fun itShouldRunTasksInOrder() {
+        val order = Collections.synchronizedList(ArrayList<Int>())
+        executor.execute { order.add(1) }
+        executor.dispatch { order.add(2) }
+        executor.execute { order.add(3) }
+        executor.dispatch { order.add(4) }
+        executor.runAndWait { order.add(5) }
+
+        assertEquals(listOf(1, 2, 3, 4, 5), order)
+    }
+
+    /**
+     * `dispatch` should not wait for the engine thread
+     */
+    @Test
+    fun itShouldNotWaitForDispatchedTasks() {
+        val blocker = CountDownLatch(1)
+        val ran = CountDownLatch(1)
+        executor.execute { blocker.await(5, TimeUnit.SECONDS) }
+
+        executor.dispatch { ran.countDown() }
+        assertEquals(1, ran.count)
+
+        blocker.countDown()
+        assertTrue(ran.await(5, TimeUnit.SECONDS))
+    }
+
+    /**
+     * `call` with a timeout returns the fallback when the engine
+     * thread is busy, the task stays queued and runs later
+     */
+    @Test
+    fun itShouldStopWaitingAfterTheTimeout() {
+        val blocker = CountDownLatch(1)
+        val ran = CountDownLatch(1)
+        executor.execute { blocker.await(5, TimeUnit.SECONDS) }
+
+        val result = executor.call({
+            ran.countDown()
+            "ran"
+        }, 100, "timed out")
+        assertEquals("timed out", result)
+        assertFalse(executor.runAndWait({}, 100))
+
+        blocker.countDown()
+        assertTrue(ran.await(5, TimeUnit.SECONDS))
+        assertEquals("ran", executor.call({ "ran" }, 5000, "timed out"))
+    }
+
+    /**
+     * API calls made on the engine thread (by a listener, or by
+     * an other API call) take effect right away
+     */
+    @Test
+    fun itShouldRunDispatchedTasksRightAwayOnTheEngineThread() {
+        val order = ArrayList<Int>()
+        executor.runAndWait {
+            order.add(1)
+            executor.dispatch { order.add(2) }
+            order.add(3)
+        }
+
+        assertEquals(listOf(1, 2, 3), order)
+    }
+
+    /**
+     * The already queued tasks still run when the executor is shut down,
+     * tasks passed on afterwards through `execute` are dropped
+     */
+    @Test
+    fun itShouldRunQueuedTasksButDropLaterOnesAfterShutdown() {
+        val blocker = CountDownLatch(1)
+        val queuedRan = CountDownLatch(1)
+        val droppedRan = CountDownLatch(1)
+        executor.execute { blocker.await(5, TimeUnit.SECONDS) }
+        executor.execute { queuedRan.countDown() }
+
+        executor.shutdown()
+        executor.execute { droppedRan.countDown() }
+        blocker.countDown()
+
+        assertTrue(queuedRan.await(5, TimeUnit.SECONDS))
+        assertFalse(droppedRan.await(500, TimeUnit.MILLISECONDS))
+    }
+
+    /**
+     * After a shutdown `dispatch` and `call` run on the calling
+     * thread, so stopping an engine does not get lost
+     */
+    @Test
+    fun itShouldRunTasksOnTheCallingThreadAfterShutdown() {
+        executor.shutdown()
+        executor.getLooper().thread.join(5000)
+
+        val caller = Thread.currentThread()
+        var dispatchedOn: Thread? = null
+        executor.dispatch { dispatchedOn = Thread.currentThread() }
+        val calledOn = executor.call { Thread.currentThread() }
+
+        assertEquals(caller, dispatchedOn)
+        assertEquals(caller, calledOn)
+    }
+}
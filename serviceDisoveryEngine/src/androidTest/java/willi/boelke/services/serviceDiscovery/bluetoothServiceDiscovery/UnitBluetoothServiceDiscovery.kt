@@ -88,6 +88,8 @@ abstract class UnitBluetoothServiceDiscovery {
     fun setup() {
         //Setup
         mockedContext = mockk<Context>(relaxed = true)
+        // no cache directory, so the sdp result cache stays disabled
+        every { mockedContext.cacheDir } returns null
         mockedBtAdapter = mockk<BluetoothAdapter>()
 
         every { mockedBtAdapter.isEnabled } returns true
@@ -147,10 +149,10 @@ abstract class UnitBluetoothServiceDiscovery {
         //--- checking if listeners get notified about peers ---//
 
         getDiscoveryEngine()
-            .callPrivateFunc("onDeviceDiscovered", getTestDeviceOne())
+            .callPrivateFunc("onDeviceDiscovered", BluetoothPeer(getTestDeviceOne()))
         assertTrue(foundDevices.size == 1)
         getDiscoveryEngine()
-            .callPrivateFunc("onDeviceDiscovered", getTestDeviceTwo())
+            .callPrivateFunc("onDeviceDiscovered", BluetoothPeer(getTestDeviceTwo()))
         assertTrue(foundDevices.size == 2)
     }
 
@@ -169,9 +171,9 @@ abstract class UnitBluetoothServiceDiscovery {
 
         getDiscoveryEngine().startDeviceDiscovery()
         getDiscoveryEngine()
-            .callPrivateFunc("onDeviceDiscovered", testDeviceOne)
+            .callPrivateFunc("onDeviceDiscovered", BluetoothPeer(testDeviceOne))
         getDiscoveryEngine()
-            .callPrivateFunc("onDeviceDiscovered", testDeviceTwo)
+            .callPrivateFunc("onDeviceDiscovered", BluetoothPeer(testDeviceTwo))
 
         //--- should not be fetched ---//
         verify(exactly = 0) { testDeviceOne.fetchUuidsWithSdp() }
@@ -184,6 +186,7 @@ abstract class UnitBluetoothServiceDiscovery {
 
         //--- refresh -second fetch ---//
         getDiscoveryEngine().refreshNearbyServices()
+        getDiscoveryEngine().awaitEngineThread()
         verify(exactly = 2) { testDeviceOne.fetchUuidsWithSdp() }
         verify(exactly = 2) { testDeviceTwo.fetchUuidsWithSdp() }
     }
@@ -219,9 +222,9 @@ abstract class UnitBluetoothServiceDiscovery {
         getDiscoveryEngine().startDiscoveryForService(testDescriptionTwo)
         getDiscoveryEngine().startDeviceDiscovery()
         getDiscoveryEngine()
-            .callPrivateFunc("onDeviceDiscovered", testDeviceOne)
+            .callPrivateFunc("onDeviceDiscovered", BluetoothPeer(testDeviceOne))
         getDiscoveryEngine()
-            .callPrivateFunc("onDeviceDiscovered", testDeviceTwo)
+            .callPrivateFunc("onDeviceDiscovered", BluetoothPeer(testDeviceTwo))
 
         //--- end device discovery ---//
         getDiscoveryEngine().callPrivateFunc("onDeviceDiscoveryFinished")
@@ -275,9 +278,9 @@ abstract class UnitBluetoothServiceDiscovery {
         val testDeviceOne = getTestDeviceOne()
         val testDeviceTwo = getTestDeviceTwo()
         getDiscoveryEngine()
-            .callPrivateFunc("onDeviceDiscovered", testDeviceOne)
+            .callPrivateFunc("onDeviceDiscovered", BluetoothPeer(testDeviceOne))
         getDiscoveryEngine()
-            .callPrivateFunc("onDeviceDiscovered", testDeviceTwo)
+            .callPrivateFunc("onDeviceDiscovered", BluetoothPeer(testDeviceTwo))
         getDiscoveryEngine().callPrivateFunc("onDeviceDiscoveryFinished")
 
         //--- faking sdp responses ---//
@@ -298,6 +301,7 @@ abstract class UnitBluetoothServiceDiscovery {
     fun itShouldPauseTheDiscoveryWhenRefreshingServices() {
         // discovered device
         getDiscoveryEngine().refreshNearbyServices()
+        getDiscoveryEngine().awaitEngineThread()
         verify(exactly = 1) { mockedBtAdapter.cancelDiscovery() }
     }
 
@@ -332,9 +336,9 @@ abstract class UnitBluetoothServiceDiscovery {
         val testDeviceOne = getTestDeviceOne()
         val testDeviceTwo = getTestDeviceTwo()
         getDiscoveryEngine()
-            .callPrivateFunc("onDeviceDiscovered", testDeviceOne)
+            .callPrivateFunc("onDeviceDiscovered", BluetoothPeer(testDeviceOne))
         getDiscoveryEngine()
-            .callPrivateFunc("onDeviceDiscovered", testDeviceTwo)
+            .callPrivateFunc("onDeviceDiscovered", BluetoothPeer(testDeviceTwo))
         getDiscoveryEngine().callPrivateFunc("onDeviceDiscoveryFinished")
         getDiscoveryEngine()
             .callPrivateFunc("onUuidsFetched", testDeviceTwo, getTestUuidArrayTwo())
@@ -344,6 +348,7 @@ abstract class UnitBluetoothServiceDiscovery {
         //--- starting service discovery ---//
         getDiscoveryEngine().startDiscoveryForService(testDescriptionFive)
         getDiscoveryEngine().startDiscoveryForService(testDescriptionTwo)
+        getDiscoveryEngine().awaitEngineThread()
 
         assertTrue(foundDevices.size == 2)
         assertTrue(foundDevices.contains(testDeviceOne) && foundDevices.contains(testDeviceTwo))
@@ -389,7 +394,7 @@ abstract class UnitBluetoothServiceDiscovery {
         getDiscoveryEngine().startDiscoveryForService(testDescriptionTwo)
         getDiscoveryEngine().startDeviceDiscovery()
         getDiscoveryEngine()
-            .callPrivateFunc("onDeviceDiscovered", testDeviceOne)
+            .callPrivateFunc("onDeviceDiscovered", BluetoothPeer(testDeviceOne))
         getDiscoveryEngine().callPrivateFunc("onDeviceDiscoveryFinished")
         verify(exactly = 1) { testDeviceOne.fetchUuidsWithSdp() }
 
@@ -504,7 +509,7 @@ abstract class UnitBluetoothServiceDiscovery {
         getDiscoveryEngine().startDiscoveryForService(testDescriptionTwo)
         getDiscoveryEngine().startDeviceDiscovery()
         getDiscoveryEngine()
-            .callPrivateFunc("onDeviceDiscovered", testDeviceOne)
+            .callPrivateFunc("onDeviceDiscovered", BluetoothPeer(testDeviceOne))
 
         //--- end device discovery ---//
         getDiscoveryEngine().callPrivateFunc("onDeviceDiscoveryFinished")
@@ -584,7 +589,7 @@ abstract class UnitBluetoothServiceDiscovery {
         getDiscoveryEngine().startDiscoveryForService(testDescriptionTwo)
         getDiscoveryEngine().startDeviceDiscovery()
         getDiscoveryEngine()
-            .callPrivateFunc("onDeviceDiscovered", testDeviceOne)
+            .callPrivateFunc("onDeviceDiscovered", BluetoothPeer(testDeviceOne))
         getDiscoveryEngine().callPrivateFunc("onDeviceDiscoveryFinished")
         getDiscoveryEngine()
             .callPrivateFunc("onUuidsFetched", getTestDeviceOne(), getTestUuidArrayOne())
@@ -612,9 +617,9 @@ abstract class UnitBluetoothServiceDiscovery {
 
         getDiscoveryEngine().startDeviceDiscovery()
         getDiscoveryEngine()
-            .callPrivateFunc("onDeviceDiscovered", testDeviceOne)
+            .callPrivateFunc("onDeviceDiscovered", BluetoothPeer(testDeviceOne))
         getDiscoveryEngine()
-            .callPrivateFunc("onDeviceDiscovered", testDeviceTwo)
+            .callPrivateFunc("onDeviceDiscovered", BluetoothPeer(testDeviceTwo))
 
         //--- should not be fetched before device discovery stopped ---//
         verify(exactly = 0) { testDeviceOne.fetchUuidsWithSdp() }
@@ -200,6 +200,7 @@ class UnitWifiDirectServiceDiscovery {
     @Test
     fun verifyDiscoveryApiUsage() {
         WifiDirectServiceDiscoveryEngine.getInstance().startDiscovery()
+        WifiDirectServiceDiscoveryEngine.getInstance().awaitEngineThread()
         clearServiceRequestsCallback.captured.onSuccess()
         addServiceRequestsCallback.captured.onSuccess()
 
@@ -216,10 +217,12 @@ class UnitWifiDirectServiceDiscovery {
     @Test
     fun theServiceRequestsShouldBeCleared() {
         WifiDirectServiceDiscoveryEngine.getInstance().startDiscovery()
+        WifiDirectServiceDiscoveryEngine.getInstance().awaitEngineThread()
         clearServiceRequestsCallback.captured.onSuccess()
         addServiceRequestsCallback.captured.onSuccess()
 
         WifiDirectServiceDiscoveryEngine.getInstance().stopDiscovery()
+        WifiDirectServiceDiscoveryEngine.getInstance().awaitEngineThread()
         verify(exactly = 3) { mockedManager.clearServiceRequests(mockedChannel, any()) }
     }
 
@@ -238,6 +241,7 @@ class UnitWifiDirectServiceDiscovery {
         WifiDirectServiceDiscoveryEngine.getInstance().registerDiscoverListener(listener)
         WifiDirectServiceDiscoveryEngine.getInstance().startDiscovery()
         WifiDirectServiceDiscoveryEngine.getInstance().startDiscoveryForService(testDescription)
+        WifiDirectServiceDiscoveryEngine.getInstance().awaitEngineThread()
 
         simulateDiscoveryOf(testHost, testDescription)
 
@@ -262,6 +266,7 @@ class UnitWifiDirectServiceDiscovery {
         WifiDirectServiceDiscoveryEngine.getInstance().registerDiscoverListener(listener)
         WifiDirectServiceDiscoveryEngine.getInstance().startDiscovery()
         WifiDirectServiceDiscoveryEngine.getInstance().startDiscoveryForService(testDescription)
+        WifiDirectServiceDiscoveryEngine.getInstance().awaitEngineThread()
 
         simulateDiscoveryOf(testHostOne, testDescription)
         simulateDiscoveryOf(testHostTwo, testDescription)
@@ -286,6 +291,7 @@ class UnitWifiDirectServiceDiscovery {
 
         WifiDirectServiceDiscoveryEngine.getInstance().registerDiscoverListener(listener)
         WifiDirectServiceDiscoveryEngine.getInstance().startDiscovery()
+        WifiDirectServiceDiscoveryEngine.getInstance().awaitEngineThread()
 
         simulateDiscoveryOf(testHost, testDescription)
 
@@ -306,6 +312,7 @@ class UnitWifiDirectServiceDiscovery {
         WifiDirectServiceDiscoveryEngine.getInstance().registerDiscoverListener(listener)
         WifiDirectServiceDiscoveryEngine.getInstance().startDiscovery()
         WifiDirectServiceDiscoveryEngine.getInstance().startDiscoveryForService(testDescription)
+        WifiDirectServiceDiscoveryEngine.getInstance().awaitEngineThread()
 
         simulateDiscoveryOf(testHost, testDescription)
         simulateDiscoveryOf(testHost, testDescription)
@@ -330,11 +337,13 @@ class UnitWifiDirectServiceDiscovery {
         WifiDirectServiceDiscoveryEngine.getInstance().registerDiscoverListener(listener)
         WifiDirectServiceDiscoveryEngine.getInstance().startDiscovery()
         WifiDirectServiceDiscoveryEngine.getInstance().startDiscoveryForService(testDescription)
+        WifiDirectServiceDiscoveryEngine.getInstance().awaitEngineThread()
 
         simulateDiscoveryOf(testHost, testDescription)
         assertTrue(listener.hasDiscoveries(1))
 
         WifiDirectServiceDiscoveryEngine.getInstance().startDiscovery()
+        WifiDirectServiceDiscoveryEngine.getInstance().awaitEngineThread()
 
         simulateDiscoveryOf(testHost, testDescription)
         assertTrue(listener.hasDiscoveries(2))
@@ -356,6 +365,7 @@ class UnitWifiDirectServiceDiscovery {
         WifiDirectServiceDiscoveryEngine.getInstance().startDiscovery()
         WifiDirectServiceDiscoveryEngine.getInstance().startDiscoveryForService(testDescriptionOne)
         WifiDirectServiceDiscoveryEngine.getInstance().startDiscoveryForService(testDescriptionTwo)
+        WifiDirectServiceDiscoveryEngine.getInstance().awaitEngineThread()
 
         simulateDiscoveryOf(testHostOne, testDescriptionOne)
 
@@ -387,6 +397,7 @@ class UnitWifiDirectServiceDiscovery {
         WifiDirectServiceDiscoveryEngine.getInstance().registerDiscoverListener(listener)
         WifiDirectServiceDiscoveryEngine.getInstance().startDiscovery()
         WifiDirectServiceDiscoveryEngine.getInstance().startDiscoveryForService(testDescription)
+        WifiDirectServiceDiscoveryEngine.getInstance().awaitEngineThread()
 
         //----------------------------------
         // NOTE : taking different hosts here to prevent double discovery prevention from kicking in
@@ -394,6 +405,7 @@ class UnitWifiDirectServiceDiscovery {
         simulateDiscoveryOf(testHostOne, testDescription)
 
         WifiDirectServiceDiscoveryEngine.getInstance().stopDiscoveryForService(testDescription)
+        WifiDirectServiceDiscoveryEngine.getInstance().awaitEngineThread()
 
         simulateDiscoveryOf(testHostTwo, testDescription)
 
@@ -420,6 +432,7 @@ class UnitWifiDirectServiceDiscovery {
         WifiDirectServiceDiscoveryEngine.getInstance().startDiscovery()
         WifiDirectServiceDiscoveryEngine.getInstance().startDiscoveryForService(testDescriptionOne)
         WifiDirectServiceDiscoveryEngine.getInstance().startDiscoveryForService(testDescriptionTwo)
+        WifiDirectServiceDiscoveryEngine.getInstance().awaitEngineThread()
 
         simulateDiscoveryOf(testHostOne, testDescriptionOne)
         simulateDiscoveryOf(testHostOne, testDescriptionTwo)
@@ -427,6 +440,7 @@ class UnitWifiDirectServiceDiscovery {
         assertTrue(listener.hasDiscoveries(2))
 
         WifiDirectServiceDiscoveryEngine.getInstance().stopDiscoveryForService(testDescriptionOne)
+        WifiDirectServiceDiscoveryEngine.getInstance().awaitEngineThread()
 
         simulateDiscoveryOf(testHostTwo, testDescriptionOne) // this one wont be notified
         simulateDiscoveryOf(testHostTwo, testDescriptionTwo)
@@ -454,6 +468,7 @@ class UnitWifiDirectServiceDiscovery {
 
         WifiDirectServiceDiscoveryEngine.getInstance().startDiscovery()
         WifiDirectServiceDiscoveryEngine.getInstance().startDiscoveryForService(testDescription)
+        WifiDirectServiceDiscoveryEngine.getInstance().awaitEngineThread()
         simulateDiscoveryOf(testHost, testDescription)
 
         assertTrue(
@@ -483,16 +498,20 @@ class UnitWifiDirectServiceDiscovery {
         WifiDirectServiceDiscoveryEngine.getInstance().startDiscoveryForService(testDescriptionTwo)
         WifiDirectServiceDiscoveryEngine.getInstance().stopDiscoveryForService(testDescriptionTwo)
         WifiDirectServiceDiscoveryEngine.getInstance().startDiscovery()
+        WifiDirectServiceDiscoveryEngine.getInstance().awaitEngineThread()
         verify(exactly = 0) { mockedManager.setDnsSdResponseListeners(mockedChannel, any(), any()) }
         verify(exactly = 0) { mockedManager.clearServiceRequests(mockedChannel, any()) }
         verify(exactly = 0) { mockedManager.addServiceRequest(mockedChannel, any(), any()) }
         verify(exactly = 0) { mockedManager.addServiceRequest(mockedChannel, any(), any()) }
         verify(exactly = 0) { mockedManager.discoverServices(mockedChannel, any()) }
         WifiDirectServiceDiscoveryEngine.getInstance().stopDiscovery()
+        WifiDirectServiceDiscoveryEngine.getInstance().awaitEngineThread()
         verify(exactly = 0) { mockedManager.clearServiceRequests(mockedChannel, any()) }
         WifiDirectServiceDiscoveryEngine.getInstance().startService(testDescriptionTwo)
+        WifiDirectServiceDiscoveryEngine.getInstance().awaitEngineThread()
         verify(exactly = 0) { mockedManager.addLocalService(mockedChannel, any(), any()) }
         WifiDirectServiceDiscoveryEngine.getInstance().stopService(testDescriptionTwo)
+        WifiDirectServiceDiscoveryEngine.getInstance().awaitEngineThread()
         verify(exactly = 0) { mockedManager.removeLocalService(mockedChannel, any(), any()) }
     }
 
@@ -515,6 +534,7 @@ class UnitWifiDirectServiceDiscovery {
 
         WifiDirectServiceDiscoveryEngine.getInstance().startDiscovery()
         WifiDirectServiceDiscoveryEngine.getInstance().startDiscoveryForService(testDescription)
+        WifiDirectServiceDiscoveryEngine.getInstance().awaitEngineThread()
         simulateDiscoveryOf(testHostOne, testDescription)
 
         assertTrue(
@@ -567,6 +587,7 @@ class UnitWifiDirectServiceDiscovery {
         // registering only description five
         WifiDirectServiceDiscoveryEngine.getInstance().startDiscoveryForService(testDescriptionOne)
         WifiDirectServiceDiscoveryEngine.getInstance().notifyAboutAllServices(true)
+        WifiDirectServiceDiscoveryEngine.getInstance().awaitEngineThread()
         simulateDiscoveryOf(testHost, testDescriptionOne)
         simulateDiscoveryOf(testHost, testDescriptionTwo)
 
@@ -593,6 +614,7 @@ class UnitWifiDirectServiceDiscovery {
         // registering only description five
         WifiDirectServiceDiscoveryEngine.getInstance().startDiscoveryForService(testDescriptionOne)
         WifiDirectServiceDiscoveryEngine.getInstance().notifyAboutAllServices(true)
+        WifiDirectServiceDiscoveryEngine.getInstance().awaitEngineThread()
         simulateDiscoveryOf(testHost, testDescriptionOne)
         simulateDiscoveryOf(testHost, testDescriptionTwo)
 
@@ -8,7 +8,9 @@ import android.os.Parcelable
 import io.mockk.every
 import io.mockk.justRun
 import io.mockk.mockk
+import willi.boelke.services.serviceDiscovery.EngineExecutor
 import willi.boelke.services.serviceDiscovery.ServiceDescription
+import willi.boelke.services.serviceDiscovery.ServiceDiscoveryEngine
 import java.io.InputStream
 import java.io.OutputStream
 import java.util.*
@@ -77,9 +79,9 @@ fun initTestMocks() {
             serviceAttributesFive,
             "_testFive._tcp"
         )
-    testDescriptionOne.overrideUuidForBluetooth(testUUIDOne)
-    testDescriptionTwo.overrideUuidForBluetooth(testUUIDTwo)
-    testDescriptionThree.overrideUuidForBluetooth(testUUIDThree)
+    testDescriptionOne = ServiceDescription.Builder(testDescriptionOne).setServiceUuid(testUUIDOne).build()
+    testDescriptionTwo = ServiceDescription.Builder(testDescriptionTwo).setServiceUuid(testUUIDTwo).build()
+    testDescriptionThree = ServiceDescription.Builder(testDescriptionThree).setServiceUuid(testUUIDThree).build()
 }
 
 fun getTestDeviceOne(): BluetoothDevice {
@@ -177,17 +179,29 @@ fun getTestDeviceTwo_Wifi(): WifiP2pDevice {
  */
 inline fun <reified T> T.callPrivateFunc(name: String, vararg args: Any?): Any? {
     val classArray: Array<Class<*>> = args.map { it!!::class.java }.toTypedArray()
+    (this as? ServiceDiscoveryEngine)?.awaitEngineThread()
     return T::class.java.getDeclaredMethod(name, *classArray)
         .apply { isAccessible = true }
         .invoke(this, *args)
 }
 
+/**
+ * API calls of the engines return before they ran on the engine thread,
+ * this waits until all tasks passed on to the engine thread so far ran.
+ */
+fun ServiceDiscoveryEngine.awaitEngineThread() {
+    val executorField = ServiceDiscoveryEngine::class.java.getDeclaredField("engineExecutor")
+    executorField.isAccessible = true
+    (executorField.get(this) as EngineExecutor).runAndWait {}
+}
+
 
 /**
  * This a specialized version of the general callPrivateFun method.
  * It only calls "onUuidsFetched" but allows parameters to be null
  */
 inline fun <reified T> T.callOnUuidsFetchedWithNullParam(vararg args: Any?): Any? {
+    (this as? ServiceDiscoveryEngine)?.awaitEngineThread()
     return T::class.java.getDeclaredMethod(
         "onUuidsFetched",
         BluetoothDevice::class.java,
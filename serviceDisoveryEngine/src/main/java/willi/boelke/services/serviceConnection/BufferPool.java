@@ -0,0 +1,282 @@
+package willi.boelke.services.serviceConnection;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out byte buffers for connection I/O and takes them back for reuse.
+ * <p>
+ * <h2>Why</h2>
+ * Allocating a new array for every message read or written produces a lot of
+ * garbage under sustained throughput. On low end devices the resulting garbage
+ * collections show up as latency spikes.
+ * <p>
+ * <h2>Size classes</h2>
+ * Buffers are pooled in size classes, powers of two from {@link #MIN_CLASS_SIZE}
+ * to {@link #MAX_CLASS_SIZE} bytes. A request is served from the smallest class
+ * which fits, so the capacity of a buffer may be larger than requested.
+ * At most {@link #MAX_BUFFERS_PER_CLASS} released buffers are kept per class.
+ * Buffers larger than the largest class are not pooled.
+ * <p>
+ * <h2>Usage</h2>
+ * Buffers are reference counted, see {@link PooledBuffer}. A buffer obtained through
+ * {@link #acquire(int)} needs to be {@link PooledBuffer#release() released} once it is
+ * not used anymore, and must not be used after that.
+ * <p>
+ * The buffers are heap buffers backed by an array, since the connections
+ * are read and written through streams.
+ * <p>
+ * This is thread safe.
+ *
+ * @author WilliBoelke
+ */
+public class BufferPool
+{
+    //
+    //  ----------  static members ----------
+    //
+
+    /**
+     * Size of the smallest size class in bytes
+     */
+    public static final int MIN_CLASS_SIZE = 256;
+
+    /**
+     * Size of the largest size class in bytes
+     */
+    public static final int MAX_CLASS_SIZE = 64 * 1024;
+
+    /**
+     * Maximum number of released buffers kept per size class
+     */
+    public static final int MAX_BUFFERS_PER_CLASS = 16;
+
+    /**
+     * Instance of the class following the singleton pattern
+     */
+    private static BufferPool instance;
+
+    //
+    //  ----------  instance variables ----------
+    //
+
+    /**
+     * The released buffers, by size class
+     */
+    private final ArrayDeque<PooledBuffer>[] freeBuffers;
+
+    private final AtomicLong acquired = new AtomicLong(0);
+
+    private final AtomicLong reused = new AtomicLong(0);
+
+    private final AtomicLong released = new AtomicLong(0);
+
+    private final AtomicLong unpooled = new AtomicLong(0);
+
+    //
+    //  ----------  constructor and initialisation ----------
+    //
+
+    /**
+     * Can be used to obtain the singleton instance.
+     *
+     * @return Returns the singleton instance of this class
+     */
+    public static synchronized BufferPool getInstance()
+    {
+        if (instance == null)
+        {
+            instance = new BufferPool();
+        }
+        return instance;
+    }
+
+    /**
+     * Constructor
+     */
+    @SuppressWarnings("unchecked")
+    BufferPool()
+    {
+        int classes = Integer.numberOfTrailingZeros(MAX_CLASS_SIZE / MIN_CLASS_SIZE) + 1;
+        this.freeBuffers = new ArrayDeque[classes];
+        for (int i = 0; i < classes; i++)
+        {
+            this.freeBuffers[i] = new ArrayDeque<>();
+        }
+    }
+
+    //
+    //  ----------  buffers ----------
+    //
+
+    /**
+     * Returns a buffer with at least the given capacity. Its position is 0
+     * and its limit the requested capacity.
+     *
+     * @param capacity
+     *         the needed capacity in bytes
+     *
+     * @return a buffer with a reference count of 1
+     */
+    public PooledBuffer acquire(int capacity)
+    {
+        if (capacity < 0)
+        {
+            throw new IllegalArgumentException("capacity cant be negative");
+        }
+        this.acquired.incrementAndGet();
+        int sizeClass = sizeClassOf(capacity);
+        if (sizeClass == -1)
+        {
+            this.unpooled.incrementAndGet();
+            return new PooledBuffer(null, -1, ByteBuffer.allocate(capacity));
+        }
+        PooledBuffer buffer;
+        ArrayDeque<PooledBuffer> free = this.freeBuffers[sizeClass];
+        synchronized (free)
+        {
+            buffer = free.poll();
+        }
+        if (buffer == null)
+        {
+            buffer = new PooledBuffer(this, sizeClass, ByteBuffer.allocate(MIN_CLASS_SIZE << sizeClass));
+        }
+        else
+        {
+            this.reused.incrementAndGet();
+        }
+        buffer.reset(capacity);
+        return buffer;
+    }
+
+    /**
+     * Takes a buffer back, called once its reference count reaches 0
+     */
+    void recycle(PooledBuffer buffer, int sizeClass)
+    {
+        this.released.incrementAndGet();
+        ArrayDeque<PooledBuffer> free = this.freeBuffers[sizeClass];
+        synchronized (free)
+        {
+            if (free.size() < MAX_BUFFERS_PER_CLASS)
+            {
+                free.push(buffer);
+            }
+        }
+    }
+
+    /**
+     * @return the index of the smallest size class which fits the capacity,
+     *         -1 if the capacity is larger than the largest class
+     */
+    private static int sizeClassOf(int capacity)
+    {
+        if (capacity > MAX_CLASS_SIZE)
+        {
+            return -1;
+        }
+        int sizeClass = 0;
+        while ((MIN_CLASS_SIZE << sizeClass) < capacity)
+        {
+            sizeClass++;
+        }
+        return sizeClass;
+    }
+
+    //
+    //  ----------  metrics ----------
+    //
+
+    /**
+     * @return the current metrics
+     */
+    public Metrics getMetrics()
+    {
+        int pooled = 0;
+        for (ArrayDeque<PooledBuffer> free : this.freeBuffers)
+        {
+            synchronized (free)
+            {
+                pooled += free.size();
+            }
+        }
+        return new Metrics(this.acquired.get(), this.reused.get(), this.released.get(), this.unpooled.get(), pooled);
+    }
+
+    /**
+     * Metrics of the {@link BufferPool}, at the time they where obtained
+     */
+    public static final class Metrics
+    {
+        private final long acquired;
+        private final long reused;
+        private final long released;
+        private final long unpooled;
+        private final int pooled;
+
+        Metrics(long acquired, long reused, long released, long unpooled, int pooled)
+        {
+            this.acquired = acquired;
+            this.reused = reused;
+            this.released = released;
+            this.unpooled = unpooled;
+            this.pooled = pooled;
+        }
+
+        /**
+         * @return the number of buffers handed out
+         */
+        public long getAcquired()
+        {
+            return this.acquired;
+        }
+
+        /**
+         * @return the number of buffers handed out which were reused
+         */
+        public long getReused()
+        {
+            return this.reused;
+        }
+
+        /**
+         * @return the number of pooled buffers which were released
+         */
+        public long getReleased()
+        {
+            return this.released;
+        }
+
+        /**
+         * @return the number of buffers handed out which were too large to be pooled
+         */
+        public long getUnpooled()
+        {
+            return this.unpooled;
+        }
+
+        /**
+         * @return the number of released buffers waiting to be reused
+         */
+        public int getPooled()
+        {
+            return this.pooled;
+        }
+
+        @NonNull
+        @Override
+        public String toString()
+        {
+            return "Metrics{" +
+                    "acquired=" + acquired +
+                    ", reused=" + reused +
+                    ", released=" + released +
+                    ", unpooled=" + unpooled +
+                    ", pooled=" + pooled +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,479 @@
+package willi.boelke.services.serviceConnection;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import willi.boelke.services.serviceDiscovery.EngineLog;
+
+/**
+ * Shared, bounded thread pool running the short lived work
+ * of the connection engines.
+ * <p>
+ * <h2>Why</h2>
+ * The connection engines started a new thread for every connection attempt,
+ * every delayed restart of a service and every deferred close of a connection.
+ * With many peers coming and going this meant hundreds of short lived threads.
+ * <p>
+ * <h2>Usage</h2>
+ * Work which should run right away (connection attempts, waiting for a socket)
+ * is passed to {@link #execute(Runnable)}. It is run by a pool of at most
+ * {@link #setParallelism(int) parallelism} threads, further tasks wait in a queue.
+ * Idle threads are stopped after {@link #KEEP_ALIVE_TIME} ms.
+ * <p>
+ * Delayed work (restarts, deferred closes) is passed to {@link #schedule(Runnable, long)}.
+ * A single scheduler thread waits for the delay and then passes the task to the pool,
+ * so no thread is blocked while waiting.
+ * <p>
+ * Long running loops (like accepting connections on a server socket)
+ * should keep their own thread, they would block a worker for good.
+ * <p>
+ * <h2>Metrics</h2>
+ * The number of waiting, running and completed tasks can be obtained through
+ * {@link #getMetrics()}.
+ *
+ * @author WilliBoelke
+ */
+public class ConnectionExecutor implements Executor
+{
+    //
+    //  ----------  static members ----------
+    //
+
+    /**
+     * The number of tasks which run at the same time by default
+     */
+    public static final int DEFAULT_PARALLELISM = 4;
+
+    /**
+     * Time in milliseconds after which an idle worker thread stops
+     */
+    public static final long KEEP_ALIVE_TIME = 30000;
+
+    /**
+     * Instance of the class following the singleton pattern
+     */
+    private static ConnectionExecutor instance;
+
+    //
+    //  ----------  instance variables ----------
+    //
+
+    /**
+     * Classname for logging
+     */
+    private final String TAG = this.getClass().getSimpleName();
+
+    private final ThreadPoolExecutor workers;
+
+    private final ScheduledThreadPoolExecutor scheduler;
+
+    /**
+     * Number of tasks passed to {@link #schedule(Runnable, long)} which
+     * are not passed on to the {@link #workers} yet
+     */
+    private final AtomicInteger scheduledTasks = new AtomicInteger(0);
+
+    private final AtomicLong submittedTasks = new AtomicLong(0);
+
+    private final AtomicLong failedTasks = new AtomicLong(0);
+
+    //
+    //  ----------  constructor and initialisation ----------
+    //
+
+    /**
+     * Can be used to obtain the singleton instance.
+     *
+     * @return Returns the singleton instance of this class
+     */
+    public static synchronized ConnectionExecutor getInstance()
+    {
+        if (instance == null)
+        {
+            instance = new ConnectionExecutor(DEFAULT_PARALLELISM);
+        }
+        return instance;
+    }
+
+    /**
+     * Constructor
+     *
+     * @param parallelism
+     *         the maximum number of tasks running at the same time
+     */
+    ConnectionExecutor(int parallelism)
+    {
+        checkParallelism(parallelism);
+        this.workers = new ThreadPoolExecutor(parallelism, parallelism,
+                KEEP_ALIVE_TIME, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(),
+                new NamedThreadFactory("connection-worker"));
+        this.workers.allowCoreThreadTimeOut(true);
+        this.scheduler = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("connection-scheduler"));
+        this.scheduler.setRemoveOnCancelPolicy(true);
+    }
+
+    //
+    //  ----------  executing ----------
+    //
+
+    /**
+     * Runs a task on one of the worker threads,
+     * as soon as one is available
+     *
+     * @param task
+     *         the task
+     */
+    @Override
+    public void execute(@NonNull Runnable task)
+    {
+        submit(task);
+    }
+
+    /**
+     * Runs a task on one of the worker threads, as soon as one is available
+     *
+     * @param task
+     *         the task
+     *
+     * @return a future to cancel the task, before or while it runs
+     */
+    public Future<?> submit(Runnable task)
+    {
+        this.submittedTasks.incrementAndGet();
+        return this.workers.submit(() -> run(task));
+    }
+
+    /**
+     * Runs a task on one of the worker threads after the given delay
+     *
+     * @param task
+     *         the task
+     * @param delay
+     *         the delay in milliseconds
+     *
+     * @return a future to cancel the task before the delay passed
+     */
+    public ScheduledFuture<?> schedule(Runnable task, long delay)
+    {
+        // decremented once, when the task is passed on or canceled
+        AtomicBoolean pending = new AtomicBoolean(true);
+        this.scheduledTasks.incrementAndGet();
+        ScheduledFuture<?> future = this.scheduler.schedule(() ->
+        {
+            if (pending.compareAndSet(true, false))
+            {
+                this.scheduledTasks.decrementAndGet();
+            }
+            try
+            {
+                submit(task);
+            }
+            catch (RejectedExecutionException e)
+            {
+                EngineLog.e(TAG, "schedule: task was rejected", e);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+        return new ScheduledTask<>(future, pending, this.scheduledTasks);
+    }
+
+    private void run(Runnable task)
+    {
+        try
+        {
+            task.run();
+        }
+        catch (RuntimeException e)
+        {
+            // a failing task should not take down the worker
+            this.failedTasks.incrementAndGet();
+            EngineLog.e(TAG, "run: task failed", e);
+        }
+    }
+
+    //
+    //  ----------  config ----------
+    //
+
+    /**
+     * Sets the maximum number of tasks running at the same time.
+     * Further tasks wait till a worker is available.
+     *
+     * @param parallelism
+     *         the number of worker threads, at least 1
+     *
+     * @throws IllegalArgumentException
+     *         if the parallelism is smaller than 1
+     */
+    public synchronized void setParallelism(int parallelism)
+    {
+        checkParallelism(parallelism);
+        // the core size may never exceed the maximum size
+        if (parallelism > this.workers.getMaximumPoolSize())
+        {
+            this.workers.setMaximumPoolSize(parallelism);
+            this.workers.setCorePoolSize(parallelism);
+        }
+        else
+        {
+            this.workers.setCorePoolSize(parallelism);
+            this.workers.setMaximumPoolSize(parallelism);
+        }
+    }
+
+    private static void checkParallelism(int parallelism)
+    {
+        if (parallelism < 1)
+        {
+            throw new IllegalArgumentException("parallelism needs to be at least 1");
+        }
+    }
+
+    /**
+     * @return the maximum number of tasks running at the same time
+     */
+    public int getParallelism()
+    {
+        return this.workers.getMaximumPoolSize();
+    }
+
+    //
+    //  ----------  metrics ----------
+    //
+
+    /**
+     * @return the current metrics
+     */
+    public Metrics getMetrics()
+    {
+        return new Metrics(
+                this.workers.getQueue().size(),
+                this.scheduledTasks.get(),
+                this.workers.getActiveCount(),
+                this.workers.getPoolSize(),
+                this.workers.getLargestPoolSize(),
+                this.submittedTasks.get(),
+                this.workers.getCompletedTaskCount(),
+                this.failedTasks.get());
+    }
+
+    /**
+     * Metrics of the {@link ConnectionExecutor}, at the time they where obtained
+     */
+    public static final class Metrics
+    {
+        private final int queueDepth;
+        private final int scheduledTasks;
+        private final int activeTasks;
+        private final int poolSize;
+        private final int largestPoolSize;
+        private final long submittedTasks;
+        private final long completedTasks;
+        private final long failedTasks;
+
+        Metrics(int queueDepth, int scheduledTasks, int activeTasks, int poolSize, int largestPoolSize,
+                long submittedTasks, long completedTasks, long failedTasks)
+        {
+            this.queueDepth = queueDepth;
+            this.scheduledTasks = scheduledTasks;
+            this.activeTasks = activeTasks;
+            this.poolSize = poolSize;
+            this.largestPoolSize = largestPoolSize;
+            this.submittedTasks = submittedTasks;
+            this.completedTasks = completedTasks;
+            this.failedTasks = failedTasks;
+        }
+
+        /**
+         * @return the number of tasks waiting for a worker
+         */
+        public int getQueueDepth()
+        {
+            return this.queueDepth;
+        }
+
+        /**
+         * @return the number of delayed tasks waiting for their delay to pass
+         */
+        public int getScheduledTasks()
+        {
+            return this.scheduledTasks;
+        }
+
+        /**
+         * @return the number of tasks running right now (approximately)
+         */
+        public int getActiveTasks()
+        {
+            return this.activeTasks;
+        }
+
+        /**
+         * @return the number of worker threads
+         */
+        public int getPoolSize()
+        {
+            return this.poolSize;
+        }
+
+        /**
+         * @return the highest number of worker threads which existed at the same time
+         */
+        public int getLargestPoolSize()
+        {
+            return this.largestPoolSize;
+        }
+
+        /**
+         * @return the number of tasks passed to the workers
+         */
+        public long getSubmittedTasks()
+        {
+            return this.submittedTasks;
+        }
+
+        /**
+         * @return the number of tasks which ran (approximately)
+         */
+        public long getCompletedTasks()
+        {
+            return this.completedTasks;
+        }
+
+        /**
+         * @return the number of tasks which threw an exception
+         */
+        public long getFailedTasks()
+        {
+            return this.failedTasks;
+        }
+
+        @NonNull
+        @Override
+        public String toString()
+        {
+            return "Metrics{" +
+                    "queueDepth=" + queueDepth +
+                    ", scheduledTasks=" + scheduledTasks +
+                    ", activeTasks=" + activeTasks +
+                    ", poolSize=" + poolSize +
+                    ", largestPoolSize=" + largestPoolSize +
+                    ", submittedTasks=" + submittedTasks +
+                    ", completedTasks=" + completedTasks +
+                    ", failedTasks=" + failedTasks +
+                    '}';
+        }
+    }
+
+    //
+    //  ----------  scheduled tasks ----------
+    //
+
+    /**
+     * The future returned by {@link #schedule(Runnable, long)}.
+     * Canceling it before the delay passed removes the task
+     * from the {@link Metrics#getScheduledTasks() scheduled tasks}.
+     */
+    private static final class ScheduledTask<V> implements ScheduledFuture<V>
+    {
+        private final ScheduledFuture<V> future;
+        private final AtomicBoolean pending;
+        private final AtomicInteger scheduledTasks;
+
+        ScheduledTask(ScheduledFuture<V> future, AtomicBoolean pending, AtomicInteger scheduledTasks)
+        {
+            this.future = future;
+            this.pending = pending;
+            this.scheduledTasks = scheduledTasks;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning)
+        {
+            boolean canceled = this.future.cancel(mayInterruptIfRunning);
+            if (canceled && this.pending.compareAndSet(true, false))
+            {
+                this.scheduledTasks.decrementAndGet();
+            }
+            return canceled;
+        }
+
+        @Override
+        public boolean isCancelled()
+        {
+            return this.future.isCancelled();
+        }
+
+        @Override
+        public boolean isDone()
+        {
+            return this.future.isDone();
+        }
+
+        @Override
+        public V get() throws ExecutionException, InterruptedException
+        {
+            return this.future.get();
+        }
+
+        @Override
+        public V get(long timeout, @NonNull TimeUnit unit) throws ExecutionException, InterruptedException, TimeoutException
+        {
+            return this.future.get(timeout, unit);
+        }
+
+        @Override
+        public long getDelay(@NonNull TimeUnit unit)
+        {
+            return this.future.getDelay(unit);
+        }
+
+        @Override
+        public int compareTo(@NonNull Delayed other)
+        {
+            return this.future.compareTo(other);
+        }
+    }
+
+    //
+    //  ----------  threads ----------
+    //
+
+    /**
+     * Creates daemon threads named after the pool,
+     * so they can be told apart in thread dumps
+     */
+    private static final class NamedThreadFactory implements ThreadFactory
+    {
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger(0);
+
+        NamedThreadFactory(String name)
+        {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(@NonNull Runnable runnable)
+        {
+            Thread thread = new Thread(runnable, this.name + "-" + this.count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
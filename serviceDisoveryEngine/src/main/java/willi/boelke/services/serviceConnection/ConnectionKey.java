@@ -0,0 +1,69 @@
+package willi.boelke.services.serviceConnection;
+
+import androidx.annotation.NonNull;
+
+import java.util.UUID;
+
+/**
+ * Identifies a connection (or connection attempt)
+ * by the address of the remote device and the UUID of the service.
+ *
+ * @author WilliBoelke
+ */
+public final class ConnectionKey
+{
+    private final String address;
+    private final UUID serviceUuid;
+
+    /**
+     * Constructor
+     *
+     * @param address
+     *         the address of the remote device
+     * @param serviceUuid
+     *         the UUID of the service
+     */
+    public ConnectionKey(String address, UUID serviceUuid)
+    {
+        this.address = address;
+        this.serviceUuid = serviceUuid;
+    }
+
+    public String getAddress()
+    {
+        return this.address;
+    }
+
+    public UUID getServiceUuid()
+    {
+        return this.serviceUuid;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if (this == o)
+        {
+            return true;
+        }
+        if (!(o instanceof ConnectionKey))
+        {
+            return false;
+        }
+        ConnectionKey that = (ConnectionKey) o;
+        return this.address.equals(that.address) && this.serviceUuid.equals(that.serviceUuid);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return 31 * this.address.hashCode() + this.serviceUuid.hashCode();
+    }
+
+    @NonNull
+    @Override
+    public String toString()
+    {
+        return "ConnectionKey{" + address + ", " + serviceUuid + '}';
+    }
+}
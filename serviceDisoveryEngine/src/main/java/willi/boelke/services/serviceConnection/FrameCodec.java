@@ -0,0 +1,174 @@
+package willi.boelke.services.serviceConnection;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StreamCorruptedException;
+
+/**
+ * Encodes and decodes the length prefix of the frames sent through a {@link MessageChannel}.
+ * <p>
+ * <h2>Frame format</h2>
+ * Every message is sent as one frame, the length of the message in bytes
+ * followed by the message itself:
+ * <pre>
+ *     | length (varint, 1 - 5 bytes) | message (length bytes) |
+ * </pre>
+ * The length is encoded as unsigned varint, 7 bits per byte, least significant
+ * group first, with the highest bit set on all bytes but the last one.
+ * So messages up to 127 bytes only need a single byte of overhead,
+ * messages up to 16 KiB two bytes.
+ *
+ * @author WilliBoelke
+ */
+public final class FrameCodec
+{
+    //
+    //  ----------  static members ----------
+    //
+
+    /**
+     * The maximum number of bytes of an encoded length
+     */
+    public static final int MAX_VARINT_BYTES = 5;
+
+    //
+    //  ----------  constructor and initialisation ----------
+    //
+
+    private FrameCodec()
+    {
+        // static methods only
+    }
+
+    //
+    //  ----------  encoding ----------
+    //
+
+    /**
+     * @param value
+     *         a length, not negative
+     *
+     * @return the number of bytes needed to encode the value
+     */
+    public static int varintSize(int value)
+    {
+        checkLength(value);
+        int size = 1;
+        while ((value >>>= 7) != 0)
+        {
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Encodes a length into the given array
+     *
+     * @param value
+     *         a length, not negative
+     * @param destination
+     *         the array to write to
+     * @param offset
+     *         the position in the array to write the first byte to
+     *
+     * @return the number of bytes written
+     */
+    public static int writeVarint(int value, byte[] destination, int offset)
+    {
+        checkLength(value);
+        int position = offset;
+        while ((value & ~0x7F) != 0)
+        {
+            destination[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        destination[position++] = (byte) value;
+        return position - offset;
+    }
+
+    private static void checkLength(int value)
+    {
+        if (value < 0)
+        {
+            throw new IllegalArgumentException("a length cant be negative");
+        }
+    }
+
+    //
+    //  ----------  decoding ----------
+    //
+
+    /**
+     * Reads a length from the stream
+     *
+     * @param in
+     *         the stream to read from
+     *
+     * @return the length, or -1 if the stream ended before the first byte
+     *
+     * @throws EOFException
+     *         if the stream ended within the length
+     * @throws StreamCorruptedException
+     *         if the length is longer than {@link #MAX_VARINT_BYTES} or negative
+     * @throws IOException
+     *         if reading fails
+     */
+    public static int readVarint(InputStream in) throws IOException
+    {
+        int value = 0;
+        for (int i = 0; i < MAX_VARINT_BYTES; i++)
+        {
+            int b = in.read();
+            if (b == -1)
+            {
+                if (i == 0)
+                {
+                    return -1;
+                }
+                throw new EOFException("stream ended within a frame length");
+            }
+            value |= (b & 0x7F) << (7 * i);
+            if ((b & 0x80) == 0)
+            {
+                if (value < 0)
+                {
+                    throw new StreamCorruptedException("frame length out of range");
+                }
+                return value;
+            }
+        }
+        throw new StreamCorruptedException("frame length longer than " + MAX_VARINT_BYTES + " bytes");
+    }
+
+    /**
+     * Reads exactly {@code length} bytes from the stream
+     *
+     * @param in
+     *         the stream to read from
+     * @param destination
+     *         the array to read into
+     * @param offset
+     *         the position of the first byte in the array
+     * @param length
+     *         the number of bytes to read
+     *
+     * @throws EOFException
+     *         if the stream ended before all bytes were read
+     * @throws IOException
+     *         if reading fails
+     */
+    public static void readFully(InputStream in, byte[] destination, int offset, int length) throws IOException
+    {
+        int read = 0;
+        while (read < length)
+        {
+            int count = in.read(destination, offset + read, length - read);
+            if (count == -1)
+            {
+                throw new EOFException("stream ended within a frame");
+            }
+            read += count;
+        }
+    }
+}
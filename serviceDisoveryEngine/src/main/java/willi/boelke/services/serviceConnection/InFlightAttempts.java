@@ -0,0 +1,153 @@
+package willi.boelke.services.serviceConnection;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Keeps track of the connection attempts which are in flight
+ * (waiting to start or running) and who is waiting for their result.
+ * <p>
+ * <h2>Why</h2>
+ * A service is often reported several times while a connection attempt to it is
+ * still running (repeated SDP results, refreshes). Starting another attempt to the same
+ * device and service makes both fight over the same channel, and usually both fail.
+ * <p>
+ * <h2>Usage</h2>
+ * Every request for a connection {@link #join(Object, Object) joins} the attempt for its key.
+ * Only the first request starts an attempt, the following ones are coalesced into it.
+ * When the attempt is done it is {@link #complete(Object) completed}, which
+ * returns everyone who waited for it - so the single result can be passed on to all of them.
+ * <p>
+ * This is thread safe.
+ *
+ * @param <K>
+ *         the type of the keys, like a {@link ConnectionKey}
+ * @param <W>
+ *         the type of the waiters
+ *
+ * @author WilliBoelke
+ */
+public class InFlightAttempts<K, W>
+{
+    //
+    //  ----------  instance variables ----------
+    //
+
+    /**
+     * The waiters of each attempt in flight, in the order they joined
+     */
+    private final HashMap<K, List<W>> attempts = new HashMap<>();
+
+    private long coalescedAttempts = 0;
+
+    //
+    //  ----------  attempts ----------
+    //
+
+    /**
+     * Joins the attempt for the given key, or starts a new one
+     *
+     * @param key
+     *         the key of the attempt
+     * @param waiter
+     *         who waits for the result, will only be added once
+     *
+     * @return true if a new attempt was started and needs to be made,
+     *         false if an attempt was already in flight
+     */
+    public synchronized boolean join(K key, W waiter)
+    {
+        List<W> waiters = this.attempts.get(key);
+        if (waiters == null)
+        {
+            waiters = new ArrayList<>();
+            waiters.add(waiter);
+            this.attempts.put(key, waiters);
+            return true;
+        }
+        if (!containsInstance(waiters, waiter))
+        {
+            waiters.add(waiter);
+        }
+        this.coalescedAttempts++;
+        return false;
+    }
+
+    /**
+     * Completes the attempt for the given key, a new
+     * attempt can be started afterwards
+     *
+     * @param key
+     *         the key of the attempt
+     *
+     * @return everyone who waited for the attempt, empty
+     *         if there was no attempt in flight
+     */
+    public synchronized List<W> complete(K key)
+    {
+        List<W> waiters = this.attempts.remove(key);
+        return waiters == null ? Collections.emptyList() : waiters;
+    }
+
+    /**
+     * Removes all attempts
+     */
+    public synchronized void clear()
+    {
+        this.attempts.clear();
+    }
+
+    private static boolean containsInstance(List<?> list, Object object)
+    {
+        for (Object element : list)
+        {
+            if (element == object)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //
+    //  ----------  getter ----------
+    //
+
+    /**
+     * @param key
+     *         the key of the attempt
+     *
+     * @return true if an attempt with the given key is in flight
+     */
+    public synchronized boolean isInFlight(K key)
+    {
+        return this.attempts.containsKey(key);
+    }
+
+    /**
+     * @return the keys of all attempts in flight
+     */
+    public synchronized List<K> keys()
+    {
+        return new ArrayList<>(this.attempts.keySet());
+    }
+
+    /**
+     * @return the number of attempts in flight
+     */
+    public synchronized int size()
+    {
+        return this.attempts.size();
+    }
+
+    /**
+     * @return the number of requests which were coalesced
+     *         into an attempt already in flight
+     */
+    public synchronized long getCoalescedAttempts()
+    {
+        return this.coalescedAttempts;
+    }
+}
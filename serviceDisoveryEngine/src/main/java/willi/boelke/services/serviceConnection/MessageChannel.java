@@ -0,0 +1,285 @@
+package willi.boelke.services.serviceConnection;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+
+/**
+ * Sends and receives whole messages through a {@link ServiceConnection}.
+ * <p>
+ * <h2>Why</h2>
+ * The streams of a connection do not keep messages apart. A single {@code read()}
+ * may return a part of a message, or several messages at once, especially under load.
+ * The channel prefixes every message with its length (see {@link FrameCodec}),
+ * so the receiving side gets exactly the messages which were sent.
+ * Both sides of a connection need to use a message channel.
+ * <p>
+ * <h2>Usage</h2>
+ * <pre>
+ *     MessageChannel channel = new MessageChannel(connection);
+ *     channel.send(ByteBuffer.wrap(bytes));
+ *     ByteBuffer message = channel.receive();
+ * </pre>
+ * This works with every {@link ServiceConnection}, bluetooth as well as Wi-Fi Direct.
+ * Only one channel should be created per connection, since it buffers received data.
+ * <p>
+ * <h2>Buffers</h2>
+ * Frames are assembled and received in buffers taken from the {@link BufferPool},
+ * so sending and receiving does not allocate per message.
+ * The buffer returned by {@link #receive()} is reused by the channel, it is only
+ * valid until the next call to {@link #receive()}. A message which needs to be kept,
+ * or handed to another thread, can be received through {@link #receivePooled()}
+ * instead, the returned buffer belongs to the caller and needs to be released.
+ * <p>
+ * Sending and receiving are thread safe, one thread can send
+ * while another one receives.
+ *
+ * @author WilliBoelke
+ */
+public class MessageChannel implements Closeable
+{
+    //
+    //  ----------  static members ----------
+    //
+
+    /**
+     * The default maximum length of a message in bytes
+     */
+    public static final int DEFAULT_MAX_MESSAGE_LENGTH = 1024 * 1024;
+
+    /**
+     * Size of the buffer the input stream is read into
+     */
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+
+    //
+    //  ----------  instance variables ----------
+    //
+
+    private final ServiceConnection connection;
+
+    private final int maxMessageLength;
+
+    private final Object sendLock = new Object();
+
+    private final Object receiveLock = new Object();
+
+    private final BufferPool pool = BufferPool.getInstance();
+
+    /**
+     * The buffer returned by {@link #receive()}, kept till
+     * a larger one is needed or the channel is closed
+     */
+    private PooledBuffer receiveBuffer;
+
+    private InputStream in;
+
+    //
+    //  ----------  constructor and initialisation ----------
+    //
+
+    /**
+     * Constructor, using the {@link #DEFAULT_MAX_MESSAGE_LENGTH}
+     *
+     * @param connection
+     *         the connection to send and receive messages through
+     */
+    public MessageChannel(ServiceConnection connection)
+    {
+        this(connection, DEFAULT_MAX_MESSAGE_LENGTH);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param connection
+     *         the connection to send and receive messages through
+     * @param maxMessageLength
+     *         the maximum length of a message in bytes, longer messages
+     *         are neither sent nor received
+     */
+    public MessageChannel(ServiceConnection connection, int maxMessageLength)
+    {
+        if (maxMessageLength < 1)
+        {
+            throw new IllegalArgumentException("the maximum message length needs to be at least 1");
+        }
+        this.connection = connection;
+        this.maxMessageLength = maxMessageLength;
+    }
+
+    //
+    //  ----------  messages ----------
+    //
+
+    /**
+     * Sends the remaining bytes of the buffer as one message.
+     * The position of the buffer will be moved to its limit.
+     *
+     * @param message
+     *         the message
+     *
+     * @throws IllegalArgumentException
+     *         if the message is longer than the maximum message length
+     * @throws IOException
+     *         if writing fails
+     */
+    public void send(ByteBuffer message) throws IOException
+    {
+        int length = message.remaining();
+        if (length > this.maxMessageLength)
+        {
+            throw new IllegalArgumentException("message of " + length + " bytes exceeds the maximum of " + this.maxMessageLength);
+        }
+        // length prefix and message are copied into one buffer to be written at once
+        int frameLength = FrameCodec.varintSize(length) + length;
+        PooledBuffer frame = this.pool.acquire(frameLength);
+        try
+        {
+            byte[] array = frame.array();
+            int headerLength = FrameCodec.writeVarint(length, array, 0);
+            message.get(array, headerLength, length);
+            synchronized (this.sendLock)
+            {
+                OutputStream out = this.connection.getOutputStream();
+                out.write(array, 0, frameLength);
+                out.flush();
+            }
+        }
+        finally
+        {
+            frame.release();
+        }
+    }
+
+    /**
+     * Waits for the next message.
+     * <p>
+     * The returned buffer is only valid till the next call to this method.
+     *
+     * @return the next message, or null if the connection was closed by the remote side
+     *
+     * @throws StreamCorruptedException
+     *         if the message is longer than the maximum message length,
+     *         or the other side did not send frames
+     * @throws IOException
+     *         if reading fails, or the stream ended within a message
+     */
+    public ByteBuffer receive() throws IOException
+    {
+        synchronized (this.receiveLock)
+        {
+            int length = readLength();
+            if (length == -1)
+            {
+                return null;
+            }
+            if (this.receiveBuffer == null || this.receiveBuffer.capacity() < length)
+            {
+                if (this.receiveBuffer != null)
+                {
+                    this.receiveBuffer.release();
+                }
+                this.receiveBuffer = this.pool.acquire(length);
+            }
+            FrameCodec.readFully(this.in, this.receiveBuffer.array(), 0, length);
+            ByteBuffer message = this.receiveBuffer.buffer();
+            message.clear();
+            message.limit(length);
+            return message;
+        }
+    }
+
+    /**
+     * Waits for the next message and returns it in a buffer
+     * from the {@link BufferPool}.
+     * <p>
+     * The buffer belongs to the caller, and needs to be
+     * {@link PooledBuffer#release() released} once the message was processed.
+     *
+     * @return the next message, or null if the connection was closed by the remote side
+     *
+     * @throws StreamCorruptedException
+     *         if the message is longer than the maximum message length,
+     *         or the other side did not send frames
+     * @throws IOException
+     *         if reading fails, or the stream ended within a message
+     */
+    public PooledBuffer receivePooled() throws IOException
+    {
+        synchronized (this.receiveLock)
+        {
+            int length = readLength();
+            if (length == -1)
+            {
+                return null;
+            }
+            PooledBuffer message = this.pool.acquire(length);
+            try
+            {
+                FrameCodec.readFully(this.in, message.array(), 0, length);
+            }
+            catch (IOException e)
+            {
+                message.release();
+                throw e;
+            }
+            return message;
+        }
+    }
+
+    /**
+     * Reads the length prefix of the next frame, call while holding the receive lock
+     *
+     * @return the length of the message, or -1 at the end of the stream
+     */
+    private int readLength() throws IOException
+    {
+        if (this.in == null)
+        {
+            this.in = new BufferedInputStream(this.connection.getInputStream(), READ_BUFFER_SIZE);
+        }
+        int length = FrameCodec.readVarint(this.in);
+        if (length > this.maxMessageLength)
+        {
+            throw new StreamCorruptedException("message of " + length + " bytes exceeds the maximum of " + this.maxMessageLength);
+        }
+        return length;
+    }
+
+    //
+    //  ----------  getter and close ----------
+    //
+
+    public ServiceConnection getConnection()
+    {
+        return this.connection;
+    }
+
+    public int getMaxMessageLength()
+    {
+        return this.maxMessageLength;
+    }
+
+    /**
+     * Closes the underlying connection and returns
+     * the receive buffer to the pool
+     */
+    @Override
+    public void close()
+    {
+        this.connection.close();
+        synchronized (this.receiveLock)
+        {
+            if (this.receiveBuffer != null)
+            {
+                this.receiveBuffer.release();
+                this.receiveBuffer = null;
+            }
+        }
+    }
+}
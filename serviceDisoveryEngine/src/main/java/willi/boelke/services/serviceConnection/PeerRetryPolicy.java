@@ -0,0 +1,415 @@
+package willi.boelke.services.serviceConnection;
+
+import java.util.HashMap;
+import java.util.Random;
+
+import willi.boelke.services.serviceDiscovery.EngineLog;
+
+/**
+ * Decides when a peer which failed to connect should be tried again.
+ * <p>
+ * <h2>Why</h2>
+ * A peer which is out of range or refuses connections was retried on every
+ * discovery (Bluetooth) or after a fixed interval (TCP), burning radio time
+ * and delaying connections to peers which would accept them.
+ * <p>
+ * <h2>Backoff</h2>
+ * After each failure a peer has to wait before it may be tried again. The wait
+ * doubles with every consecutive failure, starting at {@link #getBaseDelay() base delay}
+ * and capped at {@link #getMaxDelay() max delay}. Half of the wait is randomized (jitter),
+ * so peers failing at the same time are not all retried at the same time.
+ * <p>
+ * <h2>Circuit breaker</h2>
+ * After {@link #getFailureThreshold() failure threshold} consecutive failures
+ * the breaker for the peer opens ({@link State#OPEN}) and no attempts are allowed
+ * for {@link #getOpenDuration() open duration} ms. After that a single trial attempt
+ * is allowed ({@link State#HALF_OPEN}). If it succeeds the peer is back to normal,
+ * if it fails the breaker opens again. If it never reports back, another trial
+ * attempt is allowed after the open duration.
+ * <p>
+ * A successful connection resets the peer, so only peers which failed are stored.
+ * <p>
+ * <h2>Usage</h2>
+ * Peers are identified by their address (MAC address for bluetooth, host address for TCP).
+ * Connection attempts should only be started if {@link #allowAttempt(String)}
+ * returns true, and their outcome reported through {@link #recordSuccess(String)} or
+ * {@link #recordFailure(String)}. The singleton instance is shared by the Bluetooth and the
+ * Wi-Fi Direct connection engines.
+ * <p>
+ * This is thread safe.
+ *
+ * @author WilliBoelke
+ */
+public class PeerRetryPolicy
+{
+    //
+    //  ----------  static members ----------
+    //
+
+    /**
+     * Time in milliseconds to wait after the first failure
+     */
+    public static final long DEFAULT_BASE_DELAY = 250;
+
+    /**
+     * Maximum time in milliseconds to wait between two attempts
+     */
+    public static final long DEFAULT_MAX_DELAY = 10000;
+
+    /**
+     * Number of consecutive failures after which the breaker opens
+     */
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+
+    /**
+     * Time in milliseconds the breaker stays open before a trial attempt is allowed
+     */
+    public static final long DEFAULT_OPEN_DURATION = 30000;
+
+    /**
+     * Instance of the class following the singleton pattern
+     */
+    private static PeerRetryPolicy instance;
+
+    //
+    //  ----------  instance variables ----------
+    //
+
+    /**
+     * Classname for logging
+     */
+    private final String TAG = this.getClass().getSimpleName();
+
+    /**
+     * The peers which failed and did not succeed since, by address
+     */
+    private final HashMap<String, PeerState> peers = new HashMap<>();
+
+    private final Clock clock;
+
+    private final Random random;
+
+    private long baseDelay = DEFAULT_BASE_DELAY;
+
+    private long maxDelay = DEFAULT_MAX_DELAY;
+
+    private int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+
+    private long openDuration = DEFAULT_OPEN_DURATION;
+
+    //
+    //  ----------  constructor and initialisation ----------
+    //
+
+    /**
+     * Can be used to obtain the singleton instance.
+     *
+     * @return Returns the singleton instance of this class
+     */
+    public static synchronized PeerRetryPolicy getInstance()
+    {
+        if (instance == null)
+        {
+            instance = new PeerRetryPolicy(System::currentTimeMillis, new Random());
+        }
+        return instance;
+    }
+
+    /**
+     * Constructor
+     *
+     * @param clock
+     *         the time source
+     * @param random
+     *         the source of the jitter
+     */
+    PeerRetryPolicy(Clock clock, Random random)
+    {
+        this.clock = clock;
+        this.random = random;
+    }
+
+    //
+    //  ----------  attempts ----------
+    //
+
+    /**
+     * Checks whether a connection attempt to the peer is allowed right now.
+     * <p>
+     * If the breaker of the peer is open and the open duration passed,
+     * this allows a single trial attempt and moves the peer to {@link State#HALF_OPEN},
+     * so the outcome of the attempt needs to be reported.
+     *
+     * @param address
+     *         the address of the peer
+     *
+     * @return true if the peer may be connected to
+     */
+    public synchronized boolean allowAttempt(String address)
+    {
+        PeerState peer = this.peers.get(address);
+        if (peer == null)
+        {
+            return true;
+        }
+        long now = this.clock.now();
+        switch (peer.state)
+        {
+            case OPEN:
+            case HALF_OPEN:
+                // while half open the trial attempt did not report back yet,
+                // if it never does (it was cancelled) another one is allowed later
+                if (now < peer.nextAttempt)
+                {
+                    return false;
+                }
+                EngineLog.d(TAG, () -> "allowAttempt: allowing trial attempt to " + address);
+                peer.state = State.HALF_OPEN;
+                peer.nextAttempt = now + this.openDuration;
+                return true;
+            default:
+                return now >= peer.nextAttempt;
+        }
+    }
+
+    /**
+     * Reports a successful connection, which resets the peer
+     *
+     * @param address
+     *         the address of the peer
+     */
+    public synchronized void recordSuccess(String address)
+    {
+        if (this.peers.remove(address) != null)
+        {
+            EngineLog.d(TAG, () -> "recordSuccess: " + address + " recovered");
+        }
+    }
+
+    /**
+     * Reports a failed connection attempt, the peer needs to wait
+     * before it may be tried again, or the breaker opens
+     *
+     * @param address
+     *         the address of the peer
+     */
+    public synchronized void recordFailure(String address)
+    {
+        PeerState peer = this.peers.get(address);
+        if (peer == null)
+        {
+            peer = new PeerState();
+            this.peers.put(address, peer);
+        }
+        long now = this.clock.now();
+        peer.failures++;
+        if (peer.state == State.HALF_OPEN || peer.failures >= this.failureThreshold)
+        {
+            int failures = peer.failures;
+            EngineLog.d(TAG, () -> "recordFailure: opening breaker for " + address + " after " + failures + " failures");
+            peer.state = State.OPEN;
+            peer.nextAttempt = now + this.openDuration;
+        }
+        else
+        {
+            peer.nextAttempt = now + backoff(peer.failures);
+        }
+    }
+
+    /**
+     * Calculates the jittered backoff after the given number of consecutive failures
+     *
+     * @param failures
+     *         the number of consecutive failures, at least 1
+     *
+     * @return the time to wait in milliseconds
+     */
+    private long backoff(int failures)
+    {
+        long delay = this.baseDelay;
+        for (int i = 1; i < failures && delay < this.maxDelay; i++)
+        {
+            delay *= 2;
+        }
+        delay = Math.min(delay, this.maxDelay);
+        long half = delay / 2;
+        return half + (long) (this.random.nextDouble() * (delay - half));
+    }
+
+    /**
+     * Forgets about all failures of the peer
+     *
+     * @param address
+     *         the address of the peer
+     */
+    public synchronized void reset(String address)
+    {
+        this.peers.remove(address);
+    }
+
+    /**
+     * Forgets about all failures of all peers
+     */
+    public synchronized void clear()
+    {
+        this.peers.clear();
+    }
+
+    //
+    //  ----------  state ----------
+    //
+
+    /**
+     * @param address
+     *         the address of the peer
+     *
+     * @return the state of the breaker of the peer
+     */
+    public synchronized State getState(String address)
+    {
+        PeerState peer = this.peers.get(address);
+        return peer == null ? State.CLOSED : peer.state;
+    }
+
+    /**
+     * @param address
+     *         the address of the peer
+     *
+     * @return the number of consecutive failures of the peer
+     */
+    public synchronized int getFailures(String address)
+    {
+        PeerState peer = this.peers.get(address);
+        return peer == null ? 0 : peer.failures;
+    }
+
+    /**
+     * @param address
+     *         the address of the peer
+     *
+     * @return the time in milliseconds till the peer may be tried again,
+     *         0 if it may be tried right away
+     */
+    public synchronized long getRetryDelay(String address)
+    {
+        PeerState peer = this.peers.get(address);
+        if (peer == null)
+        {
+            return 0;
+        }
+        return Math.max(0, peer.nextAttempt - this.clock.now());
+    }
+
+    /**
+     * @return the number of peers which failed and did not succeed since
+     */
+    public synchronized int getFailingPeers()
+    {
+        return this.peers.size();
+    }
+
+    //
+    //  ----------  config ----------
+    //
+
+    /**
+     * Sets the backoff, the wait after the first failure is doubled with every
+     * further consecutive failure up to the maximum
+     *
+     * @param baseDelay
+     *         time in milliseconds to wait after the first failure
+     * @param maxDelay
+     *         maximum time in milliseconds to wait between two attempts
+     *
+     * @throws IllegalArgumentException
+     *         if a delay is negative or the base delay is bigger than the maximum
+     */
+    public synchronized void setBackoff(long baseDelay, long maxDelay)
+    {
+        if (baseDelay < 0 || maxDelay < baseDelay)
+        {
+            throw new IllegalArgumentException("delays need to be positive, with the base delay not bigger than the maximum");
+        }
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * Sets when the breaker of a peer opens and for how long
+     *
+     * @param failureThreshold
+     *         number of consecutive failures after which the breaker opens, at least 1
+     * @param openDuration
+     *         time in milliseconds before a trial attempt is allowed
+     *
+     * @throws IllegalArgumentException
+     *         if the threshold is smaller than 1 or the duration negative
+     */
+    public synchronized void setCircuitBreaker(int failureThreshold, long openDuration)
+    {
+        if (failureThreshold < 1 || openDuration < 0)
+        {
+            throw new IllegalArgumentException("threshold needs to be at least 1 and the duration positive");
+        }
+        this.failureThreshold = failureThreshold;
+        this.openDuration = openDuration;
+    }
+
+    public synchronized long getBaseDelay()
+    {
+        return this.baseDelay;
+    }
+
+    public synchronized long getMaxDelay()
+    {
+        return this.maxDelay;
+    }
+
+    public synchronized int getFailureThreshold()
+    {
+        return this.failureThreshold;
+    }
+
+    public synchronized long getOpenDuration()
+    {
+        return this.openDuration;
+    }
+
+    //
+    //  ----------  state of a peer ----------
+    //
+
+    /**
+     * State of the circuit breaker of a peer
+     */
+    public enum State
+    {
+        /**
+         * Attempts are allowed, after the backoff passed
+         */
+        CLOSED,
+        /**
+         * The peer failed too often, no attempts are allowed
+         */
+        OPEN,
+        /**
+         * A single trial attempt is allowed or running
+         */
+        HALF_OPEN
+    }
+
+    /**
+     * Source of the current time in milliseconds
+     */
+    interface Clock
+    {
+        long now();
+    }
+
+    private static final class PeerState
+    {
+        State state = State.CLOSED;
+        int failures = 0;
+        long nextAttempt = 0;
+    }
+}
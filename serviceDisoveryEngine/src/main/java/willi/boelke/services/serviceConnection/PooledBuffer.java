@@ -0,0 +1,168 @@
+package willi.boelke.services.serviceConnection;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reference counted byte buffer handed out by a {@link BufferPool}.
+ * <p>
+ * <h2>Reference counting</h2>
+ * A buffer starts with a reference count of 1, owned by whoever acquired it.
+ * Passing it on to another owner (another thread for example) who releases it
+ * independently needs a {@link #retain()} first. Every owner calls {@link #release()}
+ * once it is done, the buffer goes back to the pool when the last one did.
+ * <p>
+ * A buffer must not be used after it was released, its content may already
+ * be overwritten by the next owner.
+ *
+ * @author WilliBoelke
+ */
+public final class PooledBuffer
+{
+    //
+    //  ----------  instance variables ----------
+    //
+
+    /**
+     * The pool to return to, null if the buffer is not pooled
+     */
+    private final BufferPool pool;
+
+    private final int sizeClass;
+
+    private final ByteBuffer buffer;
+
+    private final AtomicInteger references = new AtomicInteger(0);
+
+    //
+    //  ----------  constructor and initialisation ----------
+    //
+
+    PooledBuffer(BufferPool pool, int sizeClass, ByteBuffer buffer)
+    {
+        this.pool = pool;
+        this.sizeClass = sizeClass;
+        this.buffer = buffer;
+        reset(buffer.capacity());
+    }
+
+    /**
+     * Prepares the buffer for its next owner
+     */
+    void reset(int limit)
+    {
+        this.buffer.clear();
+        this.buffer.limit(limit);
+        this.references.set(1);
+    }
+
+    //
+    //  ----------  buffer ----------
+    //
+
+    /**
+     * @return the buffer
+     *
+     * @throws IllegalStateException
+     *         if it was released
+     */
+    public ByteBuffer buffer()
+    {
+        checkNotReleased();
+        return this.buffer;
+    }
+
+    /**
+     * @return the array backing the buffer, the buffer starts at index 0
+     *
+     * @throws IllegalStateException
+     *         if it was released
+     */
+    public byte[] array()
+    {
+        checkNotReleased();
+        return this.buffer.array();
+    }
+
+    /**
+     * @return the capacity of the buffer, at least the requested capacity
+     */
+    public int capacity()
+    {
+        return this.buffer.capacity();
+    }
+
+    private void checkNotReleased()
+    {
+        if (this.references.get() <= 0)
+        {
+            throw new IllegalStateException("buffer was released");
+        }
+    }
+
+    //
+    //  ----------  reference counting ----------
+    //
+
+    /**
+     * Adds a reference, which needs to be released separately
+     *
+     * @return this buffer
+     *
+     * @throws IllegalStateException
+     *         if it was released
+     */
+    public PooledBuffer retain()
+    {
+        int count;
+        do
+        {
+            count = this.references.get();
+            if (count <= 0)
+            {
+                throw new IllegalStateException("buffer was released");
+            }
+        }
+        while (!this.references.compareAndSet(count, count + 1));
+        return this;
+    }
+
+    /**
+     * Removes a reference, when the last one was removed the buffer goes back to the pool
+     *
+     * @return true if this was the last reference
+     *
+     * @throws IllegalStateException
+     *         if it was released already
+     */
+    public boolean release()
+    {
+        int count;
+        do
+        {
+            count = this.references.get();
+            if (count <= 0)
+            {
+                throw new IllegalStateException("buffer was released already");
+            }
+        }
+        while (!this.references.compareAndSet(count, count - 1));
+        if (count == 1)
+        {
+            if (this.pool != null)
+            {
+                this.pool.recycle(this, this.sizeClass);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the current number of references
+     */
+    public int referenceCount()
+    {
+        return this.references.get();
+    }
+}
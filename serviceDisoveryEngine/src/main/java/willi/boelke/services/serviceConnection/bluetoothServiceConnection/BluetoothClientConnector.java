@@ -2,12 +2,11 @@ package willi.boelke.services.serviceConnection.bluetoothServiceConnection;
 
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothSocket;
-import android.util.Log;
 
 import java.io.IOException;
 import java.util.Arrays;
-import java.util.Random;
 
+import willi.boelke.services.serviceDiscovery.EngineLog;
 import willi.boelke.services.serviceDiscovery.ServiceDescription;
 
 
@@ -19,6 +18,17 @@ import willi.boelke.services.serviceDiscovery.ServiceDescription;
  * This service will run exactly once and report back asynchronous
  * through the callback methods specified in the {@link ConnectionEventListener}
  * with either the created socket or to report failure.
+ * <p>
+ * The connector connects right away, the engine decides which of two devices
+ * running the same service connects, so they do not connect to each other at the same time.
+ * <p>
+ * It is run by the shared {@link willi.boelke.services.serviceConnection.ConnectionExecutor},
+ * so the thread running it will be reused. It will only be interrupted
+ * by {@link #cancel()} while the connector runs on it.
+ * <p>
+ * Cancelling closes the socket, which makes a pending connect fail.
+ * This is not reported as a failure, a cancelled connector does not
+ * call back at all, so the peer is not penalized for the local shutdown.
  *
  * @author WilliBoelke
  */
@@ -50,7 +60,7 @@ public class BluetoothClientConnector extends BluetoothConnectorThread
     /**
      * set to false when canceled
      */
-    private boolean running = true;
+    private volatile boolean running = true;
 
 
     //------------Constructors------------
@@ -64,36 +74,50 @@ public class BluetoothClientConnector extends BluetoothConnectorThread
 
     //------------Network Connection Methods ------------
 
+    @Override
     public void run()
     {
-        this.thread = currentThread();
-        BluetoothSocket tmp = null;
-        Log.d(TAG, "run: ----ConnectThread is running---- \n trying to connect to " + this.server.getName() + " | " + this.server.getAddress());
-
-        try
+        synchronized (this)
         {
-            Log.d(TAG, "run: trying to create a Rfcomm Socket ");
-            tmp = server.createRfcommSocketToServiceRecord(this.description.getServiceUuid());
+            if (!this.running)
+            {
+                EngineLog.d(TAG, "run: canceled before it started");
+                return;
+            }
+            this.thread = Thread.currentThread();
         }
-        catch (IOException e)
+        try
         {
-            Log.d(TAG, "run: could not create a Rfcomm Socket");
-            e.printStackTrace();
+            connect();
         }
-        mmSocket = tmp;
-        try
+        finally
         {
-            Log.d(TAG, "run: random wait in case we found several services...");
             synchronized (this)
             {
-                wait(new Random().nextInt(400));
+                this.thread = null;
+                // a late cancel should not interrupt the next task of the worker
+                Thread.interrupted();
             }
         }
-        catch (InterruptedException e)
+    }
+
+    private void connect()
+    {
+        BluetoothSocket tmp = null;
+        EngineLog.d(TAG, () -> "run: ----ConnectThread is running---- \n trying to connect to " + this.server.getName() + " | " + this.server.getAddress());
+
+        try
         {
-            // just go on and try to connect if this is interrupted
+            EngineLog.d(TAG, "run: trying to create a Rfcomm Socket ");
+            tmp = server.createRfcommSocketToServiceRecord(this.description.getServiceUuid());
+        }
+        catch (IOException e)
+        {
+            EngineLog.d(TAG, "run: could not create a Rfcomm Socket");
+            e.printStackTrace();
         }
-        Log.d(TAG, "run: socket created - tyring to connect");
+        mmSocket = tmp;
+        EngineLog.d(TAG, "run: socket created - tyring to connect");
         try
         {
 
@@ -103,35 +127,55 @@ public class BluetoothClientConnector extends BluetoothConnectorThread
         }
         catch (IOException e)
         {
-            Log.e(TAG, "run: could not make connection, socket closed ", e);
+            if (!running)
+            {
+                // the socket was closed by cancel()
+                EngineLog.d(TAG, "run: connector was canceled while connecting");
+                return;
+            }
+            EngineLog.e(TAG, "run: could not make connection, socket closed ", e);
             try
             {
                 mmSocket.close();
                 this.connectionStateChangeListener.onConnectionFailed(this.description.getServiceUuid(), this);
-                Log.e(TAG, "run: socked closed ");
+                EngineLog.e(TAG, "run: socked closed ");
                 return;
             }
             catch (IOException ioException)
             {
-                Log.e(TAG, "run: could no close socket   " + Arrays.toString(ioException.getStackTrace()));
+                EngineLog.e(TAG, "run: could no close socket   " + Arrays.toString(ioException.getStackTrace()));
                 return;
             }
         }
         if(!running){
-            Log.d(TAG, "run: Thread was canceled");
+            EngineLog.d(TAG, "run: Thread was canceled");
             return;
         }
-        Log.d(TAG, "run: connection established ");
+        EngineLog.d(TAG, "run: connection established ");
         this.connectionStateChangeListener.onConnectionSuccess(this, new BluetoothConnection(this.description, mmSocket, false));
-        Log.d(TAG, "run: Thread ended");
+        EngineLog.d(TAG, "run: Thread ended");
     }
 
 
+    /**
+     * @return true once {@link #cancel()} was called
+     */
+    public boolean isCancelled()
+    {
+        return !this.running;
+    }
+
     @Override
     public void cancel()
     {
-        this.running = false;
-        this.thread.interrupt();
+        synchronized (this)
+        {
+            this.running = false;
+            if (this.thread != null)
+            {
+                this.thread.interrupt();
+            }
+        }
         try
         {
             this.mmSocket.close();
@@ -142,7 +186,7 @@ public class BluetoothClientConnector extends BluetoothConnectorThread
         }
         catch (NullPointerException e)
         {
-            Log.e(TAG, "cancel: socket was not yet initialized");
+            EngineLog.e(TAG, "cancel: socket was not yet initialized");
         }
     }
 }
@@ -2,7 +2,6 @@ package willi.boelke.services.serviceConnection.bluetoothServiceConnection;
 
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothSocket;
-import android.util.Log;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -10,6 +9,7 @@ import java.io.OutputStream;
 import java.util.Objects;
 
 import willi.boelke.services.serviceConnection.ServiceConnection;
+import willi.boelke.services.serviceDiscovery.EngineLog;
 import willi.boelke.services.serviceDiscovery.ServiceDescription;
 
 /**
@@ -73,7 +73,7 @@ public class BluetoothConnection implements ServiceConnection
     @Override
     public void close()
     {
-        Log.d(TAG, "close: closing connection " + this);
+        EngineLog.d(TAG, () -> "close: closing connection " + this);
         try
         {
             this.connectionSocket.getInputStream().close();
@@ -1,14 +1,16 @@
 package willi.boelke.services.serviceConnection.bluetoothServiceConnection;
 
-import android.util.Log;
-
-import java.util.ArrayList;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
 
+import willi.boelke.services.serviceConnection.ConnectionExecutor;
+import willi.boelke.services.serviceConnection.ConnectionKey;
+import willi.boelke.services.serviceDiscovery.EngineLog;
 import willi.boelke.services.serviceDiscovery.ServiceDescription;
 
 /**
- * Holds a list of {@link BluetoothConnection}s
+ * Holds all open {@link BluetoothConnection}s
  * which is used by the  {@link BluetoothServiceConnectionEngine}
  * <p>
  * <h2>Usage in the BluetoothServiceConnectionEngine</h2>
@@ -22,10 +24,41 @@ import willi.boelke.services.serviceDiscovery.ServiceDescription;
  *    <li>Closing all connections from or to a specific service.</li>
  * </ul>
  * This is utilized in {@link BluetoothServiceConnectionEngine}
+ * <p>
+ * <h2>Connection table</h2>
+ * The connections are indexed by remote address and service UUID
+ * ({@link ConnectionKey}), separately for connections to remote services (client side)
+ * and connections of remote clients to local services (server side).
+ * So adding and looking up a connection takes the same time,
+ * regardless of the number of open connections.
+ * There is at most one connection per address, service and side,
+ * a new connection replaces (and closes) the one stored before.
+ * <p>
+ * <h2>Zombie connections</h2>
+ * Connections which died are closed and removed by a sweep running every
+ * {@link #ZOMBIE_SWEEP_INTERVAL} ms on the {@link ConnectionExecutor},
+ * from {@link #startZombieSweep()} till {@link #stopZombieSweep()}.
+ * Looked up connections are checked right away, so a dead connection
+ * never prevents it from being rebuilt.
  */
 class BluetoothConnectionManager
 {
 
+    //
+    //  ----------  static members ----------
+    //
+
+    /**
+     * Time in milliseconds to wait before closing a connection,
+     * see {@link #closeConnectionsWithDescription(ServiceDescription, boolean)}
+     */
+    private static final long CLOSE_DELAY = 1000;
+
+    /**
+     * Time in milliseconds between two sweeps for dead connections
+     */
+    static final long ZOMBIE_SWEEP_INTERVAL = 5000;
+
     //
     //  ----------  instance variables ----------
     //
@@ -36,10 +69,19 @@ class BluetoothConnectionManager
     private final String TAG = this.getClass().getSimpleName();
 
     /**
-     * A thread safe array list
-     * holing all open {@link BluetoothConnection}s
+     * Connections to remote services
+     */
+    private final ConcurrentHashMap<ConnectionKey, BluetoothConnection> clientConnections = new ConcurrentHashMap<>();
+
+    /**
+     * Connections of remote clients to local services
      */
-    private final CopyOnWriteArrayList<BluetoothConnection> openConnections;
+    private final ConcurrentHashMap<ConnectionKey, BluetoothConnection> serverConnections = new ConcurrentHashMap<>();
+
+    /**
+     * The next zombie sweep, null while not sweeping
+     */
+    private ScheduledFuture<?> zombieSweep;
 
 
     //
@@ -48,7 +90,6 @@ class BluetoothConnectionManager
 
     protected BluetoothConnectionManager()
     {
-        this.openConnections = new CopyOnWriteArrayList<>();
     }
 
     //
@@ -65,15 +106,19 @@ class BluetoothConnectionManager
      */
     protected void addConnection(BluetoothConnection connection)
     {
-        this.closeAndRemoveZombieConnections();
-        this.openConnections.add(connection);
-        logConnectionTable();
+        BluetoothConnection replaced = connectionsOf(connection.isServerPeer()).put(keyOf(connection), connection);
+        if (replaced != null && replaced != connection)
+        {
+            EngineLog.d(TAG, () -> "addConnection: replacing " + replaced);
+            replaced.close();
+        }
+        EngineLog.d(TAG, () -> "addConnection: added " + connection);
     }
 
     /**
-     * Checks if a connection (defined by device address and service description) already exists
-     * For to be sure all sockets will be checked if they are sill connected , and else closed before
-     * looking the connection up.
+     * Checks if a connection (defined by device address and service description) already exists,
+     * either to a service on the remote device or from the remote device to a local service.
+     * Dead connections will be closed and removed, and not be counted.
      *
      * @param address
      *         the MAC address of the remote BluetoothDevice
@@ -84,36 +129,56 @@ class BluetoothConnectionManager
      */
     protected boolean isAlreadyConnected(String address, ServiceDescription description)
     {
-        Log.d(TAG, "isAlreadyConnected: looking for a equal connection that already is established");
-        logConnectionTable();
-        this.closeAndRemoveZombieConnections();
-        Log.d(TAG, "isAlreadyConnected: there are " + this.openConnections.size() + " open connections");
-        for (BluetoothConnection connection : this.openConnections)
+        ConnectionKey key = new ConnectionKey(address, description.getServiceUuid());
+        if (isAlive(this.clientConnections, key) || isAlive(this.serverConnections, key))
         {
-            Log.d(TAG, "isAlreadyConnected:  Comparing connection " + connection.toString());
-            if (connection.getServiceDescription().equals(description) && connection.getRemoteDeviceAddress().equals(address))
-            {
-                Log.e(TAG, "isAlreadyConnected: found a equal connection, don't connect");
-                return true;
-            }
+            EngineLog.d(TAG, "isAlreadyConnected: found a equal connection, don't connect");
+            return true;
         }
-        Log.d(TAG, "isAlreadyConnected: no equal connection found, cam be connected");
         return false;
     }
 
     /**
-     * This closes all running connections in {@link #openConnections}
+     * Checks whether the connection stored for the key is still connected,
+     * if it is not it will be closed and removed
+     */
+    private boolean isAlive(ConcurrentHashMap<ConnectionKey, BluetoothConnection> connections, ConnectionKey key)
+    {
+        BluetoothConnection connection = connections.get(key);
+        if (connection == null)
+        {
+            return false;
+        }
+        if (isZombie(connection))
+        {
+            closeZombie(connections, key, connection);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * This closes all running connections
      * it should be called when stopping the BluetoothEngine to ensure
      * that all BluetoothSockets are closed.
      */
     protected void closeAllConnections()
     {
         logConnectionTable();
-        for (BluetoothConnection connection : this.openConnections)
+        closeAll(this.clientConnections);
+        closeAll(this.serverConnections);
+    }
+
+    private void closeAll(ConcurrentHashMap<ConnectionKey, BluetoothConnection> connections)
+    {
+        for (ConnectionKey key : connections.keySet())
         {
-            connection.close();
+            BluetoothConnection connection = connections.remove(key);
+            if (connection != null)
+            {
+                connection.close();
+            }
         }
-        this.openConnections.clear();
     }
 
     /**
@@ -125,7 +190,7 @@ class BluetoothConnectionManager
      */
     protected void closeAllClientConnectionsToService(ServiceDescription description)
     {
-        Log.d(TAG, "closeAllClientConnectionsToService: closing connections to servers with " + description);
+        EngineLog.d(TAG, () -> "closeAllClientConnectionsToService: closing connections to servers with " + description);
         closeConnectionsWithDescription(description, false);
     }
 
@@ -153,102 +218,156 @@ class BluetoothConnectionManager
      */
     private void closeConnectionsWithDescription(ServiceDescription description, boolean serverOnly)
     {
-        Log.d(TAG, "closeConnectionsWithDescription: " + description);
-        logConnectionTable();
-        ArrayList<BluetoothConnection> connectionsToClose = new ArrayList<>();
-        for (BluetoothConnection connection : this.openConnections)
+        EngineLog.d(TAG, () -> "closeConnectionsWithDescription: " + description);
+        ConcurrentHashMap<ConnectionKey, BluetoothConnection> connections = connectionsOf(serverOnly);
+        for (Map.Entry<ConnectionKey, BluetoothConnection> entry : connections.entrySet())
         {
-            if (connection.getServiceDescription().equals(description) && connection.isServerPeer() == serverOnly)
+            BluetoothConnection connectionToClose = entry.getValue();
+            if (!connectionToClose.getServiceDescription().equals(description))
             {
-                connectionsToClose.add(connection);
+                continue;
             }
-        }
-
-        for (BluetoothConnection connectionToClose : connectionsToClose)
-        {
-            // okay lets start a runnable
+            // okay lets close it a little later
             // to prevent sockets from being closed to fast after
             // opening them which causes some issues
-
-            new Thread((Runnable) () ->
+            ConnectionExecutor.getInstance().schedule(() ->
             {
-                synchronized (this)
-                {
-                    try
-                    {
-                        Thread.sleep(1000);
-                    }
-                    catch (InterruptedException e)
-                    {
-                        Log.d(TAG, "closeConnectionsWithDescription: interrupted - just go on");
-                    }
-                }
-                openConnections.remove(connectionToClose);
+                connections.remove(entry.getKey(), connectionToClose);
                 connectionToClose.close();
-                Log.d(TAG, "closeConnectionsWithDescription: closed connection");
-            }).start();
-
-            Log.d(TAG, "closeServiceConnectionsToServiceWithUUID: closed client connections");
+                EngineLog.d(TAG, "closeConnectionsWithDescription: closed connection");
+            }, CLOSE_DELAY);
         }
     }
 
     //
-    //  ----------  private methods ----------
+    //  ----------  zombie sweep ----------
     //
 
     /**
-     * Iterates over {@link #openConnections} as checks if they
-     * are still open {@link BluetoothConnection#isConnected()} equals true.
-     * <p>
-     * If they are not connected anymore the convention will be closed and removed from the
-     * list.
-     * <p>
-     * This should be executed before checking if a equal connection already exist
-     * to prevent blocking a new (rebuild) disconnected by an old, disconnected one.
-     *
-     * @see #isAlreadyConnected(String, ServiceDescription)
+     * Starts sweeping for dead connections every {@link #ZOMBIE_SWEEP_INTERVAL} ms
      */
-    private void closeAndRemoveZombieConnections()
+    protected synchronized void startZombieSweep()
     {
-        Log.d(TAG, "closeAndRemoveZombieConnections: closing zombie sockets");
-        logConnectionTable();
-        ArrayList<BluetoothConnection> zombies = new ArrayList<>();
-        for (BluetoothConnection connection : this.openConnections)
+        if (this.zombieSweep == null)
         {
-            if (!connection.isConnected() || connection.isClosed())
+            scheduleZombieSweep();
+        }
+    }
+
+    /**
+     * Stops sweeping for dead connections
+     */
+    protected synchronized void stopZombieSweep()
+    {
+        if (this.zombieSweep != null)
+        {
+            this.zombieSweep.cancel(false);
+            this.zombieSweep = null;
+        }
+    }
+
+    private synchronized void scheduleZombieSweep()
+    {
+        this.zombieSweep = ConnectionExecutor.getInstance().schedule(() ->
+        {
+            closeAndRemoveZombieConnections();
+            synchronized (this)
             {
-                zombies.add(connection);
+                // only if it was not stopped meanwhile
+                if (this.zombieSweep != null)
+                {
+                    scheduleZombieSweep();
+                }
             }
+        }, ZOMBIE_SWEEP_INTERVAL);
+    }
+
+    /**
+     * Checks all connections and closes and removes
+     * those which are not connected anymore.
+     *
+     * @see #isZombie(BluetoothConnection)
+     */
+    protected void closeAndRemoveZombieConnections()
+    {
+        int closed = closeZombies(this.clientConnections) + closeZombies(this.serverConnections);
+        if (closed > 0)
+        {
+            EngineLog.d(TAG, () -> "closeAndRemoveZombieConnections: closed " + closed + " zombie connections");
+            logConnectionTable();
         }
+    }
 
-        Log.d(TAG, "closeAndRemoveZombieConnections: closing " + zombies);
+    private int closeZombies(ConcurrentHashMap<ConnectionKey, BluetoothConnection> connections)
+    {
+        int closed = 0;
+        for (Map.Entry<ConnectionKey, BluetoothConnection> entry : connections.entrySet())
+        {
+            if (isZombie(entry.getValue()))
+            {
+                closeZombie(connections, entry.getKey(), entry.getValue());
+                closed++;
+            }
+        }
+        return closed;
+    }
 
-        for (BluetoothConnection zombie : zombies)
+    private void closeZombie(ConcurrentHashMap<ConnectionKey, BluetoothConnection> connections, ConnectionKey key, BluetoothConnection zombie)
+    {
+        // it may have been replaced by a new connection meanwhile
+        if (connections.remove(key, zombie))
         {
             zombie.close();
-            Log.d(TAG, "closeAndRemoveZombieConnections: Zombie socket closed " + zombie);
-
-            this.openConnections.remove(zombie);
-            Log.d(TAG, "closeAndRemoveZombieConnections: closed zombie connections");
+            EngineLog.d(TAG, () -> "closeZombie: Zombie socket closed " + zombie);
         }
     }
 
+    //
+    //  ----------  private methods ----------
+    //
+
     /**
-     * Logs the current
-     * {@link #openConnections} list.
+     * @return true if the connection is not open anymore
+     */
+    private static boolean isZombie(BluetoothConnection connection)
+    {
+        return !connection.isConnected() || connection.isClosed();
+    }
+
+    private ConcurrentHashMap<ConnectionKey, BluetoothConnection> connectionsOf(boolean serverPeer)
+    {
+        return serverPeer ? this.serverConnections : this.clientConnections;
+    }
+
+    private static ConnectionKey keyOf(BluetoothConnection connection)
+    {
+        return new ConnectionKey(connection.getRemoteDeviceAddress(), connection.getServiceDescription().getServiceUuid());
+    }
+
+    /**
+     * Logs all open connections. Building the table calls into the bluetooth
+     * system service (for the device names), so it is only built if it will be logged.
      */
     private void logConnectionTable()
+    {
+        EngineLog.d(TAG, () -> "currently open connections: \n" + connectionTable());
+    }
+
+    private String connectionTable()
     {
         StringBuilder sb = new StringBuilder();
         sb.append("---------------------------------\n");
-        for (BluetoothConnection connection : openConnections)
+        for (BluetoothConnection connection : this.clientConnections.values())
+        {
+            sb.append(connection);
+            sb.append("\n");
+        }
+        for (BluetoothConnection connection : this.serverConnections.values())
         {
             sb.append(connection);
             sb.append("\n");
         }
         sb.append("---------------------------------\n");
-        Log.d(TAG, "currently open connections: \n"
-                + sb
-        );
+        return sb.toString();
     }
 }
@@ -5,14 +5,19 @@ import java.util.UUID;
 import willi.boelke.services.serviceDiscovery.ServiceDescription;
 
 /**
- * Superclass for the two connection threads
+ * Superclass for the two connectors.
+ * <p>
+ * Client connectors are run by the shared
+ * {@link willi.boelke.services.serviceConnection.ConnectionExecutor},
+ * server connectors accept connections on their own thread,
+ * see {@link BluetoothServerConnector#start()}.
  */
-public abstract class BluetoothConnectorThread extends Thread
+public abstract class BluetoothConnectorThread implements Runnable
 {
     /**
-     * The running thread
+     * The thread running the connector, null while it does not run
      */
-    protected Thread thread;
+    protected volatile Thread thread;
     /**
      * A generated UUID needed for the BluetoothAdapter
      */
@@ -3,12 +3,14 @@ package willi.boelke.services.serviceConnection.bluetoothServiceConnection;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothServerSocket;
 import android.bluetooth.BluetoothSocket;
-import android.util.Log;
 
 import java.io.IOException;
-import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
+import willi.boelke.services.serviceConnection.ConnectionExecutor;
+import willi.boelke.services.serviceDiscovery.EngineLog;
 import willi.boelke.services.serviceDiscovery.ServiceDescription;
 
 
@@ -29,11 +31,31 @@ import willi.boelke.services.serviceDiscovery.ServiceDescription;
  * <p>
  * When a connection fails {@link ConnectionEventListener#onConnectionFailed(UUID, BluetoothConnectorThread)}
  * will be called, though the thread will keep running until canceled.
+ * <p>
+ * <h2>Handoff</h2>
+ * Accepted sockets are not reported on the accept thread, so slow callbacks
+ * do not delay accepting the next client. They are put in a bounded queue,
+ * which is drained by the shared {@link ConnectionExecutor}. If the queue is full
+ * the accept thread reports the connection itself, slowing down accepting
+ * further clients till the workers caught up.
+ * The number of waiting sockets can be obtained through {@link #getQueueDepth()}.
  *
  * @author WilliBoelke
  */
 class BluetoothServerConnector extends BluetoothConnectorThread
 {
+    //
+    //  ----------  static members ----------
+    //
+
+    /**
+     * Maximum number of accepted sockets waiting to be reported
+     */
+    static final int ACCEPT_QUEUE_CAPACITY = 16;
+
+    //
+    //  ----------  instance variables ----------
+    //
 
     /**
      * Classname for logging
@@ -61,7 +83,20 @@ class BluetoothServerConnector extends BluetoothConnectorThread
      * and should keep on with accepting connections
      * or stop the loop.
      */
-    private boolean running;
+    private volatile boolean running;
+
+    /**
+     * Accepted sockets waiting to be reported by a worker
+     */
+    private final ArrayBlockingQueue<BluetoothSocket> acceptedSockets = new ArrayBlockingQueue<>(ACCEPT_QUEUE_CAPACITY);
+
+    private final AtomicLong acceptedConnections = new AtomicLong(0);
+
+    /**
+     * Number of accepted sockets reported on the accept thread,
+     * because the queue was full
+     */
+    private final AtomicLong inlineConnections = new AtomicLong(0);
 
     //
     //  ----------  constructor and initialisation ----------
@@ -89,10 +124,21 @@ class BluetoothServerConnector extends BluetoothConnectorThread
     //  ----------  run ----------
     //
 
+    /**
+     * Starts a new thread accepting connections, it runs until {@link #cancel()} is called.
+     * The accept loop blocks, so it does not run on the shared
+     * {@link willi.boelke.services.serviceConnection.ConnectionExecutor}.
+     */
+    public void start()
+    {
+        new Thread(this, TAG + "-" + this.description.getInstanceName()).start();
+    }
+
+    @Override
     public void run()
     {
-        this.thread = currentThread();
-        Log.d(TAG, "startService : starting Bluetooth Service");
+        this.thread = Thread.currentThread();
+        EngineLog.d(TAG, "startService : starting Bluetooth Service");
         try
         {
             openServerSocket();
@@ -107,7 +153,7 @@ class BluetoothServerConnector extends BluetoothConnectorThread
 
     private void openServerSocket() throws IOException
     {
-        Log.d(TAG, "openServerSocket: opening server socket with UUID : " + description.getServiceUuid());
+        EngineLog.d(TAG, () -> "openServerSocket: opening server socket with UUID : " + description.getServiceUuid());
         this.serverSocket =
                 mBluetoothAdapter.listenUsingRfcommWithServiceRecord(
                         description.getInstanceName(),
@@ -126,34 +172,26 @@ class BluetoothServerConnector extends BluetoothConnectorThread
     {
         while (this.running)
         {
-            Log.d(TAG, "run:  Thread started");
+            EngineLog.d(TAG, "run:  Thread started");
             BluetoothSocket socket = null;
             //Blocking Call : Accept thread waits here till another device connects (or canceled)
-            Log.d(TAG, "run: RFCOMM server socket started, waiting for connections ...");
+            EngineLog.d(TAG, "run: RFCOMM server socket started, waiting for connections ...");
             try
             {
                 socket = this.serverSocket.accept();
-                Log.d(TAG, "run: RFCOMM server socked accepted client connection");
-                synchronized (this)
-                {
-                    // well just as in the client connector
-                    // making it a little random. In case on client connects to
-                    // the same time
-                    Log.d(TAG, "acceptConnections: giving it some randomness.. ");
-                    wait(new Random().nextInt(200));
-                }
+                EngineLog.d(TAG, "run: RFCOMM server socked accepted client connection");
             }
             catch (IOException e)
             {
-                Log.e(TAG, "acceptConnections: an IOException occurred, trying to fix");
+                EngineLog.e(TAG, "acceptConnections: an IOException occurred, trying to fix");
                 try
                 {
-                    Log.e(TAG, "acceptConnections: trying to close socket");
+                    EngineLog.e(TAG, "acceptConnections: trying to close socket");
                     this.serverSocket.close();
                 }
                 catch (IOException e1)
                 {
-                    Log.e(TAG, "acceptConnections: could not close the socket");
+                    EngineLog.e(TAG, "acceptConnections: could not close the socket");
                 }
                 if (this.running)
                 {
@@ -167,19 +205,107 @@ class BluetoothServerConnector extends BluetoothConnectorThread
                 // it does not say which one...or why, so i go with a general catch.
                 // I guess that it is somehow related to interrupting the thread while it waits for an async
                 // response from a mocked method, which also runs a thread, but i am not really sure in the end
-                Log.d(TAG, "acceptConnections: an unexpected exception occurred, this maybe is because thread was interrupted");
+                EngineLog.d(TAG, "acceptConnections: an unexpected exception occurred, this maybe is because thread was interrupted");
             }
 
             if (socket == null || !this.running)
             {
-                Log.d(TAG, "run: Thread was interrupted");
+                EngineLog.d(TAG, "run: Thread was interrupted");
                 return;
             }
-            Log.d(TAG, "run:  service accepted client connection, opening streams");
-            this.connectionEvenListener.onConnectionSuccess(this, new BluetoothConnection(this.description, socket, true));
+            handOff(socket);
         }
     }
 
+    /**
+     * Passes an accepted socket on to a worker, or reports it on the
+     * calling thread when the queue is full.
+     *
+     * @param socket
+     *         the accepted socket
+     */
+    private void handOff(BluetoothSocket socket)
+    {
+        this.acceptedConnections.incrementAndGet();
+        if (this.acceptedSockets.offer(socket))
+        {
+            EngineLog.d(TAG, "handOff: service accepted client connection, handing it off");
+            ConnectionExecutor.getInstance().execute(this::reportNextConnection);
+        }
+        else
+        {
+            EngineLog.d(TAG, "handOff: queue is full, opening streams on the accept thread");
+            this.inlineConnections.incrementAndGet();
+            reportConnection(socket);
+        }
+    }
+
+    /**
+     * Reports the next socket waiting in the queue, runs on a worker
+     */
+    private void reportNextConnection()
+    {
+        BluetoothSocket socket = this.acceptedSockets.poll();
+        if (socket == null)
+        {
+            // closed by cancel
+            return;
+        }
+        if (!this.running)
+        {
+            closeSocket(socket);
+            return;
+        }
+        reportConnection(socket);
+    }
+
+    private void reportConnection(BluetoothSocket socket)
+    {
+        EngineLog.d(TAG, "reportConnection: opening streams");
+        this.connectionEvenListener.onConnectionSuccess(this, new BluetoothConnection(this.description, socket, true));
+    }
+
+    private void closeSocket(BluetoothSocket socket)
+    {
+        try
+        {
+            socket.close();
+        }
+        catch (IOException e)
+        {
+            EngineLog.e(TAG, "closeSocket: could not close accepted socket", e);
+        }
+    }
+
+    //
+    //  ----------  metrics ----------
+    //
+
+    /**
+     * @return the number of accepted sockets waiting to be reported
+     */
+    public int getQueueDepth()
+    {
+        return this.acceptedSockets.size();
+    }
+
+    /**
+     * @return the number of accepted sockets
+     */
+    public long getAcceptedConnections()
+    {
+        return this.acceptedConnections.get();
+    }
+
+    /**
+     * @return the number of accepted sockets which where reported
+     *         on the accept thread, because the queue was full
+     */
+    public long getInlineConnections()
+    {
+        return this.inlineConnections.get();
+    }
+
 
     //
     //  ----------  end ----------
@@ -188,21 +314,26 @@ class BluetoothServerConnector extends BluetoothConnectorThread
     @Override
     public void cancel()
     {
-        Log.d(TAG, "cancel: cancelling accept thread");
+        EngineLog.d(TAG, "cancel: cancelling accept thread");
         this.running = false;
         if (this.thread != null)
         {
             this.thread.interrupt();
-            Log.d(TAG, "cancel: accept thread interrupted");
+            EngineLog.d(TAG, "cancel: accept thread interrupted");
+        }
+        BluetoothSocket waiting;
+        while ((waiting = this.acceptedSockets.poll()) != null)
+        {
+            closeSocket(waiting);
         }
         try
         {
             this.serverSocket.close();
-            Log.d(TAG, "cancel: closed AcceptThread");
+            EngineLog.d(TAG, "cancel: closed AcceptThread");
         }
         catch (NullPointerException | IOException e)
         {
-            Log.e(TAG, "cancel: socket was null", e);
+            EngineLog.e(TAG, "cancel: socket was null", e);
         }
     }
 
@@ -36,6 +36,14 @@ import willi.boelke.services.serviceDiscovery.ServiceDescription;
  * will be called, allowing the client to prevent (return false) or allow (return true) a connection attempt
  *
  * <p>
+ * <h2>Threading</h2>
+ * <b>The callbacks are not called on the main thread.</b>
+ * {@link #onPeerDiscovered(BluetoothDevice)}, {@link #onServiceDiscovered(BluetoothDevice, ServiceDescription)}
+ * and {@link #shouldConnectTo(BluetoothDevice, ServiceDescription)} are called on the
+ * engine thread of the discovery engine, {@link #onConnectedToService(BluetoothConnection)}
+ * on a connection thread. Implementations must not block and need to post
+ * to the main thread before touching views.
+ * <p>
  * <h2>Missing</h2>
  * Currently missing from the client are notifications regarding some (actually not unimportant)
  * events like "onConnectionFailed" and other error handling callbacks.
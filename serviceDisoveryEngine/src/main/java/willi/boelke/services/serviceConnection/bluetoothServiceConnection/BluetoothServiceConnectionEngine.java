@@ -4,16 +4,22 @@ import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.content.Context;
 import android.content.Intent;
-import android.util.Log;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Objects;
+import java.util.Random;
 import java.util.UUID;
 import java.util.concurrent.CopyOnWriteArrayList;
 
+import willi.boelke.services.serviceConnection.ConnectionExecutor;
+import willi.boelke.services.serviceConnection.ConnectionKey;
+import willi.boelke.services.serviceConnection.InFlightAttempts;
+import willi.boelke.services.serviceConnection.PeerRetryPolicy;
+import willi.boelke.services.serviceDiscovery.EngineLog;
+import willi.boelke.services.serviceDiscovery.ServiceChangeListener;
 import willi.boelke.services.serviceDiscovery.ServiceDescription;
+import willi.boelke.services.serviceDiscovery.WeakListenerMap;
+import willi.boelke.services.serviceDiscovery.bluetoothServiceDiscovery.BluetoothPeer;
 import willi.boelke.services.serviceDiscovery.bluetoothServiceDiscovery.BluetoothServiceDiscovery;
 import willi.boelke.services.serviceDiscovery.bluetoothServiceDiscovery.BluetoothServiceDiscoveryListener;
 import willi.boelke.services.serviceDiscovery.bluetoothServiceDiscovery.BluetoothServiceDiscoveryVOne;
@@ -53,6 +59,14 @@ import willi.boelke.services.serviceDiscovery.bluetoothServiceDiscovery.Bluetoot
  * process. The discovery can be started using
  * {@link #startDiscoveryForService(ServiceDescription, BluetoothServiceClient)}
  * <p>
+ * The engine only keeps weak references to the service clients, so Activities,
+ * ViewModels or controllers do not leak when they forget to stop the discovery.
+ * The client needs to be referenced by the application as long as it should be notified,
+ * once it was garbage collected it will be removed.
+ * <p>
+ * <b>Clients and servers are not notified on the main thread</b>, but on the engine
+ * thread of the discovery engine or on a connection thread, see {@link BluetoothServiceClient}.
+ * <p>
  * Service Descriptions<br>
  * ------------------------------------------------------------<br>
  * To identify services and provide additional information as and instance of
@@ -76,6 +90,48 @@ public class BluetoothServiceConnectionEngine
     public static final int MIN_DISCOVERABLE_TIME = 10;
     public static final int MAX_DISCOVERABLE_TIME = 300;
 
+    /**
+     * Default maximum number of {@link BluetoothClientConnector}s trying
+     * to connect at the same time
+     *
+     * @see #setMaxRunningClientConnectors(int)
+     */
+    public static final int DEFAULT_MAX_RUNNING_CLIENT_CONNECTORS = 2;
+
+    /**
+     * Time in milliseconds to wait before restarting a failed service
+     */
+    private static final long SERVICE_RESTART_DELAY = 100;
+
+    /**
+     * Time in milliseconds to wait before restarting a failed service
+     * while bluetooth is disabled
+     */
+    private static final long SERVICE_RESTART_DELAY_ADAPTER_DISABLED = 300;
+
+    /**
+     * Time in milliseconds to wait for a peer to connect to the local service,
+     * before connecting to it anyways
+     *
+     * @see #getConnectionDelay(BluetoothDevice, ServiceDescription)
+     */
+    private static final long TIE_BREAK_GRACE_PERIOD = 2000;
+
+    /**
+     * Bounds in milliseconds of the random delay before connecting,
+     * when the local address is unknown and the addresses cant be compared
+     *
+     * @see #getConnectionDelay(BluetoothDevice, ServiceDescription)
+     */
+    private static final int TIE_BREAK_MIN_JITTER = 200;
+    private static final int TIE_BREAK_MAX_JITTER = 1000;
+
+    /**
+     * The address Android returns instead of the local
+     * bluetooth address to apps since Android 6
+     */
+    private static final String UNKNOWN_LOCAL_ADDRESS = "02:00:00:00:00:00";
+
     /**
      * Instance of the class following the singleton pattern
      */
@@ -103,11 +159,18 @@ public class BluetoothServiceConnectionEngine
 
     private int discoverableTime;
 
+    /**
+     * Maximum number of {@link BluetoothClientConnector}s trying
+     * to connect at the same time, further connection attempts
+     * will wait in {@link #pendingConnectionAttempts}
+     */
+    private volatile int maxRunningClientConnectors = DEFAULT_MAX_RUNNING_CLIENT_CONNECTORS;
+
     /**
      * Stores key value pairs of all service clients
-     * and the services they look fo  r
+     * and the services they look for, the clients are weakly referenced
      */
-    private HashMap<ServiceDescription, BluetoothServiceClient> serviceClients = new HashMap<>();
+    private final WeakListenerMap<ServiceDescription, BluetoothServiceClient> serviceClients = new WeakListenerMap<>();
     /**
      *
      */
@@ -115,6 +178,43 @@ public class BluetoothServiceConnectionEngine
 
     private final List<BluetoothClientConnector> runningClientConnectors = new CopyOnWriteArrayList<>(new ArrayList<>());
 
+    /**
+     * Connection attempts waiting for a client connector, the peer ranked highest
+     * by the discovery engines {@link willi.boelke.services.serviceDiscovery.bluetoothServiceDiscovery.PeerRankingPolicy}
+     * will be connected to first
+     *
+     * @see #startPendingClientConnectors()
+     */
+    private final List<PendingConnectionAttempt> pendingConnectionAttempts = new ArrayList<>();
+
+    /**
+     * All connection attempts which are pending or running, by device address and service UUID.
+     * Further requests to connect to the same service on the same device are coalesced into
+     * the attempt in flight, the service clients waiting for it are notified once it succeeds.
+     */
+    private final InFlightAttempts<ConnectionKey, BluetoothServiceClient> inFlightAttempts = new InFlightAttempts<>();
+
+    /**
+     * Connection attempts the local device yielded to the peer in the tie-break,
+     * by device address and service UUID. If the peer connects to the local service
+     * the service clients waiting here get the incoming connection,
+     * else the fallback attempt is queued for them.
+     *
+     * @see #getConnectionDelay(BluetoothDevice, ServiceDescription)
+     */
+    private final InFlightAttempts<ConnectionKey, BluetoothServiceClient> yieldedAttempts = new InFlightAttempts<>();
+
+    /**
+     * Keeps track of failing peers, peers which failed recently are not
+     * connected to till their backoff passed or while their circuit breaker is open
+     */
+    private final PeerRetryPolicy retryPolicy = PeerRetryPolicy.getInstance();
+
+    /**
+     * Random delays of the tie-break
+     */
+    private final Random random = new Random();
+
     /**
      * The connection manager to store and ..well manage.. all opened connections
      */
@@ -129,7 +229,7 @@ public class BluetoothServiceConnectionEngine
      * @see #isRunning()
      * @see #engineIsNotRunning()
      */
-    private boolean engineRunning = false;
+    private volatile boolean engineRunning = false;
 
     /**
      * The discovery engine which is used
@@ -181,7 +281,7 @@ public class BluetoothServiceConnectionEngine
         BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
         if (adapter == null)
         {
-            Log.e(TAG, "Bluetooth adapter was null, the device probably does not support bluetooth - engine wont start");
+            EngineLog.e(TAG, "Bluetooth adapter was null, the device probably does not support bluetooth - engine wont start");
             return;
         }
 
@@ -206,17 +306,17 @@ public class BluetoothServiceConnectionEngine
 
         if (adapter == null)
         {
-            Log.e(TAG, "start: Bluetooth adapter was null, the device probably does not support bluetooth - engine wont start");
+            EngineLog.e(TAG, "start: Bluetooth adapter was null, the device probably does not support bluetooth - engine wont start");
             return;
         }
         if (!adapter.isEnabled())
         {
-            Log.e(TAG, "start: Bluetooth not enabled");
+            EngineLog.e(TAG, "start: Bluetooth not enabled");
             return;
         }
         if (!discoveryEngine.isRunning())
         {
-            Log.e(TAG, "start: Bluetooth discovery not running");
+            EngineLog.e(TAG, "start: Bluetooth discovery not running");
             return;
         }
 
@@ -224,7 +324,7 @@ public class BluetoothServiceConnectionEngine
         this.context = context.getApplicationContext();
 
         //--- starting the discovery engine ---//
-        Log.e(TAG, "start: " + discoveryEngine);
+        EngineLog.e(TAG, "start: " + discoveryEngine);
         this.discoveryEngine = discoveryEngine;
         this.discoveryEngine.start(context, adapter);
         this.discoveryEngine.registerDiscoverListener(new BluetoothServiceDiscoveryListener()
@@ -232,29 +332,41 @@ public class BluetoothServiceConnectionEngine
             @Override
             public void onServiceDiscovered(BluetoothDevice host, ServiceDescription description)
             {
-                try
-                {
-                    Objects.requireNonNull(serviceClients.get(description)).onServiceDiscovered(host, description);
-                    launchConnectionAttempt(host, description);
-                }
-                catch (NullPointerException e)
-                {
-                    //service client may be null - stop
-                    Log.e(TAG, "onServiceDiscovered: service client was null - cant notify");
-                    serviceClients.remove(description);
-                }
+                // services are handled through the ServiceChangeListener below,
+                // to not run the connection checks again for every refresh
             }
 
             @Override
             public void onPeerDiscovered(BluetoothDevice device)
             {
-                for (BluetoothServiceClient client : serviceClients.values())
+                for (BluetoothServiceClient client : serviceClients.listeners())
                 {
                     client.onPeerDiscovered(device);
                 }
             }
         });
+        this.discoveryEngine.registerServiceChangeListener(new ServiceChangeListener<BluetoothDevice>()
+        {
+            @Override
+            public void onServiceAppeared(BluetoothDevice host, ServiceDescription description)
+            {
+                onServiceAvailable(host, description);
+            }
+
+            @Override
+            public void onServiceChanged(BluetoothDevice host, ServiceDescription previous, ServiceDescription description)
+            {
+                onServiceAvailable(host, description);
+            }
+
+            @Override
+            public void onServiceLost(BluetoothDevice host, ServiceDescription description)
+            {
+                EngineLog.d(TAG, () -> "onServiceLost: " + description + " not available on " + host + " anymore");
+            }
+        });
 
+        this.connectionManager.startZombieSweep();
         this.engineRunning = true;
     }
 
@@ -274,10 +386,17 @@ public class BluetoothServiceConnectionEngine
         }
         stopDeviceDiscovery();
         stopAllServiceConnector();
+        synchronized (this.pendingConnectionAttempts)
+        {
+            this.pendingConnectionAttempts.clear();
+        }
         stopAllClientConnectors();
+        this.inFlightAttempts.clear();
+        this.yieldedAttempts.clear();
+        this.connectionManager.stopZombieSweep();
         this.connectionManager.closeAllConnections();
-        this.serviceClients = new HashMap<>();
-        Log.e(TAG, "stop: " + this.discoveryEngine);
+        this.serviceClients.clear();
+        EngineLog.e(TAG, "stop: " + this.discoveryEngine);
         this.discoveryEngine.stop();
         this.engineRunning = false;
     }
@@ -285,12 +404,14 @@ public class BluetoothServiceConnectionEngine
     /**
      * Stops the engine and resets the singleton instance to "null"
      * this is mostly used for testing
-     * does the same to the SdpBluetoothDiscoveryEngine it uses
+     * does the same to the SdpBluetoothDiscoveryEngine it uses,
+     * and forgets about all failed peers
      */
     protected void teardownEngine()
     {
-        Log.e(TAG, "teardownEngine: ---resetting engine---");
+        EngineLog.e(TAG, "teardownEngine: ---resetting engine---");
         this.stop();
+        this.retryPolicy.clear();
         instance = null;
     }
 
@@ -335,11 +456,11 @@ public class BluetoothServiceConnectionEngine
     {
         if (engineIsNotRunning())
         {
-            Log.e(TAG, "startDiscoverable: the engine was not initialized or bluetooth is not available");
+            EngineLog.e(TAG, "startDiscoverable: the engine was not initialized or bluetooth is not available");
             return;
         }
 
-        Log.d(TAG, "makeDiscoverable: making device discoverable for " + discoverableTime + " ms");
+        EngineLog.d(TAG, () -> "makeDiscoverable: making device discoverable for " + discoverableTime + " ms");
         //Discoverable Intent
         Intent discoverableIntent = new Intent(BluetoothAdapter.ACTION_REQUEST_DISCOVERABLE);
         discoverableIntent.putExtra(BluetoothAdapter.EXTRA_DISCOVERABLE_DURATION, discoverableTime);
@@ -360,7 +481,7 @@ public class BluetoothServiceConnectionEngine
     {
         if (engineIsNotRunning())
         {
-            Log.e(TAG, "startDiscoverable: the engine was not initialized or bluetooth is not available");
+            EngineLog.e(TAG, "startDiscoverable: the engine was not initialized or bluetooth is not available");
             return false;
         }
         return this.discoveryEngine.startDeviceDiscovery();
@@ -376,7 +497,7 @@ public class BluetoothServiceConnectionEngine
     {
         if (engineIsNotRunning())
         {
-            Log.e(TAG, "startDiscoverable: the engine was not initialized or bluetooth is not available");
+            EngineLog.e(TAG, "startDiscoverable: the engine was not initialized or bluetooth is not available");
             return;
         }
         this.discoveryEngine.stopDeviceDiscovery();
@@ -409,7 +530,7 @@ public class BluetoothServiceConnectionEngine
     {
         if (engineIsNotRunning())
         {
-            Log.e(TAG, "startSDPDiscoveryForService: the engine is not running, wont start");
+            EngineLog.e(TAG, "startSDPDiscoveryForService: the engine is not running, wont start");
             return;
         }
         // Adding the service client ot the list
@@ -438,12 +559,33 @@ public class BluetoothServiceConnectionEngine
     {
         if (engineIsNotRunning())
         {
-            Log.e(TAG, "stopSDPDiscoveryForService: the engine is not running, wont stop");
+            EngineLog.e(TAG, "stopSDPDiscoveryForService: the engine is not running, wont stop");
             return;
         }
-        Log.d(TAG, "End service discovery for " + description);
+        EngineLog.d(TAG, () -> "End service discovery for " + description);
         this.discoveryEngine.stopDiscoveryForService(description);
 
+        // dropping connection attempts which did not start yet
+        synchronized (this.pendingConnectionAttempts)
+        {
+            ArrayList<PendingConnectionAttempt> attemptsToDrop = new ArrayList<>();
+            for (PendingConnectionAttempt attempt : this.pendingConnectionAttempts)
+            {
+                if (attempt.description.equals(description))
+                {
+                    attemptsToDrop.add(attempt);
+                }
+            }
+            this.pendingConnectionAttempts.removeAll(attemptsToDrop);
+        }
+        for (ConnectionKey key : this.yieldedAttempts.keys())
+        {
+            if (key.getServiceUuid().equals(description.getServiceUuid()))
+            {
+                this.yieldedAttempts.complete(key);
+            }
+        }
+
         // stopping all client connectors which may sill run and try to connect to this service
         ArrayList<BluetoothClientConnector> connectorsToClose = new ArrayList<>();
         for (BluetoothClientConnector clientConnector : this.runningClientConnectors)
@@ -458,6 +600,17 @@ public class BluetoothServiceConnectionEngine
             this.runningClientConnectors.remove(connectorToClose);
             connectorToClose.cancel();
         }
+        // the freed connectors can be used for other services
+        startPendingClientConnectors();
+
+        // forgetting the attempts, so the service can be connected to again
+        for (ConnectionKey key : this.inFlightAttempts.keys())
+        {
+            if (key.getServiceUuid().equals(description.getServiceUuid()))
+            {
+                this.inFlightAttempts.complete(key);
+            }
+        }
 
         // removing the client from the list
         serviceClients.remove(description);
@@ -477,42 +630,227 @@ public class BluetoothServiceConnectionEngine
     {
         if (engineIsNotRunning())
         {
-            Log.e(TAG, "disconnectFromServicesWith: the engine is not running, wont stop");
+            EngineLog.e(TAG, "disconnectFromServicesWith: the engine is not running, wont stop");
             return;
         }
-        Log.d(TAG, "disconnectFromServicesWith: disconnecting from servers with " + description);
+        EngineLog.d(TAG, () -> "disconnectFromServicesWith: disconnecting from servers with " + description);
         this.connectionManager.closeAllClientConnectionsToService(description);
     }
 
 
+    /**
+     * Called when a service appeared (or changed) on a remote device,
+     * notifies the service client and launches a connection attempt
+     *
+     * @param host
+     *         the remote device
+     * @param description
+     *         the service
+     */
+    private void onServiceAvailable(BluetoothDevice host, ServiceDescription description)
+    {
+        BluetoothServiceClient client = this.serviceClients.get(description);
+        if (client == null)
+        {
+            // not looked for, or the client was garbage collected
+            EngineLog.e(TAG, "onServiceAvailable: no service client for " + description + " - cant notify");
+            return;
+        }
+        client.onServiceDiscovered(host, description);
+        launchConnectionAttempt(host, description);
+    }
+
     /**
      * Will be called when a device was found which hosts a service with the specified UUID
      * * Else {@link BluetoothServiceClient#shouldConnectTo(BluetoothDevice, ServiceDescription)}
      * Of the client with the matching UUID will be called to decide
      * whether a connection should be established or not.
+     * <p>
+     * If the local device runs the same service, the remote device may connect to it
+     * at the same time. To prevent both devices from connecting only the one with
+     * the lower address connects, the other one waits {@link #TIE_BREAK_GRACE_PERIOD} ms
+     * and only connects if no connection was established by then.
+     * If the local address is unknown both devices wait a random time instead,
+     * the one which waits longer usually finds the connection established already.
+     * When the peer connects while the local device waits, the
+     * service client is notified about that connection.
      *
      * @param device
      *         device to connect to
      * @param description
      *         service oi connect to
      *
-     * @see #startClientThread(BluetoothDevice, ServiceDescription)
+     * @see #startClientThread(BluetoothDevice, ServiceDescription, boolean)
      *         Will be called when a connection should be established
      */
     private void launchConnectionAttempt(BluetoothDevice device, ServiceDescription description)
     {
-        Log.d(TAG, "tryToConnectToService:  SDP service found, trying to connect");
+        EngineLog.d(TAG, "tryToConnectToService:  SDP service found, trying to connect");
 
-        if (Objects.requireNonNull(this.serviceClients.get(description))
-                .shouldConnectTo(device, description)
+        BluetoothServiceClient client = this.serviceClients.get(description);
+        if (client != null
+                && client.shouldConnectTo(device, description)
                 && !isConnectionAlreadyEstablished(device.getAddress(), description))
         {
-            Log.d(TAG, "tryToConnectToService: staring client thread to " + device);
-            startClientThread(device, description);
+            long delay = getConnectionDelay(device, description);
+            if (delay > 0)
+            {
+                if (!this.yieldedAttempts.join(keyOf(device, description), client))
+                {
+                    EngineLog.d(TAG, () -> "tryToConnectToService: already waiting for " + device + " to connect");
+                    return;
+                }
+                EngineLog.d(TAG, () -> "tryToConnectToService: " + device + " may connect to the local service, waiting " + delay + "ms for it");
+                scheduleFallbackConnectionAttempt(device, description, delay);
+                return;
+            }
+            queueConnectionAttempt(device, description, client);
         }
         else
         {
-            Log.d(TAG, "tryToConnectToService: should not connect to " + device);
+            EngineLog.d(TAG, () -> "tryToConnectToService: should not connect to " + device);
+        }
+    }
+
+    /**
+     * Queues a connection attempt, unless there already is one in flight or
+     * the device failed recently.
+     * <p>
+     * Devices which failed to connect recently will be skipped,
+     * as long as the {@link PeerRetryPolicy} does not allow another attempt.
+     *
+     * @param device
+     *         device to connect to
+     * @param description
+     *         service oi connect to
+     * @param client
+     *         the service client waiting for the connection
+     */
+    private void queueConnectionAttempt(BluetoothDevice device, ServiceDescription description, BluetoothServiceClient client)
+    {
+        // attempts in flight are joined regardless of the backoff
+        if (!this.inFlightAttempts.isInFlight(keyOf(device, description))
+                && !this.retryPolicy.allowAttempt(device.getAddress()))
+        {
+            EngineLog.d(TAG, () -> "tryToConnectToService: backing off from " + device + " for "
+                    + this.retryPolicy.getRetryDelay(device.getAddress()) + "ms, breaker "
+                    + this.retryPolicy.getState(device.getAddress()));
+            return;
+        }
+        if (!this.inFlightAttempts.join(keyOf(device, description), client))
+        {
+            EngineLog.d(TAG, () -> "tryToConnectToService: already trying to connect to " + device);
+            return;
+        }
+        EngineLog.d(TAG, () -> "tryToConnectToService: queueing connection attempt to " + device);
+        synchronized (this.pendingConnectionAttempts)
+        {
+            this.pendingConnectionAttempts.add(new PendingConnectionAttempt(device, description, false));
+        }
+        startPendingClientConnectors();
+    }
+
+    /**
+     * Decides how long to wait for the remote device to connect to the local service,
+     * before the local device connects to the remote one.
+     * <p>
+     * The local device only waits when it runs the same service.
+     * The device with the higher bluetooth address waits {@link #TIE_BREAK_GRACE_PERIOD} ms,
+     * the other one connects right away.
+     * Since Android 6 apps usually cant read the local address, then the
+     * addresses cant be compared and a random time between {@link #TIE_BREAK_MIN_JITTER}
+     * and {@link #TIE_BREAK_MAX_JITTER} ms is waited, so both devices
+     * rarely connect at the same time.
+     *
+     * @param device
+     *         the remote device
+     * @param description
+     *         the service
+     *
+     * @return the time to wait in milliseconds, 0 to connect right away
+     */
+    private long getConnectionDelay(BluetoothDevice device, ServiceDescription description)
+    {
+        if (!serviceAlreadyRunning(description))
+        {
+            // the peer cant connect to us
+            return 0;
+        }
+        String localAddress = this.bluetoothAdapter.getAddress();
+        if (localAddress == null || localAddress.equals(UNKNOWN_LOCAL_ADDRESS))
+        {
+            return TIE_BREAK_MIN_JITTER + this.random.nextInt(TIE_BREAK_MAX_JITTER - TIE_BREAK_MIN_JITTER);
+        }
+        return localAddress.compareToIgnoreCase(device.getAddress()) > 0 ? TIE_BREAK_GRACE_PERIOD : 0;
+    }
+
+    /**
+     * Connects to the remote device after the given delay,
+     * in case it did not connect to the local service by then
+     * (it may not look for the service at all).
+     * If it did, its connection was passed on to the
+     * waiting service clients already.
+     *
+     * @param device
+     *         the remote device
+     * @param description
+     *         the service
+     * @param delay
+     *         the time to wait in milliseconds
+     */
+    private void scheduleFallbackConnectionAttempt(BluetoothDevice device, ServiceDescription description, long delay)
+    {
+        ConnectionExecutor.getInstance().schedule(() ->
+        {
+            List<BluetoothServiceClient> waitingClients = yieldedAttempts.complete(keyOf(device, description));
+            if (waitingClients.isEmpty())
+            {
+                // the peer connected, or the engine was stopped
+                return;
+            }
+            BluetoothServiceClient client = serviceClients.get(description);
+            if (engineRunning && client != null && !isConnectionAlreadyEstablished(device.getAddress(), description))
+            {
+                EngineLog.d(TAG, () -> "scheduleFallbackConnectionAttempt: " + device + " did not connect, connecting to it");
+                queueConnectionAttempt(device, description, client);
+            }
+        }, delay);
+    }
+
+    /**
+     * Starts client threads for the pending connection attempts,
+     * till {@link #maxRunningClientConnectors} are running.
+     * The peers ranked highest by the discovery engines
+     * {@link willi.boelke.services.serviceDiscovery.bluetoothServiceDiscovery.PeerRankingPolicy}
+     * will be connected to first.
+     */
+    private void startPendingClientConnectors()
+    {
+        synchronized (this.pendingConnectionAttempts)
+        {
+            while (this.runningClientConnectors.size() < this.maxRunningClientConnectors && !this.pendingConnectionAttempts.isEmpty())
+            {
+                PendingConnectionAttempt best = null;
+                BluetoothPeer bestPeer = null;
+                for (PendingConnectionAttempt attempt : this.pendingConnectionAttempts)
+                {
+                    BluetoothPeer peer = this.discoveryEngine.getPeer(attempt.device);
+                    if (best == null || this.discoveryEngine.getPeerRankingPolicy().compare(peer, bestPeer) < 0)
+                    {
+                        best = attempt;
+                        bestPeer = peer;
+                    }
+                }
+                this.pendingConnectionAttempts.remove(best);
+                if (isConnectionAlreadyEstablished(best.device.getAddress(), best.description))
+                {
+                    this.inFlightAttempts.complete(keyOf(best.device, best.description));
+                    continue;
+                }
+                BluetoothPeer connectingTo = bestPeer;
+                EngineLog.d(TAG, () -> "startPendingClientConnectors: staring client thread to " + connectingTo);
+                startClientThread(best.device, best.description, best.retry);
+            }
         }
     }
 
@@ -521,16 +859,27 @@ public class BluetoothServiceConnectionEngine
      * of all nearby services.
      * This also will cause the device discovery to stop.
      * <p>
+     * Since only new or changed services will be connected to automatically,
+     * this also launches connection attempts to all known services
+     * which are not connected (anymore).
+     * <p>
      * Calling {@link #startDeviceDiscovery()} while this is running is not recommended.
      */
     public void refreshNearbyServices()
     {
         if (this.engineIsNotRunning())
         {
-            Log.e(TAG, "refreshNearbyServices: the engine is not running - wont refresh");
+            EngineLog.e(TAG, "refreshNearbyServices: the engine is not running - wont refresh");
             return;
         }
         this.discoveryEngine.refreshNearbyServices();
+        for (ServiceDescription description : this.serviceClients.keys())
+        {
+            for (BluetoothDevice host : this.discoveryEngine.getServiceSnapshot().getHosts(description))
+            {
+                launchConnectionAttempt(host, description);
+            }
+        }
     }
 
 
@@ -557,15 +906,15 @@ public class BluetoothServiceConnectionEngine
      */
     public boolean startService(ServiceDescription description, BluetoothServiceServer server)
     {
-        Log.d(TAG, "Staring new Service Service");
+        EngineLog.d(TAG, "Staring new Service Service");
         if (engineIsNotRunning())
         {
-            Log.e(TAG, "startSDPService: engine is not running - wont start");
+            EngineLog.e(TAG, "startSDPService: engine is not running - wont start");
             return false;
         }
         if (this.serviceAlreadyRunning(description))
         {
-            Log.e(TAG, "A service with the same UUID is already running, return ");
+            EngineLog.e(TAG, "A service with the same UUID is already running, return ");
             return false;
         }
         this.startServiceThread(description, server);
@@ -631,7 +980,7 @@ public class BluetoothServiceConnectionEngine
      */
     private boolean isConnectionAlreadyEstablished(String deviceAddress, ServiceDescription description)
     {
-        Log.d(TAG, "isConnectionAlreadyEstablished: checking if there is a connection established");
+        EngineLog.d(TAG, "isConnectionAlreadyEstablished: checking if there is a connection established");
         return this.connectionManager.isAlreadyConnected(deviceAddress, description);
     }
 
@@ -647,7 +996,7 @@ public class BluetoothServiceConnectionEngine
      */
     public void disconnectFromClientsOn(ServiceDescription description)
     {
-        Log.d(TAG, "disconnectFromClientsWithUUID: closing client connections to service " + description);
+        EngineLog.d(TAG, () -> "disconnectFromClientsWithUUID: closing client connections to service " + description);
         this.connectionManager.closeServerConnectionsToService(description);
     }
 
@@ -660,15 +1009,20 @@ public class BluetoothServiceConnectionEngine
      * to open a socket connection to the remote service/device.
      * Also implements the necessary callback methods
      * to react to a successful connection or a failure.
+     * <p>
+     * If the remote device may have connected to the local service at the same time,
+     * a failed attempt is retried once right away, without backing off.
      *
      * @param device
      *         The remote device / host
      * @param description
      *         The description of the serve to connect to (containing the service UUID)
+     * @param retry
+     *         true if this retries a failed attempt
      */
-    private void startClientThread(BluetoothDevice device, ServiceDescription description)
+    private void startClientThread(BluetoothDevice device, ServiceDescription description, boolean retry)
     {
-        Log.d(TAG, "Staring Client");
+        EngineLog.d(TAG, "Staring Client");
         BluetoothClientConnector bluetoothClientConnector = new BluetoothClientConnector(description, device, new BluetoothClientConnector.ConnectionEventListener()
         {
             @Override
@@ -676,8 +1030,36 @@ public class BluetoothServiceConnectionEngine
             {
                 // we should notify the application / listeners here
                 BluetoothClientConnector failedClient = (BluetoothClientConnector) failedConnector;
+                boolean cancelled = failedClient.isCancelled();
                 failedClient.cancel();
                 runningClientConnectors.remove(failedClient);
+                if (cancelled)
+                {
+                    // stopped locally, the peer did not fail
+                    EngineLog.d(TAG, () -> "onConnectionFailed: attempt to " + device + " was canceled");
+                    startPendingClientConnectors();
+                    return;
+                }
+                if (engineIsNotRunning())
+                {
+                    // the engine was stopped, the attempts were dropped already
+                    return;
+                }
+                if (!retry && serviceAlreadyRunning(description) && serviceClients.get(description) != null)
+                {
+                    // both devices may have connected at the same time
+                    EngineLog.d(TAG, () -> "onConnectionFailed: retrying " + device + " right away");
+                    synchronized (pendingConnectionAttempts)
+                    {
+                        pendingConnectionAttempts.add(new PendingConnectionAttempt(device, description, true));
+                    }
+                }
+                else
+                {
+                    retryPolicy.recordFailure(device.getAddress());
+                    inFlightAttempts.complete(keyOf(device, description));
+                }
+                startPendingClientConnectors();
             }
 
             @Override
@@ -685,12 +1067,18 @@ public class BluetoothServiceConnectionEngine
             {
                 BluetoothClientConnector client = (BluetoothClientConnector) bluetoothClientConnector;
                 connectionManager.addConnection(connection);
-                Objects.requireNonNull(serviceClients.get(description)).onConnectedToService(connection);
+                retryPolicy.recordSuccess(device.getAddress());
+                // passing the connection on to every client which waited for it
+                for (BluetoothServiceClient serviceClient : inFlightAttempts.complete(keyOf(device, description)))
+                {
+                    serviceClient.onConnectedToService(connection);
+                }
                 runningClientConnectors.remove(client);
+                startPendingClientConnectors();
             }
         });
         this.runningClientConnectors.add(bluetoothClientConnector);
-        bluetoothClientConnector.start();
+        ConnectionExecutor.getInstance().execute(bluetoothClientConnector);
     }
 
     /**
@@ -716,13 +1104,11 @@ public class BluetoothServiceConnectionEngine
                 // where is that deadObjectException coming from here ...?
                 if(bluetoothAdapter.isEnabled()){
                     // we should notify the application / listeners here
-                    Log.e(TAG, "onConnectionFailed: server socket died , trying to restart");
-                    Runnable tryToRestart = new TryToRestart(description, serviceServer, 1);
-                    tryToRestart.run();
+                    EngineLog.e(TAG, "onConnectionFailed: server socket died , trying to restart");
+                    scheduleServiceRestart(description, serviceServer, SERVICE_RESTART_DELAY);
                 }
                 else{
-                    Runnable tryToRestart = new TryToRestart(description, serviceServer, 3);
-                    tryToRestart.run();
+                    scheduleServiceRestart(description, serviceServer, SERVICE_RESTART_DELAY_ADAPTER_DISABLED);
                 }
 
             }
@@ -731,7 +1117,15 @@ public class BluetoothServiceConnectionEngine
             public void onConnectionSuccess(BluetoothConnectorThread bluetoothClientConnector, BluetoothConnection connection)
             {
                 connectionManager.addConnection(connection);
+                // the peer is in range again
+                retryPolicy.recordSuccess(connection.getRemoteDeviceAddress());
                 serviceServer.onClientConnected(connection);
+                // the local device may have yielded to the peer in the tie-break
+                ConnectionKey key = new ConnectionKey(connection.getRemoteDeviceAddress(), description.getServiceUuid());
+                for (BluetoothServiceClient serviceClient : yieldedAttempts.complete(key))
+                {
+                    serviceClient.onConnectedToService(connection);
+                }
             }
         });
 
@@ -739,40 +1133,29 @@ public class BluetoothServiceConnectionEngine
         this.runningServiceConnectors.add(bluetoothServiceConnector);
     }
 
-    private class TryToRestart extends Thread
+    /**
+     * Restarts a failed service after the given delay, if bluetooth
+     * is enabled and the engine still runs by then.
+     * The delay passes on the shared {@link ConnectionExecutor},
+     * without blocking the failed connectors thread.
+     *
+     * @param description
+     *         The service Description
+     * @param serviceServer
+     *         Implementation of the server interface to handle established connections
+     * @param delay
+     *         the delay in milliseconds
+     */
+    private void scheduleServiceRestart(ServiceDescription description, BluetoothServiceServer serviceServer, long delay)
     {
-        private final ServiceDescription description;
-        private final BluetoothServiceServer serviceServer;
-        private final int restartTimer;
-
-        public TryToRestart(ServiceDescription description,
-                                 BluetoothServiceServer serviceServer,
-                                 int restartTimerInSeconds)
+        ConnectionExecutor.getInstance().schedule(() ->
         {
-                this.description = description;
-                this.serviceServer = serviceServer;
-                this.restartTimer = restartTimerInSeconds * 100;
-        }
-
-        @Override
-        public void run()
-        {
-            synchronized (this){
-                try
-                {
-                    wait(restartTimer);
-                }
-                catch (InterruptedException e)
-                {
-                    e.printStackTrace();
-                }
-            }
-
-            if(bluetoothAdapter.isEnabled() && engineRunning){
-                startServiceThread(this.description, this.serviceServer);
+            if (bluetoothAdapter.isEnabled() && engineRunning)
+            {
+                startServiceThread(description, serviceServer);
             }
-        }
-    };
+        }, delay);
+    }
 
     //
     //  ---------- config ----------
@@ -826,6 +1209,39 @@ public class BluetoothServiceConnectionEngine
         this.discoverableTime = seconds;
     }
 
+    /**
+     * Sets the maximum number of connection attempts running at the same time.
+     * Bluetooth adapters handle only few connection attempts at once, further attempts
+     * wait till a running one finished and start in the order of the
+     * {@link willi.boelke.services.serviceDiscovery.bluetoothServiceDiscovery.PeerRankingPolicy}.
+     * <p>
+     * If this method is not used {@link #DEFAULT_MAX_RUNNING_CLIENT_CONNECTORS} attempts
+     * run at the same time.
+     *
+     * @param maxRunningClientConnectors
+     *         the number of attempts, at least 1
+     *
+     * @throws IllegalArgumentException
+     *         if the number is smaller than 1
+     */
+    public void setMaxRunningClientConnectors(int maxRunningClientConnectors)
+    {
+        if (maxRunningClientConnectors < 1)
+        {
+            throw new IllegalArgumentException("at least one connection attempt needs to run");
+        }
+        this.maxRunningClientConnectors = maxRunningClientConnectors;
+        if (this.engineRunning)
+        {
+            startPendingClientConnectors();
+        }
+    }
+
+    public int getMaxRunningClientConnectors()
+    {
+        return this.maxRunningClientConnectors;
+    }
+
     /**
      * Returns true if the engine is not running
      *
@@ -851,5 +1267,55 @@ public class BluetoothServiceConnectionEngine
     {
         return this.engineRunning;
     }
-}
 
+    /**
+     * Returns the number of accepted client connections waiting to be
+     * reported to the service servers, summed up over all running services.
+     * A growing number means the service servers handle connections slower
+     * than they are accepted.
+     *
+     * @return the number of waiting client connections
+     */
+    public int getAcceptQueueDepth()
+    {
+        int depth = 0;
+        for (BluetoothServerConnector connector : this.runningServiceConnectors)
+        {
+            depth += connector.getQueueDepth();
+        }
+        return depth;
+    }
+
+    /**
+     * @return the key of a connection (attempt) to the service on the device
+     */
+    private static ConnectionKey keyOf(BluetoothDevice device, ServiceDescription description)
+    {
+        return new ConnectionKey(device.getAddress(), description.getServiceUuid());
+    }
+
+    //
+    //  ----------  pending connection attempt ----------
+    //
+
+    /**
+     * A connection attempt waiting for a client connector
+     */
+    private static final class PendingConnectionAttempt
+    {
+        final BluetoothDevice device;
+        final ServiceDescription description;
+
+        /**
+         * True if this retries a failed attempt
+         */
+        final boolean retry;
+
+        PendingConnectionAttempt(BluetoothDevice device, ServiceDescription description, boolean retry)
+        {
+            this.device = device;
+            this.description = description;
+            this.retry = retry;
+        }
+    }
+}
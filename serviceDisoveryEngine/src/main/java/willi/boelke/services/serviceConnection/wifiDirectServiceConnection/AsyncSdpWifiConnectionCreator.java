@@ -1,24 +1,26 @@
 package willi.boelke.services.serviceConnection.wifiDirectServiceConnection;
 
-import android.util.Log;
-
 import java.io.IOException;
 import java.net.Socket;
 
 import willi.boelke.services.serviceConnection.wifiDirectServiceConnection.tcp.TCPChannelMaker;
-import willi.boelke.services.serviceDiscovery.ServiceDescription;
+import willi.boelke.services.serviceConnection.wifiDirectServiceConnection.tcp.TCPChannelMakerListener;
+import willi.boelke.services.serviceDiscovery.EngineLog;
 
 /**
- * This Thread awaits a {@link TCPChannelMaker} to establish a socket connection
- * (or to fail doing that...). If a connection was established a {@link WifiConnection}
- * will be passed to {@link WifiDirectConnectionEngine#onSocketConnected(WifiConnection)}
+ * This task starts a {@link TCPChannelMaker} and gets notified as soon as it established
+ * a socket connection (or failed doing that...). If a connection was established the socket
+ * will be passed to {@link WifiDirectConnectionEngine#onGroupOwnerConnected(Socket)}
+ * <p>
+ * It is run by the shared {@link willi.boelke.services.serviceConnection.ConnectionExecutor},
+ * no thread is blocked while the connection is established.
  *
  * <p>
  * Note<br>
  * ------------------------------------------------------------<br>
  * This code is partially taken from AsapAndroid
  */
-class AsyncSdpWifiConnectionCreator extends Thread
+class AsyncSdpWifiConnectionCreator implements Runnable, TCPChannelMakerListener
 {
 
     /**
@@ -28,95 +30,56 @@ class AsyncSdpWifiConnectionCreator extends Thread
 
     private final TCPChannelMaker channelMaker;
     private final WifiDirectConnectionEngine engine;
-    private final ServiceDescription serviceDescription;
-    private Socket socket;
 
-    public AsyncSdpWifiConnectionCreator(TCPChannelMaker channelMaker,
-                                         WifiDirectConnectionEngine engine,
-                                         ServiceDescription description)
+    public AsyncSdpWifiConnectionCreator(TCPChannelMaker channelMaker, WifiDirectConnectionEngine engine)
     {
-        this.serviceDescription = description;
         this.channelMaker = channelMaker;
-        this.socket = null;
         this.engine = engine;
     }
 
     @Override
     public void run()
     {
-        Log.d(TAG, "run: waiting for channel maker to establish connection");
+        EngineLog.d(TAG, "run: waiting for channel maker to establish connection");
         try
         {
-            if (this.socket == null)
+            if (!this.channelMaker.running())
             {
-                if (!this.channelMaker.running())
-                {
-                    Log.d(TAG, "run: starting channel maker");
-                    this.channelMaker.start();
-                }
-                else
-                {
-                    this.channelMaker.nextConnection();
-                }
-
-                awaitConnection();
-                this.socket = channelMaker.getSocket();
-                Log.d(TAG, "run: socket " + socket);
+                EngineLog.d(TAG, "run: starting channel maker");
+                this.channelMaker.start();
             }
-
-            // Creating the connection
-            WifiConnection connection = new WifiConnection(this.socket, this.serviceDescription);
-            Log.d(TAG, "run: socked to " + socket.getInetAddress() + " with " + serviceDescription + " has been connected");
-            this.engine.onSocketConnected(connection);
+            else
+            {
+                this.channelMaker.nextConnection();
+            }
+            this.channelMaker.notifyWhenConnectionEstablished(this);
         }
         catch (IOException e)
         {
-            Log.e(TAG, "run: IOException while trying to create connection", e);
-            try
-            {
-                this.socket.close();
-            }
-            catch (IOException | NullPointerException ex)
-            {
-                Log.e(TAG, "run: cannot close the socket...", ex);
-            }
+            EngineLog.e(TAG, "run: IOException while trying to create connection", e);
         }
     }
 
-    private void awaitConnection() throws IOException
+    @Override
+    public void onConnectionEstablished(TCPChannelMaker channelMaker)
     {
-        //----------------------------------
-        // NOTE : There is a race condition between
-        // this and the Channel maker. The channel
-        // maker may not have created the channel
-        // when calling this, leading to a
-        // NullPointerException when calling
-        // `channel.isConnected()` We will give it
-        // a try (since it works in about 80% of the
-        // cases) and then wait before trying again.
-        // This fix actually works very well now
-        // after testing it a while, though there may
-        // be room for improvements
-        //----------------------------------
+        final Socket socket;
         try
         {
-            this.channelMaker.waitUntilConnectionEstablished();
+            socket = channelMaker.getSocket();
         }
-        catch (NullPointerException e)
+        catch (IOException e)
         {
-            synchronized (this)
-            {
-                Log.e(TAG, "run: race condition happened");
-                try
-                {
-                    this.wait(2000);
-                }
-                catch (InterruptedException ex)
-                {
-                    ex.printStackTrace();
-                }
-            }
-            this.channelMaker.waitUntilConnectionEstablished();
+            EngineLog.e(TAG, "onConnectionEstablished: IOException while trying to create connection", e);
+            return;
         }
+        EngineLog.d(TAG, () -> "onConnectionEstablished: socket to " + socket.getInetAddress() + " has been connected");
+        this.engine.onGroupOwnerConnected(socket);
+    }
+
+    @Override
+    public void onConnectionEstablishmentFailed(TCPChannelMaker channelMaker, String reason)
+    {
+        EngineLog.e(TAG, "onConnectionEstablishmentFailed: could not create connection: " + reason);
     }
 }
@@ -0,0 +1,91 @@
+package willi.boelke.services.serviceConnection.wifiDirectServiceConnection;
+
+import androidx.annotation.NonNull;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+import willi.boelke.services.serviceConnection.wifiDirectServiceConnection.multiplexing.MultiplexedStream;
+import willi.boelke.services.serviceDiscovery.ServiceDescription;
+
+/**
+ * A {@link WifiConnection} of a single service, carried as a {@link MultiplexedStream}
+ * over the TCP connection the local device shares with the remote device.
+ * <p>
+ * Reading and writing only affects the stream of this service.
+ * Closing the connection closes the stream, the socket and the
+ * connections of other services stay open.
+ * {@link #getConnectionSocket()} returns the shared socket,
+ * it must not be used for reading, writing or closing.
+ *
+ * @author WilliBoelke
+ */
+public class MultiplexedWifiConnection extends WifiConnection
+{
+    private final MultiplexedStream stream;
+
+    public MultiplexedWifiConnection(MultiplexedStream stream, ServiceDescription description)
+    {
+        super(stream.getMultiplexer().getSocket(), description);
+        this.stream = stream;
+    }
+
+    @Override
+    public InputStream getInputStream()
+    {
+        return this.stream.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream()
+    {
+        return this.stream.getOutputStream();
+    }
+
+    @Override
+    public boolean isClosed()
+    {
+        return this.stream.isClosed();
+    }
+
+    /**
+     * Returns the socket shared with the connections of other services.
+     * It can be used to get the remote address or the socket settings,
+     * but it must not be read, written to or closed directly, that would
+     * break the other connections. Use {@link #getInputStream()},
+     * {@link #getOutputStream()} and {@link #close()} instead.
+     *
+     * @return the shared socket
+     */
+    @Override
+    public Socket getConnectionSocket()
+    {
+        return super.getConnectionSocket();
+    }
+
+    public MultiplexedStream getStream()
+    {
+        return this.stream;
+    }
+
+    @NonNull
+    @Override
+    public String toString()
+    {
+        return "MultiplexedWifiConnection{" +
+                "connectedPeerAddress=" + getRemoteDeviceAddress() +
+                ", stream=" + this.stream.getId() +
+                ", serviceUUID=" + getServiceDescription() +
+                '}';
+    }
+
+    /**
+     * Closes the stream of the service, the shared socket stays open
+     */
+    @Override
+    public void close()
+    {
+        this.stream.close();
+    }
+}
@@ -13,11 +13,27 @@ import android.net.wifi.WpsInfo;
 import android.net.wifi.p2p.WifiP2pConfig;
 import android.net.wifi.p2p.WifiP2pDevice;
 import android.net.wifi.p2p.WifiP2pManager;
-import android.util.Log;
 
 import androidx.annotation.RequiresPermission;
 
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import willi.boelke.services.serviceConnection.ConnectionExecutor;
+import willi.boelke.services.serviceConnection.wifiDirectServiceConnection.multiplexing.MultiplexedStream;
+import willi.boelke.services.serviceConnection.wifiDirectServiceConnection.multiplexing.StreamMultiplexer;
 import willi.boelke.services.serviceConnection.wifiDirectServiceConnection.tcp.TCPChannelMaker;
+import willi.boelke.services.serviceConnection.wifiDirectServiceConnection.tcp.TcpConnectionConfig;
+import willi.boelke.services.serviceDiscovery.EngineLog;
 import willi.boelke.services.serviceDiscovery.ServiceDescription;
 import willi.boelke.services.serviceDiscovery.wifiDirectServiceDiscovery.WifiDirectServiceDiscovery;
 import willi.boelke.services.serviceDiscovery.wifiDirectServiceDiscovery.WifiServiceDiscoveryListener;
@@ -50,7 +66,7 @@ import willi.boelke.services.serviceDiscovery.wifiDirectServiceDiscovery.WifiSer
  * <p>
  * <h3>Service advertisement </h3>
  * After the engine was started it can advertise and search
- * exactly one service at a time. To register a service for
+ * several services at a time. To register a service for
  * advertisement and search call
  * {@link #registerService(ServiceDescription, WifiDirectPeer)}.
  * <p>
@@ -64,21 +80,33 @@ import willi.boelke.services.serviceDiscovery.wifiDirectServiceDiscovery.WifiSer
  * To use the engine and get notified about established connections, group
  * info (becoming GO or client) it is needed to implement the {@link WifiDirectPeer}
  * interface and pass it when calling the aforementioned methods.
+ * <b>Not all callbacks of the peer are called on the main thread</b>, discovered
+ * services are reported on the engine thread of the discovery engine and
+ * established connections on a connection thread.
  * <p>
  * <h2>Ports</h2>
  * Connections between devices will be established through TCP Sockets.
- * For the purpose of this prototype a fixed port {@link #DEFAULT_PORT} is specified.
- * This will be known to client and server.
- * It would be possible to transfer the port number though the txt record
- * to potential clients, which then can connect without prior
- * knowledge of the port, this should be implemented.
- * For now though it is also possible to set a custom port {@link #setPort(int)}
+ * As soon as a service is registered the engine starts accepting clients
+ * on {@link #DEFAULT_PORT}, or on an ephemeral port chosen by the system
+ * if that port is taken. The port is advertised in the TXT record of every
+ * registered service under {@link #PORT_RECORD_KEY}, so that key cant be used
+ * by the services themselves.
+ * Clients remember the ports of the services they discover and connect to the
+ * port of their group owner, without prior knowledge of it.
+ * A client which joined a group owner it did not discover falls back to
+ * the configured port after {@link #GROUP_OWNER_PORT_TIMEOUT} ms.
+ * Another port can be set through {@link #setPort(int)}.
  * <p>
- * <h2>Limitations</h2>
- * Please note that the {@link WifiDirectConnectionEngine}
- * only support the advertisement and search for one service at a given time.
- * A service / service discovery will only be started when the
- * already running discovery / service has been stopped {@link #stopDiscovery()}
+ * <h2>Multiplexing</h2>
+ * Group owner and client share a single TCP connection, no matter how many
+ * services they have in common. Each service gets its own stream on that connection
+ * (see {@link StreamMultiplexer}), passed to its peer as a {@link MultiplexedWifiConnection}.
+ * When a client discovers another service of its group owner, only a new stream is opened,
+ * without another Wi-Fi Direct connection request.
+ * <p>
+ * <h2>TCP settings</h2>
+ * Timeouts, retries and socket options of the connections can be tuned
+ * through {@link #setTcpConnectionConfig(TcpConnectionConfig)}.
  * <p>
  * <h2>Groups</h2>
  * As specified in by the wifi direct protocol connections between peers
@@ -128,7 +156,35 @@ public class WifiDirectConnectionEngine
      */
     private final String TAG = this.getClass().getSimpleName();
 
-    private final int DEFAULT_PORT = 4242;
+    /**
+     * Key of the TXT record entry advertising the port clients can connect to,
+     * reserved for the engine
+     */
+    public static final String PORT_RECORD_KEY = "sd-port";
+
+    /**
+     * The port the server is bound to, unless another one was set
+     */
+    public static final int DEFAULT_PORT = 4242;
+
+    /**
+     * Binds the server to an ephemeral port
+     */
+    private static final int EPHEMERAL_PORT = 0;
+
+    /**
+     * Time in milliseconds a client waits for the port of its group owner,
+     * before connecting on the configured port
+     */
+    private static final long GROUP_OWNER_PORT_TIMEOUT = 5000;
+
+    /**
+     * Number of attempts of a client to connect to the group owner,
+     * the group owner may not listen yet or may have left the group in the meantime.
+     * With the default retry delays of the {@link TcpConnectionConfig}
+     * the waits between the attempts add up to 14 seconds at most.
+     */
+    private static final int CONNECT_ATTEMPTS = 10;
 
     /**
      * The App Context
@@ -146,10 +202,29 @@ public class WifiDirectConnectionEngine
     private WifiP2pManager manager;
 
     /**
-     * Implemented SdpWifiPeer interface
-     * to callback on events.
+     * The registered services and the peers
+     * to callback on their events.
+     *
+     * @see #registerService(ServiceDescription, WifiDirectPeer)
+     * @see #unregisterService(ServiceDescription)
+     */
+    private final Map<ServiceDescription, WifiDirectPeer> services = new ConcurrentHashMap<>();
+
+    /**
+     * The registered services as advertised, with the port in their TXT record
      */
-    private WifiDirectPeer peer;
+    private final Map<ServiceDescription, ServiceDescription> advertisedServices = new ConcurrentHashMap<>();
+
+    /**
+     * The ports advertised by discovered devices, by device address
+     */
+    private final Map<String, Integer> peerPorts = new ConcurrentHashMap<>();
+
+    /**
+     * Services the local peer decided to connect to,
+     * a stream is opened for each of them once connected to the group owner
+     */
+    private final Set<ServiceDescription> requestedServices = Collections.newSetFromMap(new ConcurrentHashMap<>());
 
     /**
      * BroadcastReceiver to listen to Android System Broadcasts specified in the intentFilter
@@ -167,13 +242,26 @@ public class WifiDirectConnectionEngine
     private WifiDirectServiceDiscovery discoveryEngine;
 
     /**
-     * The service the engine tries to find
-     * at a given times.
+     * The connection to the group owner, while the local peer is a client
+     */
+    private volatile StreamMultiplexer groupOwnerConnection;
+
+    /**
+     * Device address of the group owner, while the local peer is a client
+     */
+    private volatile String groupOwnerAddress;
+
+    /**
+     * IP address of the group owner, while the client did not connect to it yet
      *
-     * @see #registerService(ServiceDescription, WifiDirectPeer)
-     * @see #unregisterService()
+     * @see #connectToGroupOwner(String)
+     */
+    private String pendingGroupOwnerHost;
+
+    /**
+     * The connections to the clients, while the local peer is the group owner
      */
-    private ServiceDescription currentServiceDescription;
+    private final List<StreamMultiplexer> clientConnections = new CopyOnWriteArrayList<>();
 
     /**
      * Determines if the engine was or not
@@ -181,10 +269,15 @@ public class WifiDirectConnectionEngine
      * @see #start(Context, WifiDirectServiceDiscovery)
      * @see #stop()
      */
-    private boolean engineRunning = false;
+    private volatile boolean engineRunning = false;
 
     private int usedPort = DEFAULT_PORT;
 
+    /**
+     * The settings of the TCP connections
+     */
+    private TcpConnectionConfig tcpConfig = defaultTcpConfig();
+
     //
     //  ----------  constructor and initialization ----------
     //
@@ -216,35 +309,35 @@ public class WifiDirectConnectionEngine
     {
         if (isRunning())
         {
-            Log.e(TAG, "start: engine already running");
+            EngineLog.e(TAG, "start: engine already running");
             return true;
         }
 
         WifiManager wifiManager = (WifiManager) context.getApplicationContext().getSystemService(Context.WIFI_SERVICE);
         if (wifiManager == null)
         {
-            Log.e(TAG, "start: Wifi Service not available");
+            EngineLog.e(TAG, "start: Wifi Service not available");
             return false;
         }
         if (!wifiManager.isP2pSupported())
         {
-            Log.e(TAG, "start: Wifi turned off or not available");
+            EngineLog.e(TAG, "start: Wifi turned off or not available");
             return false;
         }
         this.manager = (WifiP2pManager) context.getSystemService(Context.WIFI_P2P_SERVICE);
         if (manager == null)
         {
-            Log.e(TAG, "start:Wifi Service not available");
+            EngineLog.e(TAG, "start:Wifi Service not available");
             return false;
         }
         this.channel = manager.initialize(context, context.getMainLooper(), null);
         if (channel == null)
         {
-            Log.e(TAG, "start: cant init WiFi direct");
+            EngineLog.e(TAG, "start: cant init WiFi direct");
             return false;
         }
 
-        Log.d(TAG, "start: checks passed - starting engine");
+        EngineLog.d(TAG, "start: checks passed - starting engine");
 
         // Initialize manager and channel
         this.context = context.getApplicationContext();
@@ -277,13 +370,14 @@ public class WifiDirectConnectionEngine
     {
         if (engineIsNotRunning())
         {
-            Log.e(TAG, "engine not started - wont stop");
+            EngineLog.e(TAG, "engine not started - wont stop");
             return;
         }
         this.unregisterReceiver();
         this.unregisterService();
         this.discoveryEngine.stop();
         this.disconnectFromGroup();
+        this.connectionListener.stopServer();
         this.discoveryEngine.unregisterDiscoveryListener(serviceDiscoveryListener);
         try
         {
@@ -319,7 +413,7 @@ public class WifiDirectConnectionEngine
         }
         catch (IllegalArgumentException e)
         {
-            Log.d(TAG, "unregisterReceiver: receiver was not registered");
+            EngineLog.d(TAG, "unregisterReceiver: receiver was not registered");
         }
     }
 
@@ -338,55 +432,88 @@ public class WifiDirectConnectionEngine
      * @param serviceClient
      *         Implementation of the SdpWifiPeer interface
      *
-     * @return true if a service discovery could be started, false if another service discovery
-     *         is running already
+     * @return true if a service discovery could be started, false if the service
+     *         is registered already, its TXT record uses the reserved {@link #PORT_RECORD_KEY}
+     *         or no server could be started
      */
     public boolean registerService(ServiceDescription description, WifiDirectPeer serviceClient)
     {
         if (engineIsNotRunning())
         {
-            Log.e(TAG, "registerService: engine not started - wont register servie");
+            EngineLog.e(TAG, "registerService: engine not started - wont register servie");
             return false;
         }
-        if (this.currentServiceDescription != null)
+        if (this.services.containsKey(description))
         {
-            Log.e(TAG, "registerService: a service is already registered");
+            EngineLog.e(TAG, "registerService: the service is already registered");
             return false; // already running
         }
 
-        this.peer = serviceClient;
-        this.currentServiceDescription = description;
+        if (description.getTxtRecord().containsKey(PORT_RECORD_KEY))
+        {
+            EngineLog.e(TAG, "registerService: the TXT record key " + PORT_RECORD_KEY + " is reserved for the engine");
+            return false;
+        }
+        int port = this.connectionListener.startServer();
+        if (port < 0)
+        {
+            EngineLog.e(TAG, "registerService: could not start the server, wont register service");
+            return false;
+        }
+
+        this.services.put(description, serviceClient);
         // Enable connection establishment (again)
         this.connectionListener.establishConnections(true);
-        this.discoveryEngine.startService(description);
+        ServiceDescription advertised = withPortRecord(description, port);
+        this.advertisedServices.put(description, advertised);
+        this.discoveryEngine.startService(advertised);
         this.discoveryEngine.startDiscoveryForService(description);
         return true;
     }
 
     /**
-     * This stops the engine that means other devices cant find the advertised service anymore,
+     * Unregisters all services, see {@link #unregisterService(ServiceDescription)}
+     */
+    public void unregisterService()
+    {
+        for (ServiceDescription description : this.services.keySet())
+        {
+            unregisterService(description);
+        }
+    }
+
+    /**
+     * This stops the service that means other devices cant find the advertised service anymore,
      * the discovery will stop and the discovered service will be unset,
-     * to start the engine again call {@link #registerService(ServiceDescription, WifiDirectPeer)}.
+     * to start the service again call {@link #registerService(ServiceDescription, WifiDirectPeer)}.
      * <p>
      * This however wont cancel existing connections,
      * to leave the current group call {@link #disconnectFromGroup()}.
+     *
+     * @param description
+     *         the service to unregister
      */
-    public void unregisterService()
+    public void unregisterService(ServiceDescription description)
     {
         if (engineIsNotRunning())
         {
-            Log.e(TAG, "unregisterService: engine not started - wont unregister");
+            EngineLog.e(TAG, "unregisterService: engine not started - wont unregister");
             return;
         }
-        if (currentServiceDescription == null)
+        if (this.services.remove(description) == null)
         {
-            return; // service description was already null - means no service was registered
+            return; // the service was not registered
+        }
+        this.requestedServices.remove(description);
+        this.discoveryEngine.stopDiscoveryForService(description);
+        this.discoveryEngine.stopService(advertisedService(description));
+        this.advertisedServices.remove(description);
+        if (this.services.isEmpty())
+        {
+            this.connectionListener.establishConnections(false);
+            // established connections stay open
+            this.connectionListener.stopServer();
         }
-        this.discoveryEngine.stopDiscoveryForService(currentServiceDescription);
-        this.discoveryEngine.stopService(currentServiceDescription);
-        this.currentServiceDescription = null;
-        this.connectionListener.establishConnections(false);
-        this.peer = null;
     }
 
     /**
@@ -400,7 +527,7 @@ public class WifiDirectConnectionEngine
     {
         if (engineIsNotRunning())
         {
-            Log.e(TAG, "unregisterService: engine not started - wont disconnect");
+            EngineLog.e(TAG, "unregisterService: engine not started - wont disconnect");
             return;
         }
         // taken from, replacing my own method
@@ -418,7 +545,7 @@ public class WifiDirectConnectionEngine
                         @Override
                         public void onSuccess()
                         {
-                            Log.d(TAG, "disconnectFromGroup: disconnected successfully");
+                            EngineLog.d(TAG, "disconnectFromGroup: disconnected successfully");
                         }
 
                         @Override
@@ -431,6 +558,8 @@ public class WifiDirectConnectionEngine
             });
         }
 
+        this.closeConnections();
+
         //--- accepting connections again ---//
         this.connectionListener.establishConnections(true);
     }
@@ -449,7 +578,7 @@ public class WifiDirectConnectionEngine
     {
         if (engineIsNotRunning())
         {
-            Log.e(TAG, "startDiscovery: engine not started - wont start");
+            EngineLog.e(TAG, "startDiscovery: engine not started - wont start");
             return;
         }
         this.discoveryEngine.startDiscovery();
@@ -462,7 +591,7 @@ public class WifiDirectConnectionEngine
     {
         if (engineIsNotRunning())
         {
-            Log.e(TAG, "stopDiscovery: engine not started - wont stop");
+            EngineLog.e(TAG, "stopDiscovery: engine not started - wont stop");
             return;
         }
         this.discoveryEngine.stopDiscovery();
@@ -487,20 +616,32 @@ public class WifiDirectConnectionEngine
     private void tryToConnect(WifiP2pDevice device, ServiceDescription description)
     {
 
-        Log.d(TAG, "tryToConnect: received a service - trying to connect");
+        EngineLog.d(TAG, "tryToConnect: received a service - trying to connect");
+        WifiDirectPeer peer = this.services.get(description);
         if (peer == null)
         {
-            Log.e(TAG, "tryToConnect: peer was null, wont send connection request to " + device);
+            EngineLog.e(TAG, "tryToConnect: peer was null, wont send connection request to " + device);
             return;
         }
         peer.onServiceDiscovered(device, description);
+        rememberPort(device, description);
         if (!peer.shouldConnectTo(device, description))
         {
-            Log.d(TAG, "tryToConnect: peer decided not to connect to " + device);
+            EngineLog.d(TAG, () -> "tryToConnect: peer decided not to connect to " + device);
             return;
         }
+        this.requestedServices.add(description);
 
-        Log.d(TAG, "tryToConnect: trying to connect to  " + device);
+        //--- already connected to the group owner, the service gets its own stream ---//
+        StreamMultiplexer groupOwner = this.groupOwnerConnection;
+        if (groupOwner != null && !groupOwner.isClosed() && device.deviceAddress.equals(this.groupOwnerAddress))
+        {
+            EngineLog.d(TAG, () -> "tryToConnect: already connected to " + device + ", opening a stream");
+            openStream(groupOwner, description);
+            return;
+        }
+
+        EngineLog.d(TAG, () -> "tryToConnect: trying to connect to  " + device);
         WifiP2pConfig config = new WifiP2pConfig();
         config.wps.setup = WpsInfo.PBC;
         config.deviceAddress = device.deviceAddress;
@@ -509,7 +650,7 @@ public class WifiDirectConnectionEngine
             @Override
             public void onSuccess()
             {
-                Log.d(TAG, "Successfully send connection request to " + device);
+                EngineLog.d(TAG, () -> "Successfully send connection request to " + device);
             }
 
             @Override
@@ -532,10 +673,10 @@ public class WifiDirectConnectionEngine
      */
     protected void onBecameGroupOwner()
     {
-        Log.d(TAG, "onBecameGroupOwner: became group owner, doing group owner stuff");
-        if (peer != null)
+        EngineLog.d(TAG, "onBecameGroupOwner: became group owner, doing group owner stuff");
+        for (WifiDirectPeer peer : registeredPeers())
         {
-            this.peer.onBecameGroupOwner();
+            peer.onBecameGroupOwner();
         }
     }
 
@@ -546,59 +687,410 @@ public class WifiDirectConnectionEngine
      */
     protected void onBecameClient()
     {
-        if (peer != null)
+        for (WifiDirectPeer peer : registeredPeers())
         {
-            this.peer.onBecameGroupClient();
+            peer.onBecameGroupClient();
         }
-        Log.d(TAG, "onBecameClient: became client to a GO, doing client stuff");
+        EngineLog.d(TAG, "onBecameClient: became client to a GO, doing client stuff");
 
-        this.discoveryEngine.stopService(currentServiceDescription);
+        for (ServiceDescription description : this.services.keySet())
+        {
+            this.discoveryEngine.stopService(advertisedService(description));
+        }
         this.connectionListener.establishConnections(false);
     }
 
+    /**
+     * This will be called by the {@link WifiDirectConnectionInfoListener}
+     * when the local peer became a client. Connects to the group owner
+     * on the port advertised with its services. If no service of the
+     * group owner was discovered yet, the connection is established
+     * as soon as one is. If the port is still unknown after
+     * {@link #GROUP_OWNER_PORT_TIMEOUT} ms the configured port is used.
+     *
+     * @param hostAddress
+     *         the IP address of the group owner
+     */
+    protected void connectToGroupOwner(String hostAddress)
+    {
+        synchronized (this)
+        {
+            this.pendingGroupOwnerHost = hostAddress;
+        }
+        ConnectionExecutor.getInstance().schedule(() -> connectOnFallbackPort(hostAddress), GROUP_OWNER_PORT_TIMEOUT);
+        //--- the device address of the group owner is needed to look up its port ---//
+        this.manager.requestGroupInfo(this.channel, group ->
+        {
+            if (group == null || group.getOwner() == null)
+            {
+                EngineLog.e(TAG, "connectToGroupOwner: no group info available");
+                return;
+            }
+            this.groupOwnerAddress = group.getOwner().deviceAddress;
+            startGroupOwnerConnection();
+        });
+    }
+
+    /**
+     * Starts connecting to the group owner, once its IP address,
+     * device address and port are known
+     */
+    private synchronized void startGroupOwnerConnection()
+    {
+        String host = this.pendingGroupOwnerHost;
+        String owner = this.groupOwnerAddress;
+        if (host == null || owner == null)
+        {
+            return;
+        }
+        Integer port = this.peerPorts.get(owner);
+        if (port == null)
+        {
+            EngineLog.d(TAG, () -> "startGroupOwnerConnection: port of " + owner + " not known yet, waiting for its services");
+            return;
+        }
+        this.pendingGroupOwnerHost = null;
+        EngineLog.d(TAG, () -> "startGroupOwnerConnection: connecting to " + host + ":" + port);
+        onSocketConnectionStarted(TCPChannelMaker.getTCPClientCreator(host, port, this.tcpConfig));
+    }
+
+    /**
+     * Connects to the group owner on the configured port, in case its port
+     * is still unknown. That happens when the group owner invited the local peer,
+     * without the local peer discovering any of its services.
+     *
+     * @param host
+     *         the IP address of the group owner
+     */
+    private synchronized void connectOnFallbackPort(String host)
+    {
+        if (!host.equals(this.pendingGroupOwnerHost))
+        {
+            // connected already, or left the group
+            return;
+        }
+        this.pendingGroupOwnerHost = null;
+        int port = this.usedPort != EPHEMERAL_PORT ? this.usedPort : DEFAULT_PORT;
+        EngineLog.d(TAG, () -> "connectOnFallbackPort: port of the group owner unknown, connecting to " + host + ":" + port);
+        onSocketConnectionStarted(TCPChannelMaker.getTCPClientCreator(host, port, this.tcpConfig));
+    }
+
+    /**
+     * Notifies the peer registered for the service of the connection
+     *
+     * @param connection
+     *         the connection to a service
+     */
     protected void onSocketConnected(WifiConnection connection)
     {
-        Log.d(TAG, "onSocketConnected: Connection established " + connection);
+        EngineLog.d(TAG, () -> "onSocketConnected: Connection established " + connection);
+        WifiDirectPeer peer = this.services.get(connection.getServiceDescription());
         if (peer != null)
         {
-            Log.d(TAG, "onSocketConnected: connection was successfully established, notify peer");
+            EngineLog.d(TAG, "onSocketConnected: connection was successfully established, notify peer");
             peer.onConnectionEstablished(connection);
         }
         else
         {
-            Log.e(TAG, "onSocketConnected: no peer registered, closing connection");
+            EngineLog.e(TAG, "onSocketConnected: no peer registered, closing connection");
             connection.close();
         }
     }
 
     /**
-     * Starts a thread to wait for socket connection being established
+     * This will be called by the {@link WifiDirectConnectionInfoListener}
+     * for every client the group owner accepted
+     *
+     * @param socket
+     *         the socket connected to the client
+     */
+    protected void onClientAccepted(Socket socket)
+    {
+        StreamMultiplexer client = startMultiplexer(socket, false);
+        if (client != null)
+        {
+            this.clientConnections.add(client);
+        }
+    }
+
+    /**
+     * This will be called by the {@link AsyncSdpWifiConnectionCreator}
+     * once the client connected to the group owner,
+     * opens a stream for every requested service
+     *
+     * @param socket
+     *         the socket connected to the group owner
+     */
+    protected void onGroupOwnerConnected(Socket socket)
+    {
+        StreamMultiplexer groupOwner = startMultiplexer(socket, true);
+        if (groupOwner == null)
+        {
+            return;
+        }
+        StreamMultiplexer previous = this.groupOwnerConnection;
+        this.groupOwnerConnection = groupOwner;
+        if (previous != null)
+        {
+            previous.close();
+        }
+        for (ServiceDescription description : this.requestedServices)
+        {
+            if (this.services.containsKey(description))
+            {
+                openStream(groupOwner, description);
+            }
+        }
+    }
+
+    /**
+     * Waits on the shared {@link ConnectionExecutor} for the socket connection being established
      * and then calls {@link #onSocketConnected(WifiConnection)}
      *
      * @param channelCreator
      */
     protected void onSocketConnectionStarted(TCPChannelMaker channelCreator)
     {
-        Log.d(TAG, "onSocketConnectionStarted: test");
-        Log.d(TAG, "onSocketConnectionStarted: test" + channelCreator + ", " + this +", " + this.currentServiceDescription );
-        AsyncSdpWifiConnectionCreator awaitThread = new AsyncSdpWifiConnectionCreator(channelCreator, this, this.currentServiceDescription);
-        awaitThread.start();
+        EngineLog.d(TAG, () -> "onSocketConnectionStarted: waiting for " + channelCreator);
+        AsyncSdpWifiConnectionCreator awaitTask = new AsyncSdpWifiConnectionCreator(channelCreator, this);
+        ConnectionExecutor.getInstance().execute(awaitTask);
     }
 
     //
-    //  ----------  misc ----------
+    //  ----------  multiplexing ----------
+    //
+
+    private StreamMultiplexer startMultiplexer(Socket socket, boolean initiator)
+    {
+        try
+        {
+            StreamMultiplexer multiplexer = new StreamMultiplexer(socket, initiator, multiplexerListener);
+            multiplexer.start();
+            EngineLog.d(TAG, () -> "startMultiplexer: connected to " + socket.getRemoteSocketAddress());
+            return multiplexer;
+        }
+        catch (IOException e)
+        {
+            EngineLog.e(TAG, "startMultiplexer: could not use socket, closing it", e);
+            try
+            {
+                socket.close();
+            }
+            catch (IOException ioException)
+            {
+                // nothing to do here
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Opens a stream for the service, unless one is open already
+     */
+    private void openStream(StreamMultiplexer multiplexer, ServiceDescription description)
+    {
+        if (multiplexer.hasOpenStream(description.getServiceUuid()))
+        {
+            EngineLog.d(TAG, () -> "openStream: already connected to " + description);
+            return;
+        }
+        try
+        {
+            MultiplexedStream stream = multiplexer.openStream(description.getServiceUuid());
+            onSocketConnected(new MultiplexedWifiConnection(stream, description));
+        }
+        catch (IOException e)
+        {
+            EngineLog.e(TAG, "openStream: could not open stream for " + description, e);
+        }
+    }
+
+    private final StreamMultiplexer.Listener multiplexerListener = new StreamMultiplexer.Listener()
+    {
+        @Override
+        public void onStreamOpened(MultiplexedStream stream)
+        {
+            ServiceDescription description = findService(stream.getServiceUuid());
+            if (description == null)
+            {
+                EngineLog.e(TAG, "onStreamOpened: no service registered for " + stream.getServiceUuid());
+                stream.reset();
+                return;
+            }
+            onSocketConnected(new MultiplexedWifiConnection(stream, description));
+        }
+
+        @Override
+        public void onClosed(StreamMultiplexer multiplexer)
+        {
+            EngineLog.d(TAG, () -> "onClosed: connection to " + multiplexer.getSocket().getRemoteSocketAddress() + " closed");
+            clientConnections.remove(multiplexer);
+            if (groupOwnerConnection == multiplexer)
+            {
+                groupOwnerConnection = null;
+            }
+        }
+    };
+
+    private ServiceDescription findService(UUID serviceUuid)
+    {
+        for (ServiceDescription description : this.services.keySet())
+        {
+            if (description.getServiceUuid().equals(serviceUuid))
+            {
+                return description;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the registered peers, each once, even if registered for several services
+     */
+    private Set<WifiDirectPeer> registeredPeers()
+    {
+        return new LinkedHashSet<>(this.services.values());
+    }
+
+    private void closeConnections()
+    {
+        StreamMultiplexer groupOwner = this.groupOwnerConnection;
+        this.groupOwnerConnection = null;
+        this.groupOwnerAddress = null;
+        synchronized (this)
+        {
+            this.pendingGroupOwnerHost = null;
+        }
+        if (groupOwner != null)
+        {
+            groupOwner.close();
+        }
+        for (StreamMultiplexer client : this.clientConnections)
+        {
+            client.close();
+        }
+        this.clientConnections.clear();
+    }
+
+    //
+    //  ----------  ports ----------
     //
 
+    /**
+     * @return a copy of the description, advertising the port in its TXT record,
+     *         the description itself if no server is running
+     */
+    private static ServiceDescription withPortRecord(ServiceDescription description, int port)
+    {
+        if (port <= 0)
+        {
+            return description;
+        }
+        Map<String, String> txtRecord = new HashMap<>(description.getTxtRecord());
+        txtRecord.put(PORT_RECORD_KEY, String.valueOf(port));
+        return new ServiceDescription.Builder(description)
+                .setTxtRecord(txtRecord)
+                .build();
+    }
+
+    /**
+     * @return the registered service as it is advertised
+     */
+    private ServiceDescription advertisedService(ServiceDescription description)
+    {
+        ServiceDescription advertised = this.advertisedServices.get(description);
+        return advertised != null ? advertised : description;
+    }
+
+    /**
+     * Remembers the port advertised with a discovered service,
+     * connects to the group owner if it was waiting for it
+     */
+    private void rememberPort(WifiP2pDevice device, ServiceDescription description)
+    {
+        String record = description.getTxtRecord().get(PORT_RECORD_KEY);
+        if (record == null)
+        {
+            return;
+        }
+        int port;
+        try
+        {
+            port = Integer.parseInt(record);
+        }
+        catch (NumberFormatException e)
+        {
+            EngineLog.e(TAG, "rememberPort: invalid port record " + record + " of " + device);
+            return;
+        }
+        if (port < 1 || port > 0xFFFF)
+        {
+            EngineLog.e(TAG, "rememberPort: invalid port " + port + " of " + device);
+            return;
+        }
+        this.peerPorts.put(device.deviceAddress, port);
+        if (device.deviceAddress.equals(this.groupOwnerAddress))
+        {
+            startGroupOwnerConnection();
+        }
+    }
+
+    /**
+     * @return the port the server should be bound to, 0 for an ephemeral port
+     */
     protected int getPort()
     {
         return this.usedPort;
     }
 
+    /**
+     * Sets the port for the server, instead of {@link #DEFAULT_PORT}.
+     * If the port is taken the server falls back to an ephemeral one.
+     * Clients use it to connect to a group owner whose port they dont know.
+     * Only applies when the server is started the next time.
+     *
+     * @param port
+     *         the port, 0 for an ephemeral port
+     *
+     * @throws IllegalArgumentException
+     *         if the port is out of range
+     */
     public void setPort(int port)
     {
+        if (port < 0 || port > 0xFFFF)
+        {
+            throw new IllegalArgumentException("port out of range: " + port);
+        }
         this.usedPort = port;
     }
 
+    //
+    //  ----------  misc ----------
+    //
+
+    private static TcpConnectionConfig defaultTcpConfig()
+    {
+        TcpConnectionConfig config = new TcpConnectionConfig();
+        config.setMaxConnectAttempts(CONNECT_ATTEMPTS);
+        return config;
+    }
+
+    protected TcpConnectionConfig getTcpConnectionConfig()
+    {
+        return this.tcpConfig;
+    }
+
+    /**
+     * Sets the settings of TCP connections established from now on
+     *
+     * @param config
+     *         the settings, copied
+     */
+    public void setTcpConnectionConfig(TcpConnectionConfig config)
+    {
+        this.tcpConfig = new TcpConnectionConfig(config);
+    }
+
     public boolean isRunning()
     {
         return this.engineRunning;
@@ -630,6 +1122,6 @@ public class WifiDirectConnectionEngine
                 reason = "unexpected error";
         }
 
-        Log.e(tag, msg + " reason : " + reason);
+        EngineLog.e(tag, msg + " reason : " + reason);
     }
 }
@@ -2,9 +2,13 @@ package willi.boelke.services.serviceConnection.wifiDirectServiceConnection;
 
 import android.net.wifi.p2p.WifiP2pInfo;
 import android.net.wifi.p2p.WifiP2pManager;
-import android.util.Log;
 
-import willi.boelke.services.serviceConnection.wifiDirectServiceConnection.tcp.TCPChannelMaker;
+import java.io.IOException;
+import java.net.Socket;
+
+import willi.boelke.services.serviceConnection.wifiDirectServiceConnection.tcp.TCPSelectorServer;
+import willi.boelke.services.serviceConnection.wifiDirectServiceConnection.tcp.TCPServerListener;
+import willi.boelke.services.serviceDiscovery.EngineLog;
 
 /**
  *
@@ -21,7 +25,10 @@ class WifiDirectConnectionInfoListener implements WifiP2pManager.ConnectionInfoL
 
     private final WifiDirectConnectionEngine wifiDirectConnectionEngine;
 
-    private TCPChannelMaker serverChannelCreator = null;
+    /**
+     * Accepts the clients of the group while the local peer is the group owner
+     */
+    private TCPSelectorServer server = null;
 
     private boolean establishConnection;
 
@@ -56,44 +63,113 @@ class WifiDirectConnectionInfoListener implements WifiP2pManager.ConnectionInfoL
         // i could not ind anything so far.
         //----------------------------------
 
-        Log.d(TAG, "onConnectionInfoAvailable: received connection info");
-        Log.d(TAG, "onConnectionInfoAvailable: " + info);
+        EngineLog.d(TAG, "onConnectionInfoAvailable: received connection info");
+        EngineLog.d(TAG, () -> "onConnectionInfoAvailable: " + info);
 
         if (!establishConnection)
         {
-            Log.e(TAG, "onConnectionInfoAvailable: should not establish connections");
+            EngineLog.e(TAG, "onConnectionInfoAvailable: should not establish connections");
             return;
         }
-        TCPChannelMaker.max_connection_loops = 10;
-        TCPChannelMaker channelCreator = null;
         if (info.isGroupOwner)
         {
-            //--- creating server channel - just once as group owner ---//
+            //--- the server usually runs since a service was registered ---//
+            // clients are handed to the engine as soon as they are accepted
+            startServer();
+            wifiDirectConnectionEngine.onBecameGroupOwner();
+        }
+        else
+        {
+            String hostAddress = info.groupOwnerAddress.getHostAddress();
+            EngineLog.d(TAG, () -> "onConnectionInfoAvailable: local peer client, group owner = " + hostAddress);
+            wifiDirectConnectionEngine.onBecameClient();
+            // the port is taken from the TXT record of the group owners services
+            wifiDirectConnectionEngine.connectToGroupOwner(hostAddress);
+        }
+    }
 
-            if (this.serverChannelCreator == null)
+    //
+    //  ----------  server ----------
+    //
+
+    /**
+     * Starts accepting clients, unless the server is running already.
+     * The server is bound to the port of the engine, or to an ephemeral one
+     * if that port is taken.
+     *
+     * @return the port the server accepts clients on, -1 if it could not be started
+     */
+    protected synchronized int startServer()
+    {
+        if (this.server != null && this.server.isRunning())
+        {
+            EngineLog.d(TAG, "startServer: server already running");
+            return this.server.getPort();
+        }
+        int port = wifiDirectConnectionEngine.getPort();
+        try
+        {
+            EngineLog.d(TAG, "startServer: starting server");
+            this.server = openServer(port);
+            return this.server.getPort();
+        }
+        catch (IOException e)
+        {
+            EngineLog.e(TAG, "startServer: could not open server socket on port " + port, e);
+        }
+        if (port != 0)
+        {
+            try
             {
-                Log.d(TAG, "onConnectionInfoAvailable: start server channel");
-                this.serverChannelCreator = TCPChannelMaker.getTCPServerCreator(wifiDirectConnectionEngine.getPort(), true);
+                // the port is taken, the advertised port tells clients where to connect
+                this.server = openServer(0);
+                return this.server.getPort();
             }
-            else
+            catch (IOException e)
             {
-                Log.d(TAG, "onConnectionInfoAvailable: Server channel already exists");
+                EngineLog.e(TAG, "startServer: could not open server socket on an ephemeral port", e);
             }
-            channelCreator = this.serverChannelCreator;
-            wifiDirectConnectionEngine.onBecameGroupOwner();
         }
-        else
-        {
+        this.server = null;
+        return -1;
+    }
 
-            String hostAddress = info.groupOwnerAddress.getHostAddress();
-            Log.d(TAG, "onConnectionInfoAvailable: local peer client, group owner = " + hostAddress);
-            channelCreator = TCPChannelMaker.getTCPClientCreator(hostAddress, wifiDirectConnectionEngine.getPort());
-            wifiDirectConnectionEngine.onBecameClient();
+    private TCPSelectorServer openServer(int port) throws IOException
+    {
+        TCPSelectorServer newServer = new TCPSelectorServer(port, serverListener,
+                wifiDirectConnectionEngine.getTcpConnectionConfig());
+        newServer.start();
+        return newServer;
+    }
+
+    /**
+     * Stops accepting clients, established connections stay open
+     */
+    protected synchronized void stopServer()
+    {
+        if (this.server != null)
+        {
+            EngineLog.d(TAG, "stopServer: stopping server");
+            this.server.close();
+            this.server = null;
         }
-        Log.e(TAG, "onConnectionInfoAvailable: channel creator is null = " + (channelCreator == null));
-        this.wifiDirectConnectionEngine.onSocketConnectionStarted(channelCreator);
     }
 
+    private final TCPServerListener serverListener = new TCPServerListener()
+    {
+        @Override
+        public void onClientAccepted(Socket socket)
+        {
+            wifiDirectConnectionEngine.onClientAccepted(socket);
+        }
+
+        @Override
+        public void onServerClosed()
+        {
+            EngineLog.d(TAG, "onServerClosed: server stopped accepting clients");
+        }
+    };
+
     /**
      * This can be used to prevent the listener from establish connections as soon as
      * the are received.
@@ -105,7 +181,7 @@ class WifiDirectConnectionInfoListener implements WifiP2pManager.ConnectionInfoL
      */
     protected void establishConnections(boolean shouldEstablish)
     {
-        Log.e(TAG, "establishConnections: SHOULD CONNECT = " + shouldEstablish);
+        EngineLog.e(TAG, "establishConnections: SHOULD CONNECT = " + shouldEstablish);
         this.establishConnection = shouldEstablish;
     }
 }
@@ -5,7 +5,8 @@ import android.content.Context;
 import android.content.Intent;
 import android.net.NetworkInfo;
 import android.net.wifi.p2p.WifiP2pManager;
-import android.util.Log;
+
+import willi.boelke.services.serviceDiscovery.EngineLog;
 
 /**
  * This BroadcastReceiver listens on changes in the Wifi Direct State
@@ -38,11 +39,11 @@ class WifiDirectStateChangeReceiver extends BroadcastReceiver
             int state = intent.getIntExtra(WifiP2pManager.EXTRA_WIFI_STATE, -1);
             if (state == WifiP2pManager.WIFI_P2P_STATE_ENABLED)
             {
-                Log.d(TAG, "Wifi direct was enabled");
+                EngineLog.d(TAG, "Wifi direct was enabled");
             }
             else
             {
-                Log.d(TAG, "Wifi direct was disabled");
+                EngineLog.d(TAG, "Wifi direct was disabled");
             }
         }
         else if (WifiP2pManager.WIFI_P2P_CONNECTION_CHANGED_ACTION.equals(action))
@@ -60,7 +61,7 @@ class WifiDirectStateChangeReceiver extends BroadcastReceiver
                 // NOTE : this is also true when several devices are connected to one group owner
                 // and one of the leaves. i cant find any way to distinguish the two events
                 //----------------------------------
-                Log.e(TAG, "onReceive: connection changed, connected to peer ");
+                EngineLog.e(TAG, "onReceive: connection changed, connected to peer ");
                 manager.requestConnectionInfo(channel, connectionInfoListener);
             }
         }
@@ -0,0 +1,448 @@
+package willi.boelke.services.serviceConnection.wifiDirectServiceConnection.multiplexing;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.UUID;
+
+import willi.boelke.services.serviceConnection.BufferPool;
+import willi.boelke.services.serviceConnection.FrameCodec;
+import willi.boelke.services.serviceConnection.PooledBuffer;
+import willi.boelke.services.serviceDiscovery.EngineLog;
+
+/**
+ * A stream of a single service carried by a {@link StreamMultiplexer}.
+ * <p>
+ * It provides an input and an output stream, like a socket.
+ * Received data is kept in a buffer of {@link StreamMultiplexer#INITIAL_WINDOW}
+ * bytes from the {@link BufferPool} until it is read. Writing blocks while
+ * the other side did not read what was sent before, see the flow control
+ * described in {@link StreamMultiplexer}.
+ * <p>
+ * Closing the stream ends it on both sides, reading on the other side
+ * returns the remaining data and then the end of the stream.
+ * The stream needs to be closed to return its buffer to the pool.
+ *
+ * @author WilliBoelke
+ */
+public final class MultiplexedStream
+{
+    //
+    //  ----------  static members ----------
+    //
+
+    private static final int WINDOW = StreamMultiplexer.INITIAL_WINDOW;
+
+    /**
+     * Credit is returned once this many bytes were read
+     */
+    private static final int WINDOW_UPDATE_THRESHOLD = WINDOW / 2;
+
+    //
+    //  ----------  instance variables ----------
+    //
+
+    /**
+     * Classname for logging
+     */
+    private final String TAG = this.getClass().getSimpleName();
+
+    private final StreamMultiplexer multiplexer;
+
+    private final int id;
+
+    private final UUID serviceUuid;
+
+    private final boolean locallyOpened;
+
+    private final Object lock = new Object();
+
+    /**
+     * Ring buffer of received data, null once closed
+     */
+    private PooledBuffer receiveBuffer;
+
+    private int readPosition = 0;
+
+    private int available = 0;
+
+    /**
+     * Bytes read, but not returned as credit yet
+     */
+    private int consumed = 0;
+
+    private int sendWindow = WINDOW;
+
+    private boolean localClosed = false;
+
+    private boolean remoteClosed = false;
+
+    private boolean reset = false;
+
+    private final InputStream input = new StreamInput();
+
+    private final OutputStream output = new StreamOutput();
+
+    //
+    //  ----------  constructor and initialisation ----------
+    //
+
+    MultiplexedStream(StreamMultiplexer multiplexer, int id, UUID serviceUuid, boolean locallyOpened)
+    {
+        this.multiplexer = multiplexer;
+        this.id = id;
+        this.serviceUuid = serviceUuid;
+        this.locallyOpened = locallyOpened;
+        this.receiveBuffer = BufferPool.getInstance().acquire(WINDOW);
+    }
+
+    //
+    //  ----------  events from the multiplexer ----------
+    //
+
+    /**
+     * Reads a data frame into the receive buffer
+     *
+     * @return false if the data exceeds the window, nothing was read then
+     */
+    boolean onData(InputStream in, int length) throws IOException
+    {
+        synchronized (this.lock)
+        {
+            if (this.receiveBuffer == null)
+            {
+                // closed in the meantime
+                StreamMultiplexer.skipFully(in, length);
+                return true;
+            }
+            if (length > WINDOW - this.available)
+            {
+                return false;
+            }
+            byte[] ring = this.receiveBuffer.array();
+            int writePosition = (this.readPosition + this.available) % WINDOW;
+            int first = Math.min(length, WINDOW - writePosition);
+            FrameCodec.readFully(in, ring, writePosition, first);
+            FrameCodec.readFully(in, ring, 0, length - first);
+            this.available += length;
+            this.lock.notifyAll();
+            return true;
+        }
+    }
+
+    void onWindowUpdate(int credit)
+    {
+        synchronized (this.lock)
+        {
+            this.sendWindow = (int) Math.min((long) this.sendWindow + credit, Integer.MAX_VALUE);
+            this.lock.notifyAll();
+        }
+    }
+
+    void onRemoteClose()
+    {
+        synchronized (this.lock)
+        {
+            this.remoteClosed = true;
+            this.lock.notifyAll();
+        }
+    }
+
+    void onReset()
+    {
+        synchronized (this.lock)
+        {
+            this.reset = true;
+            this.lock.notifyAll();
+        }
+    }
+
+    /**
+     * The multiplexer was closed
+     */
+    void onTerminated()
+    {
+        onRemoteClose();
+    }
+
+    //
+    //  ----------  reading and writing ----------
+    //
+
+    private int read(byte[] destination, int offset, int length) throws IOException
+    {
+        if (length == 0)
+        {
+            return 0;
+        }
+        int credit = 0;
+        int count;
+        synchronized (this.lock)
+        {
+            while (this.available == 0 && !this.remoteClosed && !this.reset && !this.localClosed)
+            {
+                awaitChange();
+            }
+            if (this.localClosed)
+            {
+                throw new IOException("stream closed");
+            }
+            if (this.available == 0)
+            {
+                if (this.reset)
+                {
+                    throw new IOException("stream reset by the remote side");
+                }
+                return -1;
+            }
+            count = Math.min(length, this.available);
+            byte[] ring = this.receiveBuffer.array();
+            int first = Math.min(count, WINDOW - this.readPosition);
+            System.arraycopy(ring, this.readPosition, destination, offset, first);
+            System.arraycopy(ring, 0, destination, offset + first, count - first);
+            this.readPosition = (this.readPosition + count) % WINDOW;
+            this.available -= count;
+            this.consumed += count;
+            if (this.consumed >= WINDOW_UPDATE_THRESHOLD && !this.remoteClosed && !this.reset)
+            {
+                credit = this.consumed;
+                this.consumed = 0;
+            }
+        }
+        if (credit > 0)
+        {
+            try
+            {
+                this.multiplexer.sendWindowUpdate(this.id, credit);
+            }
+            catch (IOException e)
+            {
+                // the multiplexer closed, the next read returns the end of the stream
+                EngineLog.d(TAG, "read: could not return credit, multiplexer closed");
+            }
+        }
+        return count;
+    }
+
+    private void write(byte[] source, int offset, int length) throws IOException
+    {
+        while (length > 0)
+        {
+            int count;
+            synchronized (this.lock)
+            {
+                while (this.sendWindow == 0 && !this.localClosed && !this.remoteClosed && !this.reset)
+                {
+                    awaitChange();
+                }
+                if (this.localClosed)
+                {
+                    throw new IOException("stream closed");
+                }
+                if (this.remoteClosed || this.reset)
+                {
+                    throw new IOException("stream closed by the remote side");
+                }
+                count = Math.min(Math.min(length, this.sendWindow), StreamMultiplexer.MAX_FRAME_PAYLOAD);
+                this.sendWindow -= count;
+            }
+            this.multiplexer.sendData(this.id, source, offset, count);
+            offset += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * Waits for a change of the stream, call while holding the lock
+     */
+    private void awaitChange() throws InterruptedIOException
+    {
+        try
+        {
+            this.lock.wait();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting on stream " + this.id);
+        }
+    }
+
+    //
+    //  ----------  close ----------
+    //
+
+    /**
+     * Closes the stream on both sides and returns its buffer to the pool.
+     * Unread data is dropped.
+     */
+    public void close()
+    {
+        end(StreamMultiplexer.FRAME_CLOSE);
+    }
+
+    /**
+     * Aborts the stream, reading on the other side fails
+     */
+    public void reset()
+    {
+        end(StreamMultiplexer.FRAME_RESET);
+    }
+
+    private void end(int frameType)
+    {
+        boolean notifyRemote;
+        synchronized (this.lock)
+        {
+            if (this.localClosed)
+            {
+                return;
+            }
+            this.localClosed = true;
+            notifyRemote = !this.remoteClosed && !this.reset;
+            this.receiveBuffer.release();
+            this.receiveBuffer = null;
+            this.available = 0;
+            this.lock.notifyAll();
+        }
+        this.multiplexer.removeStream(this.id, this);
+        if (!notifyRemote)
+        {
+            return;
+        }
+        try
+        {
+            if (frameType == StreamMultiplexer.FRAME_RESET)
+            {
+                this.multiplexer.sendReset(this.id);
+            }
+            else
+            {
+                this.multiplexer.sendClose(this.id);
+            }
+        }
+        catch (IOException e)
+        {
+            EngineLog.d(TAG, "end: multiplexer already closed");
+        }
+    }
+
+    /**
+     * @return true if the stream was closed locally, or by the other side
+     *         and all received data was read
+     */
+    public boolean isClosed()
+    {
+        synchronized (this.lock)
+        {
+            return this.localClosed || ((this.remoteClosed || this.reset) && this.available == 0);
+        }
+    }
+
+    //
+    //  ----------  getter ----------
+    //
+
+    public InputStream getInputStream()
+    {
+        return this.input;
+    }
+
+    public OutputStream getOutputStream()
+    {
+        return this.output;
+    }
+
+    public int getId()
+    {
+        return this.id;
+    }
+
+    public UUID getServiceUuid()
+    {
+        return this.serviceUuid;
+    }
+
+    /**
+     * @return true if the stream was opened by the local side
+     */
+    public boolean isLocallyOpened()
+    {
+        return this.locallyOpened;
+    }
+
+    public StreamMultiplexer getMultiplexer()
+    {
+        return this.multiplexer;
+    }
+
+    //
+    //  ----------  streams ----------
+    //
+
+    private class StreamInput extends InputStream
+    {
+        private final byte[] single = new byte[1];
+
+        @Override
+        public int read() throws IOException
+        {
+            int count = MultiplexedStream.this.read(this.single, 0, 1);
+            return count == -1 ? -1 : this.single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (off < 0 || len < 0 || len > b.length - off)
+            {
+                throw new IndexOutOfBoundsException();
+            }
+            return MultiplexedStream.this.read(b, off, len);
+        }
+
+        @Override
+        public int available()
+        {
+            synchronized (lock)
+            {
+                return MultiplexedStream.this.available;
+            }
+        }
+
+        @Override
+        public void close()
+        {
+            MultiplexedStream.this.close();
+        }
+    }
+
+    private class StreamOutput extends OutputStream
+    {
+        private final byte[] single = new byte[1];
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            this.single[0] = (byte) b;
+            MultiplexedStream.this.write(this.single, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            if (off < 0 || len < 0 || len > b.length - off)
+            {
+                throw new IndexOutOfBoundsException();
+            }
+            MultiplexedStream.this.write(b, off, len);
+        }
+
+        @Override
+        public void close()
+        {
+            MultiplexedStream.this.close();
+        }
+    }
+}
@@ -0,0 +1,533 @@
+package willi.boelke.services.serviceConnection.wifiDirectServiceConnection.multiplexing;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.net.Socket;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import willi.boelke.services.serviceConnection.BufferPool;
+import willi.boelke.services.serviceConnection.ConnectionExecutor;
+import willi.boelke.services.serviceConnection.FrameCodec;
+import willi.boelke.services.serviceConnection.PooledBuffer;
+import willi.boelke.services.serviceDiscovery.EngineLog;
+
+/**
+ * Carries any number of {@link MultiplexedStream}s over a single socket.
+ * <p>
+ * <h2>Why</h2>
+ * Forming a Wi-Fi Direct group is by far the slowest step of connecting two devices.
+ * With one socket per service every further service would need its own connection.
+ * Multiplexing lets all services of two devices share the one TCP connection
+ * between them, a new service only costs a single frame.
+ * <p>
+ * <h2>Frames</h2>
+ * Every frame starts with its type (one byte) and the id of its stream (varint, see {@link FrameCodec}):
+ * <pre>
+ *     OPEN          | type | stream id | service UUID (16 bytes) |
+ *     DATA          | type | stream id | length (varint) | data (length bytes) |
+ *     WINDOW_UPDATE | type | stream id | credit (varint) |
+ *     CLOSE         | type | stream id |
+ *     RESET         | type | stream id |
+ * </pre>
+ * A stream is opened by sending an OPEN frame with the UUID of the service it belongs to,
+ * the other side is notified through {@link Listener#onStreamOpened(MultiplexedStream)}.
+ * CLOSE ends a stream regularly, RESET aborts it, for example if the service is not known.
+ * The side which initiated the socket connection uses odd stream ids, the accepting side even ones,
+ * so both can open streams without coordination.
+ * <p>
+ * <h2>Flow control</h2>
+ * Each side may send at most {@link #INITIAL_WINDOW} bytes on a stream which were not
+ * read by the other side yet. The reader returns credit through WINDOW_UPDATE frames
+ * once half of the window was read. So a stream which is not read blocks its writer,
+ * but not the other streams sharing the socket.
+ * <p>
+ * <h2>Usage</h2>
+ * Both sides of a socket create a multiplexer, one as initiator, and {@link #start()} it.
+ * Streams are opened through {@link #openStream(UUID)}. Closing the multiplexer
+ * closes the socket and all its streams.
+ * <p>
+ * Frames are read by a thread of the multiplexer, the listener is
+ * notified on the shared {@link ConnectionExecutor}.
+ *
+ * @author WilliBoelke
+ */
+public class StreamMultiplexer
+{
+    //
+    //  ----------  static members ----------
+    //
+
+    /**
+     * Number of bytes which may be sent on a stream before the reader returned credit
+     */
+    public static final int INITIAL_WINDOW = 64 * 1024;
+
+    /**
+     * Maximum number of data bytes in a single frame, so large writes
+     * on one stream do not hold back the others for long
+     */
+    public static final int MAX_FRAME_PAYLOAD = 16 * 1024;
+
+    static final int FRAME_OPEN = 1;
+    static final int FRAME_DATA = 2;
+    static final int FRAME_WINDOW_UPDATE = 3;
+    static final int FRAME_CLOSE = 4;
+    static final int FRAME_RESET = 5;
+
+    /**
+     * Type, stream id, and a UUID or a length
+     */
+    private static final int MAX_HEADER_LENGTH = 1 + FrameCodec.MAX_VARINT_BYTES + 16;
+
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+
+    //
+    //  ----------  instance variables ----------
+    //
+
+    /**
+     * Classname for logging
+     */
+    private final String TAG = this.getClass().getSimpleName();
+
+    private final Socket socket;
+
+    private final boolean initiator;
+
+    private final Listener listener;
+
+    private final DataInputStream in;
+
+    private final OutputStream out;
+
+    private final ConcurrentHashMap<Integer, MultiplexedStream> streams = new ConcurrentHashMap<>();
+
+    private final AtomicInteger nextStreamId;
+
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    private final Object writeLock = new Object();
+
+    private final BufferPool pool = BufferPool.getInstance();
+
+    private final Thread reader;
+
+    //
+    //  ----------  constructor and initialisation ----------
+    //
+
+    /**
+     * Constructor
+     *
+     * @param socket
+     *         the connected socket to carry the streams
+     * @param initiator
+     *         true on the side which initiated the socket connection, false on the accepting side
+     * @param listener
+     *         gets notified about streams opened by the other side
+     *
+     * @throws IOException
+     *         if the streams of the socket cant be obtained
+     */
+    public StreamMultiplexer(Socket socket, boolean initiator, Listener listener) throws IOException
+    {
+        this.socket = socket;
+        this.initiator = initiator;
+        this.listener = listener;
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), READ_BUFFER_SIZE));
+        this.out = socket.getOutputStream();
+        this.nextStreamId = new AtomicInteger(initiator ? 1 : 2);
+        this.reader = new Thread(this::readFrames, "stream-multiplexer-" + socket.getRemoteSocketAddress());
+    }
+
+    /**
+     * Starts reading frames
+     */
+    public void start()
+    {
+        this.reader.start();
+    }
+
+    //
+    //  ----------  streams ----------
+    //
+
+    /**
+     * Opens a new stream
+     *
+     * @param serviceUuid
+     *         the UUID of the service the stream belongs to
+     *
+     * @return the stream
+     *
+     * @throws IOException
+     *         if the multiplexer was closed or sending failed
+     */
+    public MultiplexedStream openStream(UUID serviceUuid) throws IOException
+    {
+        if (isClosed())
+        {
+            throw new IOException("multiplexer closed");
+        }
+        int id = this.nextStreamId.getAndAdd(2);
+        MultiplexedStream stream = new MultiplexedStream(this, id, serviceUuid, true);
+        this.streams.put(id, stream);
+        try
+        {
+            sendOpen(id, serviceUuid);
+        }
+        catch (IOException e)
+        {
+            stream.close();
+            throw e;
+        }
+        EngineLog.d(TAG, () -> "openStream: opened stream " + id + " for " + serviceUuid);
+        return stream;
+    }
+
+    /**
+     * @param serviceUuid
+     *         the UUID of a service
+     *
+     * @return true if a stream of the service is open, no matter which side opened it
+     */
+    public boolean hasOpenStream(UUID serviceUuid)
+    {
+        for (MultiplexedStream stream : this.streams.values())
+        {
+            if (stream.getServiceUuid().equals(serviceUuid) && !stream.isClosed())
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of open streams
+     */
+    public int getStreamCount()
+    {
+        return this.streams.size();
+    }
+
+    void removeStream(int id, MultiplexedStream stream)
+    {
+        this.streams.remove(id, stream);
+    }
+
+    //
+    //  ----------  reading ----------
+    //
+
+    private void readFrames()
+    {
+        EngineLog.d(TAG, () -> "readFrames: reading frames from " + this.socket.getRemoteSocketAddress());
+        try
+        {
+            while (!isClosed())
+            {
+                int type = this.in.read();
+                if (type == -1)
+                {
+                    break;
+                }
+                int id = FrameCodec.readVarint(this.in);
+                if (id == -1)
+                {
+                    throw new EOFException("stream ended within a frame header");
+                }
+                switch (type)
+                {
+                    case FRAME_OPEN:
+                        onOpen(id, new UUID(this.in.readLong(), this.in.readLong()));
+                        break;
+                    case FRAME_DATA:
+                        onData(id, readLength());
+                        break;
+                    case FRAME_WINDOW_UPDATE:
+                        onWindowUpdate(id, readLength());
+                        break;
+                    case FRAME_CLOSE:
+                        onClose(id);
+                        break;
+                    case FRAME_RESET:
+                        onReset(id);
+                        break;
+                    default:
+                        throw new StreamCorruptedException("unknown frame type " + type);
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            if (!isClosed())
+            {
+                EngineLog.e(TAG, "readFrames: reading frames failed, closing", e);
+            }
+        }
+        finally
+        {
+            close();
+        }
+    }
+
+    private int readLength() throws IOException
+    {
+        int length = FrameCodec.readVarint(this.in);
+        if (length == -1)
+        {
+            throw new EOFException("stream ended within a frame header");
+        }
+        return length;
+    }
+
+    private void onOpen(int id, UUID serviceUuid) throws IOException
+    {
+        boolean remoteId = (id % 2 == 1) != this.initiator;
+        if (!remoteId || this.streams.containsKey(id))
+        {
+            EngineLog.e(TAG, "onOpen: invalid stream id " + id + ", resetting");
+            sendReset(id);
+            return;
+        }
+        MultiplexedStream stream = new MultiplexedStream(this, id, serviceUuid, false);
+        this.streams.put(id, stream);
+        EngineLog.d(TAG, () -> "onOpen: remote opened stream " + id + " for " + serviceUuid);
+        ConnectionExecutor.getInstance().execute(() -> this.listener.onStreamOpened(stream));
+    }
+
+    private void onData(int id, int length) throws IOException
+    {
+        if (length > MAX_FRAME_PAYLOAD)
+        {
+            throw new StreamCorruptedException("frame of " + length + " bytes exceeds the maximum of " + MAX_FRAME_PAYLOAD);
+        }
+        MultiplexedStream stream = this.streams.get(id);
+        if (stream == null)
+        {
+            // the stream was closed locally, data still on its way is dropped
+            skipFully(this.in, length);
+            return;
+        }
+        if (!stream.onData(this.in, length))
+        {
+            EngineLog.e(TAG, "onData: stream " + id + " exceeded its window, resetting");
+            skipFully(this.in, length);
+            this.streams.remove(id, stream);
+            stream.onReset();
+            sendReset(id);
+        }
+    }
+
+    private void onWindowUpdate(int id, int credit)
+    {
+        MultiplexedStream stream = this.streams.get(id);
+        if (stream != null)
+        {
+            stream.onWindowUpdate(credit);
+        }
+    }
+
+    private void onClose(int id)
+    {
+        MultiplexedStream stream = this.streams.remove(id);
+        if (stream != null)
+        {
+            stream.onRemoteClose();
+        }
+    }
+
+    private void onReset(int id)
+    {
+        MultiplexedStream stream = this.streams.remove(id);
+        if (stream != null)
+        {
+            stream.onReset();
+        }
+    }
+
+    static void skipFully(InputStream in, long length) throws IOException
+    {
+        while (length > 0)
+        {
+            long skipped = in.skip(length);
+            if (skipped <= 0)
+            {
+                if (in.read() == -1)
+                {
+                    throw new EOFException("stream ended within a frame");
+                }
+                skipped = 1;
+            }
+            length -= skipped;
+        }
+    }
+
+    //
+    //  ----------  writing ----------
+    //
+
+    void sendOpen(int id, UUID serviceUuid) throws IOException
+    {
+        PooledBuffer frame = this.pool.acquire(MAX_HEADER_LENGTH);
+        byte[] array = frame.array();
+        int length = writeHeader(array, FRAME_OPEN, id);
+        length = writeLong(array, length, serviceUuid.getMostSignificantBits());
+        length = writeLong(array, length, serviceUuid.getLeastSignificantBits());
+        write(frame, length);
+    }
+
+    void sendData(int id, byte[] data, int offset, int dataLength) throws IOException
+    {
+        PooledBuffer frame = this.pool.acquire(MAX_HEADER_LENGTH + dataLength);
+        byte[] array = frame.array();
+        int length = writeHeader(array, FRAME_DATA, id);
+        length += FrameCodec.writeVarint(dataLength, array, length);
+        System.arraycopy(data, offset, array, length, dataLength);
+        write(frame, length + dataLength);
+    }
+
+    void sendWindowUpdate(int id, int credit) throws IOException
+    {
+        PooledBuffer frame = this.pool.acquire(MAX_HEADER_LENGTH);
+        byte[] array = frame.array();
+        int length = writeHeader(array, FRAME_WINDOW_UPDATE, id);
+        length += FrameCodec.writeVarint(credit, array, length);
+        write(frame, length);
+    }
+
+    void sendClose(int id) throws IOException
+    {
+        PooledBuffer frame = this.pool.acquire(MAX_HEADER_LENGTH);
+        write(frame, writeHeader(frame.array(), FRAME_CLOSE, id));
+    }
+
+    void sendReset(int id) throws IOException
+    {
+        PooledBuffer frame = this.pool.acquire(MAX_HEADER_LENGTH);
+        write(frame, writeHeader(frame.array(), FRAME_RESET, id));
+    }
+
+    private static int writeHeader(byte[] array, int type, int id)
+    {
+        array[0] = (byte) type;
+        return 1 + FrameCodec.writeVarint(id, array, 1);
+    }
+
+    private static int writeLong(byte[] array, int offset, long value)
+    {
+        for (int i = 7; i >= 0; i--)
+        {
+            array[offset++] = (byte) (value >>> (8 * i));
+        }
+        return offset;
+    }
+
+    /**
+     * Writes and releases the frame, closes the multiplexer if writing fails
+     */
+    private void write(PooledBuffer frame, int length) throws IOException
+    {
+        try
+        {
+            if (isClosed())
+            {
+                throw new IOException("multiplexer closed");
+            }
+            synchronized (this.writeLock)
+            {
+                this.out.write(frame.array(), 0, length);
+                this.out.flush();
+            }
+        }
+        catch (IOException e)
+        {
+            close();
+            throw e;
+        }
+        finally
+        {
+            frame.release();
+        }
+    }
+
+    //
+    //  ----------  close and getter ----------
+    //
+
+    /**
+     * Closes the socket and all streams
+     */
+    public void close()
+    {
+        if (!this.closed.compareAndSet(false, true))
+        {
+            return;
+        }
+        EngineLog.d(TAG, () -> "close: closing multiplexer with " + this.streams.size() + " streams");
+        try
+        {
+            this.socket.close();
+        }
+        catch (IOException e)
+        {
+            EngineLog.e(TAG, "close: could not close socket", e);
+        }
+        for (MultiplexedStream stream : this.streams.values())
+        {
+            stream.onTerminated();
+        }
+        this.streams.clear();
+        ConnectionExecutor.getInstance().execute(() -> this.listener.onClosed(this));
+    }
+
+    public boolean isClosed()
+    {
+        return this.closed.get();
+    }
+
+    /**
+     * @return the socket carrying the streams
+     */
+    public Socket getSocket()
+    {
+        return this.socket;
+    }
+
+    //
+    //  ----------  listener ----------
+    //
+
+    /**
+     * Gets notified about the events of a {@link StreamMultiplexer}
+     */
+    public interface Listener
+    {
+        /**
+         * Called when the other side opened a stream.
+         * If the stream is not wanted it should be {@link MultiplexedStream#reset() reset}.
+         *
+         * @param stream
+         *         the new stream
+         */
+        void onStreamOpened(MultiplexedStream stream);
+
+        /**
+         * Called once the multiplexer was closed, because
+         * {@link #close()} was called or the socket failed
+         *
+         * @param multiplexer
+         *         the closed multiplexer
+         */
+        void onClosed(StreamMultiplexer multiplexer);
+    }
+}
@@ -1,11 +1,16 @@
 package willi.boelke.services.serviceConnection.wifiDirectServiceConnection.tcp;
 
-import android.util.Log;
-
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import willi.boelke.services.serviceConnection.ConnectionExecutor;
+import willi.boelke.services.serviceDiscovery.EngineLog;
 
 /**
  * TCP creates a virtual channel between to communication partners. Only during binding procedure,
@@ -18,6 +23,8 @@ import java.net.Socket;
  * After object creation, start that channel thread simply by calling start().
  * Call {@link TCPChannel#isConnected()} to check if a connection was created or @see waitUntilConnectionEstablished()
  * which blocks the calling thread until a connection was established.
+ * Alternatively @see notifyWhenConnectionEstablished() notifies a listener
+ * as soon as the connection was established, without blocking a thread.
  * <p>
  * After connection establishment, methods by @see getInputStream() and @see getOutputStream()
  * can be used to get I/O streams to use the TCP channel.
@@ -26,6 +33,9 @@ import java.net.Socket;
  * a server was created with multiple-flag set true (@see getTCPServerCreator()).
  * In that case, the server accepts multiple client connection attempts and tries to create
  * a new connection with each call on createSocket.
+ * <p>
+ * The sockets are set up as described by the {@link TcpConnectionConfig}
+ * the channel maker was created with.
  *
  * @author thsc
  */
@@ -41,22 +51,36 @@ public class TCPChannelMaker extends Thread
     private final boolean asServer;
     private final String hostname;
     private final boolean multiple;
+    private final TcpConnectionConfig config;
 
-    private boolean fatalError = false;
-    private boolean threadRunning = false;
+    private volatile IOException fatalError = null;
+    private volatile boolean threadRunning = false;
 
-    public static int wait_for_next_connection_try;
-    public static final int WAIT_FOR_NEXT_CONNECTION_TRY_DEFAULT = 10000; // any 10 sec
+    private volatile TCPChannel channel;
 
-    public static int max_connection_loops;
-    public static final int MAX_CONNECTION_LOOPS_DEFAULT = 100; // hundred times
+    /**
+     * Released once the first connection was established or failed
+     */
+    private final CountDownLatch established = new CountDownLatch(1);
 
-    private TCPChannel channel;
+    /**
+     * Listeners waiting for the first connection, guarded by {@link #listenerLock}
+     */
+    private final List<TCPChannelMakerListener> listeners = new ArrayList<>();
+
+    private final Object listenerLock = new Object();
 
-    static
+    /**
+     * Create a tcp channel as client
+     *
+     * @param hostname
+     *         remote host - only used when client
+     * @param port
+     *         port - local port for server or remote port for client
+     */
+    public static TCPChannelMaker getTCPClientCreator(String hostname, int port)
     {
-        wait_for_next_connection_try = WAIT_FOR_NEXT_CONNECTION_TRY_DEFAULT;
-        max_connection_loops = MAX_CONNECTION_LOOPS_DEFAULT;
+        return getTCPClientCreator(hostname, port, new TcpConnectionConfig());
     }
 
     /**
@@ -66,10 +90,12 @@ public class TCPChannelMaker extends Thread
      *         remote host - only used when client
      * @param port
      *         port - local port for server or remote port for client
+     * @param config
+     *         the settings of the connection, copied
      */
-    public static TCPChannelMaker getTCPClientCreator(String hostname, int port)
+    public static TCPChannelMaker getTCPClientCreator(String hostname, int port, TcpConnectionConfig config)
     {
-        return new TCPChannelMaker(hostname, port, false, false);
+        return new TCPChannelMaker(hostname, port, false, false, config);
     }
 
     /**
@@ -80,7 +106,7 @@ public class TCPChannelMaker extends Thread
      */
     public static TCPChannelMaker getTCPServerCreator(int port)
     {
-        return new TCPChannelMaker(null, port, true, false);
+        return getTCPServerCreator(port, false);
     }
 
     /**
@@ -93,7 +119,22 @@ public class TCPChannelMaker extends Thread
      */
     public static TCPChannelMaker getTCPServerCreator(int port, boolean multiple)
     {
-        return new TCPChannelMaker(null, port, true, multiple);
+        return getTCPServerCreator(port, multiple, new TcpConnectionConfig());
+    }
+
+    /**
+     * Create a tcp channel as server
+     *
+     * @param port
+     *         port - local port for server or remote port for client
+     * @param multiple
+     *         - allow multiple connection on server, createSocket can be more than once
+     * @param config
+     *         the settings of the connections, copied
+     */
+    public static TCPChannelMaker getTCPServerCreator(int port, boolean multiple, TcpConnectionConfig config)
+    {
+        return new TCPChannelMaker(null, port, true, multiple, config);
     }
 
     /**
@@ -105,13 +146,16 @@ public class TCPChannelMaker extends Thread
      *         - act as server or client
      * @param multiple
      *         - allow multiple connection on server - only used when server
+     * @param config
+     *         the settings of the connections
      */
-    private TCPChannelMaker(String hostname, int port, boolean asServer, boolean multiple)
+    private TCPChannelMaker(String hostname, int port, boolean asServer, boolean multiple, TcpConnectionConfig config)
     {
         this.hostname = hostname;
         this.port = port;
         this.asServer = asServer;
         this.multiple = multiple;
+        this.config = new TcpConnectionConfig(config);
     }
 
     /**
@@ -122,6 +166,16 @@ public class TCPChannelMaker extends Thread
         return this.threadRunning;
     }
 
+    /**
+     * Starts the thread, {@link #running()} returns true as soon as this returns
+     */
+    @Override
+    public synchronized void start()
+    {
+        this.threadRunning = true;
+        super.start();
+    }
+
     /**
      * Called when calling @see createSocket. Do not call this method directly.
      */
@@ -129,24 +183,48 @@ public class TCPChannelMaker extends Thread
     public void run()
     {
         this.threadRunning = true;
-        Log.e(TAG, "run: thread started - creating channel");
+        EngineLog.e(TAG, "run: thread started - creating channel");
         try
         {
+            TCPChannel newChannel;
             if (this.asServer)
             {
-                this.channel = new TCPServer(this.port, this.multiple);
+                newChannel = new TCPServer(this.port, this.multiple, this.config);
             }
             else
             {
-                this.channel = new TCPClient(this.hostname, this.port);
+                newChannel = new TCPClient(this.hostname, this.port, this.config);
             }
+            this.channel = newChannel;
 
             // this can take a while
-            this.channel.createSocket();
+            newChannel.createSocket();
         }
         catch (IOException ex)
         {
-            this.fatalError = true;
+            this.fatalError = ex;
+        }
+        finally
+        {
+            onEstablished();
+        }
+    }
+
+    /**
+     * Releases all waiting threads and notifies the listeners
+     */
+    private void onEstablished()
+    {
+        this.established.countDown();
+        List<TCPChannelMakerListener> waiting;
+        synchronized (this.listenerLock)
+        {
+            waiting = new ArrayList<>(this.listeners);
+            this.listeners.clear();
+        }
+        for (TCPChannelMakerListener listener : waiting)
+        {
+            notifyListener(listener);
         }
     }
 
@@ -155,88 +233,85 @@ public class TCPChannelMaker extends Thread
         if (this.channel != null)
         {
             this.channel.close();
-            Log.d(TAG, "close: channel closed");
+            EngineLog.d(TAG, "close: channel closed");
         }
     }
 
     /**
-     * holds thread until a connection is established
+     * Holds the calling thread until a connection is established,
+     * it returns as soon as the socket is connected
+     *
+     * @throws IOException
+     *         if the thread was not started, or no connection could be established
+     * @throws InterruptedIOException
+     *         if the calling thread was interrupted while waiting
      */
     public void waitUntilConnectionEstablished() throws IOException
     {
         if (!this.threadRunning)
         {
-            /* in unit tests there is a race condition between the test
-            thread and those newly created tests to establish a connection.
-
-            Thus, this call could be in the right order - give it a
-            second chance
-            */
-            try
-            {
-                Thread.sleep(wait_for_next_connection_try);
-            }
-            catch (InterruptedException ex)
-            {
-                // ignore
-            }
-
-            if (!this.threadRunning)
-            {
-                // that's probably wrong usage:
-                throw new IOException("must start TCPChannel thread first by calling start()");
-            }
+            // that's probably wrong usage:
+            throw new IOException("must start TCPChannel thread first by calling start()");
         }
+        try
+        {
+            this.established.await();
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for the connection");
+        }
+        checkEstablished();
+    }
 
-        while (!this.fatalError && !this.isConnected())
+    private void checkEstablished() throws IOException
+    {
+        if (this.fatalError != null)
         {
-            try
-            {
-                Thread.sleep(wait_for_next_connection_try);
-            }
-            catch (InterruptedException ex)
-            {
-                // ignore
-            }
+            throw new IOException("could not establish connection: " + this.fatalError.getMessage(), this.fatalError);
+        }
+        if (!this.isConnected())
+        {
+            throw new IOException("could not establish connection");
         }
     }
 
     /**
-     * Starts a thread that runs until a connection was established or it failed
+     * Notifies the listener on the shared {@link ConnectionExecutor} as soon as
+     * the connection was established or failed, without blocking a thread while waiting.
+     * If that already happened the listener is notified right away.
      *
      * @param listener
+     *         the listener to notify
      */
     public void notifyWhenConnectionEstablished(TCPChannelMakerListener listener)
     {
-        Thread waiterThread = new WaitAndNotifyThread(listener, this.channel);
-        waiterThread.start();
-    }
-
-
-    private class WaitAndNotifyThread extends Thread
-    {
-        private final TCPChannelMakerListener listener;
-        private final TCPChannel channel;
-
-        WaitAndNotifyThread(TCPChannelMakerListener listener, TCPChannel channel)
+        synchronized (this.listenerLock)
         {
-            this.listener = listener;
-            this.channel = channel;
+            if (this.established.getCount() > 0)
+            {
+                this.listeners.add(listener);
+                return;
+            }
         }
+        notifyListener(listener);
+    }
 
-        @Override
-        public void run()
+    private void notifyListener(TCPChannelMakerListener listener)
+    {
+        ConnectionExecutor.getInstance().execute(() ->
         {
             try
             {
-                waitUntilConnectionEstablished();
-                this.listener.onConnectionEstablished(this.channel);
+                checkEstablished();
+                listener.onConnectionEstablished(this);
             }
             catch (IOException e)
             {
-                this.listener.onConnectionEstablishmentFailed(this.channel, e.getLocalizedMessage());
+                listener.onConnectionEstablishmentFailed(this, e.getLocalizedMessage());
             }
-        }
+        });
     }
 
     /**
@@ -244,7 +319,8 @@ public class TCPChannelMaker extends Thread
      */
     public boolean isConnected()
     {
-        return this.channel.isConnected();
+        TCPChannel current = this.channel;
+        return current != null && current.isConnected();
     }
 
     public InputStream getInputStream() throws IOException
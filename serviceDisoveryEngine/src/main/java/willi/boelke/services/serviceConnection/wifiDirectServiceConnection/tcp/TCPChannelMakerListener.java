@@ -5,7 +5,7 @@ package willi.boelke.services.serviceConnection.wifiDirectServiceConnection.tcp;
  */
 public interface TCPChannelMakerListener
 {
-    void onConnectionEstablished(TCPChannel channel);
+    void onConnectionEstablished(TCPChannelMaker channelMaker);
 
-    void onConnectionEstablishmentFailed(TCPChannel channel, String reason);
+    void onConnectionEstablishmentFailed(TCPChannelMaker channelMaker, String reason);
 }
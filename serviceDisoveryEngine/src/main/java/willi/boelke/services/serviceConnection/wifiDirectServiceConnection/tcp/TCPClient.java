@@ -1,9 +1,13 @@
 package willi.boelke.services.serviceConnection.wifiDirectServiceConnection.tcp;
 
-import android.util.Log;
-
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.util.Random;
+
+import willi.boelke.services.serviceDiscovery.EngineLog;
 
 class TCPClient extends TCPChannel
 {
@@ -13,51 +17,115 @@ class TCPClient extends TCPChannel
     private final String TAG = this.getClass().getSimpleName();
     private final String hostname;
     private final int port;
+    private final TcpConnectionConfig config;
+    private final Random random = new Random();
+
+    /**
+     * Number of connection attempts made so far
+     */
+    private volatile int attempts = 0;
 
-    TCPClient(String hostname, int port)
+    TCPClient(String hostname, int port, TcpConnectionConfig config)
     {
         this.hostname = hostname;
         this.port = port;
+        this.config = config;
     }
 
-    void createSocket()
+    /**
+     * Tries to connect to the server, {@link TcpConnectionConfig#getMaxConnectAttempts()} times at most.
+     * Between the tries the client backs off, the delay doubles after each failure
+     * (see {@link TcpConnectionConfig#setRetryDelays(long, long)}) and is jittered,
+     * so clients of a group do not retry in lockstep.
+     * <p>
+     * The shared {@link willi.boelke.services.serviceConnection.PeerRetryPolicy} is not used here,
+     * the host always is the group owner address, which is the same for every group.
+     *
+     * @throws IOException
+     *         if no connection could be established
+     * @throws InterruptedIOException
+     *         if the thread was interrupted while backing off,
+     *         the interrupt flag is restored
+     */
+    void createSocket() throws IOException
     {
-        int i = TCPChannelMaker.max_connection_loops;
-        for (; i > 0; i--)
+        int maxAttempts = this.config.getMaxConnectAttempts();
+        for (int attempt = 1; attempt <= maxAttempts; attempt++)
         {
+            this.attempts = attempt;
             try
             {
-                StringBuilder b = new StringBuilder();
-                b.append("TCPClient:");
-                b.append("try to connect to ");
-                b.append(this.hostname);
-                b.append(" port: ");
-                b.append(port);
-                b.append(" remaining tries: ");
-                b.append(i);
-                Log.d(TAG, "createSocket: " + b);
-                this.setSocket(new Socket(this.hostname, this.port));
-                // break loop if no exception thrown
+                final int remaining = maxAttempts - attempt + 1;
+                EngineLog.d(TAG, () -> "createSocket: try to connect to " + this.hostname + " port: " + this.port + " remaining tries: " + remaining);
+                this.setSocket(connect());
                 return;
             }
             catch (IOException ioe)
             {
-                StringBuilder b = new StringBuilder();
-                b.append("TCPClient:");
-                b.append("failed / wait and re-try");
-                b.append(port);
-                Log.e(TAG, "createSocket: " + b);
-
-                try
-                {
-                    Thread.sleep(TCPChannel.WAIT_LOOP_IN_MILLIS);
-                }
-                catch (InterruptedException ex)
-                {
-                    // ignore
-                }
+                EngineLog.e(TAG, "createSocket: failed to connect to " + this.hostname + " port: " + this.port);
+            }
+            if (attempt < maxAttempts)
+            {
+                backOff(attempt);
             }
         }
-        Log.d(TAG, "createSocket: could not establish connection, run out of tries");
+        EngineLog.d(TAG, "createSocket: could not establish connection, run out of tries");
+        throw new ConnectException("Could not connect to " + this.hostname + ", run out of tries");
+    }
+
+    /**
+     * Waits before the next attempt
+     *
+     * @param failures
+     *         the number of failed attempts so far
+     *
+     * @throws InterruptedIOException
+     *         if the thread was interrupted
+     */
+    private void backOff(int failures) throws InterruptedIOException
+    {
+        long delay = this.config.getRetryBaseDelay();
+        for (int i = 1; i < failures && delay < this.config.getRetryMaxDelay(); i++)
+        {
+            delay *= 2;
+        }
+        delay = Math.min(delay, this.config.getRetryMaxDelay());
+        long half = delay / 2;
+        try
+        {
+            Thread.sleep(half + (long) (this.random.nextDouble() * (delay - half)));
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while connecting to " + this.hostname);
+        }
+    }
+
+    /**
+     * @return the number of connection attempts made so far
+     */
+    int getAttempts()
+    {
+        return this.attempts;
+    }
+
+    /**
+     * Connects a new socket, set up as configured
+     */
+    private Socket connect() throws IOException
+    {
+        Socket socket = new Socket();
+        try
+        {
+            this.config.applyTo(socket);
+            socket.connect(new InetSocketAddress(this.hostname, this.port), this.config.getConnectTimeout());
+            return socket;
+        }
+        catch (IOException e)
+        {
+            socket.close();
+            throw e;
+        }
     }
-}
\ No newline at end of file
+}
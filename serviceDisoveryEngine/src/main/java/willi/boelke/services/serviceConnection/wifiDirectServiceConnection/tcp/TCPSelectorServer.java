@@ -0,0 +1,249 @@
+package willi.boelke.services.serviceConnection.wifiDirectServiceConnection.tcp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import willi.boelke.services.serviceConnection.ConnectionExecutor;
+import willi.boelke.services.serviceDiscovery.EngineLog;
+
+/**
+ * Accepts any number of TCP clients on a single thread.
+ * <p>
+ * <h2>Why</h2>
+ * The {@link TCPServer} blocks a thread in {@code accept()}, collects the
+ * accepted sockets in a list and the caller polls that list, waiting up to a
+ * second between tries. With a full Wi-Fi Direct group connecting at once this
+ * delays connections by seconds.
+ * <p>
+ * <h2>How</h2>
+ * The server waits on a {@link Selector} for the non blocking
+ * {@link ServerSocketChannel} to become acceptable. Every pending client
+ * is accepted at once, and handed to the {@link TCPServerListener} on the shared
+ * {@link ConnectionExecutor}, so a slow listener does not delay the next client.
+ * The accepted channels stay in blocking mode, so their sockets
+ * streams can be used as with any other socket.
+ * Accepted sockets are set up as described by the {@link TcpConnectionConfig}.
+ * <p>
+ * <h2>Usage</h2>
+ * Create the server, which binds it to the port, and {@link #start()} it.
+ * It accepts clients until {@link #close()} is called.
+ *
+ * @author WilliBoelke
+ */
+public class TCPSelectorServer extends Thread
+{
+    //
+    //  ----------  instance variables ----------
+    //
+
+    /**
+     * Classname for logging
+     */
+    private final String TAG = this.getClass().getSimpleName();
+
+    private final ServerSocketChannel serverChannel;
+
+    private final Selector selector;
+
+    private final TCPServerListener listener;
+
+    private final TcpConnectionConfig config;
+
+    private final AtomicInteger acceptedClients = new AtomicInteger(0);
+
+    private volatile boolean running = true;
+
+    //
+    //  ----------  constructor and initialisation ----------
+    //
+
+    /**
+     * Constructor, opens the server socket using the default {@link TcpConnectionConfig}
+     *
+     * @param port
+     *         the local port to accept clients on, 0 to use any free port
+     * @param listener
+     *         gets notified about accepted clients
+     *
+     * @throws IOException
+     *         if the port could not be bound
+     */
+    public TCPSelectorServer(int port, TCPServerListener listener) throws IOException
+    {
+        this(port, listener, new TcpConnectionConfig());
+    }
+
+    /**
+     * Constructor, opens the server socket
+     *
+     * @param port
+     *         the local port to accept clients on, 0 to use any free port
+     * @param listener
+     *         gets notified about accepted clients
+     * @param config
+     *         the settings of the accepted connections, copied
+     *
+     * @throws IOException
+     *         if the port could not be bound
+     */
+    public TCPSelectorServer(int port, TCPServerListener listener, TcpConnectionConfig config) throws IOException
+    {
+        this.listener = listener;
+        this.config = new TcpConnectionConfig(config);
+        this.selector = Selector.open();
+        try
+        {
+            this.serverChannel = ServerSocketChannel.open();
+            this.serverChannel.configureBlocking(false);
+            this.serverChannel.socket().setReuseAddress(true);
+            this.config.applyTo(this.serverChannel.socket());
+            this.serverChannel.socket().bind(new InetSocketAddress(port), this.config.getAcceptBacklog());
+            this.serverChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+        }
+        catch (IOException e)
+        {
+            this.selector.close();
+            throw e;
+        }
+    }
+
+    //
+    //  ----------  accept loop ----------
+    //
+
+    @Override
+    public void run()
+    {
+        EngineLog.d(TAG, () -> "run: accepting clients on port " + getPort());
+        try
+        {
+            while (this.running)
+            {
+                this.selector.select();
+                Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                while (keys.hasNext())
+                {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid() && key.isAcceptable())
+                    {
+                        acceptPendingClients();
+                    }
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            if (this.running)
+            {
+                EngineLog.e(TAG, "run: failed to accept clients", e);
+            }
+        }
+        finally
+        {
+            this.running = false;
+            closeQuietly();
+            EngineLog.d(TAG, () -> "run: stopped after accepting " + this.acceptedClients.get() + " clients");
+            this.listener.onServerClosed();
+        }
+    }
+
+    private void acceptPendingClients() throws IOException
+    {
+        SocketChannel client;
+        while ((client = this.serverChannel.accept()) != null)
+        {
+            client.configureBlocking(true);
+            final Socket socket = client.socket();
+            applyConfig(socket);
+            this.acceptedClients.incrementAndGet();
+            EngineLog.d(TAG, () -> "acceptPendingClients: accepted " + socket.getRemoteSocketAddress());
+            ConnectionExecutor.getInstance().execute(() -> this.listener.onClientAccepted(socket));
+        }
+    }
+
+    private void applyConfig(Socket socket)
+    {
+        try
+        {
+            this.config.applyTo(socket);
+        }
+        catch (IOException e)
+        {
+            EngineLog.e(TAG, "applyConfig: could not set socket options, using the defaults", e);
+        }
+    }
+
+    //
+    //  ----------  close ----------
+    //
+
+    /**
+     * Stops accepting clients and closes the server socket,
+     * already accepted clients stay connected
+     */
+    public void close()
+    {
+        this.running = false;
+        this.selector.wakeup();
+        if (!this.isAlive())
+        {
+            closeQuietly();
+        }
+    }
+
+    private void closeQuietly()
+    {
+        try
+        {
+            this.serverChannel.close();
+        }
+        catch (IOException e)
+        {
+            EngineLog.e(TAG, "closeQuietly: could not close the server channel", e);
+        }
+        try
+        {
+            this.selector.close();
+        }
+        catch (IOException e)
+        {
+            EngineLog.e(TAG, "closeQuietly: could not close the selector", e);
+        }
+    }
+
+    //
+    //  ----------  getter ----------
+    //
+
+    /**
+     * @return the local port clients are accepted on, -1 once closed
+     */
+    public int getPort()
+    {
+        return this.serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * @return the number of clients accepted so far
+     */
+    public int getAcceptedClients()
+    {
+        return this.acceptedClients.get();
+    }
+
+    /**
+     * @return true while clients are accepted
+     */
+    public boolean isRunning()
+    {
+        return this.running && this.serverChannel.isOpen();
+    }
+}
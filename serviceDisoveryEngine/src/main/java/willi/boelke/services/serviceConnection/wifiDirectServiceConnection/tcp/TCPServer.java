@@ -1,14 +1,15 @@
 package willi.boelke.services.serviceConnection.wifiDirectServiceConnection.tcp;
 
-import android.util.Log;
-
 import java.io.IOException;
 import java.net.ConnectException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.ArrayList;
 import java.util.List;
 
+import willi.boelke.services.serviceDiscovery.EngineLog;
+
 class TCPServer extends TCPChannel
 {
     /**
@@ -27,17 +28,22 @@ class TCPServer extends TCPChannel
 
     private final boolean multiple;
 
+    private final TcpConnectionConfig config;
+
     private final List<Socket> socketList;
 
     private Thread acceptThread = null;
 
-    TCPServer(int port, boolean multiple) throws IOException
+    TCPServer(int port, boolean multiple, TcpConnectionConfig config) throws IOException
     {
         this.port = port;
         this.multiple = multiple;
+        this.config = config;
 
         // create server socket
-        this.srvSocket = new ServerSocket(port);
+        this.srvSocket = new ServerSocket();
+        config.applyTo(this.srvSocket);
+        this.srvSocket.bind(new InetSocketAddress(port), config.getAcceptBacklog());
 
         // create list oif socket - used if multiple flag set
         socketList = new ArrayList<>();
@@ -50,14 +56,15 @@ class TCPServer extends TCPChannel
      */
     void createSocket() throws IOException
     {
-        Log.d(TAG, "createSocket called");
+        EngineLog.d(TAG, "createSocket called");
 
         // called first time
         if (this.acceptThread == null)
         {
-            Log.d(TAG, "accept thread null - going to accept");
+            EngineLog.d(TAG, "accept thread null - going to accept");
             // wait for connection attempt
             Socket newSocket = srvSocket.accept();
+            this.config.applyTo(newSocket);
 
             // got a socket
             if (multiple)
@@ -66,7 +73,7 @@ class TCPServer extends TCPChannel
             }
 
             // set first found socket on top of the queue
-            Log.d(TAG, "new socket found");
+            EngineLog.d(TAG, "new socket found");
             this.setSocket(newSocket);
         }
         else
@@ -77,7 +84,7 @@ class TCPServer extends TCPChannel
 
     private void waitForAcceptThread() throws ConnectException
     {
-        Log.d(TAG, "accept thread running");
+        EngineLog.d(TAG, "accept thread running");
         // an accept thread was already called
 
         // was is successful?
@@ -87,7 +94,7 @@ class TCPServer extends TCPChannel
         {
             if (!this.socketList.isEmpty())
             {
-                Log.d(TAG, "socket list not empty");
+                EngineLog.d(TAG, "socket list not empty");
                 // make first socket on waiting list to current socket
                 this.setSocket(this.socketList.remove(0));
                 found = true;
@@ -97,7 +104,7 @@ class TCPServer extends TCPChannel
                 // wait
                 try
                 {
-                    Log.d(TAG, "createSocket: socket list empty, wait/retry");
+                    EngineLog.d(TAG, "createSocket: socket list empty, wait/retry");
                     Thread.sleep(WAIT_LOOP_IN_MILLIS);
                 }
                 catch (InterruptedException e)
@@ -134,18 +141,18 @@ class TCPServer extends TCPChannel
      */
     void nextConnection() throws IOException
     {
-        Log.d(TAG, "nextConnection called");
+        EngineLog.d(TAG, "nextConnection called");
         if (!this.multiple)
         {
             String message = "multiple flag not set - no further connections";
-            Log.d(TAG, message);
+            EngineLog.d(TAG, message);
             throw new IOException(message);
         }
 
         if (this.srvSocket == null)
         {
             String message = "no open server socket, cannot create another connection";
-            Log.d(TAG, message);
+            EngineLog.d(TAG, message);
             throw new IOException(message);
         }
 
@@ -160,7 +167,7 @@ class TCPServer extends TCPChannel
      */
     private void startAcceptThread()
     {
-        Log.d(TAG, "startAcceptThread: starting accept thread");
+        EngineLog.d(TAG, "startAcceptThread: starting accept thread");
         // create a new thread to collect other sockets
         this.acceptThread = new Thread()
         {
@@ -169,12 +176,21 @@ class TCPServer extends TCPChannel
             {
                 try
                 {
-                    Log.d(TAG, "AcceptThread: run: started");
+                    EngineLog.d(TAG, "AcceptThread: run: started");
                     while (multiple)
                     {
                         // loop will be broken when close called which closes srvSocket
-                        socketList.add(srvSocket.accept());
-                        Log.d(TAG, "AcceptThread: run: accepted new connection");
+                        Socket newSocket = srvSocket.accept();
+                        try
+                        {
+                            config.applyTo(newSocket);
+                        }
+                        catch (IOException e)
+                        {
+                            EngineLog.e(TAG, "AcceptThread: run: could not set socket options, using the defaults", e);
+                        }
+                        socketList.add(newSocket);
+                        EngineLog.d(TAG, "AcceptThread: run: accepted new connection");
                     }
                 }
                 catch (IOException e)
@@ -193,10 +209,10 @@ class TCPServer extends TCPChannel
                     }
                     srvSocket = null; // remember invalid server socket
                 }
-                Log.d(TAG, "AcceptThread: run: ended");
+                EngineLog.d(TAG, "AcceptThread: run: ended");
             }
         };
-        Log.d(TAG, "startAcceptThread: staring accept thread");
+        EngineLog.d(TAG, "startAcceptThread: staring accept thread");
         this.acceptThread.start();
     }
 }
@@ -0,0 +1,24 @@
+package willi.boelke.services.serviceConnection.wifiDirectServiceConnection.tcp;
+
+import java.net.Socket;
+
+/**
+ * Listener interface to get notified about the clients accepted by a {@link TCPSelectorServer}
+ */
+public interface TCPServerListener
+{
+    /**
+     * Called for every accepted client, on the shared
+     * {@link willi.boelke.services.serviceConnection.ConnectionExecutor}
+     *
+     * @param socket
+     *         the connected socket, in blocking mode so its streams can be used
+     */
+    void onClientAccepted(Socket socket);
+
+    /**
+     * Called once the server stopped accepting clients,
+     * because it was closed or failed
+     */
+    void onServerClosed();
+}
@@ -0,0 +1,360 @@
+package willi.boelke.services.serviceConnection.wifiDirectServiceConnection.tcp;
+
+import androidx.annotation.NonNull;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+
+/**
+ * Settings of the TCP connections created by a {@link TCPChannelMaker}
+ * or accepted by a {@link TCPSelectorServer}.
+ * <p>
+ * <h2>Why</h2>
+ * A configuration is passed to every channel maker and server instead of
+ * being kept in static fields, so services running side by side on one
+ * device can be tuned on their own, one for latency and another one for throughput.
+ * <p>
+ * <h2>Settings</h2>
+ * <ul>
+ *     <li>connect timeout - how long a single connection attempt may take</li>
+ *     <li>connect attempts - how often a client tries to connect before giving up</li>
+ *     <li>retry delays - the delay between two attempts doubles after each failure,
+ *     starting at the base delay and up to the max delay</li>
+ *     <li>send and receive buffer size - the socket buffers, 0 keeps the system default</li>
+ *     <li>TCP_NODELAY - sends small writes right away instead of coalescing them</li>
+ *     <li>keep alive - lets the system detect dead connections</li>
+ *     <li>accept backlog - the number of pending clients a server queues</li>
+ * </ul>
+ * {@link #forLowLatency()} and {@link #forHighThroughput()} return presets for
+ * the two common cases.
+ * <p>
+ * Channel makers and servers copy the configuration they are given,
+ * later changes only apply to channels created afterwards.
+ *
+ * @author WilliBoelke
+ */
+public class TcpConnectionConfig
+{
+    //
+    //  ----------  static members ----------
+    //
+
+    /**
+     * Time in milliseconds a single connection attempt may take
+     */
+    public static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+
+    /**
+     * Number of connection attempts before giving up
+     */
+    public static final int DEFAULT_MAX_CONNECT_ATTEMPTS = 100;
+
+    /**
+     * Time in milliseconds to wait after the first failed connection attempt
+     */
+    public static final long DEFAULT_RETRY_BASE_DELAY = 250;
+
+    /**
+     * Upper bound in milliseconds of the time to wait between two attempts
+     */
+    public static final long DEFAULT_RETRY_MAX_DELAY = 2000;
+
+    /**
+     * Number of pending clients a server queues, a Wi-Fi Direct group
+     * holds less clients, so the whole group can connect at once
+     */
+    public static final int DEFAULT_ACCEPT_BACKLOG = 16;
+
+    /**
+     * Buffer size used by {@link #forHighThroughput()}
+     */
+    private static final int THROUGHPUT_BUFFER_SIZE = 256 * 1024;
+
+    //
+    //  ----------  instance variables ----------
+    //
+
+    private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+
+    private int maxConnectAttempts = DEFAULT_MAX_CONNECT_ATTEMPTS;
+
+    private long retryBaseDelay = DEFAULT_RETRY_BASE_DELAY;
+
+    private long retryMaxDelay = DEFAULT_RETRY_MAX_DELAY;
+
+    private int sendBufferSize = 0;
+
+    private int receiveBufferSize = 0;
+
+    /**
+     * Messages are written as a whole (see {@link willi.boelke.services.serviceConnection.MessageChannel}),
+     * so delaying them to coalesce writes only adds latency
+     */
+    private boolean tcpNoDelay = true;
+
+    private boolean keepAlive = false;
+
+    private int acceptBacklog = DEFAULT_ACCEPT_BACKLOG;
+
+    //
+    //  ----------  constructor and initialisation ----------
+    //
+
+    /**
+     * Constructor, using the default settings
+     */
+    public TcpConnectionConfig()
+    {
+        // defaults
+    }
+
+    /**
+     * Copy constructor
+     *
+     * @param other
+     *         the configuration to copy
+     */
+    public TcpConnectionConfig(TcpConnectionConfig other)
+    {
+        this.connectTimeout = other.connectTimeout;
+        this.maxConnectAttempts = other.maxConnectAttempts;
+        this.retryBaseDelay = other.retryBaseDelay;
+        this.retryMaxDelay = other.retryMaxDelay;
+        this.sendBufferSize = other.sendBufferSize;
+        this.receiveBufferSize = other.receiveBufferSize;
+        this.tcpNoDelay = other.tcpNoDelay;
+        this.keepAlive = other.keepAlive;
+        this.acceptBacklog = other.acceptBacklog;
+    }
+
+    /**
+     * @return a configuration for small messages which should arrive as fast as possible
+     */
+    public static TcpConnectionConfig forLowLatency()
+    {
+        TcpConnectionConfig config = new TcpConnectionConfig();
+        config.setTcpNoDelay(true);
+        return config;
+    }
+
+    /**
+     * @return a configuration for bulk transfers, with large socket buffers
+     *         and small writes coalesced into full segments
+     */
+    public static TcpConnectionConfig forHighThroughput()
+    {
+        TcpConnectionConfig config = new TcpConnectionConfig();
+        config.setTcpNoDelay(false);
+        config.setBufferSizes(THROUGHPUT_BUFFER_SIZE, THROUGHPUT_BUFFER_SIZE);
+        return config;
+    }
+
+    //
+    //  ----------  applying ----------
+    //
+
+    /**
+     * Applies the socket options to a socket, call before connecting it,
+     * since the receive buffer size determines the TCP window
+     *
+     * @param socket
+     *         the socket
+     *
+     * @throws SocketException
+     *         if an option could not be set
+     */
+    void applyTo(Socket socket) throws SocketException
+    {
+        socket.setTcpNoDelay(this.tcpNoDelay);
+        socket.setKeepAlive(this.keepAlive);
+        if (this.sendBufferSize > 0)
+        {
+            socket.setSendBufferSize(this.sendBufferSize);
+        }
+        if (this.receiveBufferSize > 0)
+        {
+            socket.setReceiveBufferSize(this.receiveBufferSize);
+        }
+    }
+
+    /**
+     * Applies the receive buffer size to a server socket, call before binding it,
+     * the accepted sockets inherit it
+     *
+     * @param serverSocket
+     *         the server socket
+     *
+     * @throws SocketException
+     *         if the option could not be set
+     */
+    void applyTo(ServerSocket serverSocket) throws SocketException
+    {
+        if (this.receiveBufferSize > 0)
+        {
+            serverSocket.setReceiveBufferSize(this.receiveBufferSize);
+        }
+    }
+
+    //
+    //  ----------  setter and getter ----------
+    //
+
+    /**
+     * @param connectTimeout
+     *         time in milliseconds a single connection attempt may take, 0 to wait without a limit
+     *
+     * @throws IllegalArgumentException
+     *         if the timeout is negative
+     */
+    public void setConnectTimeout(int connectTimeout)
+    {
+        if (connectTimeout < 0)
+        {
+            throw new IllegalArgumentException("the connect timeout cant be negative");
+        }
+        this.connectTimeout = connectTimeout;
+    }
+
+    /**
+     * @param maxConnectAttempts
+     *         number of connection attempts before giving up, at least 1
+     *
+     * @throws IllegalArgumentException
+     *         if the number is smaller than 1
+     */
+    public void setMaxConnectAttempts(int maxConnectAttempts)
+    {
+        if (maxConnectAttempts < 1)
+        {
+            throw new IllegalArgumentException("at least one connection attempt is needed");
+        }
+        this.maxConnectAttempts = maxConnectAttempts;
+    }
+
+    /**
+     * @param baseDelay
+     *         time in milliseconds to wait after the first failed attempt
+     * @param maxDelay
+     *         upper bound of the time to wait between two attempts
+     *
+     * @throws IllegalArgumentException
+     *         if a delay is negative or the max delay is smaller than the base delay
+     */
+    public void setRetryDelays(long baseDelay, long maxDelay)
+    {
+        if (baseDelay < 0 || maxDelay < baseDelay)
+        {
+            throw new IllegalArgumentException("invalid retry delays: " + baseDelay + " - " + maxDelay);
+        }
+        this.retryBaseDelay = baseDelay;
+        this.retryMaxDelay = maxDelay;
+    }
+
+    /**
+     * @param sendBufferSize
+     *         size of the socket send buffer in bytes, 0 for the system default
+     * @param receiveBufferSize
+     *         size of the socket receive buffer in bytes, 0 for the system default
+     *
+     * @throws IllegalArgumentException
+     *         if a size is negative
+     */
+    public void setBufferSizes(int sendBufferSize, int receiveBufferSize)
+    {
+        if (sendBufferSize < 0 || receiveBufferSize < 0)
+        {
+            throw new IllegalArgumentException("buffer sizes cant be negative");
+        }
+        this.sendBufferSize = sendBufferSize;
+        this.receiveBufferSize = receiveBufferSize;
+    }
+
+    public void setTcpNoDelay(boolean tcpNoDelay)
+    {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    public void setKeepAlive(boolean keepAlive)
+    {
+        this.keepAlive = keepAlive;
+    }
+
+    /**
+     * @param acceptBacklog
+     *         number of pending clients a server queues, at least 1
+     *
+     * @throws IllegalArgumentException
+     *         if the backlog is smaller than 1
+     */
+    public void setAcceptBacklog(int acceptBacklog)
+    {
+        if (acceptBacklog < 1)
+        {
+            throw new IllegalArgumentException("the backlog needs to be at least 1");
+        }
+        this.acceptBacklog = acceptBacklog;
+    }
+
+    public int getConnectTimeout()
+    {
+        return this.connectTimeout;
+    }
+
+    public int getMaxConnectAttempts()
+    {
+        return this.maxConnectAttempts;
+    }
+
+    public long getRetryBaseDelay()
+    {
+        return this.retryBaseDelay;
+    }
+
+    public long getRetryMaxDelay()
+    {
+        return this.retryMaxDelay;
+    }
+
+    public int getSendBufferSize()
+    {
+        return this.sendBufferSize;
+    }
+
+    public int getReceiveBufferSize()
+    {
+        return this.receiveBufferSize;
+    }
+
+    public boolean isTcpNoDelay()
+    {
+        return this.tcpNoDelay;
+    }
+
+    public boolean isKeepAlive()
+    {
+        return this.keepAlive;
+    }
+
+    public int getAcceptBacklog()
+    {
+        return this.acceptBacklog;
+    }
+
+    @NonNull
+    @Override
+    public String toString()
+    {
+        return "TcpConnectionConfig{" +
+                "connectTimeout=" + connectTimeout +
+                ", maxConnectAttempts=" + maxConnectAttempts +
+                ", retryBaseDelay=" + retryBaseDelay +
+                ", retryMaxDelay=" + retryMaxDelay +
+                ", sendBufferSize=" + sendBufferSize +
+                ", receiveBufferSize=" + receiveBufferSize +
+                ", tcpNoDelay=" + tcpNoDelay +
+                ", keepAlive=" + keepAlive +
+                ", acceptBacklog=" + acceptBacklog +
+                '}';
+    }
+}
@@ -0,0 +1,482 @@
+package willi.boelke.services.serviceDiscovery;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A serial queue, running all tasks of an engine on one dedicated thread.
+ * <p>
+ * <h2>Why</h2>
+ * The engines state (discovered devices, services, listeners...) is changed by
+ * broadcast receivers and system callbacks on the main thread, as well as by
+ * API calls from any thread. Running all of that on one thread, one
+ * task after the other, keeps the state consistent without any locks,
+ * and keeps matching work off the main thread.
+ * <p>
+ * <h2>Usage</h2>
+ * Events (broadcasts, callbacks) should be passed on through {@link #execute(Runnable)},
+ * which returns immediately. API calls which don't return anything should use
+ * {@link #dispatch(Runnable)}, which returns immediately as well, so the calling
+ * (main) thread is not blocked by the engine. Only API calls which need to return
+ * a result or need to be done when the call returns should use {@link #runAndWait(Runnable)}
+ * and {@link #call(Callable)}, they wait until the task ran. API calls which are likely
+ * made from the main thread should use {@link #runAndWait(Runnable, long)} and
+ * {@link #call(Callable, long, Object)}, which give up waiting after a timeout.
+ * Called on the engine thread itself (for example by a listener) the task runs right away.
+ * <p>
+ * All tasks, no matter through which method they were passed on, run in the
+ * order they where passed on.
+ * Delayed tasks (timeouts, sweeps) can be scheduled through {@link #executeDelayed(Runnable, long)}.
+ * <p>
+ * The {@link #getLooper() looper} of the thread can be passed to Android APIs,
+ * so their callbacks will be delivered on the engine thread.
+ * <p>
+ * <h2>Metrics</h2>
+ * The executor keeps track of the number of waiting tasks (queue depth) and the time
+ * tasks waited before they ran (latency), see {@link #getMetrics()}.
+ *
+ * @author WilliBoelke
+ */
+public class EngineExecutor implements Executor
+{
+    //
+    //  ----------  instance variables ----------
+    //
+
+    /**
+     * Classname for logging
+     */
+    private final String TAG = this.getClass().getSimpleName();
+
+    private final HandlerThread thread;
+
+    private final Handler handler;
+
+    /**
+     * Number of tasks passed to {@link #execute(Runnable)} which did not run yet
+     */
+    private final AtomicInteger queueDepth = new AtomicInteger(0);
+
+    private final AtomicInteger maxQueueDepth = new AtomicInteger(0);
+
+    private final AtomicLong executedTasks = new AtomicLong(0);
+
+    /**
+     * Sum of the time all executed tasks waited, in milliseconds
+     */
+    private final AtomicLong totalLatency = new AtomicLong(0);
+
+    private final AtomicLong maxLatency = new AtomicLong(0);
+
+    //
+    //  ----------  constructor and initialisation ----------
+    //
+
+    /**
+     * Creates and starts the engine thread
+     *
+     * @param name
+     *         the name of the thread
+     */
+    public EngineExecutor(String name)
+    {
+        this.thread = new HandlerThread(name);
+        this.thread.start();
+        this.handler = new Handler(this.thread.getLooper());
+    }
+
+    //
+    //  ----------  executing ----------
+    //
+
+    /**
+     * Adds a task to the end of the queue, it will run
+     * after all tasks added before
+     *
+     * @param task
+     *         the task to run on the engine thread
+     */
+    @Override
+    public void execute(@NonNull Runnable task)
+    {
+        if (!enqueue(task))
+        {
+            EngineLog.e(TAG, "execute: engine thread is not running - task dropped");
+        }
+    }
+
+    private boolean enqueue(Runnable task)
+    {
+        long enqueued = SystemClock.uptimeMillis();
+        int depth = this.queueDepth.incrementAndGet();
+        updateMax(this.maxQueueDepth, depth);
+        if (!this.handler.post(() ->
+        {
+            this.queueDepth.decrementAndGet();
+            run(task, enqueued);
+        }))
+        {
+            this.queueDepth.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Runs a task after the given delay.
+     * The task can be canceled through {@link #cancel(Runnable)}.
+     *
+     * @param task
+     *         the task to run on the engine thread
+     * @param delay
+     *         the delay in milliseconds
+     */
+    public void executeDelayed(Runnable task, long delay)
+    {
+        long due = SystemClock.uptimeMillis() + delay;
+        // the task is used as token, so it can be canceled
+        this.handler.postAtTime(() -> run(task, due), task, due);
+    }
+
+    /**
+     * Cancels a task scheduled through {@link #executeDelayed(Runnable, long)}
+     * which did not run yet
+     *
+     * @param task
+     *         the task
+     */
+    public void cancel(Runnable task)
+    {
+        this.handler.removeCallbacksAndMessages(task);
+    }
+
+    /**
+     * Adds a task to the end of the queue, like {@link #execute(Runnable)},
+     * without waiting for it.
+     * When called on the engine thread, or after the executor was
+     * {@link #shutdown() shut down}, the task runs right away, so API calls
+     * made by a listener or while stopping the engine take effect immediately.
+     *
+     * @param task
+     *         the task to run on the engine thread
+     */
+    public void dispatch(Runnable task)
+    {
+        if (isEngineThread() || !enqueue(task))
+        {
+            // on the engine thread, or the engine thread was shut down
+            task.run();
+        }
+    }
+
+    /**
+     * Runs a task on the engine thread and waits until it ran.
+     * When called on the engine thread the task runs right away.
+     *
+     * @param task
+     *         the task
+     */
+    public void runAndWait(Runnable task)
+    {
+        call(() ->
+        {
+            task.run();
+            return null;
+        });
+    }
+
+    /**
+     * Runs a task on the engine thread and waits for its result.
+     * When called on the engine thread, or after the executor was
+     * {@link #shutdown() shut down}, the task runs right away.
+     *
+     * @param task
+     *         the task
+     * @param <T>
+     *         the type of the result
+     *
+     * @return the result of the task
+     *
+     * @throws IllegalStateException
+     *         if the calling thread was interrupted while waiting
+     */
+    public <T> T call(Callable<T> task)
+    {
+        FutureTask<T> future = submit(task);
+        try
+        {
+            return future.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while waiting for the engine thread", e);
+        }
+        catch (ExecutionException e)
+        {
+            throw unwrap(e);
+        }
+    }
+
+    /**
+     * Runs a task on the engine thread and waits for its result,
+     * but not longer than the given timeout, so the calling (main) thread
+     * is not held up by a long queue.
+     * If the task did not run in time it stays queued and will run later,
+     * {@code timedOut} is returned instead of its result.
+     * When called on the engine thread, or after the executor was
+     * {@link #shutdown() shut down}, the task runs right away.
+     *
+     * @param task
+     *         the task
+     * @param timeout
+     *         the longest time to wait, in milliseconds
+     * @param timedOut
+     *         returned if the task did not run within the timeout
+     * @param <T>
+     *         the type of the result
+     *
+     * @return the result of the task, or {@code timedOut}
+     *
+     * @throws IllegalStateException
+     *         if the calling thread was interrupted while waiting
+     */
+    public <T> T call(Callable<T> task, long timeout, T timedOut)
+    {
+        FutureTask<T> future = submit(task);
+        try
+        {
+            return future.get(timeout, TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException e)
+        {
+            EngineLog.w(TAG, "call: task did not run within " + timeout + "ms, it stays queued");
+            return timedOut;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while waiting for the engine thread", e);
+        }
+        catch (ExecutionException e)
+        {
+            throw unwrap(e);
+        }
+    }
+
+    /**
+     * Runs a task on the engine thread and waits until it ran,
+     * but not longer than the given timeout, see {@link #call(Callable, long, Object)}
+     *
+     * @param task
+     *         the task
+     * @param timeout
+     *         the longest time to wait, in milliseconds
+     *
+     * @return true if the task ran, false if it is still queued
+     */
+    public boolean runAndWait(Runnable task, long timeout)
+    {
+        return call(() ->
+        {
+            task.run();
+            return true;
+        }, timeout, false);
+    }
+
+    private <T> FutureTask<T> submit(Callable<T> task)
+    {
+        FutureTask<T> future = new FutureTask<>(task);
+        if (isEngineThread() || !enqueue(future))
+        {
+            // on the engine thread, or the engine thread was shut down
+            future.run();
+        }
+        return future;
+    }
+
+    private static RuntimeException unwrap(ExecutionException e)
+    {
+        Throwable cause = e.getCause();
+        if (cause instanceof RuntimeException)
+        {
+            return (RuntimeException) cause;
+        }
+        if (cause instanceof Error)
+        {
+            throw (Error) cause;
+        }
+        return new IllegalStateException(cause);
+    }
+
+    private void run(Runnable task, long due)
+    {
+        long latency = Math.max(0, SystemClock.uptimeMillis() - due);
+        this.totalLatency.addAndGet(latency);
+        updateMax(this.maxLatency, latency);
+        this.executedTasks.incrementAndGet();
+        try
+        {
+            task.run();
+        }
+        catch (RuntimeException e)
+        {
+            // a failing task should not take down the engine thread
+            EngineLog.e(TAG, "run: task failed", e);
+        }
+    }
+
+    private static void updateMax(AtomicInteger max, int value)
+    {
+        int current = max.get();
+        while (value > current && !max.compareAndSet(current, value))
+        {
+            current = max.get();
+        }
+    }
+
+    private static void updateMax(AtomicLong max, long value)
+    {
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value))
+        {
+            current = max.get();
+        }
+    }
+
+    /**
+     * Stops the engine thread, after the already queued tasks ran.
+     * Tasks passed on through {@link #execute(Runnable)} afterwards will be dropped,
+     * tasks passed on through {@link #dispatch(Runnable)} or {@link #call(Callable)}
+     * run right away on the calling thread.
+     */
+    public void shutdown()
+    {
+        this.thread.quitSafely();
+    }
+
+    //
+    //  ----------  getter ----------
+    //
+
+    /**
+     * @return true if called on the engine thread
+     */
+    public boolean isEngineThread()
+    {
+        return Looper.myLooper() == this.thread.getLooper();
+    }
+
+    /**
+     * @return the looper of the engine thread
+     */
+    public Looper getLooper()
+    {
+        return this.thread.getLooper();
+    }
+
+    /**
+     * @return the current metrics
+     */
+    public Metrics getMetrics()
+    {
+        long executed = this.executedTasks.get();
+        return new Metrics(
+                this.queueDepth.get(),
+                this.maxQueueDepth.get(),
+                executed,
+                executed == 0 ? 0 : this.totalLatency.get() / executed,
+                this.maxLatency.get());
+    }
+
+    //
+    //  ----------  metrics ----------
+    //
+
+    /**
+     * Metrics of an {@link EngineExecutor}, at the time they where obtained
+     */
+    public static final class Metrics
+    {
+        private final int queueDepth;
+        private final int maxQueueDepth;
+        private final long executedTasks;
+        private final long averageLatency;
+        private final long maxLatency;
+
+        Metrics(int queueDepth, int maxQueueDepth, long executedTasks, long averageLatency, long maxLatency)
+        {
+            this.queueDepth = queueDepth;
+            this.maxQueueDepth = maxQueueDepth;
+            this.executedTasks = executedTasks;
+            this.averageLatency = averageLatency;
+            this.maxLatency = maxLatency;
+        }
+
+        /**
+         * @return the number of tasks waiting to run
+         */
+        public int getQueueDepth()
+        {
+            return this.queueDepth;
+        }
+
+        /**
+         * @return the highest number of tasks which waited at the same time
+         */
+        public int getMaxQueueDepth()
+        {
+            return this.maxQueueDepth;
+        }
+
+        /**
+         * @return the number of tasks which ran
+         */
+        public long getExecutedTasks()
+        {
+            return this.executedTasks;
+        }
+
+        /**
+         * @return the average time tasks waited before they ran, in milliseconds
+         */
+        public long getAverageLatency()
+        {
+            return this.averageLatency;
+        }
+
+        /**
+         * @return the longest time a task waited before it ran, in milliseconds
+         */
+        public long getMaxLatency()
+        {
+            return this.maxLatency;
+        }
+
+        @NonNull
+        @Override
+        public String toString()
+        {
+            return "Metrics{" +
+                    "queueDepth=" + queueDepth +
+                    ", maxQueueDepth=" + maxQueueDepth +
+                    ", executedTasks=" + executedTasks +
+                    ", averageLatency=" + averageLatency +
+                    "ms, maxLatency=" + maxLatency +
+                    "ms}";
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package willi.boelke.services.serviceDiscovery;
+
+import android.util.Log;
+
+import java.util.Locale;
+
+/**
+ * Logging facade used by all engines, connectors and helpers
+ * instead of {@link Log}.
+ * <p>
+ * <h2>Why</h2>
+ * Log messages are often built from the {@code toString()} of devices or connections,
+ * some of which call into the bluetooth system service (for example to get a device name).
+ * Passed to {@link Log} directly the messages are built even when they
+ * are never printed, on paths which run for every connection or discovered service.
+ * <p>
+ * <h2>Levels</h2>
+ * Messages below the {@link #setLevel(int) level} are dropped before anything
+ * is done. The level defaults to {@link Log#DEBUG} in debug builds and
+ * to {@link Log#INFO} in release builds.
+ * <p>
+ * <h2>Lazy messages</h2>
+ * Messages which are expensive to build should be passed as a {@link MessageSupplier},
+ * it is only called if the message will be logged:
+ * <pre>
+ *     EngineLog.d(TAG, () -> "open connections " + connectionTable());
+ * </pre>
+ * Plain string messages which only concatenate constants are cheap
+ * and can be passed as they are. {@link #isLoggable(int)} can guard
+ * blocks doing more than building a single message.
+ *
+ * @author WilliBoelke
+ */
+public final class EngineLog
+{
+    //
+    //  ----------  static members ----------
+    //
+
+    /**
+     * Messages below this level are dropped
+     */
+    private static volatile int level = BuildConfig.DEBUG ? Log.DEBUG : Log.INFO;
+
+    //
+    //  ----------  constructor and initialisation ----------
+    //
+
+    private EngineLog()
+    {
+        // static methods only
+    }
+
+    //
+    //  ----------  config ----------
+    //
+
+    /**
+     * Sets the lowest level which will be logged
+     *
+     * @param level
+     *         one of {@link Log#VERBOSE}, {@link Log#DEBUG}, {@link Log#INFO},
+     *         {@link Log#WARN}, {@link Log#ERROR}
+     *
+     * @throws IllegalArgumentException
+     *         if the level is not one of the above
+     */
+    public static void setLevel(int level)
+    {
+        if (level < Log.VERBOSE || level > Log.ERROR)
+        {
+            throw new IllegalArgumentException(String.format(Locale.ROOT, "unknown log level %d", level));
+        }
+        EngineLog.level = level;
+    }
+
+    /**
+     * @return the lowest level which will be logged
+     */
+    public static int getLevel()
+    {
+        return level;
+    }
+
+    /**
+     * @param level
+     *         the level of a message
+     *
+     * @return true if messages of the given level will be logged
+     */
+    public static boolean isLoggable(int level)
+    {
+        return level >= EngineLog.level;
+    }
+
+    //
+    //  ----------  logging ----------
+    //
+
+    public static void v(String tag, String message)
+    {
+        if (isLoggable(Log.VERBOSE))
+        {
+            Log.v(tag, message);
+        }
+    }
+
+    public static void v(String tag, MessageSupplier message)
+    {
+        if (isLoggable(Log.VERBOSE))
+        {
+            Log.v(tag, message.get());
+        }
+    }
+
+    public static void d(String tag, String message)
+    {
+        if (isLoggable(Log.DEBUG))
+        {
+            Log.d(tag, message);
+        }
+    }
+
+    public static void d(String tag, MessageSupplier message)
+    {
+        if (isLoggable(Log.DEBUG))
+        {
+            Log.d(tag, message.get());
+        }
+    }
+
+    public static void d(String tag, String message, Throwable throwable)
+    {
+        if (isLoggable(Log.DEBUG))
+        {
+            Log.d(tag, message, throwable);
+        }
+    }
+
+    public static void i(String tag, String message)
+    {
+        if (isLoggable(Log.INFO))
+        {
+            Log.i(tag, message);
+        }
+    }
+
+    public static void i(String tag, MessageSupplier message)
+    {
+        if (isLoggable(Log.INFO))
+        {
+            Log.i(tag, message.get());
+        }
+    }
+
+    public static void w(String tag, String message)
+    {
+        if (isLoggable(Log.WARN))
+        {
+            Log.w(tag, message);
+        }
+    }
+
+    public static void w(String tag, MessageSupplier message)
+    {
+        if (isLoggable(Log.WARN))
+        {
+            Log.w(tag, message.get());
+        }
+    }
+
+    public static void w(String tag, String message, Throwable throwable)
+    {
+        if (isLoggable(Log.WARN))
+        {
+            Log.w(tag, message, throwable);
+        }
+    }
+
+    public static void e(String tag, String message)
+    {
+        if (isLoggable(Log.ERROR))
+        {
+            Log.e(tag, message);
+        }
+    }
+
+    public static void e(String tag, MessageSupplier message)
+    {
+        if (isLoggable(Log.ERROR))
+        {
+            Log.e(tag, message.get());
+        }
+    }
+
+    public static void e(String tag, String message, Throwable throwable)
+    {
+        if (isLoggable(Log.ERROR))
+        {
+            Log.e(tag, message, throwable);
+        }
+    }
+
+    //
+    //  ----------  lazy messages ----------
+    //
+
+    /**
+     * Builds a log message, only called when the message will be logged
+     */
+    public interface MessageSupplier
+    {
+        String get();
+    }
+}
@@ -0,0 +1,234 @@
+package willi.boelke.services.serviceDiscovery;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A hashed timing wheel, keeping track of when keys expire.
+ * <p>
+ * <h2>Why</h2>
+ * Discovered peers and services need to be forgotten when they
+ * were not seen for some time. Checking the last-seen time of every entry
+ * on every sweep gets expensive with many entries, most of them
+ * being nowhere near expiring.
+ * <p>
+ * <h2>How</h2>
+ * The time is divided into ticks of a fixed duration, each tick is
+ * mapped to one of a fixed number of slots (tick modulo number of slots).
+ * A key is put into the slot of the tick its deadline falls into.
+ * {@link #advance(long)} only looks at the slots of the ticks which passed since
+ * the last call, so a sweep only costs as much as the keys in these slots.
+ * <p>
+ * Deadlines further away than one revolution of the wheel are
+ * kept in their slot until the wheel comes around in the right revolution.
+ * Scheduling a key again (when it was seen again) moves it to its new slot,
+ * so each key is only kept once.
+ * <p>
+ * Keys expire with a delay of up to one tick duration, which is
+ * precise enough for expiring discovered services.
+ * <p>
+ * This is not thread safe and should only be used from one thread,
+ * or be synchronized by the caller.
+ *
+ * @param <K>
+ *         the type of the keys
+ *
+ * @author WilliBoelke
+ */
+public class ExpiryWheel<K>
+{
+    //
+    //  ----------  instance variables ----------
+    //
+
+    private final long tickDuration;
+
+    private final ArrayList<HashSet<K>> slots;
+
+    /**
+     * The deadline and slot of each key
+     */
+    private final HashMap<K, Timeout> timeouts = new HashMap<>();
+
+    /**
+     * The tick of the last {@link #advance(long)} call
+     */
+    private long lastTick;
+
+    private boolean started = false;
+
+    //
+    //  ----------  constructor and initialisation ----------
+    //
+
+    /**
+     * Constructor
+     *
+     * @param tickDuration
+     *         the duration of a tick in milliseconds
+     * @param numberOfSlots
+     *         the number of slots of the wheel
+     *
+     * @throws IllegalArgumentException
+     *         if the tick duration or the number of slots is not positive
+     */
+    public ExpiryWheel(long tickDuration, int numberOfSlots)
+    {
+        if (tickDuration <= 0 || numberOfSlots <= 0)
+        {
+            throw new IllegalArgumentException("tick duration and number of slots need to be positive");
+        }
+        this.tickDuration = tickDuration;
+        this.slots = new ArrayList<>(numberOfSlots);
+        for (int i = 0; i < numberOfSlots; i++)
+        {
+            this.slots.add(new HashSet<>());
+        }
+    }
+
+    //
+    //  ----------  scheduling ----------
+    //
+
+    /**
+     * Schedules a key to expire at the given deadline,
+     * replacing a deadline it was scheduled with before.
+     *
+     * @param key
+     *         the key
+     * @param deadline
+     *         the time at which the key expires, in milliseconds
+     */
+    public void schedule(K key, long deadline)
+    {
+        long tick = Math.floorDiv(deadline, this.tickDuration);
+        if (this.started && tick < this.lastTick)
+        {
+            // the slot of the deadline already passed
+            tick = this.lastTick;
+        }
+        int slot = (int) Math.floorMod(tick, (long) this.slots.size());
+        Timeout previous = this.timeouts.put(key, new Timeout(deadline, slot));
+        if (previous != null)
+        {
+            this.slots.get(previous.slot).remove(key);
+        }
+        this.slots.get(slot).add(key);
+    }
+
+    /**
+     * Removes a key from the wheel
+     *
+     * @param key
+     *         the key
+     *
+     * @return true if the key was scheduled
+     */
+    public boolean cancel(K key)
+    {
+        Timeout timeout = this.timeouts.remove(key);
+        if (timeout == null)
+        {
+            return false;
+        }
+        this.slots.get(timeout.slot).remove(key);
+        return true;
+    }
+
+    /**
+     * Advances the wheel to the given time, removing
+     * and returning all keys which expired until then.
+     *
+     * @param now
+     *         the current time, in milliseconds
+     *
+     * @return the expired keys, can be empty
+     */
+    public List<K> advance(long now)
+    {
+        List<K> expired = new ArrayList<>();
+        long tick = Math.floorDiv(now, this.tickDuration);
+        long firstTick;
+        if (!this.started || tick - this.lastTick >= this.slots.size())
+        {
+            // every slot needs to be looked at
+            firstTick = tick - this.slots.size() + 1;
+        }
+        else
+        {
+            // the last slot may contain keys which expired since the last call
+            firstTick = this.lastTick;
+        }
+        for (long t = firstTick; t <= tick; t++)
+        {
+            Iterator<K> iterator = this.slots.get((int) Math.floorMod(t, (long) this.slots.size())).iterator();
+            while (iterator.hasNext())
+            {
+                K key = iterator.next();
+                if (this.timeouts.get(key).deadline <= now)
+                {
+                    iterator.remove();
+                    this.timeouts.remove(key);
+                    expired.add(key);
+                }
+            }
+        }
+        this.lastTick = this.started ? Math.max(tick, this.lastTick) : tick;
+        this.started = true;
+        return expired;
+    }
+
+    /**
+     * Removes all keys
+     */
+    public void clear()
+    {
+        for (HashSet<K> slot : this.slots)
+        {
+            slot.clear();
+        }
+        this.timeouts.clear();
+    }
+
+    //
+    //  ----------  getter ----------
+    //
+
+    /**
+     * @param key
+     *         the key
+     *
+     * @return true if the key is scheduled
+     */
+    public boolean contains(K key)
+    {
+        return this.timeouts.containsKey(key);
+    }
+
+    /**
+     * @return the number of scheduled keys
+     */
+    public int size()
+    {
+        return this.timeouts.size();
+    }
+
+    //
+    //  ----------  timeout ----------
+    //
+
+    private static final class Timeout
+    {
+        final long deadline;
+        final int slot;
+
+        Timeout(long deadline, int slot)
+        {
+            this.deadline = deadline;
+            this.slot = slot;
+        }
+    }
+}
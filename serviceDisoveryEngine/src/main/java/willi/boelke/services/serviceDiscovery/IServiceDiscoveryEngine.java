@@ -59,6 +59,26 @@ public interface IServiceDiscoveryEngine
      */
     void notifyAboutAllServices(boolean all);
 
+    /**
+     * Sets the time after which a service which was not seen
+     * anymore will be considered lost.
+     * Lost services will be removed and reported to the
+     * {@link ServiceChangeListener}s, so the engine does not keep
+     * peers which are long gone.
+     *
+     * @param expiryTime
+     *         the time in milliseconds, 0 to never expire services
+     */
+    void setServiceExpiryTime(long expiryTime);
+
+    /**
+     * Returns the metrics of the engines {@link EngineExecutor},
+     * the queue depth and latency of the engine thread
+     *
+     * @return the current metrics
+     */
+    EngineExecutor.Metrics getExecutorMetrics();
+
     /**
      * To determine whether the engine was started or not
      *
@@ -0,0 +1,594 @@
+package willi.boelke.services.serviceDiscovery;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Notifies registered listeners about events, each listener on its own executor.
+ * <p>
+ * <h2>Why</h2>
+ * The engines notified their listeners one after the other, right within the discovery.
+ * A single slow listener would stall the discovery and all other listeners.
+ * <p>
+ * <h2>Registrations</h2>
+ * Each listener is registered with an {@link Executor} it will be notified on,
+ * as well as a bounded queue of events. The events of one listener are delivered
+ * one after the other, in the order they were dispatched. A listener registered without
+ * an executor will be notified right away on the dispatching thread, as before.
+ * <p>
+ * The registrations are kept in a {@link CopyOnWriteArrayList}, listeners can
+ * (un)register at any time, even while being notified. Listeners are
+ * identified by reference, not by {@code equals}.
+ * <p>
+ * <h2>Overflow</h2>
+ * When a listener can't keep up and its queue is full, events will be handled
+ * according to the {@link OverflowPolicy} it was registered with. Dropped events
+ * are counted, see {@link #getDroppedEvents()}.
+ * <p>
+ * Exceptions thrown by a listener will be logged, they wont
+ * affect the other listeners or the engine.
+ * <p>
+ * <h2>Weak registrations</h2>
+ * Listeners registered through {@link #registerWeakly(Object, Executor)} are only
+ * weakly referenced, so an Activity or ViewModel which forgot to unregister can still be
+ * garbage collected. Collected listeners are removed on the next dispatch. This is
+ * cheap, the collected registrations are taken from a {@link ReferenceQueue}
+ * and not found by looking at every registration.
+ *
+ * @param <L>
+ *         the type of the listeners
+ *
+ * @author WilliBoelke
+ */
+public class ListenerDispatcher<L>
+{
+    //
+    //  ----------  static members ----------
+    //
+
+    /**
+     * The number of events which can wait for a listener by default
+     */
+    public static final int DEFAULT_QUEUE_CAPACITY = 64;
+
+    /**
+     * Executor notifying listeners right away, on the dispatching thread
+     */
+    public static final Executor DIRECT_EXECUTOR = Runnable::run;
+
+    /**
+     * Decides what happens when an event is dispatched
+     * to a listener whose queue is full
+     */
+    public enum OverflowPolicy
+    {
+        /**
+         * The oldest waiting event will be dropped
+         */
+        DROP_OLDEST,
+
+        /**
+         * The new event will be dropped
+         */
+        DROP_NEWEST,
+
+        /**
+         * A waiting event with the same {@link #coalescing(Object, Event) key} as the
+         * new one will be replaced by it, this also applies when the queue is not full.
+         * Otherwise the oldest waiting event will be dropped.
+         */
+        COALESCE
+    }
+
+    /**
+     * An event, to be delivered to a listener
+     *
+     * @param <L>
+     *         the type of the listeners
+     */
+    public interface Event<L>
+    {
+        void deliverTo(L listener);
+    }
+
+    //
+    //  ----------  instance variables ----------
+    //
+
+    /**
+     * Classname for logging
+     */
+    private final String TAG = this.getClass().getSimpleName();
+
+    private final CopyOnWriteArrayList<Registration> registrations = new CopyOnWriteArrayList<>();
+
+    private final AtomicLong droppedEvents = new AtomicLong(0);
+
+    /**
+     * Weak references of collected listeners are enqueued here
+     */
+    private final ReferenceQueue<L> collectedListeners = new ReferenceQueue<>();
+
+    //
+    //  ----------  registration ----------
+    //
+
+    /**
+     * Registers a listener to be notified right away, on the dispatching thread
+     *
+     * @param listener
+     *         the listener
+     *
+     * @return false if the listener was already registered
+     */
+    public boolean register(L listener)
+    {
+        return register(listener, DIRECT_EXECUTOR);
+    }
+
+    /**
+     * Registers a listener to be notified on the given executor,
+     * with a queue of {@link #DEFAULT_QUEUE_CAPACITY} events which
+     * will be coalesced when full
+     *
+     * @param listener
+     *         the listener
+     * @param executor
+     *         the executor to notify the listener on
+     *
+     * @return false if the listener was already registered
+     */
+    public boolean register(L listener, Executor executor)
+    {
+        return register(listener, executor, DEFAULT_QUEUE_CAPACITY, OverflowPolicy.COALESCE);
+    }
+
+    /**
+     * Registers a listener to be notified on the given executor
+     *
+     * @param listener
+     *         the listener
+     * @param executor
+     *         the executor to notify the listener on
+     * @param capacity
+     *         the number of events which can wait to be delivered
+     * @param policy
+     *         what to do with events when the queue is full
+     *
+     * @return false if the listener was already registered
+     *
+     * @throws IllegalArgumentException
+     *         if the capacity is not positive
+     */
+    public boolean register(L listener, Executor executor, int capacity, OverflowPolicy policy)
+    {
+        return register(listener, executor, capacity, policy, false);
+    }
+
+    /**
+     * Registers a listener to be notified on the given executor, only keeping
+     * a weak reference to it. The listener will be removed once it was garbage collected,
+     * so it needs to be referenced by its owner as long as it should be notified.
+     *
+     * @param listener
+     *         the listener
+     * @param executor
+     *         the executor to notify the listener on
+     *
+     * @return false if the listener was already registered
+     */
+    public boolean registerWeakly(L listener, Executor executor)
+    {
+        return register(listener, executor, DEFAULT_QUEUE_CAPACITY, OverflowPolicy.COALESCE, true);
+    }
+
+    /**
+     * Registers a listener to be notified right away, only keeping a weak reference to it.
+     *
+     * @param listener
+     *         the listener
+     *
+     * @return false if the listener was already registered
+     *
+     * @see #registerWeakly(Object, Executor)
+     */
+    public boolean registerWeakly(L listener)
+    {
+        return registerWeakly(listener, DIRECT_EXECUTOR);
+    }
+
+    private synchronized boolean register(L listener, Executor executor, int capacity, OverflowPolicy policy, boolean weak)
+    {
+        if (capacity <= 0)
+        {
+            throw new IllegalArgumentException("capacity needs to be positive");
+        }
+        pruneCollected();
+        if (findRegistration(listener) != null)
+        {
+            return false;
+        }
+        this.registrations.add(new Registration(listener, weak, executor, capacity, policy));
+        return true;
+    }
+
+    /**
+     * Unregisters a listener, events which were not
+     * delivered yet will be dropped
+     *
+     * @param listener
+     *         the listener
+     *
+     * @return true if the listener was registered
+     */
+    public synchronized boolean unregister(L listener)
+    {
+        Registration registration = findRegistration(listener);
+        if (registration == null)
+        {
+            return false;
+        }
+        registration.close();
+        return this.registrations.remove(registration);
+    }
+
+    /**
+     * Unregisters all listeners
+     */
+    public synchronized void clear()
+    {
+        for (Registration registration : this.registrations)
+        {
+            registration.close();
+        }
+        this.registrations.clear();
+    }
+
+    private Registration findRegistration(L listener)
+    {
+        for (Registration registration : this.registrations)
+        {
+            if (registration.getListener() == listener)
+            {
+                return registration;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Removes the registrations of weakly registered listeners
+     * which were garbage collected
+     */
+    private void pruneCollected()
+    {
+        Reference<? extends L> collected = this.collectedListeners.poll();
+        if (collected == null)
+        {
+            return;
+        }
+        synchronized (this)
+        {
+            while (collected != null)
+            {
+                // checked cast, the queue only holds listener references
+                ListenerDispatcher<?>.ListenerReference reference = (ListenerDispatcher<?>.ListenerReference) collected;
+                EngineLog.d(TAG, "pruneCollected: removing garbage collected listener");
+                reference.registration.close();
+                this.registrations.remove(reference.registration);
+                collected = this.collectedListeners.poll();
+            }
+        }
+    }
+
+    //
+    //  ----------  dispatching ----------
+    //
+
+    /**
+     * Dispatches an event to all registered listeners
+     *
+     * @param event
+     *         the event
+     */
+    public void dispatch(Event<L> event)
+    {
+        pruneCollected();
+        for (Registration registration : this.registrations)
+        {
+            registration.enqueue(event);
+        }
+    }
+
+    /**
+     * Dispatches an event to a single registered listener,
+     * for example to bring a new listener up to date
+     *
+     * @param listener
+     *         the listener
+     * @param event
+     *         the event
+     *
+     * @return false if the listener is not registered
+     */
+    public boolean dispatchTo(L listener, Event<L> event)
+    {
+        Registration registration = findRegistration(listener);
+        if (registration == null)
+        {
+            return false;
+        }
+        registration.enqueue(event);
+        return true;
+    }
+
+    /**
+     * Creates an event which can be coalesced with other waiting events
+     * of the same key, see {@link OverflowPolicy#COALESCE}
+     *
+     * @param key
+     *         the key, events with equal keys will be coalesced
+     * @param event
+     *         the event
+     * @param <L>
+     *         the type of the listeners
+     *
+     * @return the coalescing event
+     */
+    public static <L> Event<L> coalescing(Object key, Event<L> event)
+    {
+        return new CoalescingEvent<>(key, event);
+    }
+
+    /**
+     * Creates a key from several parts, for {@link #coalescing(Object, Event)}
+     *
+     * @param parts
+     *         the parts of the key, like a device and a service description
+     *
+     * @return a key which is equal to keys created from equal parts
+     */
+    public static Object key(Object... parts)
+    {
+        return Arrays.asList(parts);
+    }
+
+    //
+    //  ----------  getter ----------
+    //
+
+    /**
+     * @return true if no listener is registered
+     */
+    public boolean isEmpty()
+    {
+        pruneCollected();
+        return this.registrations.isEmpty();
+    }
+
+    /**
+     * @return the number of registered listeners
+     */
+    public int size()
+    {
+        pruneCollected();
+        return this.registrations.size();
+    }
+
+    /**
+     * @return the number of events dropped or coalesced since the dispatcher was created
+     */
+    public long getDroppedEvents()
+    {
+        return this.droppedEvents.get();
+    }
+
+    //
+    //  ----------  listener queue ----------
+    //
+
+    /**
+     * A listener, its executor and its queue of events
+     */
+    private final class Registration implements Runnable
+    {
+        /**
+         * The listener, null if it is weakly referenced through {@link #weakListener}
+         */
+        private final L listener;
+        private final ListenerReference weakListener;
+        private final Executor executor;
+        private final int capacity;
+        private final OverflowPolicy policy;
+        private final ArrayDeque<Event<L>> queue = new ArrayDeque<>();
+
+        /**
+         * True while a {@link #run()} is submitted to the executor
+         */
+        private boolean scheduled = false;
+
+        private boolean closed = false;
+
+        Registration(L listener, boolean weak, Executor executor, int capacity, OverflowPolicy policy)
+        {
+            this.listener = weak ? null : listener;
+            this.weakListener = weak ? new ListenerReference(listener, this) : null;
+            this.executor = executor;
+            this.capacity = capacity;
+            this.policy = policy;
+        }
+
+        void enqueue(Event<L> event)
+        {
+            synchronized (this)
+            {
+                if (this.closed)
+                {
+                    return;
+                }
+                if (!offer(event))
+                {
+                    droppedEvents.incrementAndGet();
+                }
+                if (this.scheduled)
+                {
+                    return;
+                }
+                this.scheduled = true;
+            }
+            try
+            {
+                this.executor.execute(this);
+            }
+            catch (RuntimeException e)
+            {
+                // rejected, the events will be delivered with the next dispatch
+                EngineLog.e(TAG, "enqueue: could not execute listener notification", e);
+                synchronized (this)
+                {
+                    this.scheduled = false;
+                }
+            }
+        }
+
+        /**
+         * Adds an event to the queue, applying the {@link #policy}
+         *
+         * @return false if an event was dropped or coalesced
+         */
+        private boolean offer(Event<L> event)
+        {
+            if (this.policy == OverflowPolicy.COALESCE && event instanceof CoalescingEvent)
+            {
+                Object key = ((CoalescingEvent<L>) event).key;
+                Iterator<Event<L>> iterator = this.queue.iterator();
+                while (iterator.hasNext())
+                {
+                    Event<L> waiting = iterator.next();
+                    if (waiting instanceof CoalescingEvent && ((CoalescingEvent<L>) waiting).key.equals(key))
+                    {
+                        iterator.remove();
+                        this.queue.addLast(event);
+                        return false;
+                    }
+                }
+            }
+            if (this.queue.size() < this.capacity)
+            {
+                this.queue.addLast(event);
+                return true;
+            }
+            if (this.policy == OverflowPolicy.DROP_NEWEST)
+            {
+                return false;
+            }
+            this.queue.pollFirst();
+            this.queue.addLast(event);
+            return false;
+        }
+
+        /**
+         * Delivers the waiting events, one after the other.
+         * <p>
+         * If an {@link Error} is thrown by the listener it is passed on,
+         * {@link #scheduled} is reset so the next event is delivered again.
+         */
+        @Override
+        public void run()
+        {
+            boolean drained = false;
+            try
+            {
+                while (true)
+                {
+                    Event<L> event;
+                    L target = getListener();
+                    synchronized (this)
+                    {
+                        event = this.queue.pollFirst();
+                        if (event == null || this.closed || target == null)
+                        {
+                            // reset while holding the lock, so no enqueued event is missed
+                            this.queue.clear();
+                            this.scheduled = false;
+                            drained = true;
+                            return;
+                        }
+                    }
+                    try
+                    {
+                        event.deliverTo(target);
+                    }
+                    catch (RuntimeException e)
+                    {
+                        EngineLog.e(TAG, "run: listener " + target + " failed to handle an event", e);
+                    }
+                }
+            }
+            finally
+            {
+                if (!drained)
+                {
+                    synchronized (this)
+                    {
+                        this.scheduled = false;
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return the listener, null if it was weakly registered and garbage collected
+         */
+        L getListener()
+        {
+            return this.weakListener == null ? this.listener : this.weakListener.get();
+        }
+
+        synchronized void close()
+        {
+            this.closed = true;
+            this.queue.clear();
+        }
+    }
+
+    /**
+     * Weak reference to a listener, knowing its registration
+     * so it can be removed when the listener was collected
+     */
+    private final class ListenerReference extends WeakReference<L>
+    {
+        final Registration registration;
+
+        ListenerReference(L listener, Registration registration)
+        {
+            super(listener, collectedListeners);
+            this.registration = registration;
+        }
+    }
+
+    private static final class CoalescingEvent<L> implements Event<L>
+    {
+        final Object key;
+        private final Event<L> event;
+
+        CoalescingEvent(Object key, Event<L> event)
+        {
+            this.key = key;
+            this.event = event;
+        }
+
+        @Override
+        public void deliverTo(L listener)
+        {
+            this.event.deliverTo(listener);
+        }
+    }
+}
@@ -0,0 +1,537 @@
+package willi.boelke.services.serviceDiscovery;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Keeps track of the discovered peers and the services they host,
+ * and tells what changed with each update.
+ * <p>
+ * <h2>Why</h2>
+ * The discovery engines notify their listeners every time a
+ * service is discovered, after a refresh about every service again.
+ * The snapshot allows to only notify about actual changes,
+ * see {@link ServiceChangeListener}.
+ * <p>
+ * <h2>Versions</h2>
+ * Every change increments the {@link #getVersion() version}, so consumers
+ * can cheaply check if anything changed since they last looked.
+ * <p>
+ * <h2>Updates</h2>
+ * Each update returns the list of {@link ServiceChange}s it caused,
+ * which then can be passed on to the listeners. Services are identified
+ * by their UUID, if the same service is discovered with a different
+ * instance name or TXT record this is a {@link ServiceChange.Type#CHANGED change}.
+ * <p>
+ * Peers are identified by their (MAC) address.
+ * <p>
+ * <h2>Expiry</h2>
+ * The time a service was last seen on a peer is recorded with each update.
+ * When an {@link #setExpiryTime(long) expiry time} is set, services which were not seen
+ * for that long will be removed through {@link #expire()}, which returns
+ * {@link ServiceChange.Type#LOST lost} changes for them. Peers without services are
+ * removed as well, so the snapshot only holds what was seen recently.
+ * The deadlines are kept in an {@link ExpiryWheel}, so expiring
+ * does not need to look at every service.
+ * <p>
+ * Times are taken from {@link System#nanoTime()}, in milliseconds,
+ * the methods taking a time are meant for testing.
+ *
+ * @param <P>
+ *         the type of the peers (BluetoothDevice or WifiP2pDevice)
+ *
+ * @author WilliBoelke
+ */
+public class PeerServiceSnapshot<P>
+{
+    //
+    //  ----------  static members ----------
+    //
+
+    /**
+     * The precision of the expiry, in milliseconds
+     */
+    private static final long EXPIRY_TICK = 1000;
+
+    private static final int EXPIRY_SLOTS = 512;
+
+    //
+    //  ----------  instance variables ----------
+    //
+
+    /**
+     * The peers and their services by the peer address
+     */
+    private final HashMap<String, PeerEntry<P>> peers = new HashMap<>();
+
+    private long version = 0;
+
+    /**
+     * The time after which services which were not seen expire,
+     * 0 if they should never expire
+     */
+    private long expiryTime = 0;
+
+    /**
+     * Deadlines of the services, only used if an {@link #expiryTime} is set
+     */
+    private final ExpiryWheel<ServiceKey> expiryWheel = new ExpiryWheel<>(EXPIRY_TICK, EXPIRY_SLOTS);
+
+    //
+    //  ----------  updates ----------
+    //
+
+    /**
+     * Replaces all services of a peer, as for example after
+     * a SDP query which returns all services of a peer at once.
+     * Services which are not in the given collection anymore are lost.
+     *
+     * @param address
+     *         the address of the peer
+     * @param peer
+     *         the peer
+     * @param services
+     *         all services on the peer
+     *
+     * @return the resulting changes, can be empty
+     */
+    public List<ServiceChange<P>> update(String address, P peer, Collection<ServiceDescription> services)
+    {
+        return update(address, peer, services, now());
+    }
+
+    /**
+     * @see #update(String, Object, Collection)
+     */
+    public synchronized List<ServiceChange<P>> update(String address, P peer, Collection<ServiceDescription> services, long now)
+    {
+        List<ServiceChange<P>> changes = new ArrayList<>();
+        PeerEntry<P> entry = this.peers.get(address);
+        if (entry == null)
+        {
+            if (services.isEmpty())
+            {
+                return changes;
+            }
+            entry = new PeerEntry<>(peer);
+            this.peers.put(address, entry);
+        }
+        entry.peer = peer;
+
+        Map<UUID, ServiceDescription> previousServices = new HashMap<>(entry.services);
+        for (ServiceDescription description : services)
+        {
+            if (previousServices.containsKey(description.getServiceUuid()) || !entry.services.containsKey(description.getServiceUuid()))
+            {
+                // the same service may be reported twice in one update
+                ServiceDescription previous = previousServices.remove(description.getServiceUuid());
+                putService(address, entry, previous, description, changes, now);
+            }
+        }
+        for (ServiceDescription lost : previousServices.values())
+        {
+            removeService(address, entry, lost.getServiceUuid());
+            changes.add(new ServiceChange<>(ServiceChange.Type.LOST, peer, null, lost));
+        }
+        if (entry.services.isEmpty())
+        {
+            this.peers.remove(address);
+        }
+        if (!changes.isEmpty())
+        {
+            this.version++;
+        }
+        return changes;
+    }
+
+    /**
+     * Adds a single service to a peer, as for example when
+     * a DNS-SD service was discovered, other services
+     * of the peer stay untouched.
+     *
+     * @param address
+     *         the address of the peer
+     * @param peer
+     *         the peer
+     * @param description
+     *         the discovered service
+     *
+     * @return the resulting changes, can be empty
+     */
+    public List<ServiceChange<P>> add(String address, P peer, ServiceDescription description)
+    {
+        return add(address, peer, description, now());
+    }
+
+    /**
+     * @see #add(String, Object, ServiceDescription)
+     */
+    public synchronized List<ServiceChange<P>> add(String address, P peer, ServiceDescription description, long now)
+    {
+        List<ServiceChange<P>> changes = new ArrayList<>(1);
+        PeerEntry<P> entry = this.peers.get(address);
+        if (entry == null)
+        {
+            entry = new PeerEntry<>(peer);
+            this.peers.put(address, entry);
+        }
+        entry.peer = peer;
+        putService(address, entry, entry.services.get(description.getServiceUuid()), description, changes, now);
+        if (!changes.isEmpty())
+        {
+            this.version++;
+        }
+        return changes;
+    }
+
+    /**
+     * Removes a peer and all its services
+     *
+     * @param address
+     *         the address of the peer
+     *
+     * @return a lost change for each service of the peer
+     */
+    public synchronized List<ServiceChange<P>> remove(String address)
+    {
+        List<ServiceChange<P>> changes = new ArrayList<>();
+        PeerEntry<P> entry = this.peers.remove(address);
+        if (entry == null)
+        {
+            return changes;
+        }
+        for (ServiceDescription lost : entry.services.values())
+        {
+            this.expiryWheel.cancel(new ServiceKey(address, lost.getServiceUuid()));
+            changes.add(new ServiceChange<>(ServiceChange.Type.LOST, entry.peer, null, lost));
+        }
+        this.version++;
+        return changes;
+    }
+
+    /**
+     * Marks all services of a peer as seen, for example when
+     * the peer itself was discovered again, without its services.
+     *
+     * @param address
+     *         the address of the peer
+     */
+    public void touch(String address)
+    {
+        touch(address, now());
+    }
+
+    /**
+     * @see #touch(String)
+     */
+    public synchronized void touch(String address, long now)
+    {
+        PeerEntry<P> entry = this.peers.get(address);
+        if (entry == null)
+        {
+            return;
+        }
+        for (UUID uuid : entry.services.keySet())
+        {
+            seen(address, entry, uuid, now);
+        }
+    }
+
+    /**
+     * Removes all services which were not seen for the {@link #setExpiryTime(long) expiry time}
+     *
+     * @return a lost change for each expired service
+     */
+    public List<ServiceChange<P>> expire()
+    {
+        return expire(now());
+    }
+
+    /**
+     * @see #expire()
+     */
+    public synchronized List<ServiceChange<P>> expire(long now)
+    {
+        List<ServiceChange<P>> changes = new ArrayList<>();
+        for (ServiceKey key : this.expiryWheel.advance(now))
+        {
+            PeerEntry<P> entry = this.peers.get(key.address);
+            if (entry == null)
+            {
+                continue;
+            }
+            ServiceDescription lost = entry.services.remove(key.uuid);
+            entry.lastSeen.remove(key.uuid);
+            if (lost != null)
+            {
+                changes.add(new ServiceChange<>(ServiceChange.Type.LOST, entry.peer, null, lost));
+            }
+            if (entry.services.isEmpty())
+            {
+                this.peers.remove(key.address);
+            }
+        }
+        if (!changes.isEmpty())
+        {
+            this.version++;
+        }
+        return changes;
+    }
+
+    /**
+     * Removes all peers, without reporting any changes
+     */
+    public synchronized void clear()
+    {
+        if (!this.peers.isEmpty())
+        {
+            this.peers.clear();
+            this.version++;
+        }
+        this.expiryWheel.clear();
+    }
+
+    private void putService(String address, PeerEntry<P> entry, ServiceDescription previous, ServiceDescription description, List<ServiceChange<P>> changes, long now)
+    {
+        seen(address, entry, description.getServiceUuid(), now);
+        if (previous == null)
+        {
+            entry.services.put(description.getServiceUuid(), description);
+            changes.add(new ServiceChange<>(ServiceChange.Type.APPEARED, entry.peer, null, description));
+        }
+        else if (!sameContent(previous, description))
+        {
+            entry.services.put(description.getServiceUuid(), description);
+            changes.add(new ServiceChange<>(ServiceChange.Type.CHANGED, entry.peer, previous, description));
+        }
+    }
+
+    private void removeService(String address, PeerEntry<P> entry, UUID uuid)
+    {
+        entry.services.remove(uuid);
+        entry.lastSeen.remove(uuid);
+        this.expiryWheel.cancel(new ServiceKey(address, uuid));
+    }
+
+    /**
+     * Records the time a service was seen and (re)schedules its expiry
+     */
+    private void seen(String address, PeerEntry<P> entry, UUID uuid, long now)
+    {
+        entry.lastSeen.put(uuid, now);
+        if (this.expiryTime > 0)
+        {
+            this.expiryWheel.schedule(new ServiceKey(address, uuid), now + this.expiryTime);
+        }
+    }
+
+    private static long now()
+    {
+        return System.nanoTime() / 1_000_000;
+    }
+
+    //
+    //  ----------  expiry ----------
+    //
+
+    /**
+     * Sets the time after which services which were not seen
+     * will be removed by {@link #expire()}.
+     * Services already known will be handled as if they were just seen.
+     *
+     * @param expiryTime
+     *         the time in milliseconds, 0 to never expire services
+     */
+    public void setExpiryTime(long expiryTime)
+    {
+        setExpiryTime(expiryTime, now());
+    }
+
+    /**
+     * @see #setExpiryTime(long)
+     */
+    public synchronized void setExpiryTime(long expiryTime, long now)
+    {
+        this.expiryTime = Math.max(0, expiryTime);
+        this.expiryWheel.clear();
+        for (Map.Entry<String, PeerEntry<P>> peer : this.peers.entrySet())
+        {
+            for (UUID uuid : peer.getValue().services.keySet())
+            {
+                seen(peer.getKey(), peer.getValue(), uuid, now);
+            }
+        }
+    }
+
+    public synchronized long getExpiryTime()
+    {
+        return this.expiryTime;
+    }
+
+    /**
+     * {@link ServiceDescription#equals(Object)} only compares the UUIDs,
+     * this also compares the instance name and TXT record.
+     */
+    private static boolean sameContent(ServiceDescription a, ServiceDescription b)
+    {
+        return a.getInstanceName().equals(b.getInstanceName())
+                && a.getTxtRecord().equals(b.getTxtRecord());
+    }
+
+    //
+    //  ----------  reading ----------
+    //
+
+    /**
+     * @return the version, incremented on every change
+     */
+    public synchronized long getVersion()
+    {
+        return this.version;
+    }
+
+    /**
+     * Returns the services of a peer
+     *
+     * @param address
+     *         the address of the peer
+     *
+     * @return a copy of the services, empty if the peer is not known
+     */
+    public synchronized List<ServiceDescription> getServices(String address)
+    {
+        PeerEntry<P> entry = this.peers.get(address);
+        if (entry == null)
+        {
+            return Collections.emptyList();
+        }
+        return new ArrayList<>(entry.services.values());
+    }
+
+    /**
+     * Returns all peers hosting the given service
+     *
+     * @param description
+     *         the service
+     *
+     * @return the peers, can be empty
+     */
+    public synchronized List<P> getHosts(ServiceDescription description)
+    {
+        List<P> hosts = new ArrayList<>();
+        for (PeerEntry<P> entry : this.peers.values())
+        {
+            if (entry.services.containsKey(description.getServiceUuid()))
+            {
+                hosts.add(entry.peer);
+            }
+        }
+        return hosts;
+    }
+
+    /**
+     * Returns the time a service was last seen on a peer
+     *
+     * @param address
+     *         the address of the peer
+     * @param description
+     *         the service
+     *
+     * @return the time in milliseconds, or -1 if the service is not known on the peer
+     */
+    public synchronized long getLastSeen(String address, ServiceDescription description)
+    {
+        PeerEntry<P> entry = this.peers.get(address);
+        if (entry == null)
+        {
+            return -1;
+        }
+        Long lastSeen = entry.lastSeen.get(description.getServiceUuid());
+        return lastSeen != null ? lastSeen : -1;
+    }
+
+    /**
+     * @return the number of peers hosting at least one service
+     */
+    public synchronized int size()
+    {
+        return this.peers.size();
+    }
+
+    /**
+     * Passes all peers and their services as {@link ServiceChange.Type#APPEARED appeared}
+     * changes, for example to bring a new listener up to date.
+     *
+     * @return a change for each service of each peer
+     */
+    public synchronized List<ServiceChange<P>> asChanges()
+    {
+        List<ServiceChange<P>> changes = new ArrayList<>();
+        for (PeerEntry<P> entry : this.peers.values())
+        {
+            for (ServiceDescription description : entry.services.values())
+            {
+                changes.add(new ServiceChange<>(ServiceChange.Type.APPEARED, entry.peer, null, description));
+            }
+        }
+        return changes;
+    }
+
+    //
+    //  ----------  peer entry ----------
+    //
+
+    private static final class PeerEntry<P>
+    {
+        P peer;
+        final LinkedHashMap<UUID, ServiceDescription> services = new LinkedHashMap<>();
+        final HashMap<UUID, Long> lastSeen = new HashMap<>();
+
+        PeerEntry(P peer)
+        {
+            this.peer = peer;
+        }
+    }
+
+    /**
+     * Identifies a service on a peer in the {@link #expiryWheel}
+     */
+    private static final class ServiceKey
+    {
+        final String address;
+        final UUID uuid;
+
+        ServiceKey(String address, UUID uuid)
+        {
+            this.address = address;
+            this.uuid = uuid;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o)
+            {
+                return true;
+            }
+            if (!(o instanceof ServiceKey))
+            {
+                return false;
+            }
+            ServiceKey other = (ServiceKey) o;
+            return this.address.equals(other.address) && this.uuid.equals(other.uuid);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 31 * this.address.hashCode() + this.uuid.hashCode();
+        }
+    }
+}
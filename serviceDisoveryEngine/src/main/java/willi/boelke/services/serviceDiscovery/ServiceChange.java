@@ -0,0 +1,115 @@
+package willi.boelke.services.serviceDiscovery;
+
+import androidx.annotation.NonNull;
+
+/**
+ * A single change of a {@link PeerServiceSnapshot},
+ * to be passed on to {@link ServiceChangeListener}s.
+ *
+ * @param <P>
+ *         the type of the peers
+ *
+ * @author WilliBoelke
+ */
+public final class ServiceChange<P>
+{
+    //
+    //  ----------  type ----------
+    //
+
+    public enum Type
+    {
+        APPEARED,
+        CHANGED,
+        LOST
+    }
+
+    //
+    //  ----------  instance variables ----------
+    //
+
+    private final Type type;
+
+    private final P host;
+
+    private final ServiceDescription previous;
+
+    private final ServiceDescription description;
+
+    //
+    //  ----------  constructor and initialisation ----------
+    //
+
+    ServiceChange(Type type, P host, ServiceDescription previous, ServiceDescription description)
+    {
+        this.type = type;
+        this.host = host;
+        this.previous = previous;
+        this.description = description;
+    }
+
+    //
+    //  ----------  dispatching ----------
+    //
+
+    /**
+     * Calls the method of the listener matching the type of this change
+     *
+     * @param listener
+     *         the listener to notify
+     */
+    public void dispatchTo(ServiceChangeListener<P> listener)
+    {
+        switch (this.type)
+        {
+            case APPEARED:
+                listener.onServiceAppeared(this.host, this.description);
+                break;
+            case CHANGED:
+                listener.onServiceChanged(this.host, this.previous, this.description);
+                break;
+            case LOST:
+                listener.onServiceLost(this.host, this.description);
+                break;
+        }
+    }
+
+    //
+    //  ----------  getter ----------
+    //
+
+    public Type getType()
+    {
+        return this.type;
+    }
+
+    public P getHost()
+    {
+        return this.host;
+    }
+
+    /**
+     * @return the description before a change, or null
+     *         if this is not a {@link Type#CHANGED} change
+     */
+    public ServiceDescription getPrevious()
+    {
+        return this.previous;
+    }
+
+    public ServiceDescription getDescription()
+    {
+        return this.description;
+    }
+
+    @NonNull
+    @Override
+    public String toString()
+    {
+        return "ServiceChange{" +
+                type +
+                ", host=" + host +
+                ", description=" + description +
+                '}';
+    }
+}
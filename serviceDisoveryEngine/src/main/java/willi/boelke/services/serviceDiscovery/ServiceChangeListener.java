@@ -0,0 +1,53 @@
+package willi.boelke.services.serviceDiscovery;
+
+/**
+ * Listener interface to get notified about changes of the
+ * discovered services, instead of every time a service is discovered.
+ * <p>
+ * The discovery engines keep a {@link PeerServiceSnapshot} of all
+ * peers and the services they host. Listeners will only be notified
+ * when the snapshot changes, discovering the same service on the same
+ * peer again (for example after a refresh) wont cause any notification.
+ *
+ * @param <P>
+ *         the type of the peers (BluetoothDevice or WifiP2pDevice)
+ *
+ * @author WilliBoelke
+ */
+public interface ServiceChangeListener<P>
+{
+    /**
+     * Called when a service was discovered on a peer
+     * which was not known to host it before.
+     *
+     * @param host
+     *         the peer hosting the service
+     * @param description
+     *         the description of the service
+     */
+    void onServiceAppeared(P host, ServiceDescription description);
+
+    /**
+     * Called when a service was discovered again, but its
+     * description (instance name or TXT record) changed.
+     *
+     * @param host
+     *         the peer hosting the service
+     * @param previous
+     *         the description before the change
+     * @param description
+     *         the new description of the service
+     */
+    void onServiceChanged(P host, ServiceDescription previous, ServiceDescription description);
+
+    /**
+     * Called when a peer does not host a service anymore,
+     * or is not in range anymore.
+     *
+     * @param host
+     *         the peer which hosted the service
+     * @param description
+     *         the description of the service
+     */
+    void onServiceLost(P host, ServiceDescription description);
+}
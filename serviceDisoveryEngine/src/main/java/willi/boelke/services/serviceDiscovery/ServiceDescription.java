@@ -3,11 +3,10 @@ package willi.boelke.services.serviceDiscovery;
 
 import androidx.annotation.NonNull;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
-import java.util.Objects;
 import java.util.UUID;
 
 /**
@@ -81,7 +80,7 @@ import java.util.UUID;
  * To account for use cases where this method is not usable
  * (e.g. advertising services for and or looking for services to
  * other application which do not use UUIDs generated like that)
- * a custom UUID can be set using {@link #overrideUuidForBluetooth(UUID)}.
+ * a custom UUID can be set using {@link Builder#setServiceUuid(UUID)}.
  * This is for the use with Bluetooth and cant be used for Wifi Direct.
  * Wifi-Direct will use the full Service Records and not the UUID.
  * Thus the UUID cant be resolved at the discovering side.
@@ -89,10 +88,17 @@ import java.util.UUID;
  * <h2>Equality</h2>
  * For service descriptions to be equal the service UUID needs to be the same
  * This is the only attribute that will be compared in {@link #equals(Object)}
+ * <p>
+ * <h2>Immutability</h2>
+ * A service description can not be changed after it was created.
+ * The UUID, the bytewise reversed UUID and the hash code are calculated once
+ * on creation. This makes it safe to use descriptions as keys
+ * (see {@link ServiceRegistry}) and keeps the UUID matching, which is
+ * done for every discovered UUID, free of allocations.
  *
  * @author WilliBoelke
  */
-public class ServiceDescription
+public final class ServiceDescription
 {
     //
     //  ----------  instance variables ----------
@@ -113,10 +119,22 @@ public class ServiceDescription
     private final String instanceName;
 
     /**
-     * A custom uuid, which - when set- will be used
-     * instead of a generated one
+     * The service UUID, either set through the {@link Builder}
+     * or generated from the service type
+     */
+    private final UUID serviceUuid;
+
+    /**
+     * The bytewise reversed {@link #serviceUuid}
+     *
+     * @see #getBytewiseReverseUuid()
      */
-    private UUID serviceUuid;
+    private final UUID reversedServiceUuid;
+
+    /**
+     * The hash code, only depending on the {@link #serviceUuid}
+     */
+    private final int hashCode;
 
     /**
      * The Bonjour / DNS Service type
@@ -139,53 +157,42 @@ public class ServiceDescription
      * @param serviceType
      *         This is the serviceType as defined in Bonjour / mDNS-SD.
      *         it can be specified here as a string of the form "_serviceName._transportProtocol"
+     *
+     * @throws NullPointerException
+     *         If the service type is null
      */
     public ServiceDescription(String instanceName, Map<String, String> txtRecord, String serviceType)
     {
-        this.instanceName = instanceName;
-        this.txtRecord = txtRecord;
-        this.serviceType = serviceType;
+        this(instanceName, txtRecord, serviceType, null);
     }
 
     /**
-     * A UUID set using this overrides the UUID generated from teh service records,
-     * making it and the service records independent from each other.
-     *
-     * <h3>NOTE</h3>
-     * ...that this only work for the Bluetooth service discovery and wont
-     * work with WifiDirect
-     * This is based on WiFi direct exchanging the TXT records, instance name and
-     * service type, while Bluetooth will exchange only the UUID itself.
+     * Private constructor used by the {@link Builder}
      *
-     * @param uuid
-     *         A custom UUId overriding the one generated from the Service records
+     * @param serviceUuid
+     *         A custom UUID, if null the UUID will be generated from the service type
      */
-    public void overrideUuidForBluetooth(UUID uuid)
+    private ServiceDescription(String instanceName, Map<String, String> txtRecord, String serviceType, UUID serviceUuid)
     {
-        // it should be worth it to make wifi direct exchanging the UUID
-        // when a custom UUID has been set, the custom UUID though should stay, so Bluetooth service
-        // which don't use a UUID based on these service records can be found.
-        // For now - its here in the comment.
-        this.serviceUuid = uuid;
+        this.instanceName = instanceName;
+        this.txtRecord = txtRecord == null
+                ? Collections.emptyMap()
+                : Collections.unmodifiableMap(new HashMap<>(txtRecord));
+        this.serviceType = serviceType;
+        //--- generating UUID from service type if none was given ---//
+        this.serviceUuid = serviceUuid != null ? serviceUuid : getUuidForService(serviceType);
+        this.reversedServiceUuid = reverseUuidBytewise(this.serviceUuid);
+        this.hashCode = this.serviceUuid.hashCode();
     }
 
     /**
-     * Returns either the UUID set through {@link #overrideUuidForBluetooth(UUID)}
-     * or a UUID generated from the services attributes.
+     * Returns either the UUID set through {@link Builder#setServiceUuid(UUID)}
+     * or a UUID generated from the service type.
      *
      * @return the services UUID
-     *
-     * @throws NullPointerException
-     *         IF the attributes and the custom UUID are null
      */
     public UUID getServiceUuid()
     {
-        if (this.serviceUuid == null)
-        {
-            //--- generating UUID from service type ---//
-            this.serviceUuid = getUuidForService(this.serviceType);
-        }
-
         return this.serviceUuid;
     }
 
@@ -202,6 +209,7 @@ public class ServiceDescription
     /**
      * Returns the Service records ad a Map object.
      * The map containing all key value pairs set through
+     * The returned map can not be modified.
      *
      * @return The service records Map
      */
@@ -225,7 +233,7 @@ public class ServiceDescription
 
 
     /**
-     * This method reverses a UUID Bytewise
+     * This returns the UUID reversed Bytewise
      * <p>
      * This is a workaround for a problem which causes UUIDs
      * obtained with `fetchUuidsWithSdp()` to be in a little endian format
@@ -236,24 +244,39 @@ public class ServiceDescription
      * This will be used on every discovered UUID when enabled in the
      * SdpBluetoothEngine`s configuration, sine the problem cant be predetermined
      * by any means i found.
+     * The reversed UUID is calculated once, when the description is created.
      * <p>
      * <h2>References</h2>
      * This Problem is mentioned in the the
      * <a href="https://issuetracker.google.com/issues/37075233"> google Issue tracker</a>
-     * The code used here to reverse the UUID is stolen from the issues comments and can be found
+     * The code originally used here to reverse the UUID is stolen from the issues comments and can be found
      * <a href="https://gist.github.com/masterjefferson/10922165432ec016a823e46c6eb382e6">here</a>
      *
      * @return the bytewise revered uuid
+     *
+     * @see #reverseUuidBytewise(UUID)
      */
     public UUID getBytewiseReverseUuid()
     {
-        ByteBuffer byteBuffer = ByteBuffer.allocate(16);
-        byteBuffer
-                .putLong(this.getServiceUuid().getLeastSignificantBits())
-                .putLong(this.getServiceUuid().getMostSignificantBits());
-        byteBuffer.rewind();
-        byteBuffer.order(ByteOrder.LITTLE_ENDIAN);
-        return new UUID(byteBuffer.getLong(), byteBuffer.getLong());
+        return this.reversedServiceUuid;
+    }
+
+    /**
+     * Reverses the bytes of a UUID.
+     * <p>
+     * This does the same as writing the least and then the most
+     * significant bits into a ByteBuffer and reading them back in
+     * little endian order, without allocating the buffer.
+     *
+     * @param uuid
+     *         the uuid to reverse
+     *
+     * @return the bytewise reversed uuid
+     */
+    public static UUID reverseUuidBytewise(UUID uuid)
+    {
+        return new UUID(Long.reverseBytes(uuid.getLeastSignificantBits()),
+                Long.reverseBytes(uuid.getMostSignificantBits()));
     }
 
     @Override
@@ -268,13 +291,13 @@ public class ServiceDescription
             return false;
         }
         ServiceDescription that = (ServiceDescription) o;
-        return this.getServiceUuid().equals(that.getServiceUuid());
+        return this.hashCode == that.hashCode && this.serviceUuid.equals(that.serviceUuid);
     }
 
     @Override
     public int hashCode()
     {
-        return Objects.hash(this.getServiceUuid());
+        return this.hashCode;
     }
 
     @NonNull
@@ -294,4 +317,95 @@ public class ServiceDescription
     {
         return this.instanceName;
     }
+
+    //
+    //  ---------- builder ----------
+    //
+
+    /**
+     * Builder for {@link ServiceDescription}s.
+     * <p>
+     * Next to the values which can be passed to the public constructor
+     * this allows to set a custom service UUID.
+     * <p>
+     * <h3>Custom UUIDs</h3>
+     * A UUID set using {@link #setServiceUuid(UUID)} overrides the UUID
+     * generated from the service type, making it and the service
+     * records independent from each other.
+     * This only works for the Bluetooth service discovery and wont
+     * work with WifiDirect.
+     * This is based on WiFi direct exchanging the TXT records, instance name and
+     * service type, while Bluetooth will exchange only the UUID itself.
+     */
+    public static final class Builder
+    {
+        private String instanceName = "";
+        private Map<String, String> txtRecord = Collections.emptyMap();
+        private String serviceType = "";
+        private UUID serviceUuid;
+
+        /**
+         * Creates an empty builder
+         */
+        public Builder()
+        {
+            // nothing to do here
+        }
+
+        /**
+         * Creates a builder initialized with the values
+         * of an existing service description
+         *
+         * @param description
+         *         the service description to copy
+         */
+        public Builder(ServiceDescription description)
+        {
+            this.instanceName = description.instanceName;
+            this.txtRecord = description.txtRecord;
+            this.serviceType = description.serviceType;
+            this.serviceUuid = description.serviceUuid;
+        }
+
+        public Builder setInstanceName(String instanceName)
+        {
+            this.instanceName = instanceName;
+            return this;
+        }
+
+        public Builder setTxtRecord(Map<String, String> txtRecord)
+        {
+            this.txtRecord = txtRecord;
+            return this;
+        }
+
+        /**
+         * Sets the service type, this will reset a
+         * service UUID given through {@link #setServiceUuid(UUID)}
+         * so the UUID will be generated from the new type.
+         */
+        public Builder setServiceType(String serviceType)
+        {
+            this.serviceType = serviceType;
+            this.serviceUuid = null;
+            return this;
+        }
+
+        /**
+         * Sets a custom UUID, overriding the one generated from the service type.
+         *
+         * @param serviceUuid
+         *         A custom UUID
+         */
+        public Builder setServiceUuid(UUID serviceUuid)
+        {
+            this.serviceUuid = serviceUuid;
+            return this;
+        }
+
+        public ServiceDescription build()
+        {
+            return new ServiceDescription(this.instanceName, this.txtRecord, this.serviceType, this.serviceUuid);
+        }
+    }
 }
@@ -1,9 +1,6 @@
 package willi.boelke.services.serviceDiscovery;
 
 import android.content.Context;
-import android.util.Log;
-
-import java.util.ArrayList;
 
 import willi.boelke.services.serviceDiscovery.bluetoothServiceDiscovery.BluetoothServiceDiscoveryEngine;
 import willi.boelke.services.serviceDiscovery.wifiDirectServiceDiscovery.WifiDirectServiceDiscoveryEngine;
@@ -21,9 +18,38 @@ import willi.boelke.services.serviceDiscovery.wifiDirectServiceDiscovery.WifiDir
  * {@link #onServiceRemoveFromDiscovery(ServiceDescription)}
  * and {@link #onNewServiceToDiscover(ServiceDescription)}
  * which can be overwritten in subclasses to react to the specified events.
+ * <p>
+ * <h2>Engine thread</h2>
+ * All changes to the state of an engine run on its {@link #engineExecutor},
+ * one after the other. Events received from the system and API calls
+ * which don't return anything are queued. Starting and stopping waits
+ * until it ran, but not longer than {@link #API_CALL_TIMEOUT}.
+ * <p>
+ * Listeners registered without an executor are notified on the engine thread,
+ * not on the main thread.
  */
 public abstract class ServiceDiscoveryEngine implements IServiceDiscoveryEngine
 {
+    //
+    //  ----------  static members ----------
+    //
+
+    /**
+     * The default time after which services which were not seen expire
+     */
+    public static final long DEFAULT_SERVICE_EXPIRY_TIME = 180000;
+
+    /**
+     * The interval in which expired services will be swept
+     */
+    protected static final long SERVICE_EXPIRY_SWEEP_INTERVAL = 5000;
+
+    /**
+     * The longest time an API call waits for the engine thread, in milliseconds.
+     * Calls which did not run in time stay queued and run later.
+     */
+    protected static final long API_CALL_TIMEOUT = 500;
+
     //
     //  ----------  instance variables ----------
     //
@@ -34,19 +60,20 @@ public abstract class ServiceDiscoveryEngine implements IServiceDiscoveryEngine
     private final String TAG = this.getClass().getSimpleName();
 
     /**
-     * List containing the services (ServiceDescriptions)
+     * Registry containing the services (ServiceDescriptions)
      * of the services registered through {@link #startDiscoveryForService(ServiceDescription)}
+     * indexed by their UUIDs
      */
-    protected ArrayList<ServiceDescription> servicesToLookFor = new ArrayList<>();
+    protected final ServiceRegistry servicesToLookFor = new ServiceRegistry();
 
     /**
      * Gives information about the state of the engine, will
      * set to true if the engine was started {@link  #start(Context)}
      * and false when its stopped {@link #stop()}
      * <p>
-     * can be accessed through {@link #isRunning()}
+     * can be accessed through {@link #isRunning()}, from any thread
      */
-    protected boolean engineRunning = false;
+    protected volatile boolean engineRunning = false;
 
     /**
      * If this is true all listeners will
@@ -54,6 +81,19 @@ public abstract class ServiceDiscoveryEngine implements IServiceDiscoveryEngine
      */
     protected boolean notifyAboutAllServices = false;
 
+    /**
+     * The time after which services which were not seen expire
+     *
+     * @see #setServiceExpiryTime(long)
+     */
+    protected long serviceExpiryTime = DEFAULT_SERVICE_EXPIRY_TIME;
+
+    /**
+     * The serial queue all changes to the state of the engine
+     * run on, see {@link EngineExecutor}
+     */
+    protected final EngineExecutor engineExecutor = new EngineExecutor(this.getClass().getSimpleName());
+
     protected boolean engineIsNotRunning()
     {
         return !engineRunning;
@@ -84,41 +124,46 @@ public abstract class ServiceDiscoveryEngine implements IServiceDiscoveryEngine
     @Override
     public void startDiscoveryForService(ServiceDescription description)
     {
-        if (engineIsNotRunning())
+        this.engineExecutor.dispatch(() ->
         {
-            Log.e(TAG, "startDiscoveryForService: engine is not running - wont start");
-        }
-        Log.d(TAG, "Starting service discovery");
-        // Are we already looking for he service?
-        if (this.isServiceAlreadyInDiscovery(description))
-        {
-            Log.d(TAG, "startDiscoveryForService: Service discovery already running ");
-            return;
-        }
-        // Adding the service to  be found in the future
-        this.servicesToLookFor.add(description);
-
-        // subclasses call
-        onNewServiceToDiscover(description);
+            if (engineIsNotRunning())
+            {
+                EngineLog.e(TAG, "startDiscoveryForService: engine is not running - wont start");
+            }
+            EngineLog.d(TAG, "Starting service discovery");
+            // Adding the service to  be found in the future
+            // if we are not already looking for it
+            if (!this.servicesToLookFor.add(description))
+            {
+                EngineLog.d(TAG, "startDiscoveryForService: Service discovery already running ");
+                return;
+            }
+
+            // subclasses call
+            onNewServiceToDiscover(description);
+        });
     }
 
     @Override
     public void stopDiscoveryForService(ServiceDescription description)
     {
-        if (engineIsNotRunning())
+        this.engineExecutor.dispatch(() ->
         {
-            Log.e(TAG, "startDiscoveryForService: engine is not running - wont start");
-        }
-        Log.d(TAG, "startDiscoveryForService: End service discovery for service with UUID " + description.toString());
-        // removing from list of services
-        this.servicesToLookFor.remove(description);
-
-        // subclasses call
-        onServiceRemoveFromDiscovery(description);
+            if (engineIsNotRunning())
+            {
+                EngineLog.e(TAG, "startDiscoveryForService: engine is not running - wont start");
+            }
+            EngineLog.d(TAG, () -> "startDiscoveryForService: End service discovery for service with UUID " + description.toString());
+            // removing from list of services
+            this.servicesToLookFor.remove(description);
+
+            // subclasses call
+            onServiceRemoveFromDiscovery(description);
+        });
     }
 
     /**
-     * Checks if the service description is already in {@link #servicesToLookFor} list
+     * Checks if the service description is already in {@link #servicesToLookFor}
      *
      * @param description
      *         Description of the service to look for
@@ -147,8 +192,29 @@ public abstract class ServiceDiscoveryEngine implements IServiceDiscoveryEngine
     @Override
     public void notifyAboutAllServices(boolean all)
     {
-        Log.d(TAG, "notifyAboutAllServices: notifying about all service = " + all);
-        this.notifyAboutAllServices = all;
+        EngineLog.d(TAG, () -> "notifyAboutAllServices: notifying about all service = " + all);
+        this.engineExecutor.dispatch(() -> this.notifyAboutAllServices = all);
+    }
+
+    /**
+     * Sets the time after which a service which was not seen
+     * anymore will be considered lost, by default this is
+     * {@link #DEFAULT_SERVICE_EXPIRY_TIME}.
+     *
+     * @param expiryTime
+     *         the time in milliseconds, 0 to never expire services
+     */
+    @Override
+    public void setServiceExpiryTime(long expiryTime)
+    {
+        EngineLog.d(TAG, () -> "setServiceExpiryTime: services expire after " + expiryTime + "ms");
+        this.engineExecutor.dispatch(() -> this.serviceExpiryTime = Math.max(0, expiryTime));
+    }
+
+    @Override
+    public EngineExecutor.Metrics getExecutorMetrics()
+    {
+        return this.engineExecutor.getMetrics();
     }
 
     /**
@@ -0,0 +1,218 @@
+package willi.boelke.services.serviceDiscovery;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Holds the {@link ServiceDescription}s registered for the discovery
+ * and indexes them by their service UUID.
+ * <p>
+ * <h2>Why</h2>
+ * The engines check every UUID they receive (for Bluetooth every UUID
+ * of every SDP result) against the registered services.
+ * With a list this is a linear scan per UUID, which adds up quickly
+ * when many service types are registered.
+ * Here every lookup is a single hash map access and does not allocate anything.
+ * <p>
+ * <h2>Little endian UUIDs</h2>
+ * Some devices report UUIDs in a bytewise reversed (little endian) format
+ * (see {@link ServiceDescription#getBytewiseReverseUuid()}).
+ * To not reverse every received UUID, the reversed UUID of each registered
+ * service is calculated once on registration and kept in a second index.
+ * <p>
+ * <h2>Thread safety</h2>
+ * Both indices are backed by {@link ConcurrentHashMap}s. Lookups don't lock,
+ * updates are synchronized so that both indices always stay consistent.
+ * <p>
+ * <h2>Match table</h2>
+ * For matching large amounts of received UUIDs the registry also provides
+ * a {@link UuidMatchTable}, which is rebuilt on every change and can be
+ * obtained through {@link #getMatchTable()}.
+ *
+ * @author WilliBoelke
+ */
+public class ServiceRegistry implements Iterable<ServiceDescription>
+{
+    //
+    //  ----------  instance variables ----------
+    //
+
+    /**
+     * Registered services by their service UUID
+     */
+    private final ConcurrentHashMap<UUID, ServiceDescription> byUuid = new ConcurrentHashMap<>();
+
+    /**
+     * Registered services by their bytewise reversed service UUID
+     */
+    private final ConcurrentHashMap<UUID, ServiceDescription> byReversedUuid = new ConcurrentHashMap<>();
+
+    /**
+     * Snapshot of the registered services, for matching UUID bits.
+     * Replaced on every change
+     */
+    private volatile UuidMatchTable matchTable = UuidMatchTable.EMPTY;
+
+    //
+    //  ----------  updating the registry ----------
+    //
+
+    /**
+     * Adds a service description to the registry
+     *
+     * @param description
+     *         the service description to add
+     *
+     * @return true if the service was added, false if a service
+     *         with the same UUID was already registered
+     */
+    public synchronized boolean add(ServiceDescription description)
+    {
+        if (this.byUuid.putIfAbsent(description.getServiceUuid(), description) != null)
+        {
+            return false;
+        }
+        this.byReversedUuid.put(description.getBytewiseReverseUuid(), description);
+        this.matchTable = UuidMatchTable.of(this.byUuid.values());
+        return true;
+    }
+
+    /**
+     * Removes a service description from the registry
+     *
+     * @param description
+     *         the service description to remove
+     *
+     * @return true if the service was registered and has been removed, else false
+     */
+    public synchronized boolean remove(ServiceDescription description)
+    {
+        if (this.byUuid.remove(description.getServiceUuid()) == null)
+        {
+            return false;
+        }
+        this.byReversedUuid.remove(description.getBytewiseReverseUuid());
+        this.matchTable = UuidMatchTable.of(this.byUuid.values());
+        return true;
+    }
+
+    /**
+     * Removes all registered services
+     */
+    public synchronized void clear()
+    {
+        this.byUuid.clear();
+        this.byReversedUuid.clear();
+        this.matchTable = UuidMatchTable.EMPTY;
+    }
+
+    //
+    //  ----------  lookup ----------
+    //
+
+    /**
+     * Checks if the service (or rather a service with the same UUID)
+     * is registered
+     *
+     * @param description
+     *         the service description
+     *
+     * @return true if the service is registered, else false
+     */
+    public boolean contains(ServiceDescription description)
+    {
+        return this.byUuid.containsKey(description.getServiceUuid());
+    }
+
+    /**
+     * Returns the registered service with the given UUID
+     *
+     * @param uuid
+     *         the service UUID
+     *
+     * @return the service description or null if there is none
+     */
+    public ServiceDescription get(UUID uuid)
+    {
+        return this.byUuid.get(uuid);
+    }
+
+    /**
+     * Returns the registered service whose bytewise reversed UUID
+     * equals the given UUID
+     *
+     * @param reversedUuid
+     *         A (little endian) UUID as received from a remote device
+     *
+     * @return the service description or null if there is none
+     */
+    public ServiceDescription getByReversedUuid(UUID reversedUuid)
+    {
+        return this.byReversedUuid.get(reversedUuid);
+    }
+
+    /**
+     * Looks up the service for a received UUID.
+     * First tries the UUID as is and - if enabled - then
+     * the UUID as a little endian UUID.
+     *
+     * @param uuid
+     *         the received UUID
+     * @param checkLittleEndian
+     *         whether to also match bytewise reversed UUIDs
+     *
+     * @return the service description or null if there is none
+     */
+    public ServiceDescription find(UUID uuid, boolean checkLittleEndian)
+    {
+        ServiceDescription description = this.byUuid.get(uuid);
+        if (description == null && checkLittleEndian)
+        {
+            description = this.byReversedUuid.get(uuid);
+        }
+        return description;
+    }
+
+    /**
+     * Returns a table of all currently registered services
+     * for matching UUIDs without allocations.
+     * The table wont change when the registry changes.
+     *
+     * @return the current match table
+     */
+    public UuidMatchTable getMatchTable()
+    {
+        return this.matchTable;
+    }
+
+    public boolean isEmpty()
+    {
+        return this.byUuid.isEmpty();
+    }
+
+    public int size()
+    {
+        return this.byUuid.size();
+    }
+
+    /**
+     * Returns a read only view on the registered services.
+     * The view is weakly consistent and can be iterated while
+     * the registry is changed.
+     *
+     * @return the registered services
+     */
+    public Collection<ServiceDescription> values()
+    {
+        return Collections.unmodifiableCollection(this.byUuid.values());
+    }
+
+    @Override
+    public Iterator<ServiceDescription> iterator()
+    {
+        return this.values().iterator();
+    }
+}
@@ -0,0 +1,198 @@
+package willi.boelke.services.serviceDiscovery;
+
+import java.util.Collection;
+
+/**
+ * An immutable open addressing hash table, matching UUIDs
+ * given as their most and least significant bits against
+ * a set of {@link ServiceDescription}s.
+ * <p>
+ * <h2>Why</h2>
+ * Every UUID of every SDP result needs to be matched against the
+ * registered services. The table stores the UUID bits in two
+ * primitive long arrays, a lookup only compares longs and does not
+ * allocate anything (no boxing, no temporary UUIDs or descriptions).
+ * <p>
+ * <h2>Little endian UUIDs</h2>
+ * Each service is stored twice, with its UUID and with its bytewise
+ * reversed UUID (see {@link ServiceDescription#getBytewiseReverseUuid()}).
+ * {@link #isReversed(int)} tells which of the two matched.
+ * If a reversed UUID equals the UUID of another service the
+ * (not reversed) service UUID wins.
+ * <p>
+ * <h2>Usage</h2>
+ * Tables are created by the {@link ServiceRegistry} whenever
+ * services are added or removed and can be obtained through
+ * {@link ServiceRegistry#getMatchTable()}. Since a table never changes
+ * it can be used from any thread.
+ *
+ * @author WilliBoelke
+ */
+public final class UuidMatchTable
+{
+    //
+    //  ---------- static members ----------
+    //
+
+    /**
+     * Returned by {@link #indexOf(long, long)} if no service matches
+     */
+    public static final int NO_MATCH = -1;
+
+    /**
+     * A table without any entries
+     */
+    public static final UuidMatchTable EMPTY = new UuidMatchTable(1);
+
+    //
+    //  ----------  instance variables ----------
+    //
+
+    private final long[] mostSignificantBits;
+
+    private final long[] leastSignificantBits;
+
+    private final ServiceDescription[] descriptions;
+
+    private final boolean[] reversed;
+
+    private final int mask;
+
+    /**
+     * Number of services (not UUIDs) in the table
+     */
+    private int size;
+
+    //
+    //  ---------- constructor and initialization ----------
+    //
+
+    private UuidMatchTable(int capacity)
+    {
+        this.mostSignificantBits = new long[capacity];
+        this.leastSignificantBits = new long[capacity];
+        this.descriptions = new ServiceDescription[capacity];
+        this.reversed = new boolean[capacity];
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * Creates a new table containing the given services
+     *
+     * @param services
+     *         the service descriptions
+     *
+     * @return a new table
+     */
+    public static UuidMatchTable of(Collection<ServiceDescription> services)
+    {
+        if (services.isEmpty())
+        {
+            return EMPTY;
+        }
+        // two entries per service and a load factor below 0.5
+        int capacity = Integer.highestOneBit(services.size() * 4 - 1) << 1;
+        UuidMatchTable table = new UuidMatchTable(capacity);
+        for (ServiceDescription description : services)
+        {
+            table.put(description.getServiceUuid().getMostSignificantBits(),
+                    description.getServiceUuid().getLeastSignificantBits(), description, false);
+        }
+        for (ServiceDescription description : services)
+        {
+            table.put(description.getBytewiseReverseUuid().getMostSignificantBits(),
+                    description.getBytewiseReverseUuid().getLeastSignificantBits(), description, true);
+        }
+        table.size = services.size();
+        return table;
+    }
+
+    private void put(long msb, long lsb, ServiceDescription description, boolean isReversed)
+    {
+        int index = slot(msb, lsb);
+        while (this.descriptions[index] != null)
+        {
+            if (this.mostSignificantBits[index] == msb && this.leastSignificantBits[index] == lsb)
+            {
+                return; // already there
+            }
+            index = (index + 1) & this.mask;
+        }
+        this.mostSignificantBits[index] = msb;
+        this.leastSignificantBits[index] = lsb;
+        this.descriptions[index] = description;
+        this.reversed[index] = isReversed;
+    }
+
+    private int slot(long msb, long lsb)
+    {
+        long hash = (msb * 0x9E3779B97F4A7C15L) ^ lsb;
+        hash ^= (hash >>> 32);
+        hash ^= (hash >>> 16);
+        return (int) hash & this.mask;
+    }
+
+    //
+    //  ---------- lookup ----------
+    //
+
+    /**
+     * Looks up the entry for a UUID
+     *
+     * @param msb
+     *         the most significant bits of the UUID
+     * @param lsb
+     *         the least significant bits of the UUID
+     *
+     * @return the index of the entry or {@link #NO_MATCH}
+     */
+    public int indexOf(long msb, long lsb)
+    {
+        int index = slot(msb, lsb);
+        while (this.descriptions[index] != null)
+        {
+            if (this.mostSignificantBits[index] == msb && this.leastSignificantBits[index] == lsb)
+            {
+                return index;
+            }
+            index = (index + 1) & this.mask;
+        }
+        return NO_MATCH;
+    }
+
+    /**
+     * Returns the service description of a matched entry
+     *
+     * @param index
+     *         an index returned by {@link #indexOf(long, long)}
+     *
+     * @return the service description
+     */
+    public ServiceDescription getDescription(int index)
+    {
+        return this.descriptions[index];
+    }
+
+    /**
+     * Tells whether an entry matched the bytewise reversed UUID of its service
+     *
+     * @param index
+     *         an index returned by {@link #indexOf(long, long)}
+     *
+     * @return true if the reversed UUID matched
+     */
+    public boolean isReversed(int index)
+    {
+        return this.reversed[index];
+    }
+
+    /**
+     * Returns the number of services in this table
+     *
+     * @return the number of services
+     */
+    public int size()
+    {
+        return this.size;
+    }
+}
@@ -0,0 +1,181 @@
+package willi.boelke.services.serviceDiscovery;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps keys (like the {@link ServiceDescription} a client looks for)
+ * to listeners, only keeping weak references to the listeners.
+ * <p>
+ * <h2>Why</h2>
+ * The engines are singletons and live as long as the process. Listeners like
+ * Activities, ViewModels or controllers stored in a plain map would be kept
+ * forever if they are not removed, together with everything they reference.
+ * <p>
+ * <h2>Pruning</h2>
+ * Once a listener was garbage collected its entry is removed. The weak references
+ * of collected listeners are enqueued in a {@link ReferenceQueue}, which is
+ * polled on every access - so only the collected entries are looked at.
+ * <p>
+ * As the listeners are weakly referenced the owner of a listener needs to keep
+ * a reference to it as long as it should be notified.
+ * <p>
+ * This is thread safe.
+ *
+ * @param <K>
+ *         the type of the keys
+ * @param <L>
+ *         the type of the listeners
+ *
+ * @author WilliBoelke
+ */
+public class WeakListenerMap<K, L>
+{
+    //
+    //  ----------  instance variables ----------
+    //
+
+    private final HashMap<K, ListenerReference<K, L>> entries = new HashMap<>();
+
+    private final ReferenceQueue<L> collectedListeners = new ReferenceQueue<>();
+
+    //
+    //  ----------  listeners ----------
+    //
+
+    /**
+     * Stores a listener for the given key,
+     * replacing the listener stored before
+     *
+     * @param key
+     *         the key
+     * @param listener
+     *         the listener
+     */
+    public synchronized void put(K key, L listener)
+    {
+        pruneCollected();
+        this.entries.put(key, new ListenerReference<>(key, listener, this.collectedListeners));
+    }
+
+    /**
+     * @param key
+     *         the key
+     *
+     * @return the listener stored for the key, null if there is
+     *         none or it was garbage collected
+     */
+    public synchronized L get(K key)
+    {
+        pruneCollected();
+        ListenerReference<K, L> reference = this.entries.get(key);
+        return reference == null ? null : reference.get();
+    }
+
+    /**
+     * Removes the listener stored for the given key
+     *
+     * @param key
+     *         the key
+     */
+    public synchronized void remove(K key)
+    {
+        this.entries.remove(key);
+        pruneCollected();
+    }
+
+    /**
+     * Removes all listeners
+     */
+    public synchronized void clear()
+    {
+        this.entries.clear();
+        pruneCollected();
+    }
+
+    /**
+     * Removes the entries of listeners which were garbage collected
+     */
+    private void pruneCollected()
+    {
+        Reference<? extends L> collected;
+        while ((collected = this.collectedListeners.poll()) != null)
+        {
+            ListenerReference<?, ?> reference = (ListenerReference<?, ?>) collected;
+            // the key may have been reassigned to another listener in the meantime
+            if (this.entries.get(reference.key) == reference)
+            {
+                this.entries.remove(reference.key);
+            }
+        }
+    }
+
+    //
+    //  ----------  getter ----------
+    //
+
+    /**
+     * @return the keys of all listeners which were not garbage collected
+     */
+    public synchronized List<K> keys()
+    {
+        pruneCollected();
+        List<K> keys = new ArrayList<>();
+        for (Map.Entry<K, ListenerReference<K, L>> entry : this.entries.entrySet())
+        {
+            if (entry.getValue().get() != null)
+            {
+                keys.add(entry.getKey());
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * @return all listeners which were not garbage collected
+     */
+    public synchronized List<L> listeners()
+    {
+        pruneCollected();
+        List<L> listeners = new ArrayList<>();
+        for (ListenerReference<K, L> reference : this.entries.values())
+        {
+            L listener = reference.get();
+            if (listener != null)
+            {
+                listeners.add(listener);
+            }
+        }
+        return listeners;
+    }
+
+    /**
+     * @return the number of stored listeners, listeners which were collected
+     *         but not enqueued yet may be counted
+     */
+    public synchronized int size()
+    {
+        pruneCollected();
+        return this.entries.size();
+    }
+
+    //
+    //  ----------  reference ----------
+    //
+
+    private static final class ListenerReference<K, L> extends WeakReference<L>
+    {
+        final K key;
+
+        ListenerReference(K key, L listener, ReferenceQueue<L> queue)
+        {
+            super(listener, queue);
+            this.key = key;
+        }
+    }
+}
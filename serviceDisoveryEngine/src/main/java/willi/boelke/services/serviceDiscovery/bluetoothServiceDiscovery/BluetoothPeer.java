@@ -0,0 +1,172 @@
+package willi.boelke.services.serviceDiscovery.bluetoothServiceDiscovery;
+
+import android.bluetooth.BluetoothClass;
+import android.bluetooth.BluetoothDevice;
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+
+/**
+ * A discovered bluetooth device together with the information
+ * received with the {@link BluetoothDevice#ACTION_FOUND} broadcast.
+ * <p>
+ * <h2>RSSI and device class</h2>
+ * The signal strength ({@link BluetoothDevice#EXTRA_RSSI}) tells how close
+ * a peer is, the device class ({@link BluetoothDevice#EXTRA_CLASS}) what kind
+ * of device it is. Both are used by a {@link PeerRankingPolicy} to decide which
+ * peers to query for services and to connect to first.
+ * Either may be unknown, for example when a device was not found
+ * through a device discovery.
+ *
+ * @author WilliBoelke
+ */
+public final class BluetoothPeer
+{
+    //
+    //  ---------- static members ----------
+    //
+
+    /**
+     * RSSI of a peer which signal strength is not known
+     */
+    public static final short RSSI_UNKNOWN = Short.MIN_VALUE;
+
+    /**
+     * Device class of a peer which device class is not known
+     */
+    public static final int DEVICE_CLASS_UNKNOWN = -1;
+
+    /**
+     * Bitmask of the major device class,
+     * same as BluetoothClass.Device.Major.BITMASK
+     */
+    private static final int MAJOR_DEVICE_CLASS_BITMASK = 0x1F00;
+
+    //
+    //  ----------  instance variables ----------
+    //
+
+    private final BluetoothDevice device;
+
+    private final short rssi;
+
+    private final int deviceClass;
+
+    private final long lastSeen;
+
+    //
+    //  ----------  constructor and initialisation ----------
+    //
+
+    /**
+     * Creates a peer without RSSI and device class
+     *
+     * @param device
+     *         the bluetooth device
+     */
+    public BluetoothPeer(BluetoothDevice device)
+    {
+        this(device, RSSI_UNKNOWN, DEVICE_CLASS_UNKNOWN);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param device
+     *         the bluetooth device
+     * @param rssi
+     *         the signal strength in dBm or {@link #RSSI_UNKNOWN}
+     * @param deviceClass
+     *         the device class (see {@link BluetoothClass#getDeviceClass()})
+     *         or {@link #DEVICE_CLASS_UNKNOWN}
+     */
+    public BluetoothPeer(BluetoothDevice device, short rssi, int deviceClass)
+    {
+        this(device, rssi, deviceClass, SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Constructor
+     *
+     * @param device
+     *         the bluetooth device
+     * @param rssi
+     *         the signal strength in dBm or {@link #RSSI_UNKNOWN}
+     * @param deviceClass
+     *         the device class (see {@link BluetoothClass#getDeviceClass()})
+     *         or {@link #DEVICE_CLASS_UNKNOWN}
+     * @param lastSeen
+     *         the time the peer was seen, in {@link SystemClock#elapsedRealtime()} milliseconds
+     */
+    BluetoothPeer(BluetoothDevice device, short rssi, int deviceClass, long lastSeen)
+    {
+        this.device = device;
+        this.rssi = rssi;
+        this.deviceClass = deviceClass;
+        this.lastSeen = lastSeen;
+    }
+
+    //
+    //  ----------  getter ----------
+    //
+
+    public BluetoothDevice getDevice()
+    {
+        return this.device;
+    }
+
+    /**
+     * @return the signal strength in dBm or {@link #RSSI_UNKNOWN}
+     */
+    public short getRssi()
+    {
+        return this.rssi;
+    }
+
+    public boolean hasRssi()
+    {
+        return this.rssi != RSSI_UNKNOWN;
+    }
+
+    /**
+     * @return the device class or {@link #DEVICE_CLASS_UNKNOWN}
+     */
+    public int getDeviceClass()
+    {
+        return this.deviceClass;
+    }
+
+    /**
+     * Returns the major device class, which can be compared with
+     * the constants in BluetoothClass.Device.Major
+     *
+     * @return the major device class or {@link #DEVICE_CLASS_UNKNOWN}
+     */
+    public int getMajorDeviceClass()
+    {
+        if (this.deviceClass == DEVICE_CLASS_UNKNOWN)
+        {
+            return DEVICE_CLASS_UNKNOWN;
+        }
+        return this.deviceClass & MAJOR_DEVICE_CLASS_BITMASK;
+    }
+
+    /**
+     * @return the time the peer was seen, in {@link SystemClock#elapsedRealtime()} milliseconds
+     */
+    public long getLastSeen()
+    {
+        return this.lastSeen;
+    }
+
+    @NonNull
+    @Override
+    public String toString()
+    {
+        return "BluetoothPeer{" +
+                "device=" + device +
+                ", rssi=" + (hasRssi() ? rssi : "unknown") +
+                ", deviceClass=" + deviceClass +
+                '}';
+    }
+}
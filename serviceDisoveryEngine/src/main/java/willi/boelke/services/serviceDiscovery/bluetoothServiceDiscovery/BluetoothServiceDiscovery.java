@@ -1,9 +1,14 @@
 package willi.boelke.services.serviceDiscovery.bluetoothServiceDiscovery;
 
 import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
 import android.content.Context;
 
+import java.util.concurrent.Executor;
+
 import willi.boelke.services.serviceDiscovery.IServiceDiscoveryEngine;
+import willi.boelke.services.serviceDiscovery.PeerServiceSnapshot;
+import willi.boelke.services.serviceDiscovery.ServiceChangeListener;
 import willi.boelke.services.serviceDiscovery.ServiceDescription;
 
 /**
@@ -109,6 +114,11 @@ public interface BluetoothServiceDiscovery extends IServiceDiscoveryEngine
     /**
      * Registers a {@link BluetoothServiceDiscoveryListener} to be notified about
      * discovered devices and services
+     * <p>
+     * <b>The listener is notified on the engine thread, not on the main thread.</b>
+     * It must not block and needs to post to the main thread before touching views,
+     * or be registered through {@link #registerDiscoverListener(BluetoothServiceDiscoveryListener, Executor)}
+     * with the main thread executor (for example {@code ContextCompat.getMainExecutor(context)}).
      *
      * @param listener
      *         implementation of then listener interface
@@ -117,6 +127,31 @@ public interface BluetoothServiceDiscovery extends IServiceDiscoveryEngine
      */
     void registerDiscoverListener(BluetoothServiceDiscoveryListener listener);
 
+    /**
+     * Registers a {@link BluetoothServiceDiscoveryListener} to be notified
+     * on the given executor instead of the engine thread, so a slow
+     * listener does not hold up the discovery.
+     *
+     * @param listener
+     *         implementation of then listener interface
+     * @param executor
+     *         the executor the listener will be notified on
+     */
+    void registerDiscoverListener(BluetoothServiceDiscoveryListener listener, Executor executor);
+
+    /**
+     * Registers a {@link BluetoothServiceDiscoveryListener}, only keeping a weak
+     * reference to it. The listener will be removed once it was garbage collected,
+     * so an Activity or ViewModel does not leak when it forgets to unregister.
+     * Like {@link #registerDiscoverListener(BluetoothServiceDiscoveryListener)}
+     * it is notified on the engine thread.
+     *
+     * @param listener
+     *         implementation of then listener interface, needs to be
+     *         referenced by the caller as long as it should be notified
+     */
+    void registerDiscoverListenerWeakly(BluetoothServiceDiscoveryListener listener);
+
     void unregisterDiscoveryListener(BluetoothServiceDiscoveryListener listener);
 
     //
@@ -134,4 +169,71 @@ public interface BluetoothServiceDiscovery extends IServiceDiscoveryEngine
      *         determines whether little endian UUIDs should be checked or not
      */
     void shouldCheckLittleEndianUuids(boolean checkLittleEndianUuids);
+
+    /**
+     * SDP results will by default be cached across discoveries
+     * and engine restarts.
+     * <p>
+     * Set this to `false` to disable the cache.
+     *
+     * @param useSdpCache
+     *         determines whether sdp results should be cached
+     */
+    void shouldUseSdpCache(boolean useSdpCache);
+
+    /**
+     * Replaces the policy deciding which discovered peers will be
+     * queried for services and connected to first.
+     * By default a {@link DefaultPeerRankingPolicy} is used.
+     *
+     * @param rankingPolicy
+     *         the policy to use
+     */
+    void setPeerRankingPolicy(PeerRankingPolicy rankingPolicy);
+
+    /**
+     * @return the current peer ranking policy
+     */
+    PeerRankingPolicy getPeerRankingPolicy();
+
+    /**
+     * Returns the record of a discovered peer, containing
+     * its signal strength and device class.
+     *
+     * @param device
+     *         the bluetooth device
+     *
+     * @return the peer record, or a record without RSSI and device class
+     *         if the device was not discovered through a device discovery
+     */
+    BluetoothPeer getPeer(BluetoothDevice device);
+
+    /**
+     * Registers a listener to be notified when services appear,
+     * change or get lost, instead of every time they are discovered.
+     * <p>
+     * <b>The listener is notified on the engine thread, not on the main thread.</b>
+     *
+     * @param listener
+     *         the listener
+     */
+    void registerServiceChangeListener(ServiceChangeListener<BluetoothDevice> listener);
+
+    /**
+     * Registers a listener to be notified about service changes
+     * on the given executor instead of the engine thread.
+     *
+     * @param listener
+     *         the listener
+     * @param executor
+     *         the executor the listener will be notified on
+     */
+    void registerServiceChangeListener(ServiceChangeListener<BluetoothDevice> listener, Executor executor);
+
+    void unregisterServiceChangeListener(ServiceChangeListener<BluetoothDevice> listener);
+
+    /**
+     * @return all peers and the services discovered on them
+     */
+    PeerServiceSnapshot<BluetoothDevice> getServiceSnapshot();
 }
@@ -8,14 +8,25 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.ParcelUuid;
 import android.os.Parcelable;
-import android.util.Log;
+import android.os.SystemClock;
 
+import java.io.File;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.List;
 import java.util.UUID;
-
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+import willi.boelke.services.serviceDiscovery.EngineLog;
+import willi.boelke.services.serviceDiscovery.ExpiryWheel;
+import willi.boelke.services.serviceDiscovery.ListenerDispatcher;
+import willi.boelke.services.serviceDiscovery.PeerServiceSnapshot;
+import willi.boelke.services.serviceDiscovery.ServiceChange;
+import willi.boelke.services.serviceDiscovery.ServiceChangeListener;
 import willi.boelke.services.serviceDiscovery.ServiceDescription;
 import willi.boelke.services.serviceDiscovery.ServiceDiscoveryEngine;
+import willi.boelke.services.serviceDiscovery.UuidMatchTable;
 
 /**
  * <h1>BluetoothServiceDiscoveryEngine</h1>
@@ -82,6 +93,13 @@ import willi.boelke.services.serviceDiscovery.ServiceDiscoveryEngine;
  * a service discovery was conducted. {@link #refreshNearbyServices()} will refresh
  * the cached services. {@link #startDeviceDiscovery()} will refresh
  * both cached devices and services.
+ * <p>
+ * Additionally the results of all SDP queries will be kept in a {@link SdpResultCache},
+ * which is saved in the applications cache directory and survives restarts.
+ * When a device discovery starts listeners will be notified right away about the
+ * services of all peers in that cache. Peers whose results are still fresh wont be
+ * queried again, stale results will be refreshed as soon as the peer is discovered.
+ * The cache can be disabled using {@link #shouldUseSdpCache(boolean)}.
  *
  * <p>
  * <h2>Listener</h2>
@@ -93,6 +111,34 @@ import willi.boelke.services.serviceDiscovery.ServiceDiscoveryEngine;
  * Several listeners can be registered simultaneously alas all listeners will be notified about
  * the same services. If {@link #notifyAboutAllServices(boolean)} all sisters will be equally
  * notified about all services.
+ * <p>
+ * Listeners are notified every time a service is discovered, after a refresh about all
+ * services again. To only get notified about changes a {@link ServiceChangeListener} can be
+ * registered through {@link #registerServiceChangeListener(ServiceChangeListener)}, it is backed
+ * by a {@link PeerServiceSnapshot} of all peers and their services which can be obtained
+ * through {@link #getServiceSnapshot()}.
+ * <p>
+ * <h2>Expiry</h2>
+ * Services which were not seen for the {@link #setServiceExpiryTime(long) expiry time}
+ * are reported as lost to the {@link ServiceChangeListener}s. A service is seen when
+ * it is found through a SDP query or its host is discovered again.
+ * Devices which were not seen for that long will be removed from {@link #discoveredDevices}
+ * as well, so they wont be queried for services anymore.
+ * Expired entries are swept every {@link #SERVICE_EXPIRY_SWEEP_INTERVAL} ms while the engine runs.
+ * <p>
+ * <h2>Engine thread</h2>
+ * The broadcast receivers pass the received events on to the {@link #engineExecutor},
+ * so the matching of services does not block the main thread. Public methods changing
+ * the engines state run on the engine thread as well and wait until they are done,
+ * so the state (like {@link #discoveredDevices}) is only accessed from one thread.
+ * <p>
+ * Listeners are notified through a {@link ListenerDispatcher}. Registered without an
+ * executor they are notified on the engine thread, so a slow listener will
+ * hold up the engine. Listeners registered with an {@link Executor}
+ * (see {@link #registerDiscoverListener(BluetoothServiceDiscoveryListener, Executor)})
+ * are notified on that executor, each with its own bounded queue of events.
+ * Listeners registered through {@link #registerDiscoverListenerWeakly(BluetoothServiceDiscoveryListener)}
+ * are only weakly referenced and removed once they were garbage collected.
  *
  * <p>
  * <h2>Sequence Example</h2>
@@ -179,6 +225,19 @@ public abstract class BluetoothServiceDiscoveryEngine extends ServiceDiscoveryEn
      */
     protected final ArrayList<BluetoothDevice> alreadyReceivedUuidsFor = new ArrayList<>();
 
+    /**
+     * Records (RSSI, device class) of the discovered devices,
+     * updated through {@link #updatePeer(BluetoothPeer)}
+     */
+    private final ConcurrentHashMap<BluetoothDevice, BluetoothPeer> peers = new ConcurrentHashMap<>();
+
+    /**
+     * Decides which peers will be handled first
+     *
+     * @see #setPeerRankingPolicy(PeerRankingPolicy)
+     */
+    private volatile PeerRankingPolicy peerRankingPolicy = new DefaultPeerRankingPolicy();
+
     /**
      * BroadcastReceiver listening at discovered devices intent
      * {@link DeviceFoundReceiver}
@@ -221,17 +280,59 @@ public abstract class BluetoothServiceDiscoveryEngine extends ServiceDiscoveryEn
      * @see BluetoothServiceDiscoveryEngine#shouldCheckLittleEndianUuids(boolean)
      * @see ServiceDescription#getBytewiseReverseUuid()
      * @see BluetoothServiceDiscoveryEngine#notifyListenersIfServiceIsAvailable(BluetoothDevice, Parcelable[])
-     * @see BluetoothServiceDiscoveryEngine#notifyListenersAboutServices(BluetoothDevice, Parcelable[])
      */
     private boolean checkLittleEndianUuids = true;
 
     /**
-     * List of all listeners who registered
+     * Determines whether SDP results should be cached
+     * across discoveries and engine restarts
+     *
+     * @see #shouldUseSdpCache(boolean)
+     */
+    private boolean useSdpCache = true;
+
+    /**
+     * Cache of the SDP results, will be loaded in {@link #start(Context, BluetoothAdapter)}
+     * and saved when the discovery finishes and the engine stops.
+     * Null if the cache is disabled or no cache directory is available
+     */
+    private SdpResultCache sdpResultCache;
+
+    /**
+     * All listeners who registered
      * using {@link #registerDiscoverListener(BluetoothServiceDiscoveryListener)}
      *
      * @see #unregisterAllReceivers()
      */
-    private final ArrayList<BluetoothServiceDiscoveryListener> bluetoothDiscoveryListeners = new ArrayList<>();
+    private final ListenerDispatcher<BluetoothServiceDiscoveryListener> bluetoothDiscoveryListeners = new ListenerDispatcher<>();
+
+    /**
+     * Listeners to be notified about changes of the {@link #serviceSnapshot}
+     *
+     * @see #registerServiceChangeListener(ServiceChangeListener)
+     */
+    private final ListenerDispatcher<ServiceChangeListener<BluetoothDevice>> serviceChangeListeners = new ListenerDispatcher<>();
+
+    /**
+     * All peers and the services which where discovered on them,
+     * it will not be cleared when the discovery restarts
+     */
+    private final PeerServiceSnapshot<BluetoothDevice> serviceSnapshot = new PeerServiceSnapshot<>();
+
+    /**
+     * Deadlines of the {@link #discoveredDevices}, devices are rescheduled
+     * each time they are seen and removed when they expire
+     *
+     * @see #sweepExpired()
+     */
+    private final ExpiryWheel<BluetoothDevice> deviceExpiry = new ExpiryWheel<>(SERVICE_EXPIRY_SWEEP_INTERVAL, 64);
+
+    private final Runnable expirySweeper = this::sweepExpired;
+
+    /**
+     * The time source of peer records and the expiry
+     */
+    private Clock clock = SystemClock::elapsedRealtime;
 
     //
     //  ----------  initialisation and setup ----------
@@ -257,7 +358,7 @@ public abstract class BluetoothServiceDiscoveryEngine extends ServiceDiscoveryEn
      */
     private void registerReceivers()
     {
-        Log.e(TAG, "registerReceivers: registering ");
+        EngineLog.e(TAG, "registerReceivers: registering ");
         IntentFilter discoverDevicesIntent = new IntentFilter(BluetoothDevice.ACTION_FOUND);
         IntentFilter actionUUID = new IntentFilter(BluetoothDevice.ACTION_UUID);
         IntentFilter bluetoothDiscoveryStateFilter = new IntentFilter();
@@ -293,7 +394,7 @@ public abstract class BluetoothServiceDiscoveryEngine extends ServiceDiscoveryEn
         BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
         if (adapter == null)
         {
-            Log.e(TAG, "Bluetooth adapter was null, the device probably does not support bluetooth - engine wont start");
+            EngineLog.e(TAG, "Bluetooth adapter was null, the device probably does not support bluetooth - engine wont start");
             return false;
         }
         return start(context, adapter);
@@ -301,34 +402,49 @@ public abstract class BluetoothServiceDiscoveryEngine extends ServiceDiscoveryEn
 
     /**
      * Starts the discovery engine
+     * <p>
+     * The adapter is checked right away, the engine is then started on the engine thread.
+     * If that takes longer than {@link #API_CALL_TIMEOUT} this returns without
+     * waiting any longer, {@link #isRunning()} will return true once it started.
      *
      * @param context
      *         the application context
      * @param adapter
      *         A BluetoothAdapter
      *
-     * @return true if the engine started successfully
+     * @return true if the engine started, or will start, successfully
      */
     @Override
     public boolean start(Context context, BluetoothAdapter adapter)
     {
         if (adapter == null)
         {
-            Log.e(TAG, "start: Bluetooth adapter was null, the device probably does not support bluetooth - engine wont start");
+            EngineLog.e(TAG, "start: Bluetooth adapter was null, the device probably does not support bluetooth - engine wont start");
             return false;
         }
         if (!adapter.isEnabled())
         {
-            Log.e(TAG, "start: Bluetooth not enabled");
+            EngineLog.e(TAG, "start: Bluetooth not enabled");
             return false;
         }
-        Log.d(TAG, "start: starting engine");
-        this.bluetoothAdapter = adapter;
-        this.context = context;
-        this.enableBluetooth();
-        this.registerReceivers();
-        this.engineRunning = true;
-        return true;
+        return this.engineExecutor.call(() ->
+        {
+            if (this.engineRunning)
+            {
+                EngineLog.e(TAG, "start: engine already running");
+                return true;
+            }
+            EngineLog.d(TAG, "start: starting engine");
+            this.bluetoothAdapter = adapter;
+            this.context = context;
+            this.enableBluetooth();
+            this.registerReceivers();
+            this.loadSdpCache();
+            this.serviceSnapshot.setExpiryTime(this.serviceExpiryTime);
+            this.engineExecutor.executeDelayed(this.expirySweeper, SERVICE_EXPIRY_SWEEP_INTERVAL);
+            this.engineRunning = true;
+            return true;
+        }, API_CALL_TIMEOUT, true);
     }
 
     //
@@ -339,19 +455,29 @@ public abstract class BluetoothServiceDiscoveryEngine extends ServiceDiscoveryEn
      * Stops the service discovery
      * Registered services will be cleared
      * and listeners will be removed
+     * <p>
+     * Waits until the engine stopped, but not longer than {@link #API_CALL_TIMEOUT},
+     * the engine then stops after the already queued tasks ran.
      */
     @Override
     public void stop()
     {
-        if (engineIsNotRunning())
+        this.engineExecutor.runAndWait(() ->
         {
-            Log.e(TAG, "stop: engine is not running - wont stop");
-            return;
-        }
-        unregisterAllReceivers();
-        stopDeviceDiscovery();
-        this.servicesToLookFor = new ArrayList<>();
-        this.engineRunning = false;
+            if (engineIsNotRunning())
+            {
+                EngineLog.e(TAG, "stop: engine is not running - wont stop");
+                return;
+            }
+            unregisterAllReceivers();
+            stopDeviceDiscovery();
+            this.saveSdpCache();
+            this.engineExecutor.cancel(this.expirySweeper);
+            this.servicesToLookFor.clear();
+            this.serviceSnapshot.clear();
+            this.deviceExpiry.clear();
+            this.engineRunning = false;
+        }, API_CALL_TIMEOUT);
     }
 
     private void unregisterAllReceivers()
@@ -363,14 +489,14 @@ public abstract class BluetoothServiceDiscoveryEngine extends ServiceDiscoveryEn
 
     private void unregisterReceiver(BroadcastReceiver receiver)
     {
-        Log.e(TAG, "unregisterReceiver: unregistering a receiver");
+        EngineLog.e(TAG, "unregisterReceiver: unregistering a receiver");
         try
         {
             this.context.unregisterReceiver(receiver);
         }
         catch (IllegalArgumentException e)
         {
-            Log.e(TAG, "unregisterReceivers:  was not registered ");
+            EngineLog.e(TAG, "unregisterReceivers:  was not registered ");
         }
     }
 
@@ -384,7 +510,7 @@ public abstract class BluetoothServiceDiscoveryEngine extends ServiceDiscoveryEn
      */
     private void enableBluetooth()
     {
-        Log.d(TAG, "enableBluetooth: enabling Bluetooth");
+        EngineLog.d(TAG, "enableBluetooth: enabling Bluetooth");
         if (!bluetoothAdapter.isEnabled())
         {
             // Enable Bluetooth
@@ -404,20 +530,35 @@ public abstract class BluetoothServiceDiscoveryEngine extends ServiceDiscoveryEn
      * This also will cause the cached devices to be reset, meaning
      * a listener may will be notified about a peer / client already
      * known to him again.
+     * <p>
+     * If the engine thread does not get to it within {@link #API_CALL_TIMEOUT}
+     * this returns true without waiting any longer, the discovery
+     * is started later.
      */
     @Override
     public boolean startDeviceDiscovery()
     {
         if (engineIsNotRunning())
         {
-            Log.e(TAG, "startDeviceDiscovery: engine is not running - wont start");
+            EngineLog.e(TAG, "startDeviceDiscovery: engine is not running - wont start");
             return false;
         }
-        // resetting discovered devices
-        this.discoveredDevices.clear();
-        this.alreadyReceivedUuidsFor.clear();
-        this.onDeviceDiscoveryRestart();
-        return internalRestartDiscovery();
+        return this.engineExecutor.call(() ->
+        {
+            if (engineIsNotRunning())
+            {
+                EngineLog.e(TAG, "startDeviceDiscovery: engine is not running - wont start");
+                return false;
+            }
+            // resetting discovered devices
+            this.discoveredDevices.clear();
+            this.alreadyReceivedUuidsFor.clear();
+            this.peers.clear();
+            this.deviceExpiry.clear();
+            this.onDeviceDiscoveryRestart();
+            this.notifyAboutCachedServices();
+            return internalRestartDiscovery();
+        }, API_CALL_TIMEOUT, true);
     }
 
     /**
@@ -430,18 +571,18 @@ public abstract class BluetoothServiceDiscoveryEngine extends ServiceDiscoveryEn
     protected boolean internalRestartDiscovery()
     {
 
-        Log.d(TAG, "internalRestartDiscovery: start looking for other devices");
+        EngineLog.d(TAG, "internalRestartDiscovery: start looking for other devices");
         if (bluetoothAdapter.isDiscovering())
         {
-            Log.d(TAG, "internalRestartDiscovery: already scanning, restarting ... ");
+            EngineLog.d(TAG, "internalRestartDiscovery: already scanning, restarting ... ");
             this.bluetoothAdapter.cancelDiscovery();
         }
         if (this.bluetoothAdapter.startDiscovery())
         {
-            Log.d(TAG, "internalRestartDiscovery: started device discovery");
+            EngineLog.d(TAG, "internalRestartDiscovery: started device discovery");
             return true;
         }
-        Log.e(TAG, "internalRestartDiscovery: could not start Discovery");
+        EngineLog.e(TAG, "internalRestartDiscovery: could not start Discovery");
         return false;
     }
 
@@ -452,12 +593,15 @@ public abstract class BluetoothServiceDiscoveryEngine extends ServiceDiscoveryEn
     @Override
     public void stopDeviceDiscovery()
     {
-        if (engineIsNotRunning())
+        this.engineExecutor.dispatch(() ->
         {
-            Log.e(TAG, "stopDeviceDiscovery: engine is not running - wont start");
-            return;
-        }
-        bluetoothAdapter.cancelDiscovery();
+            if (engineIsNotRunning())
+            {
+                EngineLog.e(TAG, "stopDeviceDiscovery: engine is not running - wont start");
+                return;
+            }
+            bluetoothAdapter.cancelDiscovery();
+        });
     }
 
     //
@@ -535,7 +679,7 @@ public abstract class BluetoothServiceDiscoveryEngine extends ServiceDiscoveryEn
     {
         if (engineIsNotRunning())
         {
-            Log.d(TAG, "cancelDiscoveryIfNothingToLookFor: engine not running -- wont cancel discovery");
+            EngineLog.d(TAG, "cancelDiscoveryIfNothingToLookFor: engine not running -- wont cancel discovery");
             return;
         }
         if (this.servicesToLookFor.isEmpty())
@@ -554,17 +698,20 @@ public abstract class BluetoothServiceDiscoveryEngine extends ServiceDiscoveryEn
     @Override
     public void refreshNearbyServices()
     {
-        if (engineIsNotRunning())
+        this.engineExecutor.dispatch(() ->
         {
-            Log.e(TAG, "refreshNearbyServices: engine is not running - wont start");
-            return;
-        }
-        Log.d(TAG, "refreshNearbyServices: start refreshing");
-        this.bluetoothAdapter.cancelDiscovery();
-        this.alreadyReceivedUuidsFor.clear();
-        Log.e(TAG, "refreshNearbyServices: " + bluetoothAdapter.isDiscovering());
-        this.onRefreshStarted();
-        requestServiceFromDiscoveredDevices();
+            if (engineIsNotRunning())
+            {
+                EngineLog.e(TAG, "refreshNearbyServices: engine is not running - wont start");
+                return;
+            }
+            EngineLog.d(TAG, "refreshNearbyServices: start refreshing");
+            this.bluetoothAdapter.cancelDiscovery();
+            this.alreadyReceivedUuidsFor.clear();
+            EngineLog.d(TAG, () -> "refreshNearbyServices: discovering " + bluetoothAdapter.isDiscovering());
+            this.onRefreshStarted();
+            requestServiceFromDiscoveredDevices();
+        });
     }
 
     /**
@@ -575,7 +722,7 @@ public abstract class BluetoothServiceDiscoveryEngine extends ServiceDiscoveryEn
     {
         for (BluetoothDevice deviceInRange : this.discoveredDevices)
         {
-            Log.d(TAG, "requestServiceFromDiscoveredDevices: for " + deviceInRange);
+            EngineLog.d(TAG, () -> "requestServiceFromDiscoveredDevices: for " + deviceInRange);
             deviceInRange.fetchUuidsWithSdp();
         }
     }
@@ -597,24 +744,122 @@ public abstract class BluetoothServiceDiscoveryEngine extends ServiceDiscoveryEn
     @Override
     public void registerDiscoverListener(BluetoothServiceDiscoveryListener listener)
     {
-        if (engineIsNotRunning())
-        {
-            Log.e(TAG, "registerDiscoverListener: engine is not running - wont start");
-            return;
-        }
-        if (bluetoothDiscoveryListeners.contains(listener))
+        registerDiscoverListener(listener, ListenerDispatcher.DIRECT_EXECUTOR);
+    }
+
+    /**
+     * Registers a {@link BluetoothServiceDiscoveryListener} to be notified about
+     * discovered devices and services on the given executor
+     *
+     * @param listener
+     *         implementation of then listener interface
+     * @param executor
+     *         the executor the listener will be notified on
+     *
+     * @see #unregisterDiscoveryListener(BluetoothServiceDiscoveryListener)
+     */
+    @Override
+    public void registerDiscoverListener(BluetoothServiceDiscoveryListener listener, Executor executor)
+    {
+        registerDiscoverListener(listener, executor, false);
+    }
+
+    @Override
+    public void registerDiscoverListenerWeakly(BluetoothServiceDiscoveryListener listener)
+    {
+        registerDiscoverListener(listener, ListenerDispatcher.DIRECT_EXECUTOR, true);
+    }
+
+    private void registerDiscoverListener(BluetoothServiceDiscoveryListener listener, Executor executor, boolean weak)
+    {
+        this.engineExecutor.dispatch(() ->
         {
-            Log.d(TAG, "registerDiscoverListener: listener already registered");
-            return;
-        }
-        Log.d(TAG, "registerDiscoverListener: new listener registered");
-        this.bluetoothDiscoveryListeners.add(listener);
+            if (engineIsNotRunning())
+            {
+                EngineLog.e(TAG, "registerDiscoverListener: engine is not running - wont start");
+                return;
+            }
+            boolean registered = weak
+                    ? this.bluetoothDiscoveryListeners.registerWeakly(listener, executor)
+                    : this.bluetoothDiscoveryListeners.register(listener, executor);
+            if (!registered)
+            {
+                EngineLog.d(TAG, "registerDiscoverListener: listener already registered");
+                return;
+            }
+            EngineLog.d(TAG, "registerDiscoverListener: new listener registered");
+        });
     }
 
     @Override
     public void unregisterDiscoveryListener(BluetoothServiceDiscoveryListener listener)
     {
-        bluetoothDiscoveryListeners.remove(listener);
+        this.bluetoothDiscoveryListeners.unregister(listener);
+    }
+
+    /**
+     * Registers a {@link ServiceChangeListener} to be notified when services
+     * appear, change or get lost. The listener will be notified about
+     * the services which are already known right away.
+     *
+     * @param listener
+     *         the listener
+     */
+    @Override
+    public void registerServiceChangeListener(ServiceChangeListener<BluetoothDevice> listener)
+    {
+        registerServiceChangeListener(listener, ListenerDispatcher.DIRECT_EXECUTOR);
+    }
+
+    /**
+     * Registers a {@link ServiceChangeListener} to be notified on the given executor
+     *
+     * @param listener
+     *         the listener
+     * @param executor
+     *         the executor the listener will be notified on
+     */
+    @Override
+    public void registerServiceChangeListener(ServiceChangeListener<BluetoothDevice> listener, Executor executor)
+    {
+        this.engineExecutor.dispatch(() ->
+        {
+            if (this.serviceChangeListeners.register(listener, executor))
+            {
+                for (ServiceChange<BluetoothDevice> change : this.serviceSnapshot.asChanges())
+                {
+                    this.serviceChangeListeners.dispatchTo(listener, change::dispatchTo);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void unregisterServiceChangeListener(ServiceChangeListener<BluetoothDevice> listener)
+    {
+        this.serviceChangeListeners.unregister(listener);
+    }
+
+    @Override
+    public PeerServiceSnapshot<BluetoothDevice> getServiceSnapshot()
+    {
+        return this.serviceSnapshot;
+    }
+
+    /**
+     * Passes the changes of the {@link #serviceSnapshot} on to
+     * all {@link #serviceChangeListeners}
+     *
+     * @param changes
+     *         the changes returned by the snapshot
+     */
+    protected void notifyServiceChangeListeners(List<ServiceChange<BluetoothDevice>> changes)
+    {
+        for (ServiceChange<BluetoothDevice> change : changes)
+        {
+            EngineLog.d(TAG, () -> "notifyServiceChangeListeners: " + change);
+            this.serviceChangeListeners.dispatch(change::dispatchTo);
+        }
     }
 
     /**
@@ -628,11 +873,10 @@ public abstract class BluetoothServiceDiscoveryEngine extends ServiceDiscoveryEn
      */
     protected void notifyOnServiceDiscovered(BluetoothDevice device, ServiceDescription description)
     {
-        for (BluetoothServiceDiscoveryListener lister : this.bluetoothDiscoveryListeners)
-        {
-            //Notify client about discovery
-            lister.onServiceDiscovered(device, description);
-        }
+        //Notify client about discovery, a queued notification about the same service will be replaced
+        this.bluetoothDiscoveryListeners.dispatch(ListenerDispatcher.coalescing(
+                ListenerDispatcher.key(device, description),
+                listener -> listener.onServiceDiscovered(device, description)));
     }
 
     /**
@@ -644,13 +888,244 @@ public abstract class BluetoothServiceDiscoveryEngine extends ServiceDiscoveryEn
      */
     protected void notifyOnPeerDiscovered(BluetoothDevice device)
     {
-        for (BluetoothServiceDiscoveryListener lister : this.bluetoothDiscoveryListeners)
+        //Notify client about discovery
+        this.bluetoothDiscoveryListeners.dispatch(ListenerDispatcher.coalescing(
+                ListenerDispatcher.key(device),
+                listener -> listener.onPeerDiscovered(device)));
+    }
+
+    //
+    //  ---------- peers ----------
+    //
+
+    /**
+     * Stores the record of a discovered peer, replacing the previous one
+     *
+     * @param peer
+     *         the peer record
+     */
+    protected void updatePeer(BluetoothPeer peer)
+    {
+        this.peers.put(peer.getDevice(), peer);
+        this.deviceSeen(peer.getDevice());
+        this.serviceSnapshot.touch(peer.getDevice().getAddress());
+    }
+
+    @Override
+    public BluetoothPeer getPeer(BluetoothDevice device)
+    {
+        BluetoothPeer peer = this.peers.get(device);
+        return peer != null ? peer : new BluetoothPeer(device, BluetoothPeer.RSSI_UNKNOWN, BluetoothPeer.DEVICE_CLASS_UNKNOWN, now());
+    }
+
+    //
+    //  ---------- expiry ----------
+    //
+
+    /**
+     * @return the current time of the {@link #clock}, in milliseconds
+     */
+    long now()
+    {
+        return this.clock.now();
+    }
+
+    /**
+     * Replaces the time source of peer records and the expiry,
+     * which is {@link SystemClock#elapsedRealtime()} by default.
+     * Only to be used by tests, before the engine is started.
+     *
+     * @param clock
+     *         the time source
+     */
+    void setClock(Clock clock)
+    {
+        this.clock = clock;
+    }
+
+    /**
+     * (Re)schedules the expiry of a device, when it was seen
+     *
+     * @param device
+     *         the device
+     */
+    private void deviceSeen(BluetoothDevice device)
+    {
+        if (this.serviceExpiryTime > 0)
+        {
+            this.deviceExpiry.schedule(device, now() + this.serviceExpiryTime);
+        }
+    }
+
+    /**
+     * Forgets devices which were not seen for the {@link #serviceExpiryTime},
+     * notifies the {@link #serviceChangeListeners} about expired services
+     * and posts itself again while the engine is running.
+     */
+    private void sweepExpired()
+    {
+        for (BluetoothDevice device : this.deviceExpiry.advance(now()))
         {
-            //Notify client about discovery
-            lister.onPeerDiscovered(device);
+            EngineLog.d(TAG, () -> "sweepExpired: " + device + " was not seen for " + this.serviceExpiryTime + "ms");
+            this.discoveredDevices.remove(device);
+            this.alreadyReceivedUuidsFor.remove(device);
+            this.peers.remove(device);
+        }
+        this.notifyServiceChangeListeners(this.serviceSnapshot.expire());
+        if (this.engineRunning)
+        {
+            this.engineExecutor.executeDelayed(this.expirySweeper, SERVICE_EXPIRY_SWEEP_INTERVAL);
         }
     }
 
+    /**
+     * Sets the time after which a service which was not seen
+     * anymore will be considered lost. Devices which were not
+     * seen for that long will be removed as well.
+     *
+     * @param expiryTime
+     *         the time in milliseconds, 0 to never expire services
+     */
+    @Override
+    public void setServiceExpiryTime(long expiryTime)
+    {
+        this.engineExecutor.dispatch(() ->
+        {
+            super.setServiceExpiryTime(expiryTime);
+            this.serviceSnapshot.setExpiryTime(this.serviceExpiryTime);
+            if (this.serviceExpiryTime == 0)
+            {
+                this.deviceExpiry.clear();
+            }
+        });
+    }
+
+    //
+    //  ---------- sdp cache ----------
+    //
+
+    private void loadSdpCache()
+    {
+        this.sdpResultCache = null;
+        if (!this.useSdpCache)
+        {
+            return;
+        }
+        File cacheDir = this.context.getCacheDir();
+        if (cacheDir == null)
+        {
+            EngineLog.e(TAG, "loadSdpCache: no cache directory - sdp results wont be cached");
+            return;
+        }
+        this.sdpResultCache = new SdpResultCache(new File(cacheDir, "sdp_results.bin"));
+        this.sdpResultCache.load();
+    }
+
+    private void saveSdpCache()
+    {
+        if (this.sdpResultCache != null)
+        {
+            this.sdpResultCache.save();
+        }
+    }
+
+    /**
+     * Notifies listeners about the services of all peers in the {@link #sdpResultCache}.
+     * Peers with fresh entries will be added to {@link #alreadyReceivedUuidsFor},
+     * so their services wont be queried again. Stale entries will be refreshed
+     * through a SDP query once the peer is discovered.
+     */
+    private void notifyAboutCachedServices()
+    {
+        if (this.sdpResultCache == null)
+        {
+            return;
+        }
+        for (SdpResultCache.Entry entry : this.sdpResultCache.getValidEntries())
+        {
+            if (!BluetoothAdapter.checkBluetoothAddress(entry.address))
+            {
+                // getRemoteDevice would throw, the cache file may be corrupted
+                EngineLog.e(TAG, "notifyAboutCachedServices: dropping entry with invalid address " + entry.address);
+                this.sdpResultCache.remove(entry.address);
+                continue;
+            }
+            BluetoothDevice device = this.bluetoothAdapter.getRemoteDevice(entry.address);
+            if (device == null)
+            {
+                continue;
+            }
+            if (!this.sdpResultCache.isStale(entry))
+            {
+                this.alreadyReceivedUuidsFor.add(device);
+            }
+            EngineLog.d(TAG, () -> "notifyAboutCachedServices: using cached services of " + entry.address);
+            ParcelUuid[] uuids = new ParcelUuid[entry.uuids.length];
+            for (int i = 0; i < uuids.length; i++)
+            {
+                uuids[i] = new ParcelUuid(entry.uuids[i]);
+            }
+            this.notifyListenersIfServiceIsAvailable(device, uuids);
+        }
+    }
+
+    /**
+     * Called by the {@link DeviceFoundReceiver}, passes the
+     * peer on to {@link #onDeviceDiscovered(BluetoothPeer)} on the engine thread
+     *
+     * @param peer
+     *         The discovered device, its RSSI and device class
+     */
+    void handleDeviceFound(BluetoothPeer peer)
+    {
+        this.engineExecutor.execute(() -> this.onDeviceDiscovered(peer));
+    }
+
+    /**
+     * Called by the {@link UUIDFetchedReceiver}, caches the fetched
+     * UUIDs and passes them on to {@link #onUuidsFetched(BluetoothDevice, Parcelable[])}
+     * on the engine thread
+     *
+     * @param device
+     *         The host device
+     * @param uuidExtra
+     *         The service UUIDs
+     */
+    void handleFetchedUuids(BluetoothDevice device, Parcelable[] uuidExtra)
+    {
+        this.engineExecutor.execute(() ->
+        {
+            if (this.sdpResultCache != null && device != null && uuidExtra != null)
+            {
+                UUID[] uuids = new UUID[uuidExtra.length];
+                for (int i = 0; i < uuids.length; i++)
+                {
+                    uuids[i] = ((ParcelUuid) uuidExtra[i]).getUuid();
+                }
+                this.sdpResultCache.put(device.getAddress(), uuids);
+            }
+            if (device != null)
+            {
+                this.deviceSeen(device);
+            }
+            this.onUuidsFetched(device, uuidExtra);
+        });
+    }
+
+    /**
+     * Called by the {@link DeviceDiscoveryStateReceiver} when the
+     * device discovery finished, saves the {@link #sdpResultCache}
+     * and calls {@link #onDeviceDiscoveryFinished()} on the engine thread
+     */
+    void handleDeviceDiscoveryFinished()
+    {
+        this.engineExecutor.execute(() ->
+        {
+            this.saveSdpCache();
+            this.onDeviceDiscoveryFinished();
+        });
+    }
+
     //
     //  ---------- abstract methods to be overwritten in subclasses ----------
     //
@@ -661,12 +1136,12 @@ public abstract class BluetoothServiceDiscoveryEngine extends ServiceDiscoveryEn
      * The device will be added to {@link #discoveredDevices} if it was not yet.
      * and notify the {@link #bluetoothDiscoveryListeners} about a new device.
      *
-     * @param device
-     *         The discovered device
+     * @param peer
+     *         The discovered device, its RSSI and device class
      *
      * @see DeviceFoundReceiver
      */
-    protected abstract void onDeviceDiscovered(BluetoothDevice device);
+    protected abstract void onDeviceDiscovered(BluetoothPeer peer);
 
     /**
      * This will be called when the device discovery stops,
@@ -703,73 +1178,56 @@ public abstract class BluetoothServiceDiscoveryEngine extends ServiceDiscoveryEn
 
 
     /**
-     * Notifies listeners about every discovered service
+     * Matches the received service UUIDs against the services looked for
+     * and notifies all listeners about the services which are available.
+     * <p>
+     * If {@link #notifyAboutAllServices} is enabled listeners will also be
+     * notified about services which are not looked for, their description
+     * will only contain the UUID.
+     * <p>
+     * The UUIDs are matched by their bits against the {@link UuidMatchTable}
+     * of {@link #servicesToLookFor}, this (as well as checking little endian UUIDs)
+     * does not allocate anything. Descriptions for unknown services will only
+     * be created when there is a listener to notify.
+     * <p>
+     * The services found on the device replace the ones in the {@link #serviceSnapshot},
+     * {@link #serviceChangeListeners} will be notified about the changes.
      *
      * @param device
-     *         the device
+     *         the host device
      * @param uuidExtra
-     *         the discovered service UUIDs
+     *         the service uuids on the given device
      */
-    protected void notifyListenersAboutServices(BluetoothDevice device, Parcelable[] uuidExtra)
+    protected void notifyListenersIfServiceIsAvailable(BluetoothDevice device, Parcelable[] uuidExtra)
     {
+        UuidMatchTable matchTable = this.servicesToLookFor.getMatchTable();
+        List<ServiceDescription> foundServices = Collections.emptyList();
         for (Parcelable pUuid : uuidExtra)
         {
             UUID uuid = ((ParcelUuid) pUuid).getUuid();
-            Log.d(TAG, "notifyListenersAboutServices: checking uuid " + uuid);
-            ServiceDescription description = new ServiceDescription("", new HashMap<>(), ""); // empty description
-            description.overrideUuidForBluetooth(uuid);
-
-            // overriding with registered service description
-            if (this.servicesToLookFor.contains(description))
+            int match = matchTable.indexOf(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+            ServiceDescription description = null;
+            if (match != UuidMatchTable.NO_MATCH && (this.checkLittleEndianUuids || !matchTable.isReversed(match)))
             {
-                Log.d(TAG, "notifyListenersAboutServices: found uuid " + uuid);
-                description = servicesToLookFor.get(servicesToLookFor.indexOf(description));
+                EngineLog.d(TAG, () -> "notifyListenersIfServiceIsAvailable: \n ---- Service found on " + device + "----");
+                description = matchTable.getDescription(match);
             }
-            else if (checkLittleEndianUuids)
+            else if (this.notifyAboutAllServices && !(this.bluetoothDiscoveryListeners.isEmpty() && this.serviceChangeListeners.isEmpty()))
             {
-                description.overrideUuidForBluetooth(description.getBytewiseReverseUuid());
-                if (this.servicesToLookFor.contains(description))
-                {
-                    Log.d(TAG, "notifyListenersAboutServices: found reversed uuid " + uuid);
-                    description = servicesToLookFor.get(servicesToLookFor.indexOf(description));
-                }
+                // empty description
+                description = new ServiceDescription.Builder().setServiceUuid(uuid).build();
             }
-            description.overrideUuidForBluetooth(description.getBytewiseReverseUuid());
-            this.notifyOnServiceDiscovered(device, description);
-        }
-    }
-
-    /**
-     * Notifies all listeners only if a service is available that is searched for
-     *
-     * @param device
-     *         the host device
-     * @param uuidExtra
-     *         the service uuids on the given device
-     */
-    protected void notifyListenersIfServiceIsAvailable(BluetoothDevice device, Parcelable[] uuidExtra)
-    {
-        if (this.notifyAboutAllServices)
-        {
-            Log.d(TAG, "notifyListenersIfServiceIsAvailable: notifying out all services:\n ---- Service found on " + device + "----");
-            this.notifyListenersAboutServices(device, uuidExtra);
-            return;
-        }
-        for (Parcelable pUuid : uuidExtra)
-        {
-            UUID uuid = ((ParcelUuid) pUuid).getUuid();
-            Log.d(TAG, "notifyListenersIfServiceIsAvailable: checking uuid " + uuid);
-            for (ServiceDescription serviceToLookFor : this.servicesToLookFor)
+            if (description != null)
             {
-                if ((uuid.equals(serviceToLookFor.getServiceUuid())) ||
-                        (this.checkLittleEndianUuids && uuid.equals(serviceToLookFor.getBytewiseReverseUuid())))
+                this.notifyOnServiceDiscovered(device, description);
+                if (foundServices.isEmpty())
                 {
-                    Log.d(TAG, "notifyListenersIfServiceIsAvailable: \n ---- Service found on " + device + "----");
-                    this.notifyOnServiceDiscovered(device, serviceToLookFor);
+                    foundServices = new ArrayList<>();
                 }
+                foundServices.add(description);
             }
         }
-
+        this.notifyServiceChangeListeners(this.serviceSnapshot.update(device.getAddress(), device, foundServices));
     }
 
     /**
@@ -781,7 +1239,7 @@ public abstract class BluetoothServiceDiscoveryEngine extends ServiceDiscoveryEn
      */
     private void tryToFindAlreadyDiscoveredServices(ServiceDescription description)
     {
-        Log.d(TAG, "tryToFindAlreadyDiscoveredServices: checking if " + description + " was discovered before ");
+        EngineLog.d(TAG, () -> "tryToFindAlreadyDiscoveredServices: checking if " + description + " was discovered before ");
 
         // iterating through devices already discovered
         for (BluetoothDevice device : this.discoveredDevices)
@@ -796,12 +1254,13 @@ public abstract class BluetoothServiceDiscoveryEngine extends ServiceDiscoveryEn
                     if (uuid.equals(description.getServiceUuid()) || (this.checkLittleEndianUuids && uuid.equals(description.getBytewiseReverseUuid())))
                     {
                         notifyOnServiceDiscovered(device, description);
+                        notifyServiceChangeListeners(this.serviceSnapshot.add(device.getAddress(), device, description));
                     }
                 }
             }
             catch (NullPointerException e)
             {
-                Log.e(TAG, "tryToConnectToServiceAlreadyInRange: we have no uuids of This device " + device);
+                EngineLog.e(TAG, "tryToConnectToServiceAlreadyInRange: we have no uuids of This device " + device);
             }
         }
     }
@@ -826,4 +1285,48 @@ public abstract class BluetoothServiceDiscoveryEngine extends ServiceDiscoveryEn
     {
         this.checkLittleEndianUuids = checkLittleEndianUuids;
     }
+
+    /**
+     * SDP results will by default be cached across discoveries
+     * and engine restarts, so known services can be found without
+     * waiting for a device discovery.
+     * <p>
+     * Set this to `false` to disable the cache. This takes effect
+     * the next time the engine is started.
+     *
+     * @param useSdpCache
+     *         determines whether sdp results should be cached
+     */
+    @Override
+    public void shouldUseSdpCache(boolean useSdpCache)
+    {
+        this.useSdpCache = useSdpCache;
+    }
+
+    /**
+     * Replaces the policy deciding which discovered peers will be
+     * queried for services and connected to first.
+     *
+     * @param rankingPolicy
+     *         the policy to use
+     */
+    @Override
+    public void setPeerRankingPolicy(PeerRankingPolicy rankingPolicy)
+    {
+        this.peerRankingPolicy = rankingPolicy;
+    }
+
+    @Override
+    public PeerRankingPolicy getPeerRankingPolicy()
+    {
+        return this.peerRankingPolicy;
+    }
+
+    /**
+     * Source of the current time in milliseconds
+     */
+    interface Clock
+    {
+        long now();
+    }
 }
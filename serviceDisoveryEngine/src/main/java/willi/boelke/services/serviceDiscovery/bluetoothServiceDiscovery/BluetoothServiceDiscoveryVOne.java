@@ -2,7 +2,8 @@ package willi.boelke.services.serviceDiscovery.bluetoothServiceDiscovery;
 
 import android.bluetooth.BluetoothDevice;
 import android.os.Parcelable;
-import android.util.Log;
+
+import willi.boelke.services.serviceDiscovery.EngineLog;
 
 /**
  * This implementation of the {@link BluetoothServiceDiscoveryEngine}
@@ -83,7 +84,7 @@ public class BluetoothServiceDiscoveryVOne extends BluetoothServiceDiscoveryEngi
     @Override
     protected void onUuidsFetched(BluetoothDevice device, Parcelable[] uuidExtra)
     {
-        Log.d(TAG, "onUuidsFetched: received UUIDS for " + device.getAddress() + " / " + device.getName());
+        EngineLog.d(TAG, () -> "onUuidsFetched: received UUIDS for " + device.getAddress() + " / " + device.getName());
 
         if (uuidExtra != null && !alreadyReceivedUuidsFor.contains(device))
         {
@@ -99,15 +100,17 @@ public class BluetoothServiceDiscoveryVOne extends BluetoothServiceDiscoveryEngi
     protected void teardownEngine()
     {
         // yes im logging this as error, just to make it visible
-        Log.e(TAG, "teardownEngine: ---resetting engine---");
+        EngineLog.e(TAG, "teardownEngine: ---resetting engine---");
         this.stop();
+        this.engineExecutor.shutdown();
         instance = null;
     }
 
     @Override
-    protected void onDeviceDiscovered(BluetoothDevice device)
-
+    protected void onDeviceDiscovered(BluetoothPeer peer)
     {
+        BluetoothDevice device = peer.getDevice();
+        this.updatePeer(peer);
         // Adding the device to he discovered devices list
         if (!discoveredDevices.contains(device))
         {
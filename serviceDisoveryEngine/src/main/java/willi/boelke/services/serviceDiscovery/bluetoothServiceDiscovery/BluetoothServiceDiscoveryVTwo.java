@@ -2,11 +2,8 @@ package willi.boelke.services.serviceDiscovery.bluetoothServiceDiscovery;
 
 import android.bluetooth.BluetoothDevice;
 import android.os.Parcelable;
-import android.util.Log;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
+import willi.boelke.services.serviceDiscovery.EngineLog;
 
 /**
  * This implementation of the {@link BluetoothServiceDiscoveryEngine}
@@ -28,6 +25,12 @@ import java.util.concurrent.CopyOnWriteArrayList;
  * services, since a device discovery will ( in its full lengths )
  * take around 12 seconds. Though if there are many discoverable
  * bluetooth devices in range this effect will be negated.
+ * <p>
+ * The service discoveries are run through a {@link SdpFetchScheduler},
+ * which limits the number of SDP queries in flight, fetches the peers
+ * ranked highest by the {@link PeerRankingPolicy} first and gives up
+ * queries which are not answered in time. The device discovery will be restarted as soon as all
+ * queries are answered.
  *
  * <p>
  * <h2>Usage</h2>
@@ -45,12 +48,6 @@ public class BluetoothServiceDiscoveryVTwo extends BluetoothServiceDiscoveryEngi
      */
     private static BluetoothServiceDiscoveryVTwo instance;
 
-    /**
-     * Defines the duration of the stop for the
-     * automatic re-enabling of the discovery
-     */
-    private static final long REFRESH_TIME = 12000;
-
     //
     //  ----------  instance variables  ----------
     //
@@ -59,32 +56,15 @@ public class BluetoothServiceDiscoveryVTwo extends BluetoothServiceDiscoveryEngi
      * Classname for logging only
      */
     private final String TAG = this.getClass().getSimpleName();
-    /**
-     * Discovered devices will be added to this list in
-     * {@link #onDeviceDiscovered(BluetoothDevice)}. When the device discovery
-     * stopped {@link #onDeviceDiscoveryFinished()} a service discovery will
-     * be performed on the device(es) in this list. Then they will be added to
-     * {@link #alreadyReceivedUuidsFor} an removed from this.
-     */
-    private final List<BluetoothDevice> devicesToFetch = new  ArrayList<>();
 
     /**
-     * As soon as the device discovery finished and
-     * this it will be set to the size
-     * of {@link #alreadyReceivedUuidsFor} amd then in {@link #onUuidsFetched(BluetoothDevice, Parcelable[])}
-     * decremented til it reaches 0 again.
-     * This prevents the device discovery from being restarted before all (if there are several)
-     * SDP Queries have been answered.
-     * This not always works. Sometimes onDeviceDiscoveryFinished() will be called several times
-     */
-    private short fetchedCounter = 0;
-    /**
-     * When a refresh is started through {@link #refreshNearbyServices()}
-     * the automatic re-enabling of the device discovery will be stopped
-     * for {@link #REFRESH_TIME} seconds. This variable holds
-     * the timestamp of the refresh start.
+     * Discovered devices will be scheduled here in
+     * {@link #onDeviceDiscovered(BluetoothPeer)}. When the device discovery
+     * stopped {@link #onDeviceDiscoveryFinished()} a service discovery will
+     * be performed on the scheduled devices. When all of them are answered
+     * the device discovery will be restarted through {@link #onFetchQueueDrained()}.
      */
-    private long refreshingTimeStamp;
+    private final SdpFetchScheduler fetchScheduler;
 
     //
     //  ----------  initialisation and setup ----------
@@ -110,6 +90,21 @@ public class BluetoothServiceDiscoveryVTwo extends BluetoothServiceDiscoveryEngi
     private BluetoothServiceDiscoveryVTwo()
     {
         super();
+        this.fetchScheduler = new SdpFetchScheduler(this.engineExecutor, getPeerRankingPolicy(), this::onFetchQueueDrained);
+    }
+
+    /**
+     * Stops the engine, drops all scheduled
+     * and running service discoveries
+     */
+    @Override
+    public void stop()
+    {
+        this.engineExecutor.runAndWait(() ->
+        {
+            super.stop();
+            this.fetchScheduler.clear();
+        }, API_CALL_TIMEOUT);
     }
 
     /**
@@ -120,8 +115,9 @@ public class BluetoothServiceDiscoveryVTwo extends BluetoothServiceDiscoveryEngi
     protected void teardownEngine()
     {
         // yes im logging this as error, just to make it visible
-        Log.e(TAG, "teardownEngine: ---resetting engine---");
+        EngineLog.e(TAG, "teardownEngine: ---resetting engine---");
         this.stop();
+        this.engineExecutor.shutdown();
         instance = null;
     }
 
@@ -132,26 +128,13 @@ public class BluetoothServiceDiscoveryVTwo extends BluetoothServiceDiscoveryEngi
 
     /**
      * Called when the device discovery finished.
-     * Performs a service discovery on all BluetoothDevices
-     * in {@link #devicesToFetch}
+     * Starts the service discovery on the devices
+     * scheduled in the {@link #fetchScheduler}
      */
     @Override
     protected void onDeviceDiscoveryFinished()
     {
-        if(fetchedCounter != 0)
-            fetchedCounter = (short) devicesToFetch.size();
-        Log.e(TAG, "onDeviceDiscoveryFinished: fetched counter init " + fetchedCounter);
-        ArrayList<BluetoothDevice> fetchedDevices = new ArrayList<>();
-        for (BluetoothDevice device : devicesToFetch)
-        {
-            device.fetchUuidsWithSdp();
-            fetchedDevices.add(device);
-        }
-        for (BluetoothDevice fetched : fetchedDevices)
-        {
-            devicesToFetch.remove(fetched);
-        }
-        devicesToFetch.clear();
+        this.fetchScheduler.dispatch();
     }
 
     /**
@@ -164,13 +147,16 @@ public class BluetoothServiceDiscoveryVTwo extends BluetoothServiceDiscoveryEngi
      *         The discovered device
      */
     @Override
-    protected void onDeviceDiscovered(BluetoothDevice device)
+    protected void onDeviceDiscovered(BluetoothPeer peer)
     {
+        BluetoothDevice device = peer.getDevice();
+        this.updatePeer(peer);
+
         //--- new device ---//
 
         if (!discoveredDevices.contains(device))
         {
-            Log.d(TAG, "onDeviceDiscovered: discovered a new device " + device);
+            EngineLog.d(TAG, () -> "onDeviceDiscovered: discovered a new device " + device);
             discoveredDevices.add(device);
             notifyOnPeerDiscovered(device);
         }
@@ -179,8 +165,8 @@ public class BluetoothServiceDiscoveryVTwo extends BluetoothServiceDiscoveryEngi
 
         if (shouldFetchUUIDsAgain(device))
         {
-            Log.d(TAG, "onDeviceDiscovered: fetching services from " + device);
-            devicesToFetch.add(device);
+            EngineLog.d(TAG, () -> "onDeviceDiscovered: fetching services from " + device);
+            fetchScheduler.schedule(peer);
             bluetoothAdapter.cancelDiscovery();
         }
     }
@@ -200,53 +186,65 @@ public class BluetoothServiceDiscoveryVTwo extends BluetoothServiceDiscoveryEngi
     @Override
     protected void onUuidsFetched(BluetoothDevice device, Parcelable[] uuidExtra)
     {
-        Log.d(TAG, "onUuidsFetched: received UUIDS for " + device);
+        EngineLog.d(TAG, () -> "onUuidsFetched: received UUIDS for " + device);
         if (this.shouldFetchUUIDsAgain(device) && uuidExtra != null)
         {
-            Log.d(TAG, "onUuidsFetched: found new uuids");
+            EngineLog.d(TAG, "onUuidsFetched: found new uuids");
             notifyListenersIfServiceIsAvailable(device, uuidExtra);
         }
 
         alreadyReceivedUuidsFor.add(device);
-        fetchedCounter--;
-        Log.d(TAG, "onUuidsFetched: counter - " +  fetchedCounter);
-
-        if (!this.isRefreshProcessRunning())
-        {
-            if(fetchedCounter < 1){
-                fetchedCounter = 0;
-                internalRestartDiscovery();
-            }
-            else{
-                Log.e(TAG, "onUuidsFetched: not restarting " +  fetchedCounter);
-            }
-        }
+        fetchScheduler.onFetched(device);
     }
 
     /**
      * Called whenever the device discovery is started manually
      * through {@link #startDeviceDiscovery()}
-     * Clears the cache of discovered devices
-     * and stops the refresh (by setting the timestamp to 0)
+     * Drops all scheduled and running service discoveries
      */
     @Override
     protected void onDeviceDiscoveryRestart()
     {
-        this.fetchedCounter = 0;
-        refreshingTimeStamp = 0;
+        this.fetchScheduler.clear();
     }
 
     /**
      * This is called whenever a refresh is started through
-     * {@link #refreshNearbyServices()} the fetchedList will be cleared to allow new
-     * service UUIDs to come in and it sets the {@link #refreshingTimeStamp}
-     * to the current time.
+     * {@link #refreshNearbyServices()}, drops all scheduled and
+     * running service discoveries, so all devices will be fetched again.
      */
     @Override
     protected void onRefreshStarted()
     {
-        this.fetchedCounter = 0;
-        this.refreshingTimeStamp = System.currentTimeMillis();
+        this.fetchScheduler.clear();
+    }
+
+    /**
+     * Schedules the service discovery for all discovered devices
+     * and starts it right away
+     */
+    @Override
+    protected void requestServiceFromDiscoveredDevices()
+    {
+        for (BluetoothDevice deviceInRange : this.discoveredDevices)
+        {
+            this.fetchScheduler.schedule(getPeer(deviceInRange));
+        }
+        this.fetchScheduler.dispatch();
+    }
+
+    /**
+     * Called by the {@link #fetchScheduler} when all service discoveries
+     * are answered (or timed out), restarts the device discovery.
+     */
+    private void onFetchQueueDrained()
+    {
+        if (engineIsNotRunning())
+        {
+            return;
+        }
+        EngineLog.d(TAG, "onFetchQueueDrained: all services fetched, restarting device discovery");
+        internalRestartDiscovery();
     }
 
     /**
@@ -259,24 +257,49 @@ public class BluetoothServiceDiscoveryVTwo extends BluetoothServiceDiscoveryEngi
      */
     private boolean shouldFetchUUIDsAgain(BluetoothDevice device)
     {
-        Log.d(TAG, "shouldFetchUUIDsAgain: Already on list " + alreadyReceivedUuidsFor.contains(device));
+        EngineLog.d(TAG, () -> "shouldFetchUUIDsAgain: Already on list " + alreadyReceivedUuidsFor.contains(device));
         return !this.alreadyReceivedUuidsFor.contains(device);
     }
 
+    //
+    //  ---------- config ----------
+    //
+
     /**
-     * Determines whether the refresh period is still running
+     * Sets the maximum number of service discoveries (SDP queries)
+     * which will run at the same time, defaults to {@link SdpFetchScheduler#DEFAULT_MAX_IN_FLIGHT}
      *
-     * @return true if still refreshing, else false
+     * @param maxConcurrentFetches
+     *         the number of SDP queries, at least one
      */
-    private boolean isRefreshProcessRunning()
+    public void setMaxConcurrentSdpFetches(int maxConcurrentFetches)
     {
-        if (System.currentTimeMillis() - this.refreshingTimeStamp >= REFRESH_TIME)
-        {
-            Log.d(TAG, "isRefreshProcessRunning: not refreshing");
-            return false;
-        }
-        Log.d(TAG, "isRefreshProcessRunning: refresh running");
-        return true;
+        this.engineExecutor.dispatch(() -> this.fetchScheduler.setMaxInFlight(maxConcurrentFetches));
+    }
+
+    /**
+     * Sets the time after which a service discovery (SDP query) will be
+     * given up if not answered, defaults to {@link SdpFetchScheduler#DEFAULT_FETCH_TIMEOUT}
+     *
+     * @param timeoutInMillis
+     *         the timeout in milliseconds
+     */
+    public void setSdpFetchTimeout(long timeoutInMillis)
+    {
+        this.engineExecutor.dispatch(() -> this.fetchScheduler.setFetchTimeout(timeoutInMillis));
     }
-}
 
+    /**
+     * Replaces the ranking policy, also for the
+     * service discoveries which are already scheduled
+     *
+     * @param rankingPolicy
+     *         the policy to use
+     */
+    @Override
+    public void setPeerRankingPolicy(PeerRankingPolicy rankingPolicy)
+    {
+        super.setPeerRankingPolicy(rankingPolicy);
+        this.engineExecutor.dispatch(() -> this.fetchScheduler.setRankingPolicy(rankingPolicy));
+    }
+}
@@ -0,0 +1,59 @@
+package willi.boelke.services.serviceDiscovery.bluetoothServiceDiscovery;
+
+/**
+ * The {@link PeerRankingPolicy} used by default.
+ * <p>
+ * Peers are ranked by
+ * <ol>
+ *     <li>their device class - phones and computers, which can run the
+ *     app, come before devices which probably cant (headsets, peripherals...)</li>
+ *     <li>their signal strength - closer peers first</li>
+ *     <li>when they were seen - most recently seen peers first</li>
+ * </ol>
+ * Peers where the RSSI or device class is unknown will be ranked
+ * behind the ones where it is known.
+ *
+ * @author WilliBoelke
+ */
+public class DefaultPeerRankingPolicy implements PeerRankingPolicy
+{
+    /**
+     * Major device classes, as in BluetoothClass.Device.Major
+     */
+    private static final int MAJOR_COMPUTER = 0x0100;
+    private static final int MAJOR_PHONE = 0x0200;
+
+    @Override
+    public int compare(BluetoothPeer a, BluetoothPeer b)
+    {
+        int result = Integer.compare(classRank(a), classRank(b));
+        if (result != 0)
+        {
+            return result;
+        }
+        // the stronger signal first, unknown RSSI is the smallest value
+        result = Short.compare(b.getRssi(), a.getRssi());
+        if (result != 0)
+        {
+            return result;
+        }
+        return Long.compare(b.getLastSeen(), a.getLastSeen());
+    }
+
+    /**
+     * @return 0 for phones and computers, 1 for unknown, 2 for other devices
+     */
+    private int classRank(BluetoothPeer peer)
+    {
+        int major = peer.getMajorDeviceClass();
+        if (major == MAJOR_PHONE || major == MAJOR_COMPUTER)
+        {
+            return 0;
+        }
+        if (major == BluetoothPeer.DEVICE_CLASS_UNKNOWN)
+        {
+            return 1;
+        }
+        return 2;
+    }
+}
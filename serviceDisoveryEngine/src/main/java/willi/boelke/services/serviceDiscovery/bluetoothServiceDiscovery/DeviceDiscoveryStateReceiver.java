@@ -4,14 +4,15 @@ import android.bluetooth.BluetoothAdapter;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.util.Log;
+
+import willi.boelke.services.serviceDiscovery.EngineLog;
 
 /**
  * This BroadcastReceiver listens on Broadcasts regarding the state of the
  * bluetooth api.
  * <p>
  * The only broadcasts used here is the {@link BluetoothAdapter#ACTION_DISCOVERY_FINISHED}
- * which will cause {@link BluetoothServiceDiscoveryEngine#onDeviceDiscoveryFinished()}
+ * which will cause {@link BluetoothServiceDiscoveryEngine#handleDeviceDiscoveryFinished()}
  * to be called, this will start the UUID fetching process.
  * <p>
  * -------
@@ -66,12 +67,12 @@ class DeviceDiscoveryStateReceiver extends BroadcastReceiver
         String action = intent.getAction();
         if (BluetoothAdapter.ACTION_DISCOVERY_STARTED.equals(action))
         {
-            Log.e(TAG, "ACTION_DISCOVERY_STARTED: Start Discovery");
+            EngineLog.e(TAG, "ACTION_DISCOVERY_STARTED: Start Discovery");
         }
         else if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action))
         {
-            Log.e(TAG, "ACTION_DISCOVERY_FINISHED: Finished Discovery");
-            discoveryEngine.onDeviceDiscoveryFinished();
+            EngineLog.e(TAG, "ACTION_DISCOVERY_FINISHED: Finished Discovery");
+            discoveryEngine.handleDeviceDiscoveryFinished();
         }
     }
 }
\ No newline at end of file
@@ -1,16 +1,18 @@
 package willi.boelke.services.serviceDiscovery.bluetoothServiceDiscovery;
 
+import android.bluetooth.BluetoothClass;
 import android.bluetooth.BluetoothDevice;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.util.Log;
+
+import willi.boelke.services.serviceDiscovery.EngineLog;
 
 
 /**
  * While a bluetooth device discovery is running, this
  * broadcast receiver will notify the SdpBluetooth engine
- * about discovered devices using {@link BluetoothServiceDiscoveryVOne#onDeviceDiscovered(BluetoothDevice)}
+ * about discovered devices using {@link BluetoothServiceDiscoveryEngine#handleDeviceFound(BluetoothPeer)}
  *
  * @author WilliBoelke
  */
@@ -43,7 +45,7 @@ class DeviceFoundReceiver extends BroadcastReceiver
      */
     public DeviceFoundReceiver(BluetoothServiceDiscoveryEngine discoveryEngine)
     {
-        Log.d(TAG, "DeviceFoundReceiver: initialised receiver");
+        EngineLog.d(TAG, "DeviceFoundReceiver: initialised receiver");
         this.discoveryEngine = discoveryEngine;
     }
 
@@ -58,8 +60,11 @@ class DeviceFoundReceiver extends BroadcastReceiver
         if (action.equals(BluetoothDevice.ACTION_FOUND))
         {
             BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-            Log.d(TAG, "onReceive: discovered new device " + device);
-            this.discoveryEngine.onDeviceDiscovered(device);
+            short rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, BluetoothPeer.RSSI_UNKNOWN);
+            BluetoothClass bluetoothClass = intent.getParcelableExtra(BluetoothDevice.EXTRA_CLASS);
+            int deviceClass = bluetoothClass == null ? BluetoothPeer.DEVICE_CLASS_UNKNOWN : bluetoothClass.getDeviceClass();
+            EngineLog.d(TAG, () -> "onReceive: discovered new device " + device + " rssi " + rssi);
+            this.discoveryEngine.handleDeviceFound(new BluetoothPeer(device, rssi, deviceClass, this.discoveryEngine.now()));
         }
     }
 }
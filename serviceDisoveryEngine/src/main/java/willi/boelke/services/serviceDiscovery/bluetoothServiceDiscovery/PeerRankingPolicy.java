@@ -0,0 +1,23 @@
+package willi.boelke.services.serviceDiscovery.bluetoothServiceDiscovery;
+
+import java.util.Comparator;
+
+/**
+ * Decides in which order discovered peers should be handled.
+ * <p>
+ * Inquiry and SDP time as well as connection attempts are limited,
+ * a policy ranks the peers which are most likely to host a service and
+ * accept a connection first.
+ * It is used to order the SDP queries of the {@link BluetoothServiceDiscoveryVTwo}
+ * and the connection attempts of the BluetoothServiceConnectionEngine.
+ * <p>
+ * A policy is a {@link Comparator}, peers which should be handled first
+ * need to be ordered before the others.
+ * It can be replaced through {@link BluetoothServiceDiscovery#setPeerRankingPolicy(PeerRankingPolicy)},
+ * by default a {@link DefaultPeerRankingPolicy} is used.
+ *
+ * @author WilliBoelke
+ */
+public interface PeerRankingPolicy extends Comparator<BluetoothPeer>
+{
+}
@@ -0,0 +1,293 @@
+package willi.boelke.services.serviceDiscovery.bluetoothServiceDiscovery;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+import willi.boelke.services.serviceDiscovery.EngineExecutor;
+import willi.boelke.services.serviceDiscovery.EngineLog;
+
+/**
+ * Schedules the SDP queries ({@link BluetoothDevice#fetchUuidsWithSdp()})
+ * of the {@link BluetoothServiceDiscoveryVTwo}.
+ * <p>
+ * <h2>Why</h2>
+ * Starting the SDP queries of all discovered devices at once
+ * makes them compete for the radio, the first results then take
+ * as long as the last ones. There also was no reliable way to tell
+ * when all queries were answered, since the {@link BluetoothDevice#ACTION_UUID}
+ * broadcast sometimes comes twice and sometimes not at all.
+ * <p>
+ * <h2>Scheduling</h2>
+ * <ul>
+ *     <li>Peers are queued through {@link #schedule(BluetoothPeer)} and fetched
+ *     in the order given by the {@link PeerRankingPolicy}</li>
+ *     <li>Only a limited number of queries will be in flight at a time,
+ *     the next device will be fetched as soon as a query is answered</li>
+ *     <li>A query which was not answered in time will be given up, so
+ *     a single unresponsive device wont block the queue</li>
+ *     <li>When the queue is drained and no query is in flight the
+ *     {@link Callback#onQueueDrained()} will be called, so the device
+ *     discovery can be restarted right away</li>
+ * </ul>
+ * Queries will only be started by {@link #dispatch()}, since they
+ * should not run during a device discovery.
+ * <p>
+ * Timeouts are scheduled on the given {@link EngineExecutor}.
+ *
+ * @author WilliBoelke
+ */
+class SdpFetchScheduler
+{
+    //
+    //  ---------- static members ----------
+    //
+
+    /**
+     * Default number of SDP queries in flight
+     */
+    static final int DEFAULT_MAX_IN_FLIGHT = 3;
+
+    /**
+     * Default time in milliseconds after which a
+     * SDP query will be given up
+     */
+    static final long DEFAULT_FETCH_TIMEOUT = 10000;
+
+    //
+    //  ---------- interface ----------
+    //
+
+    /**
+     * Notified by the scheduler
+     */
+    interface Callback
+    {
+        /**
+         * Called when all scheduled devices were fetched
+         * (or timed out) and no query is in flight anymore
+         */
+        void onQueueDrained();
+    }
+
+    //
+    //  ----------  instance variables ----------
+    //
+
+    /**
+     * Classname for logging
+     */
+    private final String TAG = this.getClass().getSimpleName();
+
+    private final EngineExecutor executor;
+
+    private final Callback callback;
+
+    /**
+     * Peers waiting to be fetched, ordered by the ranking policy
+     */
+    private PriorityQueue<BluetoothPeer> queue;
+
+    /**
+     * Devices currently being fetched and their timeouts
+     */
+    private final HashMap<BluetoothDevice, Runnable> inFlight = new HashMap<>();
+
+    private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+
+    private long fetchTimeout = DEFAULT_FETCH_TIMEOUT;
+
+    //
+    //  ----------  constructor and initialisation ----------
+    //
+
+    /**
+     * Constructor
+     *
+     * @param executor
+     *         the engine executor to schedule the timeouts on
+     * @param rankingPolicy
+     *         decides which peers will be fetched first
+     * @param callback
+     *         to be notified when the queue drained
+     */
+    SdpFetchScheduler(EngineExecutor executor, PeerRankingPolicy rankingPolicy, Callback callback)
+    {
+        this.executor = executor;
+        this.callback = callback;
+        this.queue = new PriorityQueue<>(11, rankingPolicy);
+    }
+
+    //
+    //  ----------  scheduling ----------
+    //
+
+    /**
+     * Queues a peer to be fetched.
+     * If the peer is already queued its record will be replaced,
+     * if it is being fetched right now it wont be queued again.
+     *
+     * @param peer
+     *         the peer to fetch the UUIDs from
+     */
+    synchronized void schedule(BluetoothPeer peer)
+    {
+        if (this.inFlight.containsKey(peer.getDevice()))
+        {
+            return;
+        }
+        removeFromQueue(peer.getDevice());
+        this.queue.add(peer);
+    }
+
+    /**
+     * Starts SDP queries for the queued devices, till the maximum
+     * number of queries in flight is reached.
+     */
+    synchronized void dispatch()
+    {
+        while (this.inFlight.size() < this.maxInFlight && !this.queue.isEmpty())
+        {
+            startFetch(this.queue.poll().getDevice());
+        }
+    }
+
+    /**
+     * Starts the next queries after one finished and calls
+     * {@link Callback#onQueueDrained()} when there is nothing left to fetch.
+     */
+    private void dispatchNext()
+    {
+        boolean drained;
+        synchronized (this)
+        {
+            dispatch();
+            drained = this.isIdle();
+        }
+        if (drained)
+        {
+            this.callback.onQueueDrained();
+        }
+    }
+
+    /**
+     * Should be called whenever UUIDs of a device where received.
+     * Starts the next query, or notifies the callback
+     * if there is nothing left to fetch.
+     *
+     * @param device
+     *         the device which UUIDs where received
+     */
+    void onFetched(BluetoothDevice device)
+    {
+        synchronized (this)
+        {
+            Runnable timeout = this.inFlight.remove(device);
+            if (timeout == null)
+            {
+                // not fetched by the scheduler, or a second broadcast for the same query
+                return;
+            }
+            this.executor.cancel(timeout);
+        }
+        dispatchNext();
+    }
+
+    private void onTimeout(BluetoothDevice device)
+    {
+        synchronized (this)
+        {
+            if (this.inFlight.remove(device) == null)
+            {
+                return;
+            }
+            EngineLog.e(TAG, "onTimeout: sdp query of " + device + " was not answered in time");
+        }
+        dispatchNext();
+    }
+
+    private void startFetch(final BluetoothDevice device)
+    {
+        Runnable timeout = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                onTimeout(device);
+            }
+        };
+        this.inFlight.put(device, timeout);
+        this.executor.executeDelayed(timeout, this.fetchTimeout);
+        EngineLog.d(TAG, () -> "startFetch: fetching services from " + device + ", in flight: " + this.inFlight.size());
+        device.fetchUuidsWithSdp();
+    }
+
+    private void removeFromQueue(BluetoothDevice device)
+    {
+        Iterator<BluetoothPeer> iterator = this.queue.iterator();
+        while (iterator.hasNext())
+        {
+            if (iterator.next().getDevice().equals(device))
+            {
+                iterator.remove();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Drops all queued devices and all queries in flight.
+     * Answers to queries which were in flight will be ignored.
+     */
+    synchronized void clear()
+    {
+        for (Runnable timeout : this.inFlight.values())
+        {
+            this.executor.cancel(timeout);
+        }
+        this.inFlight.clear();
+        this.queue.clear();
+    }
+
+    /**
+     * @return true if no device is queued and no query is in flight
+     */
+    synchronized boolean isIdle()
+    {
+        return this.queue.isEmpty() && this.inFlight.isEmpty();
+    }
+
+    synchronized boolean isInFlight(BluetoothDevice device)
+    {
+        return this.inFlight.containsKey(device);
+    }
+
+    //
+    //  ----------  config ----------
+    //
+
+    synchronized void setMaxInFlight(int maxInFlight)
+    {
+        this.maxInFlight = Math.max(1, maxInFlight);
+    }
+
+    synchronized void setFetchTimeout(long fetchTimeout)
+    {
+        this.fetchTimeout = fetchTimeout;
+    }
+
+    /**
+     * Replaces the ranking policy, already queued peers will be reordered
+     *
+     * @param rankingPolicy
+     *         the new policy
+     */
+    synchronized void setRankingPolicy(PeerRankingPolicy rankingPolicy)
+    {
+        PriorityQueue<BluetoothPeer> reordered = new PriorityQueue<>(11, rankingPolicy);
+        reordered.addAll(this.queue);
+        this.queue = reordered;
+    }
+}
@@ -0,0 +1,397 @@
+package willi.boelke.services.serviceDiscovery.bluetoothServiceDiscovery;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import willi.boelke.services.serviceDiscovery.EngineLog;
+
+/**
+ * Caches the service UUIDs fetched from remote devices (SDP results)
+ * and persists them in a small binary file, so they survive
+ * engine and application restarts.
+ * <p>
+ * <h2>Why</h2>
+ * A device discovery takes around 12 seconds and each SDP query
+ * another few seconds. Without a cache this needs to be done again
+ * on every start, even though most of the peers and their services
+ * are the same as before.
+ * With the cache the {@link BluetoothServiceDiscoveryEngine} can notify
+ * listeners about known services right away and only needs to
+ * refresh entries which became stale.
+ * <p>
+ * <h2>Expiry and eviction</h2>
+ * Each entry has the timestamp of the SDP result it was created from.
+ * <ul>
+ *     <li>Entries older than the refresh interval are stale, they
+ *     will still be used, but should be refreshed</li>
+ *     <li>Entries older than the TTL are expired and will be removed</li>
+ *     <li>The number of entries is limited, when the limit is reached the least
+ *     recently used entry will be evicted</li>
+ * </ul>
+ * <p>
+ * <h2>File format</h2>
+ * <pre>
+ * int   magic ("SDPC")
+ * byte  version
+ * int   number of entries
+ * per entry (least recently used first):
+ *   UTF   device address
+ *   long  timestamp (millis)
+ *   short number of UUIDs
+ *   per UUID : long most significant bits, long least significant bits
+ * </pre>
+ * A file which can't be read will be ignored and overwritten on the next save.
+ *
+ * @author WilliBoelke
+ */
+class SdpResultCache
+{
+    //
+    //  ---------- static members ----------
+    //
+
+    /**
+     * Default time after which entries expire - 30 minutes
+     */
+    static final long DEFAULT_TTL = 30 * 60 * 1000;
+
+    /**
+     * Default time after which entries should be refreshed - 5 minutes
+     */
+    static final long DEFAULT_REFRESH_INTERVAL = 5 * 60 * 1000;
+
+    /**
+     * Default maximum number of cached devices
+     */
+    static final int DEFAULT_MAX_ENTRIES = 256;
+
+    private static final int MAGIC = 0x53445043;
+
+    private static final byte VERSION = 1;
+
+    //
+    //  ----------  instance variables ----------
+    //
+
+    /**
+     * Classname for logging
+     */
+    private final String TAG = this.getClass().getSimpleName();
+
+    /**
+     * The file the cache will be saved to
+     */
+    private final File file;
+
+    private final long ttl;
+
+    private final long refreshInterval;
+
+    private final int maxEntries;
+
+    /**
+     * Cached entries by device address, in access order
+     * so the eldest entry is the least recently used one.
+     */
+    private final LinkedHashMap<String, Entry> entries;
+
+    /**
+     * Set to true when entries changed since the last
+     * {@link #save()}
+     */
+    private boolean dirty = false;
+
+    //
+    //  ----------  constructor and initialisation ----------
+    //
+
+    /**
+     * Creates a cache with the default TTL, refresh interval and size.
+     *
+     * @param file
+     *         the file to persist the cache in
+     */
+    SdpResultCache(File file)
+    {
+        this(file, DEFAULT_TTL, DEFAULT_REFRESH_INTERVAL, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param file
+     *         the file to persist the cache in
+     * @param ttl
+     *         time in milliseconds after which entries expire
+     * @param refreshInterval
+     *         time in milliseconds after which entries are stale
+     * @param maxEntries
+     *         maximum number of cached devices
+     */
+    SdpResultCache(File file, long ttl, long refreshInterval, int maxEntries)
+    {
+        this.file = file;
+        this.ttl = ttl;
+        this.refreshInterval = refreshInterval;
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest)
+            {
+                return size() > SdpResultCache.this.maxEntries;
+            }
+        };
+    }
+
+    //
+    //  ----------  cache ----------
+    //
+
+    /**
+     * Caches the UUIDs fetched from a device
+     *
+     * @param address
+     *         the device address
+     * @param uuids
+     *         the fetched service uuids
+     */
+    synchronized void put(String address, UUID[] uuids)
+    {
+        put(address, uuids, System.currentTimeMillis());
+    }
+
+    synchronized void put(String address, UUID[] uuids, long timestamp)
+    {
+        this.entries.put(address, new Entry(address, uuids, timestamp));
+        this.dirty = true;
+    }
+
+    /**
+     * Returns the entry for a device
+     *
+     * @param address
+     *         the device address
+     *
+     * @return the entry, or null if there is none or it expired
+     */
+    synchronized Entry get(String address)
+    {
+        return get(address, System.currentTimeMillis());
+    }
+
+    synchronized Entry get(String address, long now)
+    {
+        Entry entry = this.entries.get(address);
+        if (entry != null && isExpired(entry, now))
+        {
+            this.entries.remove(address);
+            this.dirty = true;
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Removes the entry of a device
+     *
+     * @param address
+     *         the device address
+     */
+    synchronized void remove(String address)
+    {
+        if (this.entries.remove(address) != null)
+        {
+            this.dirty = true;
+        }
+    }
+
+    /**
+     * Removes all expired entries and returns the remaining ones
+     *
+     * @return all entries which did not expire
+     */
+    synchronized List<Entry> getValidEntries()
+    {
+        return getValidEntries(System.currentTimeMillis());
+    }
+
+    synchronized List<Entry> getValidEntries(long now)
+    {
+        List<Entry> valid = new ArrayList<>(this.entries.size());
+        Iterator<Entry> iterator = this.entries.values().iterator();
+        while (iterator.hasNext())
+        {
+            Entry entry = iterator.next();
+            if (isExpired(entry, now))
+            {
+                iterator.remove();
+                this.dirty = true;
+            }
+            else
+            {
+                valid.add(entry);
+            }
+        }
+        return valid;
+    }
+
+    /**
+     * Checks if an entry should be refreshed
+     *
+     * @param entry
+     *         the entry
+     *
+     * @return true if the entry is older than the refresh interval
+     */
+    boolean isStale(Entry entry)
+    {
+        return isStale(entry, System.currentTimeMillis());
+    }
+
+    boolean isStale(Entry entry, long now)
+    {
+        return now - entry.timestamp >= this.refreshInterval;
+    }
+
+    private boolean isExpired(Entry entry, long now)
+    {
+        return now - entry.timestamp >= this.ttl;
+    }
+
+    synchronized int size()
+    {
+        return this.entries.size();
+    }
+
+    synchronized void clear()
+    {
+        this.entries.clear();
+        this.dirty = true;
+    }
+
+    //
+    //  ----------  persistence ----------
+    //
+
+    /**
+     * Loads the entries from the file, expired entries will be skipped.
+     * If the file does not exist or can't be read the cache stays empty.
+     */
+    synchronized void load()
+    {
+        if (!this.file.exists())
+        {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        LinkedHashMap<String, Entry> loaded = new LinkedHashMap<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.file))))
+        {
+            if (in.readInt() != MAGIC || in.readByte() != VERSION)
+            {
+                EngineLog.e(TAG, "load: unknown cache file format - ignoring it");
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++)
+            {
+                String address = in.readUTF();
+                long timestamp = in.readLong();
+                UUID[] uuids = new UUID[in.readUnsignedShort()];
+                for (int j = 0; j < uuids.length; j++)
+                {
+                    uuids[j] = new UUID(in.readLong(), in.readLong());
+                }
+                Entry entry = new Entry(address, uuids, timestamp);
+                if (!isExpired(entry, now))
+                {
+                    loaded.put(address, entry);
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            EngineLog.e(TAG, "load: could not read cache file - ignoring it");
+            return;
+        }
+        this.entries.clear();
+        this.entries.putAll(loaded);
+        EngineLog.d(TAG, () -> "load: loaded " + this.entries.size() + " cached sdp results");
+    }
+
+    /**
+     * Writes the entries to the file, if anything changed since the last save.
+     * The file will be written to a temporary file first and then renamed,
+     * so an interrupted write wont corrupt the cache.
+     */
+    synchronized void save()
+    {
+        if (!this.dirty)
+        {
+            return;
+        }
+        File tmpFile = new File(this.file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile))))
+        {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeInt(this.entries.size());
+            for (Entry entry : this.entries.values())
+            {
+                out.writeUTF(entry.address);
+                out.writeLong(entry.timestamp);
+                out.writeShort(entry.uuids.length);
+                for (UUID uuid : entry.uuids)
+                {
+                    out.writeLong(uuid.getMostSignificantBits());
+                    out.writeLong(uuid.getLeastSignificantBits());
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            EngineLog.e(TAG, "save: could not write cache file");
+            return;
+        }
+        if (!tmpFile.renameTo(this.file))
+        {
+            EngineLog.e(TAG, "save: could not replace cache file");
+            return;
+        }
+        this.dirty = false;
+    }
+
+    //
+    //  ----------  entry ----------
+    //
+
+    /**
+     * The service UUIDs of one device
+     */
+    static final class Entry
+    {
+        final String address;
+        final UUID[] uuids;
+        final long timestamp;
+
+        Entry(String address, UUID[] uuids, long timestamp)
+        {
+            this.address = address;
+            this.uuids = uuids;
+            this.timestamp = timestamp;
+        }
+    }
+}
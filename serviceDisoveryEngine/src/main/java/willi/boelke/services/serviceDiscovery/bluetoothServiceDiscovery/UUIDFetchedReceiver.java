@@ -5,11 +5,12 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Parcelable;
-import android.util.Log;
+
+import willi.boelke.services.serviceDiscovery.EngineLog;
 
 /**
  * Listens on {@link BluetoothDevice#ACTION_UUID}, notifies the
- * engine by calling {@link BluetoothServiceDiscoveryEngine#onUuidsFetched(BluetoothDevice, Parcelable[])}
+ * engine by calling {@link BluetoothServiceDiscoveryEngine#handleFetchedUuids(BluetoothDevice, Parcelable[])}
  * when UUIDs where fetched.
  */
 class UUIDFetchedReceiver extends BroadcastReceiver
@@ -58,8 +59,8 @@ class UUIDFetchedReceiver extends BroadcastReceiver
         {
             BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
             Parcelable[] uuidExtra = intent.getParcelableArrayExtra(BluetoothDevice.EXTRA_UUID);
-            Log.d(TAG, "onReceive: received UUIDs for " + device);
-            this.discoveryEngine.onUuidsFetched(device, uuidExtra);
+            EngineLog.d(TAG, () -> "onReceive: received UUIDs for " + device);
+            this.discoveryEngine.handleFetchedUuids(device, uuidExtra);
         }
     }
 }
@@ -2,11 +2,16 @@ package willi.boelke.services.serviceDiscovery.wifiDirectServiceDiscovery;
 
 import android.Manifest;
 import android.content.Context;
+import android.net.wifi.p2p.WifiP2pDevice;
 import android.net.wifi.p2p.WifiP2pManager;
 
 import androidx.annotation.RequiresPermission;
 
+import java.util.concurrent.Executor;
+
 import willi.boelke.services.serviceDiscovery.IServiceDiscoveryEngine;
+import willi.boelke.services.serviceDiscovery.PeerServiceSnapshot;
+import willi.boelke.services.serviceDiscovery.ServiceChangeListener;
 import willi.boelke.services.serviceDiscovery.ServiceDescription;
 
 public interface WifiDirectServiceDiscovery extends IServiceDiscoveryEngine
@@ -32,10 +37,75 @@ public interface WifiDirectServiceDiscovery extends IServiceDiscoveryEngine
 
     void stopService(ServiceDescription description);
 
+    /**
+     * Registers a listener to be notified about discovered services
+     * <p>
+     * <b>The listener is notified on the engine thread, not on the main thread.</b>
+     * It must not block and needs to post to the main thread before touching views,
+     * or be registered through {@link #registerDiscoverListener(WifiServiceDiscoveryListener, Executor)}
+     * with the main thread executor (for example {@code ContextCompat.getMainExecutor(context)}).
+     *
+     * @param listener
+     *         the listener
+     */
     void registerDiscoverListener(WifiServiceDiscoveryListener listener);
 
+    /**
+     * Registers a listener to be notified on the given executor
+     * instead of the engine thread, so a slow listener does not
+     * hold up the discovery.
+     *
+     * @param listener
+     *         the listener
+     * @param executor
+     *         the executor the listener will be notified on
+     */
+    void registerDiscoverListener(WifiServiceDiscoveryListener listener, Executor executor);
+
+    /**
+     * Registers a listener, only keeping a weak reference to it.
+     * The listener will be removed once it was garbage collected, so an
+     * Activity or ViewModel does not leak when it forgets to unregister.
+     * Like {@link #registerDiscoverListener(WifiServiceDiscoveryListener)}
+     * it is notified on the engine thread.
+     *
+     * @param listener
+     *         the listener, needs to be referenced by the caller
+     *         as long as it should be notified
+     */
+    void registerDiscoverListenerWeakly(WifiServiceDiscoveryListener listener);
+
     void unregisterDiscoveryListener(WifiServiceDiscoveryListener listener);
 
+    /**
+     * Registers a listener to be notified when services appear,
+     * change or get lost, instead of every time they are discovered.
+     * <p>
+     * <b>The listener is notified on the engine thread, not on the main thread.</b>
+     *
+     * @param listener
+     *         the listener
+     */
+    void registerServiceChangeListener(ServiceChangeListener<WifiP2pDevice> listener);
+
+    /**
+     * Registers a listener to be notified about service changes
+     * on the given executor instead of the engine thread.
+     *
+     * @param listener
+     *         the listener
+     * @param executor
+     *         the executor the listener will be notified on
+     */
+    void registerServiceChangeListener(ServiceChangeListener<WifiP2pDevice> listener, Executor executor);
+
+    void unregisterServiceChangeListener(ServiceChangeListener<WifiP2pDevice> listener);
+
+    /**
+     * @return all peers and the services discovered on them
+     */
+    PeerServiceSnapshot<WifiP2pDevice> getServiceSnapshot();
+
     @Override
     void notifyAboutAllServices(boolean all);
 }
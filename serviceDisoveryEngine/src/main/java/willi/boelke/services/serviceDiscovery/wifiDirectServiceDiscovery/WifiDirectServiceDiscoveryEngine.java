@@ -16,15 +16,21 @@ import android.net.wifi.p2p.nsd.WifiP2pDnsSdServiceInfo;
 import android.net.wifi.p2p.nsd.WifiP2pDnsSdServiceRequest;
 import android.net.wifi.p2p.nsd.WifiP2pServiceInfo;
 import android.net.wifi.p2p.nsd.WifiP2pUpnpServiceInfo;
-import android.util.Log;
 
 import androidx.annotation.RequiresPermission;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.Executor;
 
+import willi.boelke.services.serviceDiscovery.EngineLog;
+import willi.boelke.services.serviceDiscovery.ListenerDispatcher;
+import willi.boelke.services.serviceDiscovery.PeerServiceSnapshot;
+import willi.boelke.services.serviceDiscovery.ServiceChange;
+import willi.boelke.services.serviceDiscovery.ServiceChangeListener;
 import willi.boelke.services.serviceDiscovery.ServiceDescription;
 import willi.boelke.services.serviceDiscovery.ServiceDiscoveryEngine;
 
@@ -84,6 +90,23 @@ import willi.boelke.services.serviceDiscovery.ServiceDiscoveryEngine;
  * are available. To verify that the engine started {@link #isRunning()} can be called and should return true.
  * To stop the engine call {@link #stop()}
  * The engine wont react to any other calls as long as it hasn't been successfully started.
+ * <p>
+ * <h2>Expiry</h2>
+ * Services which were not discovered again for the {@link #setServiceExpiryTime(long) expiry time}
+ * are reported as lost to the {@link ServiceChangeListener}s and removed from
+ * {@link #discoveredServices}, so they will be reported again when they come back.
+ * Since the discovery only runs for a limited time, services will expire after it stopped.
+ * Expired services are swept every {@link #SERVICE_EXPIRY_SWEEP_INTERVAL} ms while the engine runs.
+ * <p>
+ * <h2>Engine thread</h2>
+ * The Wi-Fi Direct channel is initialized with the looper of the {@link #engineExecutor},
+ * so all callbacks (including discovered services) are delivered on the engine thread
+ * and not on the main thread. Public methods changing the engines state run on the
+ * engine thread as well and wait until they are done.
+ * <p>
+ * Listeners are notified through a {@link ListenerDispatcher}, on the engine thread
+ * or on the executor they were registered with
+ * (see {@link #registerDiscoverListener(WifiServiceDiscoveryListener, Executor)}).
  */
 @SuppressLint("MissingPermission")
 public class WifiDirectServiceDiscoveryEngine extends ServiceDiscoveryEngine implements WifiDirectServiceDiscovery
@@ -140,7 +163,23 @@ public class WifiDirectServiceDiscoveryEngine extends ServiceDiscoveryEngine imp
      *
      * @see #unregisterDiscoveryListener(WifiServiceDiscoveryListener)
      */
-    private final ArrayList<WifiServiceDiscoveryListener> discoveryListeners = new ArrayList<>();
+    private final ListenerDispatcher<WifiServiceDiscoveryListener> discoveryListeners = new ListenerDispatcher<>();
+
+    /**
+     * Listeners to be notified about changes of the {@link #serviceSnapshot}
+     *
+     * @see #registerServiceChangeListener(ServiceChangeListener)
+     */
+    private final ListenerDispatcher<ServiceChangeListener<WifiP2pDevice>> serviceChangeListeners = new ListenerDispatcher<>();
+
+    /**
+     * All peers and the services discovered on them, other than
+     * {@link #discoveredServices} it wont be cleared when the discovery restarts,
+     * so {@link #serviceChangeListeners} only get notified about changes.
+     */
+    private final PeerServiceSnapshot<WifiP2pDevice> serviceSnapshot = new PeerServiceSnapshot<>();
+
+    private final Runnable expirySweeper = this::sweepExpiredServices;
 
     private DiscoveryRunner discoveryRunner = new DiscoveryRunner();
 
@@ -173,51 +212,61 @@ public class WifiDirectServiceDiscoveryEngine extends ServiceDiscoveryEngine imp
      * Starts the engine
      * needs to eb called before doing anything else
      * before starting the engine all calls will be returned immediately.
+     * <p>
+     * The Wi-Fi services are checked right away, the engine is then started on
+     * the engine thread. If that takes longer than {@link #API_CALL_TIMEOUT} this
+     * returns without waiting any longer, {@link #isRunning()} will return true once it started.
      *
      * @param context
      *         the application context
      *
-     * @return true if the engine was successfully started, else returns false
+     * @return true if the engine was, or will be, successfully started, else returns false
      *
      * @see #stop()
      */
     @Override
     public boolean start(Context context)
     {
-        if (isRunning())
-        {
-            Log.e(TAG, "start: engine already running");
-            return true;
-        }
-
         WifiManager wifiManager = (WifiManager) context.getApplicationContext().getSystemService(Context.WIFI_SERVICE);
         if (wifiManager == null)
         {
-            Log.e(TAG, "start: Wifi Service not available");
+            EngineLog.e(TAG, "start: Wifi Service not available");
             return false;
         }
         if (!wifiManager.isP2pSupported())
         {
-            Log.e(TAG, "start: Wifi turned off or not available");
+            EngineLog.e(TAG, "start: Wifi turned off or not available");
             return false;
         }
-        this.manager = (WifiP2pManager) context.getSystemService(Context.WIFI_P2P_SERVICE);
-        if (manager == null)
+        WifiP2pManager p2pManager = (WifiP2pManager) context.getSystemService(Context.WIFI_P2P_SERVICE);
+        if (p2pManager == null)
         {
-            Log.e(TAG, "start:Wifi Service not available");
+            EngineLog.e(TAG, "start:Wifi Service not available");
             return false;
         }
-        this.channel = manager.initialize(context, context.getMainLooper(), null);
-        if (channel == null)
+        return this.engineExecutor.call(() ->
         {
-            Log.e(TAG, "start: cant init WiFi direct");
-            return false;
-        }
+            if (isRunning())
+            {
+                EngineLog.e(TAG, "start: engine already running");
+                return true;
+            }
+            this.manager = p2pManager;
+            // callbacks of the channel will be delivered on the engine thread
+            this.channel = manager.initialize(context, this.engineExecutor.getLooper(), null);
+            if (channel == null)
+            {
+                EngineLog.e(TAG, "start: cant init WiFi direct");
+                return false;
+            }
 
-        Log.d(TAG, "start: checks passed - starting engine");
+            EngineLog.d(TAG, "start: checks passed - starting engine");
 
-        engineRunning = true;
-        return true;
+            this.serviceSnapshot.setExpiryTime(this.serviceExpiryTime);
+            this.engineExecutor.executeDelayed(this.expirySweeper, SERVICE_EXPIRY_SWEEP_INTERVAL);
+            engineRunning = true;
+            return true;
+        }, API_CALL_TIMEOUT, true);
     }
 
     /**
@@ -228,24 +277,33 @@ public class WifiDirectServiceDiscoveryEngine extends ServiceDiscoveryEngine imp
     protected void teardownEngine()
     {
         this.stop();
+        this.engineExecutor.shutdown();
         instance = null;
     }
 
     /**
      * This stops the engine, the discovery will be stopped
      * and all registered services will be unregistered
+     * <p>
+     * Waits until the engine stopped, but not longer than {@link #API_CALL_TIMEOUT},
+     * the engine then stops after the already queued tasks ran.
      */
     @Override
     public void stop()
     {
-        if (engineIsNotRunning())
+        this.engineExecutor.runAndWait(() ->
         {
-            Log.e(TAG, "engine not started - wont stop");
-            return;
-        }
-        this.stopDiscovery();
-        this.stopAllServices();
-        channel.close();
+            if (engineIsNotRunning())
+            {
+                EngineLog.e(TAG, "engine not started - wont stop");
+                return;
+            }
+            this.stopDiscovery();
+            this.stopAllServices();
+            this.engineExecutor.cancel(this.expirySweeper);
+            this.serviceSnapshot.clear();
+            channel.close();
+        }, API_CALL_TIMEOUT);
     }
 
     //
@@ -260,15 +318,18 @@ public class WifiDirectServiceDiscoveryEngine extends ServiceDiscoveryEngine imp
     @Override
     public void startDiscovery()
     {
-        if (engineIsNotRunning())
+        this.engineExecutor.dispatch(() ->
         {
-            Log.e(TAG, "startDiscovery: engine not running - wont discover");
-            return;
-        }
-        this.discoveredServices.clear();
-        cancelServiceDiscovery();
-        Log.d(TAG, "startDiscovery: staring discovery");
-        runServiceDiscovery();
+            if (engineIsNotRunning())
+            {
+                EngineLog.e(TAG, "startDiscovery: engine not running - wont discover");
+                return;
+            }
+            this.discoveredServices.clear();
+            cancelServiceDiscovery();
+            EngineLog.d(TAG, "startDiscovery: staring discovery");
+            runServiceDiscovery();
+        });
     }
 
     /**
@@ -277,14 +338,17 @@ public class WifiDirectServiceDiscoveryEngine extends ServiceDiscoveryEngine imp
     @Override
     public void stopDiscovery()
     {
-        if (engineIsNotRunning())
+        this.engineExecutor.dispatch(() ->
         {
-            Log.e(TAG, "stopDiscovery: engine not running - wont stop");
-            return;
-        }
-        //--- if the discovery thread is running -> cancel it ---//
-        Log.d(TAG, "stopDiscovery: stopping discovery");
-        cancelServiceDiscovery();
+            if (engineIsNotRunning())
+            {
+                EngineLog.e(TAG, "stopDiscovery: engine not running - wont stop");
+                return;
+            }
+            //--- if the discovery thread is running -> cancel it ---//
+            EngineLog.d(TAG, "stopDiscovery: stopping discovery");
+            cancelServiceDiscovery();
+        });
     }
 
     //
@@ -326,45 +390,48 @@ public class WifiDirectServiceDiscoveryEngine extends ServiceDiscoveryEngine imp
     @Override
     public void startService(ServiceDescription description)
     {
-        if (engineIsNotRunning())
-        {
-            Log.e(TAG, "startSdpService: engine not running - wont start service");
-            return;
-        }
-        Log.d(TAG, "startSdpService: starting service : " + description);
-        WifiP2pServiceInfo serviceInfo = WifiP2pDnsSdServiceInfo.newInstance(
-                description.getInstanceName(),
-                description.getServiceType(),
-                description.getTxtRecord());
-        manager.addLocalService(channel, serviceInfo, new WifiP2pManager.ActionListener()
+        this.engineExecutor.dispatch(() ->
         {
-            @Override
-            public void onSuccess()
+            if (engineIsNotRunning())
             {
-                Log.d(TAG, "startSdpService: service successfully added : " + description);
+                EngineLog.e(TAG, "startSdpService: engine not running - wont start service");
+                return;
             }
-
-            @Override
-            public void onFailure(int arg0)
-            {
-                logReason(TAG, "startSdpService: service could not be added : " + description, arg0);
-            }
-        });
-        manager.addLocalService(channel, serviceInfo, new WifiP2pManager.ActionListener()
-        {
-            @Override
-            public void onSuccess()
+            EngineLog.d(TAG, () -> "startSdpService: starting service : " + description);
+            WifiP2pServiceInfo serviceInfo = WifiP2pDnsSdServiceInfo.newInstance(
+                    description.getInstanceName(),
+                    description.getServiceType(),
+                    description.getTxtRecord());
+            manager.addLocalService(channel, serviceInfo, new WifiP2pManager.ActionListener()
             {
-                Log.d(TAG, "startSdpService: service successfully added : " + description);
-            }
+                @Override
+                public void onSuccess()
+                {
+                    EngineLog.d(TAG, () -> "startSdpService: service successfully added : " + description);
+                }
 
-            @Override
-            public void onFailure(int arg0)
+                @Override
+                public void onFailure(int arg0)
+                {
+                    logReason(TAG, "startSdpService: service could not be added : " + description, arg0);
+                }
+            });
+            manager.addLocalService(channel, serviceInfo, new WifiP2pManager.ActionListener()
             {
-                logReason(TAG, "startSdpService: service could not be added : " + description, arg0);
-            }
-        });
+                @Override
+                public void onSuccess()
+                {
+                    EngineLog.d(TAG, () -> "startSdpService: service successfully added : " + description);
+                }
+
+                @Override
+                public void onFailure(int arg0)
+                {
+                    logReason(TAG, "startSdpService: service could not be added : " + description, arg0);
+                }
+            });
 
+        });
     }
 
     /**
@@ -374,37 +441,40 @@ public class WifiDirectServiceDiscoveryEngine extends ServiceDiscoveryEngine imp
     @Override
     public void stopService(ServiceDescription description)
     {
-        if (engineIsNotRunning())
-        {
-            Log.e(TAG, "startSDPService: engine not running - wont stop service");
-            return;
-        }
-        try
+        this.engineExecutor.dispatch(() ->
         {
-            WifiP2pServiceInfo serviceInfo = WifiP2pDnsSdServiceInfo.newInstance(
-                    description.getInstanceName(),
-                    description.getServiceType(),
-                    description.getTxtRecord());
-
-            manager.removeLocalService(channel, serviceInfo, new WifiP2pManager.ActionListener()
+            if (engineIsNotRunning())
             {
-                @Override
-                public void onSuccess()
-                {
-                    Log.d(TAG, "stopService: service removed successfully ");
-                }
+                EngineLog.e(TAG, "startSDPService: engine not running - wont stop service");
+                return;
+            }
+            try
+            {
+                WifiP2pServiceInfo serviceInfo = WifiP2pDnsSdServiceInfo.newInstance(
+                        description.getInstanceName(),
+                        description.getServiceType(),
+                        description.getTxtRecord());
 
-                @Override
-                public void onFailure(int reason)
+                manager.removeLocalService(channel, serviceInfo, new WifiP2pManager.ActionListener()
                 {
-                    logReason(TAG, "stopSDPService: could not remove service ", reason);
-                }
-            });
-        }
-        catch (IllegalArgumentException e)
-        {
-            Log.e(TAG, "stopSDPService: tried to stop service which is not registered");
-        }
+                    @Override
+                    public void onSuccess()
+                    {
+                        EngineLog.d(TAG, "stopService: service removed successfully ");
+                    }
+
+                    @Override
+                    public void onFailure(int reason)
+                    {
+                        logReason(TAG, "stopSDPService: could not remove service ", reason);
+                    }
+                });
+            }
+            catch (IllegalArgumentException e)
+            {
+                EngineLog.e(TAG, "stopSDPService: tried to stop service which is not registered");
+            }
+        });
     }
 
     /**
@@ -445,12 +515,37 @@ public class WifiDirectServiceDiscoveryEngine extends ServiceDiscoveryEngine imp
     @Override
     public void registerDiscoverListener(WifiServiceDiscoveryListener listener)
     {
+        registerDiscoverListener(listener, ListenerDispatcher.DIRECT_EXECUTOR);
+    }
 
-        if (discoveryListeners.contains(listener))
-        {
-            return;
-        }
-        this.discoveryListeners.add(listener);
+    /**
+     * Registers a {@link WifiServiceDiscoveryListener} to be notified about
+     * discovered devices and services on the given executor.
+     *
+     * @param listener
+     *         implementation of then listener interface
+     * @param executor
+     *         the executor the listener will be notified on
+     *
+     * @see #unregisterDiscoveryListener(WifiServiceDiscoveryListener)
+     */
+    @Override
+    public void registerDiscoverListener(WifiServiceDiscoveryListener listener, Executor executor)
+    {
+        this.engineExecutor.dispatch(() -> this.discoveryListeners.register(listener, executor));
+    }
+
+    /**
+     * Registers a {@link WifiServiceDiscoveryListener}, only keeping a weak reference to it.
+     * Listeners which were garbage collected will be removed on the next notification.
+     *
+     * @param listener
+     *         implementation of then listener interface
+     */
+    @Override
+    public void registerDiscoverListenerWeakly(WifiServiceDiscoveryListener listener)
+    {
+        this.engineExecutor.dispatch(() -> this.discoveryListeners.registerWeakly(listener));
     }
 
     /**
@@ -465,7 +560,72 @@ public class WifiDirectServiceDiscoveryEngine extends ServiceDiscoveryEngine imp
     @Override
     public void unregisterDiscoveryListener(WifiServiceDiscoveryListener listener)
     {
-        discoveryListeners.remove(listener);
+        this.discoveryListeners.unregister(listener);
+    }
+
+    /**
+     * Registers a {@link ServiceChangeListener} to be notified when services
+     * appear, change or get lost. The listener will be notified about
+     * the services which are already known right away.
+     *
+     * @param listener
+     *         the listener
+     */
+    @Override
+    public void registerServiceChangeListener(ServiceChangeListener<WifiP2pDevice> listener)
+    {
+        registerServiceChangeListener(listener, ListenerDispatcher.DIRECT_EXECUTOR);
+    }
+
+    /**
+     * Registers a {@link ServiceChangeListener} to be notified on the given executor
+     *
+     * @param listener
+     *         the listener
+     * @param executor
+     *         the executor the listener will be notified on
+     */
+    @Override
+    public void registerServiceChangeListener(ServiceChangeListener<WifiP2pDevice> listener, Executor executor)
+    {
+        this.engineExecutor.dispatch(() ->
+        {
+            if (this.serviceChangeListeners.register(listener, executor))
+            {
+                for (ServiceChange<WifiP2pDevice> change : this.serviceSnapshot.asChanges())
+                {
+                    this.serviceChangeListeners.dispatchTo(listener, change::dispatchTo);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void unregisterServiceChangeListener(ServiceChangeListener<WifiP2pDevice> listener)
+    {
+        this.serviceChangeListeners.unregister(listener);
+    }
+
+    @Override
+    public PeerServiceSnapshot<WifiP2pDevice> getServiceSnapshot()
+    {
+        return this.serviceSnapshot;
+    }
+
+    /**
+     * Passes the changes of the {@link #serviceSnapshot} on to
+     * all {@link #serviceChangeListeners}
+     *
+     * @param changes
+     *         the changes returned by the snapshot
+     */
+    private void notifyServiceChangeListeners(List<ServiceChange<WifiP2pDevice>> changes)
+    {
+        for (ServiceChange<WifiP2pDevice> change : changes)
+        {
+            EngineLog.d(TAG, () -> "notifyServiceChangeListeners: " + change);
+            this.serviceChangeListeners.dispatch(change::dispatchTo);
+        }
     }
 
     /**
@@ -479,25 +639,11 @@ public class WifiDirectServiceDiscoveryEngine extends ServiceDiscoveryEngine imp
      */
     private void notifyOnServiceDiscovered(WifiP2pDevice device, ServiceDescription description)
     {
-        Log.d(TAG, "notifyOnServiceDiscovered: notifying " + this.discoveryListeners.size() + " listeners");
-        ArrayList<WifiServiceDiscoveryListener> expiredListeners = new ArrayList<>();
-        for (WifiServiceDiscoveryListener listener : this.discoveryListeners)
-        {
-            //Notify client about discovery
-            try
-            {
-                listener.onServiceDiscovered(device, description);
-            }
-            catch (NullPointerException e)
-            {
-                Log.e(TAG, "notifyOnServiceDiscovered: listener was null -remove");
-                expiredListeners.add(listener);
-            }
-        }
-        for (WifiServiceDiscoveryListener listener : expiredListeners)
-        {
-            unregisterDiscoveryListener(listener);
-        }
+        EngineLog.d(TAG, () -> "notifyOnServiceDiscovered: notifying " + this.discoveryListeners.size() + " listeners");
+        //Notify client about discovery, a queued notification about the same service will be replaced
+        this.discoveryListeners.dispatch(ListenerDispatcher.coalescing(
+                ListenerDispatcher.key(device.deviceAddress, description),
+                listener -> listener.onServiceDiscovered(device, description)));
     }
 
 
@@ -516,7 +662,7 @@ public class WifiDirectServiceDiscoveryEngine extends ServiceDiscoveryEngine imp
      */
     protected synchronized void onServiceDiscovered(WifiP2pDevice device, Map<String, String> serviceRecord, String registrationType, String instanceName)
     {
-        Log.d(TAG, "onServiceDiscovered: ----discovered a new Service on " + device + "----");
+        EngineLog.d(TAG, () -> "onServiceDiscovered: ----discovered a new Service on " + device + "----");
 
         //--- updating discovered services list ---//
 
@@ -530,14 +676,14 @@ public class WifiDirectServiceDiscoveryEngine extends ServiceDiscoveryEngine imp
         if (this.discoveredServices.containsKey(description) &&
                 this.discoveredServices.get(description).contains(device))
         {
-            Log.d(TAG, "onServiceDiscovered: already knew the service");
+            EngineLog.d(TAG, "onServiceDiscovered: already knew the service");
         }
 
         //--- service and device new ---//
 
         else if (!this.discoveredServices.containsKey(description))
         {
-            Log.d(TAG, "onServiceDiscovered: discovered new service");
+            EngineLog.d(TAG, "onServiceDiscovered: discovered new service");
             ArrayList<WifiP2pDevice> serviceDevices = new ArrayList<>();
             serviceDevices.add(device);
             this.discoveredServices.put(description, serviceDevices);
@@ -548,7 +694,7 @@ public class WifiDirectServiceDiscoveryEngine extends ServiceDiscoveryEngine imp
 
         else
         {
-            Log.d(TAG, "onServiceDiscovered: knew the service, but this is a new host");
+            EngineLog.d(TAG, "onServiceDiscovered: knew the service, but this is a new host");
             Objects.requireNonNull(discoveredServices.get(description)).add(device);
             newService = true;
         }
@@ -559,6 +705,61 @@ public class WifiDirectServiceDiscoveryEngine extends ServiceDiscoveryEngine imp
         {
             notifyOnServiceDiscovered(device, description);
         }
+
+        //--- notify about changes ---//
+
+        if (isServiceBeingLockedFor(description))
+        {
+            notifyServiceChangeListeners(this.serviceSnapshot.add(device.deviceAddress, device, description));
+        }
+    }
+
+    /**
+     * Removes services which were not discovered for the {@link #serviceExpiryTime}
+     * from {@link #discoveredServices}, notifies the {@link #serviceChangeListeners}
+     * about them and posts itself again while the engine is running.
+     */
+    private synchronized void sweepExpiredServices()
+    {
+        List<ServiceChange<WifiP2pDevice>> changes = this.serviceSnapshot.expire();
+        for (ServiceChange<WifiP2pDevice> change : changes)
+        {
+            ArrayList<WifiP2pDevice> hosts = this.discoveredServices.get(change.getDescription());
+            if (hosts != null)
+            {
+                hosts.remove(change.getHost());
+                if (hosts.isEmpty())
+                {
+                    this.discoveredServices.remove(change.getDescription());
+                }
+            }
+            if (this.serviceSnapshot.getServices(change.getHost().deviceAddress).isEmpty())
+            {
+                this.tmpRecordCache.remove(change.getHost().deviceAddress);
+            }
+        }
+        this.notifyServiceChangeListeners(changes);
+        if (this.engineRunning)
+        {
+            this.engineExecutor.executeDelayed(this.expirySweeper, SERVICE_EXPIRY_SWEEP_INTERVAL);
+        }
+    }
+
+    /**
+     * Sets the time after which a service which was not
+     * discovered again will be considered lost.
+     *
+     * @param expiryTime
+     *         the time in milliseconds, 0 to never expire services
+     */
+    @Override
+    public void setServiceExpiryTime(long expiryTime)
+    {
+        this.engineExecutor.dispatch(() ->
+        {
+            super.setServiceExpiryTime(expiryTime);
+            this.serviceSnapshot.setExpiryTime(this.serviceExpiryTime);
+        });
     }
 
     /**
@@ -576,16 +777,7 @@ public class WifiDirectServiceDiscoveryEngine extends ServiceDiscoveryEngine imp
         {
             return true;
         }
-        for (ServiceDescription serviceDescription : servicesToLookFor)
-        {
-            String searchedServiceType = serviceDescription.getServiceType();
-            Log.e(TAG, "isServiceBeingLockedFor: " + searchedServiceType + " / " + description.getServiceType());
-            if (serviceDescription.equals(description))
-            {
-                return true;
-            }
-        }
-        return false;
+        return servicesToLookFor.contains(description);
     }
 
 
@@ -620,7 +812,7 @@ public class WifiDirectServiceDiscoveryEngine extends ServiceDiscoveryEngine imp
                 reason = "unexpected error";
         }
 
-        Log.e(tag, msg + " reason : " + reason);
+        EngineLog.e(tag, msg + " reason : " + reason);
     }
 
 
@@ -644,7 +836,7 @@ public class WifiDirectServiceDiscoveryEngine extends ServiceDiscoveryEngine imp
      */
     protected void cancelServiceDiscovery()
     {
-        Log.d(TAG, "cancel: canceling service discovery");
+        EngineLog.d(TAG, "cancel: canceling service discovery");
         manager.clearServiceRequests(channel, new WifiP2pManager.ActionListener()
         {
             @Override
@@ -660,7 +852,7 @@ public class WifiDirectServiceDiscoveryEngine extends ServiceDiscoveryEngine imp
             }
         });
         discoveryRunner.cancel();
-        Log.d(TAG, "cancel: canceled service discovery");
+        EngineLog.d(TAG, "cancel: canceled service discovery");
     }
 
 
@@ -690,7 +882,7 @@ public class WifiDirectServiceDiscoveryEngine extends ServiceDiscoveryEngine imp
                     @Override
                     public void onFailure(int code)
                     {
-                        Log.d(TAG, "failed to add service discovery request");
+                        EngineLog.d(TAG, "failed to add service discovery request");
                     }
                 });
             }
@@ -698,10 +890,10 @@ public class WifiDirectServiceDiscoveryEngine extends ServiceDiscoveryEngine imp
             @Override
             public void onFailure(int reason)
             {
-                Log.d(TAG, "failed to add service discovery request");
+                EngineLog.d(TAG, "failed to add service discovery request");
             }
         });
-        Log.d(TAG, "startDiscovery: started discovery");
+        EngineLog.d(TAG, "startDiscovery: started discovery");
     }
 
     /**
@@ -715,7 +907,7 @@ public class WifiDirectServiceDiscoveryEngine extends ServiceDiscoveryEngine imp
     private void setupDiscoveryCallbacks()
     {
         tmpRecordCache.clear();
-        Log.d(TAG, "setupDiscoveryCallbacks: setting up callbacks");
+        EngineLog.d(TAG, "setupDiscoveryCallbacks: setting up callbacks");
 
         //--- TXT Record listener ---//
 
@@ -761,13 +953,13 @@ public class WifiDirectServiceDiscoveryEngine extends ServiceDiscoveryEngine imp
                     @Override
                     public void onSuccess()
                     {
-                        Log.d(TAG, "onSuccess: started discovery");
+                        EngineLog.d(TAG, "onSuccess: started discovery");
                     }
 
                     @Override
                     public void onFailure(int reason)
                     {
-                        Log.e(TAG, "onSuccess: failed to start discovery");
+                        EngineLog.e(TAG, "onSuccess: failed to start discovery");
                         cancel();
                     }
                 });
@@ -786,14 +978,14 @@ public class WifiDirectServiceDiscoveryEngine extends ServiceDiscoveryEngine imp
         }
         
         void cancel() {
-            Log.d(TAG, "cancel: cancel discovery");
+            EngineLog.d(TAG, "cancel: cancel discovery");
             this.running = false;
             try
             {
                 thread.interrupt();
             }
             catch (NullPointerException e){
-                Log.d(TAG, "cancel: thread weas not started");
+                EngineLog.d(TAG, "cancel: thread weas not started");
             }
         }
     }
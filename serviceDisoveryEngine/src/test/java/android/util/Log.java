@@ -11,12 +11,24 @@ public class Log
         return 0;
     }
 
+    public static int d(String tag, String message, Throwable throwable)
+    {
+        System.out.println("D: " + tag + ": " + message + ": " + throwable);
+        return 0;
+    }
+
     public static int e(String tag, String message)
     {
         System.err.println("E: " + tag + ": " + message);
         return 0;
     }
 
+    public static int e(String tag, String message, Throwable throwable)
+    {
+        System.err.println("E: " + tag + ": " + message + ": " + throwable);
+        return 0;
+    }
+
     public static int i(String tag, String message)
     {
         System.out.println("I: " + tag + ": " + message);
@@ -29,6 +41,12 @@ public class Log
         return 0;
     }
 
+    public static int w(String tag, String message, Throwable throwable)
+    {
+        System.out.println("W: " + tag + ": " + message + ": " + throwable);
+        return 0;
+    }
+
     public static int v(String tag, String message)
     {
         System.out.println("V: " + tag + ": " + message);
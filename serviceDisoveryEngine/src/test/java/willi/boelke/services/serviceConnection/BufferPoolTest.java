@@ -0,0 +1,99 @@
+package willi.boelke.services.serviceConnection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link BufferPool} and {@link PooledBuffer}
+ *
+ * @author WilliBoelke
+ */
+public class BufferPoolTest
+{
+    private BufferPool pool;
+
+    @Before
+    public void setup()
+    {
+        pool = new BufferPool();
+    }
+
+    @Test
+    public void itShouldServeRequestsFromTheSmallestFittingSizeClass()
+    {
+        PooledBuffer small = pool.acquire(10);
+        assertEquals(BufferPool.MIN_CLASS_SIZE, small.capacity());
+        assertEquals(10, small.buffer().limit());
+        assertEquals(0, small.buffer().position());
+        assertEquals(1024, pool.acquire(1000).capacity());
+        assertEquals(BufferPool.MAX_CLASS_SIZE, pool.acquire(BufferPool.MAX_CLASS_SIZE).capacity());
+    }
+
+    @Test
+    public void itShouldReuseReleasedBuffers()
+    {
+        PooledBuffer first = pool.acquire(300);
+        first.buffer().position(20);
+        assertTrue(first.release());
+        PooledBuffer second = pool.acquire(400);
+        assertSame(first, second);
+        assertEquals(0, second.buffer().position());
+        assertEquals(400, second.buffer().limit());
+        assertTrue(second != pool.acquire(400));
+
+        BufferPool.Metrics metrics = pool.getMetrics();
+        assertEquals(3, metrics.getAcquired());
+        assertEquals(1, metrics.getReused());
+        assertEquals(1, metrics.getReleased());
+        assertEquals(0, metrics.getPooled());
+    }
+
+    @Test
+    public void itShouldOnlyRecycleAfterTheLastRelease()
+    {
+        PooledBuffer buffer = pool.acquire(100).retain();
+        assertEquals(2, buffer.referenceCount());
+        assertFalse(buffer.release());
+        assertEquals(0, pool.getMetrics().getPooled());
+        assertTrue(buffer.release());
+        assertEquals(1, pool.getMetrics().getPooled());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void itShouldNotAllowAccessAfterRelease()
+    {
+        PooledBuffer buffer = pool.acquire(100);
+        buffer.release();
+        buffer.buffer();
+    }
+
+    @Test
+    public void itShouldNotPoolOversizedBuffers()
+    {
+        PooledBuffer large = pool.acquire(BufferPool.MAX_CLASS_SIZE + 1);
+        assertEquals(BufferPool.MAX_CLASS_SIZE + 1, large.capacity());
+        large.release();
+        assertEquals(1, pool.getMetrics().getUnpooled());
+        assertEquals(0, pool.getMetrics().getPooled());
+    }
+
+    @Test
+    public void itShouldKeepALimitedNumberOfBuffersPerClass()
+    {
+        PooledBuffer[] buffers = new PooledBuffer[BufferPool.MAX_BUFFERS_PER_CLASS + 4];
+        for (int i = 0; i < buffers.length; i++)
+        {
+            buffers[i] = pool.acquire(256);
+        }
+        for (PooledBuffer buffer : buffers)
+        {
+            buffer.release();
+        }
+        assertEquals(BufferPool.MAX_BUFFERS_PER_CLASS, pool.getMetrics().getPooled());
+    }
+}
@@ -0,0 +1,125 @@
+package willi.boelke.services.serviceConnection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Unit tests for {@link ConnectionExecutor}
+ *
+ * @author WilliBoelke
+ */
+public class ConnectionExecutorTest
+{
+    private ConnectionExecutor executor;
+
+    @Before
+    public void setUp()
+    {
+        executor = new ConnectionExecutor(2);
+    }
+
+    @Test
+    public void itShouldNotRunMoreTasksThanTheParallelism() throws InterruptedException
+    {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(5);
+        AtomicInteger running = new AtomicInteger(0);
+        AtomicInteger maxRunning = new AtomicInteger(0);
+        for (int i = 0; i < 5; i++)
+        {
+            executor.execute(() ->
+            {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                try
+                {
+                    release.await();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                running.decrementAndGet();
+                done.countDown();
+            });
+        }
+        Thread.sleep(100);
+        assertEquals(3, executor.getMetrics().getQueueDepth());
+        release.countDown();
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertEquals(2, maxRunning.get());
+        assertEquals(2, executor.getMetrics().getLargestPoolSize());
+    }
+
+    @Test
+    public void itShouldRunScheduledTasksAfterTheDelay() throws InterruptedException
+    {
+        CountDownLatch done = new CountDownLatch(1);
+        long start = System.nanoTime();
+        executor.schedule(done::countDown, 100);
+        assertEquals(1, executor.getMetrics().getScheduledTasks());
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+    }
+
+    @Test
+    public void itShouldNotCountCanceledScheduledTasks()
+    {
+        ScheduledFuture<?> first = executor.schedule(() -> { }, 10000);
+        executor.schedule(() -> { }, 10000);
+        assertEquals(2, executor.getMetrics().getScheduledTasks());
+
+        assertTrue(first.cancel(false));
+        assertEquals(1, executor.getMetrics().getScheduledTasks());
+        // canceling again does not change the count
+        first.cancel(false);
+        assertEquals(1, executor.getMetrics().getScheduledTasks());
+    }
+
+    @Test
+    public void itShouldNotCountTasksCanceledAfterTheyRan() throws Exception
+    {
+        ScheduledFuture<?> future = executor.schedule(() -> { }, 10);
+        future.get(2, TimeUnit.SECONDS);
+
+        assertFalse(future.cancel(false));
+        assertEquals(0, executor.getMetrics().getScheduledTasks());
+    }
+
+    @Test
+    public void itShouldKeepRunningAfterAFailingTask() throws InterruptedException
+    {
+        // one worker, so the failing task is done when the next one runs
+        executor.setParallelism(1);
+        CountDownLatch done = new CountDownLatch(1);
+        executor.execute(() ->
+        {
+            throw new IllegalStateException("failing task");
+        });
+        executor.execute(done::countDown);
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertEquals(1, executor.getMetrics().getFailedTasks());
+    }
+
+    @Test
+    public void itShouldNameItsThreads() throws InterruptedException
+    {
+        String[] name = new String[1];
+        CountDownLatch done = new CountDownLatch(1);
+        executor.execute(() ->
+        {
+            name[0] = Thread.currentThread().getName();
+            done.countDown();
+        });
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertTrue(name[0].startsWith("connection-worker-"));
+    }
+}
@@ -0,0 +1,60 @@
+package willi.boelke.services.serviceConnection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Unit tests for {@link InFlightAttempts}
+ *
+ * @author WilliBoelke
+ */
+public class InFlightAttemptsTest
+{
+    private final ConnectionKey keyOne = new ConnectionKey("AA:BB:CC:DD:EE:FF", UUID.fromString("00000000-0000-0000-0000-000000000001"));
+    private final ConnectionKey keyTwo = new ConnectionKey("AA:BB:CC:DD:EE:FF", UUID.fromString("00000000-0000-0000-0000-000000000002"));
+
+    private InFlightAttempts<ConnectionKey, String> attempts;
+
+    @Before
+    public void setUp()
+    {
+        attempts = new InFlightAttempts<>();
+    }
+
+    @Test
+    public void itShouldCoalesceAttemptsWithTheSameKey()
+    {
+        assertTrue(attempts.join(keyOne, "a"));
+        assertFalse(attempts.join(new ConnectionKey("AA:BB:CC:DD:EE:FF", keyOne.getServiceUuid()), "b"));
+        assertTrue(attempts.join(keyTwo, "a"));
+        assertEquals(2, attempts.size());
+        assertEquals(1, attempts.getCoalescedAttempts());
+    }
+
+    @Test
+    public void itShouldReturnAllWaitersOnce()
+    {
+        String waiter = "a";
+        attempts.join(keyOne, waiter);
+        attempts.join(keyOne, waiter);
+        attempts.join(keyOne, "b");
+        assertEquals(Arrays.asList("a", "b"), attempts.complete(keyOne));
+        assertFalse(attempts.isInFlight(keyOne));
+        assertTrue(attempts.complete(keyOne).isEmpty());
+    }
+
+    @Test
+    public void itShouldStartANewAttemptAfterCompletion()
+    {
+        attempts.join(keyOne, "a");
+        attempts.complete(keyOne);
+        assertTrue(attempts.join(keyOne, "a"));
+    }
+}
@@ -0,0 +1,185 @@
+package willi.boelke.services.serviceConnection;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import willi.boelke.services.serviceDiscovery.ServiceDescription;
+
+/**
+ * Unit tests for {@link MessageChannel} and {@link FrameCodec}
+ *
+ * @author WilliBoelke
+ */
+public class MessageChannelTest
+{
+    /**
+     * Connection writing into a byte array and reading from one,
+     * returning at most {@code chunkSize} bytes per read
+     */
+    private static final class FakeConnection implements ServiceConnection
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InputStream in = new ByteArrayInputStream(new byte[0]);
+
+        void receiveFrom(byte[] data, int chunkSize)
+        {
+            in = new ByteArrayInputStream(data)
+            {
+                @Override
+                public synchronized int read(byte[] b, int off, int len)
+                {
+                    return super.read(b, off, Math.min(len, chunkSize));
+                }
+            };
+        }
+
+        @Override
+        public boolean isConnected()
+        {
+            return true;
+        }
+
+        @Override
+        public boolean isClosed()
+        {
+            return false;
+        }
+
+        @Override
+        public InputStream getInputStream()
+        {
+            return in;
+        }
+
+        @Override
+        public OutputStream getOutputStream()
+        {
+            return out;
+        }
+
+        @Override
+        public ServiceDescription getServiceDescription()
+        {
+            return null;
+        }
+
+        @Override
+        public String getRemoteDeviceAddress()
+        {
+            return "AA:BB:CC:DD:EE:FF";
+        }
+
+        @Override
+        public void close()
+        {
+        }
+    }
+
+    private static ByteBuffer message(String text)
+    {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String text(ByteBuffer buffer)
+    {
+        return new String(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void itShouldEncodeLengthsAsVarints() throws IOException
+    {
+        byte[] encoded = new byte[FrameCodec.MAX_VARINT_BYTES];
+        for (int value : new int[]{0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE})
+        {
+            int size = FrameCodec.writeVarint(value, encoded, 0);
+            assertEquals(FrameCodec.varintSize(value), size);
+            assertEquals(value, FrameCodec.readVarint(new ByteArrayInputStream(encoded, 0, size)));
+        }
+        assertEquals(1, FrameCodec.varintSize(127));
+        assertEquals(2, FrameCodec.varintSize(128));
+    }
+
+    @Test
+    public void itShouldKeepCoalescedAndSplitMessagesApart() throws IOException
+    {
+        FakeConnection connection = new FakeConnection();
+        MessageChannel sender = new MessageChannel(connection);
+        char[] large = new char[5000];
+        Arrays.fill(large, 'x');
+        sender.send(message("first"));
+        sender.send(message(""));
+        sender.send(message(new String(large)));
+        sender.send(message("last"));
+
+        // all frames arrive at once, but are read 3 bytes at a time
+        connection.receiveFrom(connection.out.toByteArray(), 3);
+        MessageChannel receiver = new MessageChannel(connection);
+        assertEquals("first", text(receiver.receive()));
+        assertEquals("", text(receiver.receive()));
+        assertEquals(new String(large), text(receiver.receive()));
+        assertEquals("last", text(receiver.receive()));
+        assertNull(receiver.receive());
+    }
+
+    @Test
+    public void itShouldSendTheRemainingBytesOfTheBuffer() throws IOException
+    {
+        FakeConnection connection = new FakeConnection();
+        ByteBuffer buffer = message("--payload");
+        buffer.position(2);
+        new MessageChannel(connection).send(buffer);
+        assertEquals(0, buffer.remaining());
+        byte[] expected = new byte[]{7, 'p', 'a', 'y', 'l', 'o', 'a', 'd'};
+        assertArrayEquals(expected, connection.out.toByteArray());
+    }
+
+    @Test
+    public void itShouldHandPooledMessagesToTheCaller() throws IOException
+    {
+        FakeConnection connection = new FakeConnection();
+        MessageChannel sender = new MessageChannel(connection);
+        sender.send(message("kept"));
+        sender.send(message("next"));
+
+        connection.receiveFrom(connection.out.toByteArray(), 64);
+        MessageChannel receiver = new MessageChannel(connection);
+        PooledBuffer kept = receiver.receivePooled();
+        PooledBuffer next = receiver.receivePooled();
+        assertEquals("kept", text(kept.buffer()));
+        assertEquals("next", text(next.buffer()));
+        kept.release();
+        next.release();
+        assertNull(receiver.receivePooled());
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void itShouldRejectTooLongMessages() throws IOException
+    {
+        FakeConnection connection = new FakeConnection();
+        new MessageChannel(connection).send(message("too long"));
+        connection.receiveFrom(connection.out.toByteArray(), 64);
+        new MessageChannel(connection, 4).receive();
+    }
+
+    @Test(expected = EOFException.class)
+    public void itShouldFailOnTruncatedMessages() throws IOException
+    {
+        FakeConnection connection = new FakeConnection();
+        connection.receiveFrom(new byte[]{5, 'a', 'b'}, 64);
+        new MessageChannel(connection).receive();
+    }
+}
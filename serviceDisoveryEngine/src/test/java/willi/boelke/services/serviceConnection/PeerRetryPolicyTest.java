@@ -0,0 +1,108 @@
+package willi.boelke.services.serviceConnection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Unit tests for {@link PeerRetryPolicy}
+ *
+ * @author WilliBoelke
+ */
+public class PeerRetryPolicyTest
+{
+    private static final String PEER = "AA:BB:CC:DD:EE:FF";
+
+    private long now;
+
+    private PeerRetryPolicy policy;
+
+    @Before
+    public void setUp()
+    {
+        now = 0;
+        // no jitter, the wait is always the upper bound
+        policy = new PeerRetryPolicy(() -> now, new Random()
+        {
+            @Override
+            public double nextDouble()
+            {
+                return 1.0;
+            }
+        });
+        policy.setBackoff(100, 1000);
+        policy.setCircuitBreaker(3, 5000);
+    }
+
+    @Test
+    public void itShouldBackOffExponentially()
+    {
+        assertTrue(policy.allowAttempt(PEER));
+        policy.recordFailure(PEER);
+        assertFalse(policy.allowAttempt(PEER));
+        assertEquals(100, policy.getRetryDelay(PEER));
+        now = 100;
+        assertTrue(policy.allowAttempt(PEER));
+        policy.recordFailure(PEER);
+        assertEquals(200, policy.getRetryDelay(PEER));
+        assertEquals(2, policy.getFailures(PEER));
+        assertEquals(PeerRetryPolicy.State.CLOSED, policy.getState(PEER));
+    }
+
+    @Test
+    public void itShouldOpenTheBreakerAfterTooManyFailures()
+    {
+        policy.recordFailure(PEER);
+        policy.recordFailure(PEER);
+        policy.recordFailure(PEER);
+        assertEquals(PeerRetryPolicy.State.OPEN, policy.getState(PEER));
+        now = 4999;
+        assertFalse(policy.allowAttempt(PEER));
+        now = 5000;
+        // a single trial attempt
+        assertTrue(policy.allowAttempt(PEER));
+        assertEquals(PeerRetryPolicy.State.HALF_OPEN, policy.getState(PEER));
+        assertFalse(policy.allowAttempt(PEER));
+        // which failed
+        policy.recordFailure(PEER);
+        assertEquals(PeerRetryPolicy.State.OPEN, policy.getState(PEER));
+        assertEquals(5000, policy.getRetryDelay(PEER));
+    }
+
+    @Test
+    public void itShouldResetThePeerOnSuccess()
+    {
+        policy.recordFailure(PEER);
+        policy.recordFailure(PEER);
+        policy.recordFailure(PEER);
+        now = 5000;
+        assertTrue(policy.allowAttempt(PEER));
+        policy.recordSuccess(PEER);
+        assertEquals(PeerRetryPolicy.State.CLOSED, policy.getState(PEER));
+        assertEquals(0, policy.getFailures(PEER));
+        assertEquals(0, policy.getFailingPeers());
+        assertTrue(policy.allowAttempt(PEER));
+    }
+
+    @Test
+    public void itShouldCapAndJitterTheBackoff()
+    {
+        policy.setCircuitBreaker(20, 5000);
+        PeerRetryPolicy jittered = new PeerRetryPolicy(() -> now, new Random(42));
+        jittered.setBackoff(100, 1000);
+        jittered.setCircuitBreaker(20, 5000);
+        for (int i = 0; i < 10; i++)
+        {
+            policy.recordFailure(PEER);
+            jittered.recordFailure(PEER);
+        }
+        assertEquals(1000, policy.getRetryDelay(PEER));
+        long delay = jittered.getRetryDelay(PEER);
+        assertTrue(delay >= 500 && delay <= 1000);
+    }
+}
@@ -0,0 +1,240 @@
+package willi.boelke.services.serviceConnection.bluetoothServiceConnection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+
+import willi.boelke.services.serviceConnection.ConnectionExecutor;
+import willi.boelke.services.serviceDiscovery.ServiceDescription;
+
+/**
+ * Unit tests for {@link BluetoothConnectionManager}
+ *
+ * @author WilliBoelke
+ */
+public class BluetoothConnectionManagerTest
+{
+    private static final String ADDRESS_ONE = "AA:BB:CC:DD:EE:01";
+    private static final String ADDRESS_TWO = "AA:BB:CC:DD:EE:02";
+
+    private BluetoothConnectionManager manager;
+    private ServiceDescription descriptionOne;
+    private ServiceDescription descriptionTwo;
+
+    @Before
+    public void setUp()
+    {
+        manager = new BluetoothConnectionManager();
+        HashMap<String, String> attributesOne = new HashMap<>();
+        attributesOne.put("service-name", "Test Service One");
+        HashMap<String, String> attributesTwo = new HashMap<>();
+        attributesTwo.put("service-name", "Test Service Two");
+        descriptionOne = new ServiceDescription("Test Service One", attributesOne, "_testOne._tcp");
+        descriptionTwo = new ServiceDescription("Test Service Two", attributesTwo, "_testTwo._tcp");
+    }
+
+    /**
+     * A connection without a socket, which can be disconnected
+     * and counts how often it was closed
+     */
+    private static class TestConnection extends BluetoothConnection
+    {
+        private final String address;
+        private boolean connected = true;
+        private int closed = 0;
+
+        TestConnection(String address, ServiceDescription description, boolean serverPeer)
+        {
+            super(description, null, serverPeer);
+            this.address = address;
+        }
+
+        @Override
+        public String getRemoteDeviceAddress()
+        {
+            return this.address;
+        }
+
+        @Override
+        public boolean isConnected()
+        {
+            return this.connected;
+        }
+
+        @Override
+        public boolean isClosed()
+        {
+            return !this.connected;
+        }
+
+        @Override
+        public void close()
+        {
+            this.connected = false;
+            this.closed++;
+        }
+
+        @Override
+        public String toString()
+        {
+            return this.address;
+        }
+    }
+
+    //
+    //  ----------  registration ----------
+    //
+
+    @Test
+    public void itShouldFindAddedConnections()
+    {
+        manager.addConnection(new TestConnection(ADDRESS_ONE, descriptionOne, false));
+        manager.addConnection(new TestConnection(ADDRESS_TWO, descriptionTwo, true));
+
+        assertTrue(manager.isAlreadyConnected(ADDRESS_ONE, descriptionOne));
+        assertTrue(manager.isAlreadyConnected(ADDRESS_TWO, descriptionTwo));
+        assertFalse(manager.isAlreadyConnected(ADDRESS_ONE, descriptionTwo));
+        assertFalse(manager.isAlreadyConnected(ADDRESS_TWO, descriptionOne));
+    }
+
+    @Test
+    public void itShouldReplaceAndCloseAnEqualConnection()
+    {
+        TestConnection first = new TestConnection(ADDRESS_ONE, descriptionOne, false);
+        TestConnection second = new TestConnection(ADDRESS_ONE, descriptionOne, false);
+        manager.addConnection(first);
+        manager.addConnection(second);
+
+        assertEquals(1, first.closed);
+        assertEquals(0, second.closed);
+        assertTrue(manager.isAlreadyConnected(ADDRESS_ONE, descriptionOne));
+    }
+
+    @Test
+    public void itShouldNotCloseAConnectionAddedTwice()
+    {
+        TestConnection connection = new TestConnection(ADDRESS_ONE, descriptionOne, false);
+        manager.addConnection(connection);
+        manager.addConnection(connection);
+
+        assertEquals(0, connection.closed);
+        assertTrue(manager.isAlreadyConnected(ADDRESS_ONE, descriptionOne));
+    }
+
+    @Test
+    public void itShouldKeepClientAndServerConnectionsApart()
+    {
+        TestConnection client = new TestConnection(ADDRESS_ONE, descriptionOne, false);
+        TestConnection server = new TestConnection(ADDRESS_ONE, descriptionOne, true);
+        manager.addConnection(client);
+        manager.addConnection(server);
+        assertEquals(0, client.closed);
+
+        // the client side died, the server side still counts
+        client.connected = false;
+        assertTrue(manager.isAlreadyConnected(ADDRESS_ONE, descriptionOne));
+        assertEquals(1, client.closed);
+    }
+
+    //
+    //  ----------  removal ----------
+    //
+
+    @Test
+    public void itShouldCloseAndRemoveAllConnections()
+    {
+        TestConnection client = new TestConnection(ADDRESS_ONE, descriptionOne, false);
+        TestConnection server = new TestConnection(ADDRESS_TWO, descriptionTwo, true);
+        manager.addConnection(client);
+        manager.addConnection(server);
+
+        manager.closeAllConnections();
+
+        assertEquals(1, client.closed);
+        assertEquals(1, server.closed);
+        client.connected = true;
+        server.connected = true;
+        assertFalse(manager.isAlreadyConnected(ADDRESS_ONE, descriptionOne));
+        assertFalse(manager.isAlreadyConnected(ADDRESS_TWO, descriptionTwo));
+    }
+
+    @Test
+    public void itShouldRemoveADeadConnectionOnLookup()
+    {
+        TestConnection connection = new TestConnection(ADDRESS_ONE, descriptionOne, false);
+        manager.addConnection(connection);
+
+        connection.connected = false;
+        assertFalse(manager.isAlreadyConnected(ADDRESS_ONE, descriptionOne));
+        assertEquals(1, connection.closed);
+
+        // it was removed, not just reported as dead
+        connection.connected = true;
+        assertFalse(manager.isAlreadyConnected(ADDRESS_ONE, descriptionOne));
+    }
+
+    //
+    //  ----------  zombie sweep ----------
+    //
+
+    @Test
+    public void itShouldSweepOnlyDeadConnections()
+    {
+        TestConnection alive = new TestConnection(ADDRESS_ONE, descriptionOne, false);
+        TestConnection deadClient = new TestConnection(ADDRESS_TWO, descriptionOne, false);
+        TestConnection deadServer = new TestConnection(ADDRESS_TWO, descriptionTwo, true);
+        manager.addConnection(alive);
+        manager.addConnection(deadClient);
+        manager.addConnection(deadServer);
+        deadClient.connected = false;
+        deadServer.connected = false;
+
+        manager.closeAndRemoveZombieConnections();
+
+        assertEquals(0, alive.closed);
+        assertEquals(1, deadClient.closed);
+        assertEquals(1, deadServer.closed);
+        assertTrue(manager.isAlreadyConnected(ADDRESS_ONE, descriptionOne));
+
+        // removed, so they are not closed again
+        manager.closeAndRemoveZombieConnections();
+        assertEquals(1, deadClient.closed);
+        assertEquals(1, deadServer.closed);
+    }
+
+    @Test
+    public void itShouldNotSweepAConnectionWhichReplacedAZombie()
+    {
+        TestConnection zombie = new TestConnection(ADDRESS_ONE, descriptionOne, false);
+        manager.addConnection(zombie);
+        zombie.connected = false;
+        TestConnection replacement = new TestConnection(ADDRESS_ONE, descriptionOne, false);
+        manager.addConnection(replacement);
+
+        manager.closeAndRemoveZombieConnections();
+
+        assertEquals(0, replacement.closed);
+        assertTrue(manager.isAlreadyConnected(ADDRESS_ONE, descriptionOne));
+    }
+
+    @Test
+    public void itShouldScheduleOneSweepUntilStopped()
+    {
+        ConnectionExecutor executor = ConnectionExecutor.getInstance();
+        int scheduled = executor.getMetrics().getScheduledTasks();
+
+        manager.startZombieSweep();
+        // starting twice does not schedule a second sweep
+        manager.startZombieSweep();
+        assertEquals(scheduled + 1, executor.getMetrics().getScheduledTasks());
+
+        manager.stopZombieSweep();
+        manager.stopZombieSweep();
+        assertEquals(scheduled, executor.getMetrics().getScheduledTasks());
+    }
+}
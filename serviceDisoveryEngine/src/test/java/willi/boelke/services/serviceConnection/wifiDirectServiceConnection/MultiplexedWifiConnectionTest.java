@@ -0,0 +1,84 @@
+package willi.boelke.services.serviceConnection.wifiDirectServiceConnection;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+
+import willi.boelke.services.serviceConnection.wifiDirectServiceConnection.multiplexing.MultiplexedStream;
+import willi.boelke.services.serviceConnection.wifiDirectServiceConnection.multiplexing.StreamMultiplexer;
+import willi.boelke.services.serviceDiscovery.ServiceDescription;
+
+/**
+ * Unit tests for {@link MultiplexedWifiConnection}
+ *
+ * @author WilliBoelke
+ */
+public class MultiplexedWifiConnectionTest
+{
+    private StreamMultiplexer client;
+    private StreamMultiplexer groupOwner;
+    private MultiplexedWifiConnection connection;
+
+    @Before
+    public void setup() throws IOException
+    {
+        Socket clientSocket;
+        Socket acceptedSocket;
+        try (ServerSocket server = new ServerSocket(0))
+        {
+            clientSocket = new Socket("127.0.0.1", server.getLocalPort());
+            acceptedSocket = server.accept();
+        }
+        StreamMultiplexer.Listener listener = new StreamMultiplexer.Listener()
+        {
+            @Override
+            public void onStreamOpened(MultiplexedStream stream)
+            {
+                // not needed
+            }
+
+            @Override
+            public void onClosed(StreamMultiplexer multiplexer)
+            {
+                // not needed
+            }
+        };
+        client = new StreamMultiplexer(clientSocket, true, listener);
+        groupOwner = new StreamMultiplexer(acceptedSocket, false, listener);
+        client.start();
+        groupOwner.start();
+        ServiceDescription description = new ServiceDescription("Test Service", new HashMap<>(), "_test._tcp");
+        connection = new MultiplexedWifiConnection(client.openStream(description.getServiceUuid()), description);
+    }
+
+    @After
+    public void teardown()
+    {
+        client.close();
+        groupOwner.close();
+    }
+
+    @Test
+    public void itShouldReturnTheSharedSocket()
+    {
+        assertSame(client.getSocket(), connection.getConnectionSocket());
+    }
+
+    @Test
+    public void itShouldKeepTheSocketOpenOnClose()
+    {
+        connection.close();
+
+        assertTrue(connection.isClosed());
+        assertFalse(client.getSocket().isClosed());
+    }
+}
@@ -0,0 +1,262 @@
+package willi.boelke.services.serviceConnection.wifiDirectServiceConnection.multiplexing;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Unit tests for {@link StreamMultiplexer}, using a socket pair on the loopback interface
+ *
+ * @author WilliBoelke
+ */
+public class StreamMultiplexerTest
+{
+    private static final UUID SERVICE_A = UUID.fromString("4be0643f-1d98-573b-97cd-ca98a65347dd");
+    private static final UUID SERVICE_B = UUID.fromString("12345678-1d98-573b-97cd-ca98a65347dd");
+
+    private StreamMultiplexer client;
+    private StreamMultiplexer groupOwner;
+    private final BlockingQueue<MultiplexedStream> opened = new LinkedBlockingQueue<>();
+    private final Map<UUID, MultiplexedStream> openedByService = new ConcurrentHashMap<>();
+    private final CountDownLatch clientClosed = new CountDownLatch(1);
+
+    @Before
+    public void setup() throws IOException
+    {
+        Socket clientSocket;
+        Socket acceptedSocket;
+        try (ServerSocket server = new ServerSocket(0))
+        {
+            clientSocket = new Socket("127.0.0.1", server.getLocalPort());
+            acceptedSocket = server.accept();
+        }
+        client = new StreamMultiplexer(clientSocket, true, new StreamMultiplexer.Listener()
+        {
+            @Override
+            public void onStreamOpened(MultiplexedStream stream)
+            {
+                stream.reset();
+            }
+
+            @Override
+            public void onClosed(StreamMultiplexer multiplexer)
+            {
+                clientClosed.countDown();
+            }
+        });
+        groupOwner = new StreamMultiplexer(acceptedSocket, false, new StreamMultiplexer.Listener()
+        {
+            @Override
+            public void onStreamOpened(MultiplexedStream stream)
+            {
+                if (stream.getServiceUuid().equals(SERVICE_A) || stream.getServiceUuid().equals(SERVICE_B))
+                {
+                    openedByService.put(stream.getServiceUuid(), stream);
+                    opened.add(stream);
+                }
+                else
+                {
+                    stream.reset();
+                }
+            }
+
+            @Override
+            public void onClosed(StreamMultiplexer multiplexer)
+            {
+                // not needed
+            }
+        });
+        client.start();
+        groupOwner.start();
+    }
+
+    @After
+    public void teardown()
+    {
+        client.close();
+        groupOwner.close();
+    }
+
+    private MultiplexedStream awaitOpened() throws InterruptedException
+    {
+        MultiplexedStream stream = opened.poll(5, TimeUnit.SECONDS);
+        if (stream == null)
+        {
+            fail("no stream was opened");
+        }
+        return stream;
+    }
+
+    /**
+     * Streams are announced on the executor, so not necessarily in order
+     */
+    private MultiplexedStream awaitOpened(UUID serviceUuid) throws InterruptedException
+    {
+        while (!openedByService.containsKey(serviceUuid))
+        {
+            awaitOpened();
+        }
+        return openedByService.get(serviceUuid);
+    }
+
+    private static byte[] readFully(InputStream in, int length) throws IOException
+    {
+        byte[] data = new byte[length];
+        int offset = 0;
+        while (offset < length)
+        {
+            int read = in.read(data, offset, length - offset);
+            if (read == -1)
+            {
+                fail("stream ended after " + offset + " bytes");
+            }
+            offset += read;
+        }
+        return data;
+    }
+
+    @Test
+    public void itShouldNameTheReaderThread()
+    {
+        boolean named = false;
+        for (Thread thread : Thread.getAllStackTraces().keySet())
+        {
+            named |= thread.getName().startsWith("stream-multiplexer-");
+        }
+        assertTrue(named);
+    }
+
+    @Test
+    public void itShouldCarrySeveralServicesOverOneSocket() throws Exception
+    {
+        MultiplexedStream localA = client.openStream(SERVICE_A);
+        MultiplexedStream localB = client.openStream(SERVICE_B);
+        MultiplexedStream remoteA = awaitOpened(SERVICE_A);
+        MultiplexedStream remoteB = awaitOpened(SERVICE_B);
+        assertEquals(SERVICE_A, remoteA.getServiceUuid());
+        assertEquals(SERVICE_B, remoteB.getServiceUuid());
+        assertFalse(remoteA.isLocallyOpened());
+
+        localB.getOutputStream().write("to b".getBytes());
+        localA.getOutputStream().write("to a".getBytes());
+        remoteA.getOutputStream().write("from a".getBytes());
+
+        assertArrayEquals("to a".getBytes(), readFully(remoteA.getInputStream(), 4));
+        assertArrayEquals("to b".getBytes(), readFully(remoteB.getInputStream(), 4));
+        assertArrayEquals("from a".getBytes(), readFully(localA.getInputStream(), 6));
+        assertEquals(2, groupOwner.getStreamCount());
+    }
+
+    @Test
+    public void itShouldBlockTheWriterUntilTheReaderCatchesUp() throws Exception
+    {
+        MultiplexedStream slow = client.openStream(SERVICE_A);
+        MultiplexedStream fast = client.openStream(SERVICE_B);
+        MultiplexedStream remoteSlow = awaitOpened(SERVICE_A);
+        MultiplexedStream remoteFast = awaitOpened(SERVICE_B);
+
+        int total = StreamMultiplexer.INITIAL_WINDOW * 4;
+        byte[] data = new byte[total];
+        for (int i = 0; i < total; i++)
+        {
+            data[i] = (byte) i;
+        }
+        AtomicInteger written = new AtomicInteger();
+        Thread writer = new Thread(() ->
+        {
+            try
+            {
+                slow.getOutputStream().write(data);
+                written.set(total);
+            }
+            catch (IOException e)
+            {
+                written.set(-1);
+            }
+        });
+        writer.start();
+        writer.join(500);
+        // the window is exhausted, nothing was read yet
+        assertTrue(writer.isAlive());
+        assertEquals(StreamMultiplexer.INITIAL_WINDOW, remoteSlow.getInputStream().available());
+
+        // other streams are not held back
+        fast.getOutputStream().write(1);
+        assertEquals(1, remoteFast.getInputStream().read());
+
+        assertArrayEquals(data, readFully(remoteSlow.getInputStream(), total));
+        writer.join(5000);
+        assertEquals(total, written.get());
+    }
+
+    @Test
+    public void itShouldEndTheRemoteStreamOnClose() throws Exception
+    {
+        MultiplexedStream local = client.openStream(SERVICE_A);
+        MultiplexedStream remote = awaitOpened();
+        local.getOutputStream().write(new byte[]{1, 2, 3});
+        local.close();
+
+        assertArrayEquals(new byte[]{1, 2, 3}, readFully(remote.getInputStream(), 3));
+        assertEquals(-1, remote.getInputStream().read());
+        assertTrue(remote.isClosed());
+        try
+        {
+            remote.getOutputStream().write(4);
+            fail("writing to a closed stream should fail");
+        }
+        catch (IOException e)
+        {
+            // expected
+        }
+    }
+
+    @Test
+    public void itShouldResetStreamsOfUnknownServices() throws Exception
+    {
+        MultiplexedStream unknown = client.openStream(UUID.randomUUID());
+        try
+        {
+            unknown.getInputStream().read();
+            fail("reading a reset stream should fail");
+        }
+        catch (IOException e)
+        {
+            // expected
+        }
+        assertTrue(unknown.isClosed());
+        assertTrue(opened.isEmpty());
+    }
+
+    @Test
+    public void itShouldEndAllStreamsWhenTheSocketCloses() throws Exception
+    {
+        MultiplexedStream local = client.openStream(SERVICE_A);
+        awaitOpened();
+        groupOwner.close();
+
+        assertEquals(-1, local.getInputStream().read());
+        assertTrue(clientClosed.await(5, TimeUnit.SECONDS));
+        assertTrue(client.isClosed());
+        assertTrue(local.isClosed());
+    }
+}
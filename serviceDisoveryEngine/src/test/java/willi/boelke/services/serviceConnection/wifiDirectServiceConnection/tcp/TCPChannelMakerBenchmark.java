@@ -0,0 +1,91 @@
+package willi.boelke.services.serviceConnection.wifiDirectServiceConnection.tcp;
+
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long it takes until a waiting thread gets a connection
+ * to a loopback server, with the sleep polling wait which was used before
+ * and with {@link TCPChannelMaker#waitUntilConnectionEstablished()}.
+ * <p>
+ * Only runs with {@code ./gradlew testDebugUnitTest -Pbenchmarks},
+ * the results are printed, not asserted. The polling wait takes
+ * about {@link #POLL_INTERVAL} milliseconds.
+ *
+ * @author WilliBoelke
+ */
+public class TCPChannelMakerBenchmark
+{
+    private static final String HOST = "127.0.0.1";
+
+    /**
+     * The sleep between two checks of the polling wait,
+     * the default of {@code wait_for_next_connection_try} before
+     */
+    private static final long POLL_INTERVAL = 10000;
+
+    private ServerSocket server;
+
+    private TCPChannelMaker channelMaker;
+
+    @Before
+    public void setup() throws IOException
+    {
+        assumeTrue(Boolean.getBoolean("benchmarks"));
+        server = new ServerSocket(0);
+    }
+
+    @After
+    public void teardown() throws IOException
+    {
+        if (channelMaker != null)
+        {
+            channelMaker.close();
+        }
+        if (server != null)
+        {
+            server.close();
+        }
+    }
+
+    /**
+     * Waits like the channel maker did before, checking
+     * for the connection and sleeping in between
+     */
+    private void pollUntilConnected() throws InterruptedException
+    {
+        while (!channelMaker.isConnected())
+        {
+            Thread.sleep(POLL_INTERVAL);
+        }
+    }
+
+    @Test
+    public void benchmarkConnectionWait() throws Exception
+    {
+        long start = System.nanoTime();
+        channelMaker = TCPChannelMaker.getTCPClientCreator(HOST, server.getLocalPort());
+        channelMaker.start();
+        pollUntilConnected();
+        long polling = System.nanoTime() - start;
+        channelMaker.close();
+
+        start = System.nanoTime();
+        channelMaker = TCPChannelMaker.getTCPClientCreator(HOST, server.getLocalPort());
+        channelMaker.start();
+        channelMaker.waitUntilConnectionEstablished();
+        long waiting = System.nanoTime() - start;
+
+        System.out.println(String.format(Locale.ROOT,
+                "TCPChannelMaker benchmark: connection delivered after %d ms polling and %d ms waiting",
+                TimeUnit.NANOSECONDS.toMillis(polling), TimeUnit.NANOSECONDS.toMillis(waiting)));
+    }
+}
@@ -0,0 +1,175 @@
+package willi.boelke.services.serviceConnection.wifiDirectServiceConnection.tcp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Unit tests for {@link TCPChannelMaker}, connecting to a server on the loopback interface
+ *
+ * @author WilliBoelke
+ */
+public class TCPChannelMakerTest
+{
+    private static final String HOST = "127.0.0.1";
+
+    private ServerSocket server;
+
+    private TCPChannelMaker channelMaker;
+
+    @Before
+    public void setup() throws IOException
+    {
+        server = new ServerSocket(0);
+    }
+
+    @After
+    public void teardown() throws IOException
+    {
+        if (channelMaker != null)
+        {
+            channelMaker.close();
+        }
+        server.close();
+    }
+
+    /**
+     * Records the first event of a {@link TCPChannelMaker}
+     */
+    private static final class RecordingListener implements TCPChannelMakerListener
+    {
+        final CountDownLatch notified = new CountDownLatch(1);
+        final AtomicReference<String> event = new AtomicReference<>();
+
+        @Override
+        public void onConnectionEstablished(TCPChannelMaker channelMaker)
+        {
+            event.set("established");
+            notified.countDown();
+        }
+
+        @Override
+        public void onConnectionEstablishmentFailed(TCPChannelMaker channelMaker, String reason)
+        {
+            event.set("failed");
+            notified.countDown();
+        }
+    }
+
+    @Test
+    public void itShouldNotifyListenersOnceConnected() throws Exception
+    {
+        channelMaker = TCPChannelMaker.getTCPClientCreator(HOST, server.getLocalPort());
+        RecordingListener early = new RecordingListener();
+        channelMaker.notifyWhenConnectionEstablished(early);
+        channelMaker.start();
+        assertTrue(early.notified.await(5, TimeUnit.SECONDS));
+        assertEquals("established", early.event.get());
+
+        // registered after the connection was established
+        RecordingListener late = new RecordingListener();
+        channelMaker.notifyWhenConnectionEstablished(late);
+        assertTrue(late.notified.await(5, TimeUnit.SECONDS));
+        assertEquals("established", late.event.get());
+    }
+
+    @Test
+    public void itShouldNotifyListenersWhenConnectingFailed() throws Exception
+    {
+        int port = server.getLocalPort();
+        server.close();
+        TcpConnectionConfig config = new TcpConnectionConfig();
+        config.setMaxConnectAttempts(1);
+        channelMaker = TCPChannelMaker.getTCPClientCreator(HOST, port, config);
+        RecordingListener listener = new RecordingListener();
+        channelMaker.notifyWhenConnectionEstablished(listener);
+        channelMaker.start();
+        assertTrue(listener.notified.await(5, TimeUnit.SECONDS));
+        assertEquals("failed", listener.event.get());
+    }
+
+    @Test
+    public void itShouldSetUpTheSocketAsConfigured() throws IOException
+    {
+        TcpConnectionConfig config = TcpConnectionConfig.forHighThroughput();
+        config.setKeepAlive(true);
+        channelMaker = TCPChannelMaker.getTCPClientCreator(HOST, server.getLocalPort(), config);
+        // changes after creating the channel maker dont apply
+        config.setKeepAlive(false);
+        channelMaker.start();
+        channelMaker.waitUntilConnectionEstablished();
+        Socket socket = channelMaker.getSocket();
+        assertFalse(socket.getTcpNoDelay());
+        assertTrue(socket.getKeepAlive());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void itShouldRejectInvalidSettings()
+    {
+        new TcpConnectionConfig().setMaxConnectAttempts(0);
+    }
+
+    @Test(expected = IOException.class)
+    public void itShouldNotWaitForAThreadWhichWasNotStarted() throws IOException
+    {
+        channelMaker = TCPChannelMaker.getTCPClientCreator(HOST, server.getLocalPort());
+        channelMaker.waitUntilConnectionEstablished();
+    }
+
+    /**
+     * A waiting thread is parked on the connection, not polling
+     * for it, and released as soon as the connection is made
+     */
+    @Test
+    public void itShouldReleaseWaitingThreadsOnceConnected() throws Exception
+    {
+        int port = server.getLocalPort();
+        server.close();
+        channelMaker = TCPChannelMaker.getTCPServerCreator(port);
+        channelMaker.start();
+
+        CountDownLatch released = new CountDownLatch(1);
+        AtomicReference<Exception> error = new AtomicReference<>();
+        Thread waiter = new Thread(() ->
+        {
+            try
+            {
+                channelMaker.waitUntilConnectionEstablished();
+            }
+            catch (IOException e)
+            {
+                error.set(e);
+            }
+            released.countDown();
+        });
+        waiter.start();
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (waiter.getState() != Thread.State.WAITING && System.nanoTime() < deadline)
+        {
+            Thread.sleep(10);
+        }
+        // parked without a timeout, so it does not wake up to check
+        assertEquals(Thread.State.WAITING, waiter.getState());
+        assertFalse(released.await(200, TimeUnit.MILLISECONDS));
+
+        try (Socket client = new Socket(HOST, port))
+        {
+            assertTrue(released.await(5, TimeUnit.SECONDS));
+            assertNull(error.get());
+            assertTrue(channelMaker.getSocket().isConnected());
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package willi.boelke.services.serviceConnection.wifiDirectServiceConnection.tcp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Unit tests for the connection attempts of a {@link TCPClient},
+ * connecting to a port on the loopback interface
+ *
+ * @author WilliBoelke
+ */
+public class TCPClientTest
+{
+    private static final String HOST = "127.0.0.1";
+
+    /**
+     * The number of attempts the Wi-Fi Direct engine makes
+     */
+    private static final int ATTEMPTS = 10;
+
+    private int port;
+
+    private ServerSocket server;
+
+    private TCPClient client;
+
+    @Before
+    public void setup() throws IOException
+    {
+        // a free port, nobody listens on it yet
+        try (ServerSocket probe = new ServerSocket(0))
+        {
+            port = probe.getLocalPort();
+        }
+        TcpConnectionConfig config = new TcpConnectionConfig();
+        config.setMaxConnectAttempts(ATTEMPTS);
+        config.setRetryDelays(40, 40);
+        client = new TCPClient(HOST, port, config);
+    }
+
+    @After
+    public void teardown() throws IOException
+    {
+        client.close();
+        if (server != null)
+        {
+            server.close();
+        }
+    }
+
+    @Test
+    public void itShouldMakeAllAttemptsBeforeGivingUp() throws IOException
+    {
+        try
+        {
+            client.createSocket();
+            fail("there is no server to connect to");
+        }
+        catch (ConnectException e)
+        {
+            // expected
+        }
+        assertEquals(ATTEMPTS, client.getAttempts());
+    }
+
+    @Test
+    public void itShouldConnectToAServerWhichStartedLate() throws Exception
+    {
+        AtomicReference<IOException> failure = new AtomicReference<>();
+        Thread connecting = new Thread(() ->
+        {
+            try
+            {
+                client.createSocket();
+            }
+            catch (IOException e)
+            {
+                failure.set(e);
+            }
+        });
+        connecting.start();
+
+        // more failures than a circuit breaker would allow
+        while (client.getAttempts() < 7 && connecting.isAlive())
+        {
+            Thread.sleep(5);
+        }
+        server = new ServerSocket();
+        server.setReuseAddress(true);
+        server.bind(new InetSocketAddress(HOST, port));
+
+        connecting.join(5000);
+        assertNull(failure.get());
+        assertTrue(client.isConnected());
+        assertTrue(client.getAttempts() >= 7);
+    }
+
+    @Test
+    public void itShouldAbortWhenInterrupted() throws Exception
+    {
+        AtomicReference<IOException> failure = new AtomicReference<>();
+        AtomicReference<Boolean> interrupted = new AtomicReference<>();
+        Thread connecting = new Thread(() ->
+        {
+            try
+            {
+                client.createSocket();
+            }
+            catch (IOException e)
+            {
+                failure.set(e);
+                interrupted.set(Thread.currentThread().isInterrupted());
+            }
+        });
+        connecting.start();
+        while (client.getAttempts() < 2)
+        {
+            Thread.sleep(5);
+        }
+        connecting.interrupt();
+        connecting.join(5000);
+
+        assertTrue(failure.get() instanceof InterruptedIOException);
+        assertTrue(interrupted.get());
+        assertTrue(client.getAttempts() < ATTEMPTS);
+    }
+}
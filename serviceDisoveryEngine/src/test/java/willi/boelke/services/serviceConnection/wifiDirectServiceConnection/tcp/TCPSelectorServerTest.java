@@ -0,0 +1,100 @@
+package willi.boelke.services.serviceConnection.wifiDirectServiceConnection.tcp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for {@link TCPSelectorServer}, using sockets on the loopback interface
+ *
+ * @author WilliBoelke
+ */
+public class TCPSelectorServerTest
+{
+    private TCPSelectorServer server;
+    private final List<Socket> accepted = new CopyOnWriteArrayList<>();
+    private final List<Socket> clients = new ArrayList<>();
+    private CountDownLatch acceptedLatch;
+    private final CountDownLatch closedLatch = new CountDownLatch(1);
+
+    @Before
+    public void setup() throws IOException
+    {
+        server = new TCPSelectorServer(0, new TCPServerListener()
+        {
+            @Override
+            public void onClientAccepted(Socket socket)
+            {
+                accepted.add(socket);
+                acceptedLatch.countDown();
+            }
+
+            @Override
+            public void onServerClosed()
+            {
+                closedLatch.countDown();
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void teardown() throws IOException
+    {
+        server.close();
+        for (Socket socket : clients)
+        {
+            socket.close();
+        }
+        for (Socket socket : accepted)
+        {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void itShouldAcceptAWholeGroupOfClients() throws Exception
+    {
+        int groupSize = 8;
+        acceptedLatch = new CountDownLatch(groupSize);
+        for (int i = 0; i < groupSize; i++)
+        {
+            clients.add(new Socket("127.0.0.1", server.getPort()));
+        }
+        assertTrue(acceptedLatch.await(5, TimeUnit.SECONDS));
+        assertEquals(groupSize, server.getAcceptedClients());
+    }
+
+    @Test
+    public void itShouldHandOverUsableSockets() throws Exception
+    {
+        acceptedLatch = new CountDownLatch(1);
+        Socket client = new Socket("127.0.0.1", server.getPort());
+        clients.add(client);
+        assertTrue(acceptedLatch.await(5, TimeUnit.SECONDS));
+        client.getOutputStream().write(42);
+        client.getOutputStream().flush();
+        assertEquals(42, accepted.get(0).getInputStream().read());
+    }
+
+    @Test
+    public void itShouldStopAcceptingWhenClosed() throws Exception
+    {
+        acceptedLatch = new CountDownLatch(1);
+        server.close();
+        assertTrue(closedLatch.await(5, TimeUnit.SECONDS));
+        assertFalse(server.isRunning());
+    }
+}
@@ -0,0 +1,104 @@
+package willi.boelke.services.serviceDiscovery;
+
+import static org.junit.Assume.assumeTrue;
+
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Compares eagerly and lazily built messages while debug logging is disabled.
+ * <p>
+ * Only runs with {@code ./gradlew testDebugUnitTest -Pbenchmarks},
+ * the results are printed, not asserted.
+ *
+ * @author WilliBoelke
+ */
+public class EngineLogBenchmark
+{
+    private static final String TAG = "EngineLogBenchmark";
+
+    private static final int CONNECTIONS = 50;
+
+    private static final int WARM_UP = 2000;
+
+    private static final int ITERATIONS = 20000;
+
+    private int previousLevel;
+
+    private List<String> names;
+
+    @Before
+    public void setUp()
+    {
+        previousLevel = EngineLog.getLevel();
+        assumeTrue(Boolean.getBoolean("benchmarks"));
+        EngineLog.setLevel(Log.INFO);
+        names = new ArrayList<>();
+        for (int i = 0; i < CONNECTIONS; i++)
+        {
+            names.add("device-" + i);
+        }
+    }
+
+    @After
+    public void tearDown()
+    {
+        EngineLog.setLevel(previousLevel);
+    }
+
+    /**
+     * Builds a table like the connection managers one, the names stand in for
+     * {@code BluetoothDevice.getName()}, which is a call to the bluetooth system service
+     */
+    private static String connectionTable(List<String> names)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (String name : names)
+        {
+            sb.append(String.format(Locale.ROOT, "{|Peer: %-20s|Server: %-5s|}", name, false));
+            sb.append("\n");
+        }
+        return sb.toString();
+    }
+
+    private long eager(int iterations)
+    {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+        {
+            EngineLog.d(TAG, "currently open connections: \n" + connectionTable(names));
+        }
+        return System.nanoTime() - start;
+    }
+
+    private long lazy(int iterations)
+    {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+        {
+            EngineLog.d(TAG, () -> "currently open connections: \n" + connectionTable(names));
+        }
+        return System.nanoTime() - start;
+    }
+
+    @Test
+    public void benchmarkDisabledDebugLogging()
+    {
+        eager(WARM_UP);
+        lazy(WARM_UP);
+
+        long eager = eager(ITERATIONS);
+        long lazy = lazy(ITERATIONS);
+
+        System.out.println(String.format(Locale.ROOT,
+                "EngineLog benchmark, %d connections: eager %d ns/call, lazy %d ns/call",
+                CONNECTIONS, eager / ITERATIONS, lazy / ITERATIONS));
+    }
+}
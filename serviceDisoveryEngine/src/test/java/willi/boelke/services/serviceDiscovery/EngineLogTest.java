@@ -0,0 +1,63 @@
+package willi.boelke.services.serviceDiscovery;
+
+import static org.junit.Assert.assertEquals;
+
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link EngineLog}
+ *
+ * @author WilliBoelke
+ */
+public class EngineLogTest
+{
+    private static final String TAG = "EngineLogTest";
+
+    private int previousLevel;
+
+    /**
+     * Counts how often a message was built
+     */
+    private int built;
+
+    @Before
+    public void setUp()
+    {
+        previousLevel = EngineLog.getLevel();
+        built = 0;
+    }
+
+    @After
+    public void tearDown()
+    {
+        EngineLog.setLevel(previousLevel);
+    }
+
+    private String buildMessage()
+    {
+        built++;
+        return "message";
+    }
+
+    @Test
+    public void itShouldOnlyBuildMessagesWhichAreLogged()
+    {
+        EngineLog.setLevel(Log.INFO);
+        EngineLog.d(TAG, this::buildMessage);
+        EngineLog.v(TAG, this::buildMessage);
+        assertEquals(0, built);
+        EngineLog.i(TAG, this::buildMessage);
+        EngineLog.e(TAG, this::buildMessage);
+        assertEquals(2, built);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void itShouldRejectUnknownLevels()
+    {
+        EngineLog.setLevel(42);
+    }
+}
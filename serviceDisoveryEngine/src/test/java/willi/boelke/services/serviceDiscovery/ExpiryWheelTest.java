@@ -0,0 +1,84 @@
+package willi.boelke.services.serviceDiscovery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+/**
+ * Unit tests for {@link ExpiryWheel}
+ *
+ * @author WilliBoelke
+ */
+public class ExpiryWheelTest
+{
+    private ExpiryWheel<String> wheel;
+
+    @Before
+    public void setUp()
+    {
+        wheel = new ExpiryWheel<>(100, 8);
+    }
+
+    @Test
+    public void itShouldExpireKeysAfterTheirDeadline()
+    {
+        wheel.advance(0);
+        wheel.schedule("a", 250);
+        wheel.schedule("b", 420);
+        assertTrue(wheel.advance(200).isEmpty());
+        assertEquals(Collections.singletonList("a"), wheel.advance(300));
+        assertTrue(wheel.advance(400).isEmpty());
+        assertEquals(Collections.singletonList("b"), wheel.advance(450));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void itShouldMoveRescheduledKeys()
+    {
+        wheel.advance(0);
+        wheel.schedule("a", 250);
+        wheel.schedule("a", 550);
+        assertEquals(1, wheel.size());
+        assertTrue(wheel.advance(300).isEmpty());
+        assertEquals(Collections.singletonList("a"), wheel.advance(600));
+    }
+
+    @Test
+    public void itShouldKeepDeadlinesBeyondOneRevolution()
+    {
+        wheel.advance(0);
+        wheel.schedule("a", 1250);
+        // the slot of the deadline is passed once before the deadline
+        assertTrue(wheel.advance(450).isEmpty());
+        assertTrue(wheel.advance(900).isEmpty());
+        assertTrue(wheel.contains("a"));
+        assertEquals(Collections.singletonList("a"), wheel.advance(1300));
+    }
+
+    @Test
+    public void itShouldExpireEverythingAfterALongPause()
+    {
+        wheel.advance(0);
+        wheel.schedule("a", 100);
+        wheel.schedule("b", 700);
+        wheel.schedule("c", 5000);
+        assertEquals(new HashSet<>(Arrays.asList("a", "b")), new HashSet<>(wheel.advance(3000)));
+        assertTrue(wheel.contains("c"));
+    }
+
+    @Test
+    public void itShouldNotExpireCanceledKeys()
+    {
+        wheel.schedule("a", 100);
+        assertTrue(wheel.cancel("a"));
+        assertFalse(wheel.cancel("a"));
+        assertTrue(wheel.advance(200).isEmpty());
+    }
+}
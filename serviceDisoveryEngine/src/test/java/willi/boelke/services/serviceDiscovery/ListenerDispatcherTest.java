@@ -0,0 +1,192 @@
+package willi.boelke.services.serviceDiscovery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Unit tests for {@link ListenerDispatcher}
+ *
+ * @author WilliBoelke
+ */
+public class ListenerDispatcherTest
+{
+    private ListenerDispatcher<List<String>> dispatcher;
+
+    /**
+     * Executor which runs the submitted tasks only when told to
+     */
+    private ArrayDeque<Runnable> pending;
+
+    @Before
+    public void setUp()
+    {
+        dispatcher = new ListenerDispatcher<>();
+        pending = new ArrayDeque<>();
+    }
+
+    private void runPending()
+    {
+        while (!pending.isEmpty())
+        {
+            pending.poll().run();
+        }
+    }
+
+    private static ListenerDispatcher.Event<List<String>> add(String value)
+    {
+        return listener -> listener.add(value);
+    }
+
+    @Test
+    public void itShouldNotifyDirectListenersRightAway()
+    {
+        List<String> received = new ArrayList<>();
+        assertTrue(dispatcher.register(received));
+        assertFalse(dispatcher.register(received));
+        dispatcher.dispatch(add("a"));
+        assertEquals(Arrays.asList("a"), received);
+    }
+
+    @Test
+    public void itShouldNotifyOnTheListenersExecutorInOrder()
+    {
+        List<String> received = new ArrayList<>();
+        dispatcher.register(received, pending::add);
+        dispatcher.dispatch(add("a"));
+        dispatcher.dispatch(add("b"));
+        assertTrue(received.isEmpty());
+        // one task delivers all waiting events
+        assertEquals(1, pending.size());
+        runPending();
+        assertEquals(Arrays.asList("a", "b"), received);
+    }
+
+    @Test
+    public void itShouldNotBeHeldUpBySlowListeners()
+    {
+        List<String> slow = new ArrayList<>();
+        List<String> direct = new ArrayList<>();
+        dispatcher.register(slow, pending::add);
+        dispatcher.register(direct);
+        dispatcher.dispatch(add("a"));
+        assertEquals(Arrays.asList("a"), direct);
+        assertTrue(slow.isEmpty());
+    }
+
+    @Test
+    public void itShouldDropEventsWhenTheQueueIsFull()
+    {
+        List<String> oldest = new ArrayList<>();
+        List<String> newest = new ArrayList<>();
+        dispatcher.register(oldest, pending::add, 2, ListenerDispatcher.OverflowPolicy.DROP_OLDEST);
+        dispatcher.register(newest, pending::add, 2, ListenerDispatcher.OverflowPolicy.DROP_NEWEST);
+        dispatcher.dispatch(add("a"));
+        dispatcher.dispatch(add("b"));
+        dispatcher.dispatch(add("c"));
+        runPending();
+        assertEquals(Arrays.asList("b", "c"), oldest);
+        assertEquals(Arrays.asList("a", "b"), newest);
+        assertEquals(2, dispatcher.getDroppedEvents());
+    }
+
+    @Test
+    public void itShouldCoalesceEventsWithTheSameKey()
+    {
+        List<String> received = new ArrayList<>();
+        dispatcher.register(received, pending::add);
+        dispatcher.dispatch(ListenerDispatcher.coalescing(ListenerDispatcher.key("peer", 1), add("a")));
+        dispatcher.dispatch(ListenerDispatcher.coalescing(ListenerDispatcher.key("peer", 2), add("b")));
+        dispatcher.dispatch(ListenerDispatcher.coalescing(ListenerDispatcher.key("peer", 1), add("c")));
+        runPending();
+        assertEquals(Arrays.asList("b", "c"), received);
+    }
+
+    @Test
+    public void itShouldKeepNotifyingWhenAListenerFails()
+    {
+        List<String> received = new ArrayList<>();
+        dispatcher.register(new ArrayList<String>()
+        {
+            @Override
+            public boolean add(String s)
+            {
+                throw new IllegalStateException("failing listener");
+            }
+        });
+        dispatcher.register(received);
+        dispatcher.dispatch(add("a"));
+        dispatcher.dispatch(add("b"));
+        assertEquals(Arrays.asList("a", "b"), received);
+    }
+
+    @Test
+    public void itShouldKeepNotifyingAfterAListenerThrewAnError()
+    {
+        List<String> received = new ArrayList<String>()
+        {
+            @Override
+            public boolean add(String s)
+            {
+                if (s.equals("a"))
+                {
+                    throw new AssertionError("failing listener");
+                }
+                return super.add(s);
+            }
+        };
+        dispatcher.register(received, pending::add);
+        dispatcher.dispatch(add("a"));
+        try
+        {
+            runPending();
+        }
+        catch (AssertionError e)
+        {
+            // passed on to the executor
+        }
+        dispatcher.dispatch(add("b"));
+        assertEquals(1, pending.size());
+        runPending();
+        assertEquals(Arrays.asList("b"), received);
+    }
+
+    @Test
+    public void itShouldNotNotifyUnregisteredListeners()
+    {
+        List<String> received = new ArrayList<>();
+        dispatcher.register(received, pending::add);
+        dispatcher.dispatch(add("a"));
+        assertTrue(dispatcher.unregister(received));
+        runPending();
+        dispatcher.dispatch(add("b"));
+        assertTrue(received.isEmpty());
+        assertTrue(dispatcher.isEmpty());
+    }
+
+    @Test
+    public void itShouldRemoveCollectedWeakListeners() throws InterruptedException
+    {
+        List<String> received = new ArrayList<>();
+        dispatcher.register(received);
+        dispatcher.registerWeakly(new ArrayList<>());
+        assertEquals(2, dispatcher.size());
+        // the weak listener is only referenced by the dispatcher
+        for (int i = 0; i < 50 && dispatcher.size() == 2; i++)
+        {
+            System.gc();
+            Thread.sleep(10);
+        }
+        dispatcher.dispatch(add("a"));
+        assertEquals(1, dispatcher.size());
+        assertEquals(Arrays.asList("a"), received);
+    }
+}
@@ -0,0 +1,115 @@
+package willi.boelke.services.serviceDiscovery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Unit tests for {@link PeerServiceSnapshot}
+ *
+ * @author WilliBoelke
+ */
+public class PeerServiceSnapshotTest
+{
+    private PeerServiceSnapshot<String> snapshot;
+    private ServiceDescription descriptionForServiceOne;
+    private ServiceDescription descriptionForServiceTwo;
+
+    @Before
+    public void setUp()
+    {
+        snapshot = new PeerServiceSnapshot<>();
+        HashMap<String, String> serviceAttributesOne = new HashMap<>();
+        HashMap<String, String> serviceAttributesTwo = new HashMap<>();
+        serviceAttributesOne.put("service-name", "Test Service One");
+        serviceAttributesTwo.put("service-name", "Test Service Two");
+        descriptionForServiceOne = new ServiceDescription(
+                "Test Service One",
+                serviceAttributesOne,
+                "_testOne._tcp");
+        descriptionForServiceTwo = new ServiceDescription(
+                "Test Service Two",
+                serviceAttributesTwo,
+                "_testTwo._tcp");
+    }
+
+    @Test
+    public void itShouldOnlyReportNewServices()
+    {
+        List<ServiceChange<String>> changes = snapshot.update("AA", "peerA", Arrays.asList(descriptionForServiceOne, descriptionForServiceTwo));
+        assertEquals(2, changes.size());
+        assertEquals(ServiceChange.Type.APPEARED, changes.get(0).getType());
+        long version = snapshot.getVersion();
+
+        changes = snapshot.update("AA", "peerA", Arrays.asList(descriptionForServiceOne, descriptionForServiceTwo));
+        assertTrue(changes.isEmpty());
+        assertEquals(version, snapshot.getVersion());
+    }
+
+    @Test
+    public void itShouldReportChangedAndLostServices()
+    {
+        snapshot.update("AA", "peerA", Arrays.asList(descriptionForServiceOne, descriptionForServiceTwo));
+        ServiceDescription renamed = new ServiceDescription.Builder(descriptionForServiceOne)
+                .setInstanceName("Renamed Service One")
+                .build();
+
+        List<ServiceChange<String>> changes = snapshot.update("AA", "peerA", Collections.singletonList(renamed));
+        assertEquals(2, changes.size());
+        assertEquals(ServiceChange.Type.CHANGED, changes.get(0).getType());
+        assertEquals(descriptionForServiceOne.getInstanceName(), changes.get(0).getPrevious().getInstanceName());
+        assertEquals(ServiceChange.Type.LOST, changes.get(1).getType());
+        assertEquals(descriptionForServiceTwo, changes.get(1).getDescription());
+    }
+
+    @Test
+    public void itShouldNotReportDuplicatesWithinOneUpdate()
+    {
+        List<ServiceChange<String>> changes = snapshot.update("AA", "peerA", Arrays.asList(descriptionForServiceOne, descriptionForServiceOne));
+        assertEquals(1, changes.size());
+        assertEquals(1, snapshot.getServices("AA").size());
+    }
+
+    @Test
+    public void itShouldReportAllServicesLostWhenRemovingAPeer()
+    {
+        snapshot.add("AA", "peerA", descriptionForServiceOne);
+        snapshot.add("AA", "peerA", descriptionForServiceTwo);
+        snapshot.add("BB", "peerB", descriptionForServiceOne);
+        assertEquals(2, snapshot.getHosts(descriptionForServiceOne).size());
+
+        List<ServiceChange<String>> changes = snapshot.remove("AA");
+        assertEquals(2, changes.size());
+        assertEquals(ServiceChange.Type.LOST, changes.get(0).getType());
+        assertEquals(Collections.singletonList("peerB"), snapshot.getHosts(descriptionForServiceOne));
+        assertEquals(1, snapshot.size());
+    }
+
+    @Test
+    public void itShouldExpireServicesWhichWereNotSeen()
+    {
+        snapshot.setExpiryTime(10000, 0);
+        snapshot.add("AA", "peerA", descriptionForServiceOne, 0);
+        snapshot.add("AA", "peerA", descriptionForServiceTwo, 0);
+        snapshot.add("BB", "peerB", descriptionForServiceOne, 0);
+        snapshot.add("AA", "peerA", descriptionForServiceOne, 8000);
+        snapshot.touch("BB", 9000);
+        assertTrue(snapshot.expire(5000).isEmpty());
+
+        List<ServiceChange<String>> changes = snapshot.expire(12000);
+        assertEquals(1, changes.size());
+        assertEquals(ServiceChange.Type.LOST, changes.get(0).getType());
+        assertEquals(descriptionForServiceTwo, changes.get(0).getDescription());
+        assertEquals(8000, snapshot.getLastSeen("AA", descriptionForServiceOne));
+
+        assertEquals(2, snapshot.expire(20000).size());
+        assertEquals(0, snapshot.size());
+    }
+}
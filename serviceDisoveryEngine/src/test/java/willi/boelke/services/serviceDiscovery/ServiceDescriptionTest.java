@@ -6,6 +6,8 @@ import static org.junit.Assert.assertNotEquals;
 
 import org.junit.Test;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.HashMap;
 import java.util.UUID;
 
@@ -89,13 +91,62 @@ public class ServiceDescriptionTest
         ServiceDescription descriptionForServiceOne = new ServiceDescription("Test Service One",
                 serviceAttributesOne,
                 "_testOne._tcp");
-        ServiceDescription descriptionForServiceTwo = new ServiceDescription(
-                "Test Service One",
-                serviceAttributesTwo,
-                "_testTwo._tcp");
         UUID uuid = UUID.fromString("e3d4932e-1016-4b95-8466-9f160ec1b553");
-        descriptionForServiceTwo.overrideUuidForBluetooth(uuid);
+        ServiceDescription descriptionForServiceTwo = new ServiceDescription.Builder()
+                .setInstanceName("Test Service One")
+                .setTxtRecord(serviceAttributesTwo)
+                .setServiceType("_testTwo._tcp")
+                .setServiceUuid(uuid)
+                .build();
         assertNotEquals(descriptionForServiceTwo.getServiceUuid(), descriptionForServiceOne.getServiceUuid());
         assertEquals(descriptionForServiceTwo.getServiceUuid(), uuid);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void itShouldReverseTheUuidBytewise()
+    {
+        UUID uuid = UUID.fromString("e3d4932e-1016-4b95-8466-9f160ec1b553");
+        ServiceDescription description = new ServiceDescription.Builder()
+                .setServiceUuid(uuid)
+                .build();
+        ByteBuffer byteBuffer = ByteBuffer.allocate(16);
+        byteBuffer.putLong(uuid.getLeastSignificantBits()).putLong(uuid.getMostSignificantBits());
+        byteBuffer.rewind();
+        byteBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        UUID expected = new UUID(byteBuffer.getLong(), byteBuffer.getLong());
+        assertEquals(expected, description.getBytewiseReverseUuid());
+        assertEquals(uuid, ServiceDescription.reverseUuidBytewise(description.getBytewiseReverseUuid()));
+    }
+
+    @Test
+    public void itShouldNotChangeWhenTheTxtRecordChanges()
+    {
+        HashMap<String, String> serviceAttributes = new HashMap<>();
+        serviceAttributes.put("name", "Test Service One");
+        ServiceDescription description = new ServiceDescription(
+                "Test Service One",
+                serviceAttributes,
+                "_testOne._tcp");
+        serviceAttributes.put("name", "Test Service Two");
+        assertEquals("Test Service One", description.getTxtRecord().get("name"));
+    }
+
+    @Test
+    public void itShouldCopyAnotherDescription()
+    {
+        HashMap<String, String> serviceAttributes = new HashMap<>();
+        serviceAttributes.put("name", "Test Service One");
+        ServiceDescription description = new ServiceDescription(
+                "Test Service One",
+                serviceAttributes,
+                "_testOne._tcp");
+        UUID uuid = UUID.fromString("e3d4932e-1016-4b95-8466-9f160ec1b553");
+        ServiceDescription copy = new ServiceDescription.Builder(description)
+                .setServiceUuid(uuid)
+                .build();
+        assertEquals(description.getInstanceName(), copy.getInstanceName());
+        assertEquals(description.getTxtRecord(), copy.getTxtRecord());
+        assertEquals(uuid, copy.getServiceUuid());
+        assertNotEquals(description, copy);
+    }
+}
@@ -0,0 +1,80 @@
+package willi.boelke.services.serviceDiscovery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+
+/**
+ * Unit tests for {@link ServiceRegistry}
+ *
+ * @author WilliBoelke
+ */
+public class ServiceRegistryTest
+{
+    private ServiceRegistry registry;
+    private ServiceDescription descriptionForServiceOne;
+    private ServiceDescription descriptionForServiceTwo;
+
+    @Before
+    public void setUp()
+    {
+        registry = new ServiceRegistry();
+        HashMap<String, String> serviceAttributesOne = new HashMap<>();
+        HashMap<String, String> serviceAttributesTwo = new HashMap<>();
+        serviceAttributesOne.put("service-name", "Test Service One");
+        serviceAttributesTwo.put("service-name", "Test Service Two");
+        descriptionForServiceOne = new ServiceDescription(
+                "Test Service One",
+                serviceAttributesOne,
+                "_testOne._tcp");
+        descriptionForServiceTwo = new ServiceDescription(
+                "Test Service Two",
+                serviceAttributesTwo,
+                "_testTwo._tcp");
+    }
+
+    @Test
+    public void itShouldNotAddAServiceTwice()
+    {
+        assertTrue(registry.add(descriptionForServiceOne));
+        assertFalse(registry.add(descriptionForServiceOne));
+        assertEquals(1, registry.size());
+    }
+
+    @Test
+    public void itShouldFindServicesByUuid()
+    {
+        registry.add(descriptionForServiceOne);
+        registry.add(descriptionForServiceTwo);
+        assertEquals(descriptionForServiceOne, registry.get(descriptionForServiceOne.getServiceUuid()));
+        assertEquals(descriptionForServiceTwo, registry.get(descriptionForServiceTwo.getServiceUuid()));
+        assertTrue(registry.contains(descriptionForServiceTwo));
+    }
+
+    @Test
+    public void itShouldFindServicesByReversedUuid()
+    {
+        registry.add(descriptionForServiceOne);
+        assertNull(registry.get(descriptionForServiceOne.getBytewiseReverseUuid()));
+        assertEquals(descriptionForServiceOne, registry.getByReversedUuid(descriptionForServiceOne.getBytewiseReverseUuid()));
+        assertEquals(descriptionForServiceOne, registry.find(descriptionForServiceOne.getBytewiseReverseUuid(), true));
+        assertNull(registry.find(descriptionForServiceOne.getBytewiseReverseUuid(), false));
+    }
+
+    @Test
+    public void itShouldRemoveServicesFromBothIndices()
+    {
+        registry.add(descriptionForServiceOne);
+        assertTrue(registry.remove(descriptionForServiceOne));
+        assertFalse(registry.remove(descriptionForServiceOne));
+        assertNull(registry.get(descriptionForServiceOne.getServiceUuid()));
+        assertNull(registry.getByReversedUuid(descriptionForServiceOne.getBytewiseReverseUuid()));
+        assertTrue(registry.isEmpty());
+    }
+}
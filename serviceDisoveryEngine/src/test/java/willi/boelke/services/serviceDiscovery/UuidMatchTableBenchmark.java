@@ -0,0 +1,129 @@
+package willi.boelke.services.serviceDiscovery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.UUID;
+
+/**
+ * Compares the allocations of the {@link UuidMatchTable} lookup
+ * with the list based matching which was used before.
+ * <p>
+ * Only runs with {@code ./gradlew testDebugUnitTest -Pbenchmarks}
+ * on a JVM which can measure thread allocations, the results are printed, not asserted.
+ *
+ * @author WilliBoelke
+ */
+public class UuidMatchTableBenchmark
+{
+    private static final int REGISTERED_SERVICES = 200;
+    private static final int RECEIVED_UUIDS = 20000;
+
+    private com.sun.management.ThreadMXBean threadBean;
+    private ArrayList<ServiceDescription> services;
+    private UUID[] receivedUuids;
+
+    @Before
+    public void setUp()
+    {
+        assumeTrue(Boolean.getBoolean("benchmarks"));
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+
+        services = new ArrayList<>();
+        for (int i = 0; i < REGISTERED_SERVICES; i++)
+        {
+            services.add(new ServiceDescription("Test Service " + i, new HashMap<>(), "_test" + i + "._tcp"));
+        }
+        // every fourth uuid is registered, every eighth in little endian format
+        receivedUuids = new UUID[RECEIVED_UUIDS];
+        for (int i = 0; i < RECEIVED_UUIDS; i++)
+        {
+            ServiceDescription service = services.get(i % REGISTERED_SERVICES);
+            if (i % 8 == 0)
+            {
+                receivedUuids[i] = service.getBytewiseReverseUuid();
+            }
+            else if (i % 4 == 0)
+            {
+                receivedUuids[i] = service.getServiceUuid();
+            }
+            else
+            {
+                receivedUuids[i] = UUID.randomUUID();
+            }
+        }
+    }
+
+    @Test
+    public void benchmarkMatchingAllocations()
+    {
+        UuidMatchTable table = UuidMatchTable.of(services);
+
+        // warm up
+        assertEquals(matchWithList(), matchWithTable(table));
+
+        long threadId = Thread.currentThread().getId();
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        matchWithList();
+        long listBytes = threadBean.getThreadAllocatedBytes(threadId) - before;
+
+        before = threadBean.getThreadAllocatedBytes(threadId);
+        matchWithTable(table);
+        long tableBytes = threadBean.getThreadAllocatedBytes(threadId) - before;
+
+        System.out.println("UuidMatchTable benchmark: matching " + RECEIVED_UUIDS + " uuids against "
+                + REGISTERED_SERVICES + " services allocated " + listBytes + " bytes with a list and "
+                + tableBytes + " bytes with the match table");
+    }
+
+    /**
+     * Matching as it was done before, creating a description
+     * for each uuid and looking it up in a list
+     */
+    private int matchWithList()
+    {
+        int matches = 0;
+        for (UUID uuid : receivedUuids)
+        {
+            ServiceDescription description = new ServiceDescription.Builder().setServiceUuid(uuid).build();
+            if (services.contains(description))
+            {
+                matches++;
+                continue;
+            }
+            ByteBuffer byteBuffer = ByteBuffer.allocate(16);
+            byteBuffer.putLong(uuid.getLeastSignificantBits()).putLong(uuid.getMostSignificantBits());
+            byteBuffer.rewind();
+            byteBuffer.order(ByteOrder.LITTLE_ENDIAN);
+            description = new ServiceDescription.Builder().setServiceUuid(new UUID(byteBuffer.getLong(), byteBuffer.getLong())).build();
+            if (services.contains(description))
+            {
+                matches++;
+            }
+        }
+        return matches;
+    }
+
+    private int matchWithTable(UuidMatchTable table)
+    {
+        int matches = 0;
+        for (UUID uuid : receivedUuids)
+        {
+            if (table.indexOf(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits()) != UuidMatchTable.NO_MATCH)
+            {
+                matches++;
+            }
+        }
+        return matches;
+    }
+}
@@ -0,0 +1,144 @@
+package willi.boelke.services.serviceDiscovery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.UUID;
+
+/**
+ * Unit tests for {@link UuidMatchTable}
+ * <p>
+ * The matches are compared with the list based matching which was used before.
+ *
+ * @author WilliBoelke
+ */
+public class UuidMatchTableTest
+{
+    private static final int REGISTERED_SERVICES = 200;
+    private static final int RECEIVED_UUIDS = 20000;
+
+    private ArrayList<ServiceDescription> services;
+    private UUID[] receivedUuids;
+
+    @Before
+    public void setUp()
+    {
+        services = new ArrayList<>();
+        for (int i = 0; i < REGISTERED_SERVICES; i++)
+        {
+            services.add(new ServiceDescription("Test Service " + i, new HashMap<>(), "_test" + i + "._tcp"));
+        }
+        // every fourth uuid is registered, every eighth in little endian format
+        receivedUuids = new UUID[RECEIVED_UUIDS];
+        for (int i = 0; i < RECEIVED_UUIDS; i++)
+        {
+            ServiceDescription service = services.get(i % REGISTERED_SERVICES);
+            if (i % 8 == 0)
+            {
+                receivedUuids[i] = service.getBytewiseReverseUuid();
+            }
+            else if (i % 4 == 0)
+            {
+                receivedUuids[i] = service.getServiceUuid();
+            }
+            else
+            {
+                receivedUuids[i] = UUID.randomUUID();
+            }
+        }
+    }
+
+    @Test
+    public void itShouldMatchServiceUuids()
+    {
+        UuidMatchTable table = UuidMatchTable.of(services);
+        assertEquals(REGISTERED_SERVICES, table.size());
+        for (ServiceDescription service : services)
+        {
+            UUID uuid = service.getServiceUuid();
+            int match = table.indexOf(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+            assertEquals(service, table.getDescription(match));
+            assertFalse(table.isReversed(match));
+        }
+    }
+
+    @Test
+    public void itShouldMatchReversedServiceUuids()
+    {
+        UuidMatchTable table = UuidMatchTable.of(services);
+        for (ServiceDescription service : services)
+        {
+            UUID uuid = service.getBytewiseReverseUuid();
+            int match = table.indexOf(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+            assertEquals(service, table.getDescription(match));
+            assertTrue(table.isReversed(match));
+        }
+    }
+
+    @Test
+    public void itShouldNotMatchUnknownUuids()
+    {
+        UuidMatchTable table = UuidMatchTable.of(services);
+        UUID uuid = UUID.fromString("e3d4932e-1016-4b95-8466-9f160ec1b553");
+        assertEquals(UuidMatchTable.NO_MATCH, table.indexOf(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits()));
+        assertEquals(UuidMatchTable.NO_MATCH, UuidMatchTable.EMPTY.indexOf(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits()));
+    }
+
+    @Test
+    public void itShouldFindTheSameMatchesAsTheListBasedMatching()
+    {
+        UuidMatchTable table = UuidMatchTable.of(services);
+        // every fourth received uuid belongs to a service
+        assertEquals(RECEIVED_UUIDS / 4, matchWithList());
+        assertEquals(RECEIVED_UUIDS / 4, matchWithTable(table));
+    }
+
+    /**
+     * Matching as it was done before, creating a description
+     * for each uuid and looking it up in a list
+     */
+    private int matchWithList()
+    {
+        int matches = 0;
+        for (UUID uuid : receivedUuids)
+        {
+            ServiceDescription description = new ServiceDescription.Builder().setServiceUuid(uuid).build();
+            if (services.contains(description))
+            {
+                matches++;
+                continue;
+            }
+            ByteBuffer byteBuffer = ByteBuffer.allocate(16);
+            byteBuffer.putLong(uuid.getLeastSignificantBits()).putLong(uuid.getMostSignificantBits());
+            byteBuffer.rewind();
+            byteBuffer.order(ByteOrder.LITTLE_ENDIAN);
+            description = new ServiceDescription.Builder().setServiceUuid(new UUID(byteBuffer.getLong(), byteBuffer.getLong())).build();
+            if (services.contains(description))
+            {
+                matches++;
+            }
+        }
+        return matches;
+    }
+
+    private int matchWithTable(UuidMatchTable table)
+    {
+        int matches = 0;
+        for (UUID uuid : receivedUuids)
+        {
+            if (table.indexOf(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits()) != UuidMatchTable.NO_MATCH)
+            {
+                matches++;
+            }
+        }
+        return matches;
+    }
+}
@@ -0,0 +1,81 @@
+package willi.boelke.services.serviceDiscovery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+
+/**
+ * Unit tests for {@link WeakListenerMap}
+ *
+ * @author WilliBoelke
+ */
+public class WeakListenerMapTest
+{
+    private WeakListenerMap<String, Object> map;
+
+    @Before
+    public void setUp()
+    {
+        map = new WeakListenerMap<>();
+    }
+
+    /**
+     * Runs the garbage collector till the referent was collected
+     */
+    static void collect(WeakReference<?> reference) throws InterruptedException
+    {
+        for (int i = 0; i < 50 && reference.get() != null; i++)
+        {
+            System.gc();
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void itShouldStoreAndReplaceListeners()
+    {
+        Object first = new Object();
+        Object second = new Object();
+        map.put("a", first);
+        assertSame(first, map.get("a"));
+        map.put("a", second);
+        assertSame(second, map.get("a"));
+        assertEquals(Collections.singletonList("a"), map.keys());
+        assertEquals(Collections.singletonList(second), map.listeners());
+        map.remove("a");
+        assertNull(map.get("a"));
+        assertEquals(0, map.size());
+    }
+
+    @Test
+    public void itShouldRemoveCollectedListeners() throws InterruptedException
+    {
+        Object kept = new Object();
+        map.put("kept", kept);
+        map.put("collected", new Object());
+        WeakReference<Object> reference = new WeakReference<>(map.get("collected"));
+        collect(reference);
+        assertNull(map.get("collected"));
+        assertEquals(Collections.singletonList("kept"), map.keys());
+        assertSame(kept, map.get("kept"));
+    }
+
+    @Test
+    public void itShouldNotRemoveAReplacedKey() throws InterruptedException
+    {
+        map.put("a", new Object());
+        WeakReference<Object> reference = new WeakReference<>(map.get("a"));
+        Object replacement = new Object();
+        map.put("a", replacement);
+        collect(reference);
+        assertTrue(map.keys().contains("a"));
+        assertSame(replacement, map.get("a"));
+    }
+}
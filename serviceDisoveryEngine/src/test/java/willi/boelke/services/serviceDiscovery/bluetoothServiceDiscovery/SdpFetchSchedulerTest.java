@@ -0,0 +1,349 @@
+package willi.boelke.services.serviceDiscovery.bluetoothServiceDiscovery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import android.bluetooth.BluetoothDevice;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import willi.boelke.services.serviceDiscovery.EngineExecutor;
+
+/**
+ * Unit tests for {@link SdpFetchScheduler}
+ * <p>
+ * The executor is mocked, timeouts are run
+ * by capturing the scheduled task. Peers are
+ * created with the time they where seen.
+ *
+ * @author WilliBoelke
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class SdpFetchSchedulerTest
+{
+    private EngineExecutor executor;
+    private SdpFetchScheduler scheduler;
+    private int drained;
+
+    /**
+     * The time peers are seen at
+     */
+    private long now;
+
+    @Before
+    public void setUp()
+    {
+        executor = Mockito.mock(EngineExecutor.class);
+        drained = 0;
+        now = 1000;
+        scheduler = new SdpFetchScheduler(executor, new DefaultPeerRankingPolicy(), () -> drained++);
+    }
+
+    private BluetoothPeer peerWithRssi(BluetoothDevice device, int rssi)
+    {
+        return new BluetoothPeer(device, (short) rssi, BluetoothPeer.DEVICE_CLASS_UNKNOWN, now);
+    }
+
+    private BluetoothPeer peerWithRssi(int rssi)
+    {
+        return peerWithRssi(Mockito.mock(BluetoothDevice.class), rssi);
+    }
+
+    /**
+     * Returns the timeout scheduled last
+     */
+    private Runnable lastTimeout(int scheduledTimeouts)
+    {
+        ArgumentCaptor<Runnable> timeout = ArgumentCaptor.forClass(Runnable.class);
+        verify(executor, times(scheduledTimeouts)).executeDelayed(timeout.capture(), anyLong());
+        return timeout.getValue();
+    }
+
+    //
+    //  ----------  scheduling ----------
+    //
+
+    @Test
+    public void itShouldNotFetchBeforeDispatching()
+    {
+        BluetoothPeer peer = peerWithRssi(-50);
+        scheduler.schedule(peer);
+
+        verify(peer.getDevice(), never()).fetchUuidsWithSdp();
+        assertFalse(scheduler.isIdle());
+    }
+
+    @Test
+    public void itShouldFetchTheHighestRankedPeersFirst()
+    {
+        BluetoothPeer weak = peerWithRssi(-90);
+        BluetoothPeer strong = peerWithRssi(-40);
+        BluetoothPeer medium = peerWithRssi(-60);
+        scheduler.setMaxInFlight(1);
+        scheduler.schedule(weak);
+        scheduler.schedule(strong);
+        scheduler.schedule(medium);
+
+        scheduler.dispatch();
+        verify(strong.getDevice()).fetchUuidsWithSdp();
+        verify(medium.getDevice(), never()).fetchUuidsWithSdp();
+        verify(weak.getDevice(), never()).fetchUuidsWithSdp();
+
+        scheduler.onFetched(strong.getDevice());
+        verify(medium.getDevice()).fetchUuidsWithSdp();
+        verify(weak.getDevice(), never()).fetchUuidsWithSdp();
+
+        scheduler.onFetched(medium.getDevice());
+        verify(weak.getDevice()).fetchUuidsWithSdp();
+        assertEquals(0, drained);
+
+        scheduler.onFetched(weak.getDevice());
+        assertEquals(1, drained);
+        assertTrue(scheduler.isIdle());
+    }
+
+    @Test
+    public void itShouldLimitTheQueriesInFlight()
+    {
+        BluetoothPeer[] peers = new BluetoothPeer[SdpFetchScheduler.DEFAULT_MAX_IN_FLIGHT + 2];
+        for (int i = 0; i < peers.length; i++)
+        {
+            peers[i] = peerWithRssi(-40 - i);
+            scheduler.schedule(peers[i]);
+        }
+
+        scheduler.dispatch();
+        int inFlight = 0;
+        for (BluetoothPeer peer : peers)
+        {
+            inFlight += scheduler.isInFlight(peer.getDevice()) ? 1 : 0;
+        }
+        assertEquals(SdpFetchScheduler.DEFAULT_MAX_IN_FLIGHT, inFlight);
+        verify(executor, times(SdpFetchScheduler.DEFAULT_MAX_IN_FLIGHT))
+                .executeDelayed(Mockito.any(Runnable.class), eq(SdpFetchScheduler.DEFAULT_FETCH_TIMEOUT));
+
+        // dispatching again does not exceed the limit
+        scheduler.dispatch();
+        verify(peers[peers.length - 1].getDevice(), never()).fetchUuidsWithSdp();
+
+        scheduler.onFetched(peers[0].getDevice());
+        assertTrue(scheduler.isInFlight(peers[SdpFetchScheduler.DEFAULT_MAX_IN_FLIGHT].getDevice()));
+    }
+
+    @Test
+    public void itShouldResumeAfterRaisingTheLimit()
+    {
+        BluetoothPeer first = peerWithRssi(-40);
+        BluetoothPeer second = peerWithRssi(-50);
+        scheduler.setMaxInFlight(1);
+        scheduler.schedule(first);
+        scheduler.schedule(second);
+        scheduler.dispatch();
+        verify(second.getDevice(), never()).fetchUuidsWithSdp();
+
+        scheduler.setMaxInFlight(2);
+        scheduler.dispatch();
+        verify(second.getDevice()).fetchUuidsWithSdp();
+    }
+
+    @Test
+    public void itShouldAllowAtLeastOneQueryInFlight()
+    {
+        BluetoothPeer peer = peerWithRssi(-40);
+        scheduler.setMaxInFlight(0);
+        scheduler.schedule(peer);
+        scheduler.dispatch();
+
+        verify(peer.getDevice()).fetchUuidsWithSdp();
+    }
+
+    //
+    //  ----------  deduplication ----------
+    //
+
+    @Test
+    public void itShouldQueueADeviceOnlyOnce()
+    {
+        BluetoothDevice device = Mockito.mock(BluetoothDevice.class);
+        scheduler.schedule(peerWithRssi(device, -80));
+        scheduler.schedule(peerWithRssi(device, -40));
+
+        scheduler.dispatch();
+        scheduler.onFetched(device);
+
+        verify(device, times(1)).fetchUuidsWithSdp();
+        assertEquals(1, drained);
+        assertTrue(scheduler.isIdle());
+    }
+
+    @Test
+    public void itShouldRankAQueuedDeviceByItsLatestRecord()
+    {
+        BluetoothDevice device = Mockito.mock(BluetoothDevice.class);
+        BluetoothPeer other = peerWithRssi(-60);
+        scheduler.setMaxInFlight(1);
+        scheduler.schedule(peerWithRssi(device, -80));
+        scheduler.schedule(other);
+        // the device came closer
+        scheduler.schedule(peerWithRssi(device, -40));
+
+        scheduler.dispatch();
+        verify(device).fetchUuidsWithSdp();
+        verify(other.getDevice(), never()).fetchUuidsWithSdp();
+    }
+
+    @Test
+    public void itShouldNotQueueADeviceWhichIsBeingFetched()
+    {
+        BluetoothPeer peer = peerWithRssi(-40);
+        scheduler.schedule(peer);
+        scheduler.dispatch();
+
+        scheduler.schedule(peer);
+        scheduler.dispatch();
+        scheduler.onFetched(peer.getDevice());
+
+        verify(peer.getDevice(), times(1)).fetchUuidsWithSdp();
+        assertTrue(scheduler.isIdle());
+    }
+
+    @Test
+    public void itShouldIgnoreASecondAnswer()
+    {
+        BluetoothPeer peer = peerWithRssi(-40);
+        scheduler.schedule(peer);
+        scheduler.dispatch();
+
+        scheduler.onFetched(peer.getDevice());
+        scheduler.onFetched(peer.getDevice());
+        // answers to queries the scheduler did not start
+        scheduler.onFetched(Mockito.mock(BluetoothDevice.class));
+
+        assertEquals(1, drained);
+    }
+
+    //
+    //  ----------  timeouts ----------
+    //
+
+    @Test
+    public void itShouldCancelTheTimeoutWhenAnswered()
+    {
+        BluetoothPeer peer = peerWithRssi(-40);
+        scheduler.setFetchTimeout(500);
+        scheduler.schedule(peer);
+        scheduler.dispatch();
+
+        verify(executor).executeDelayed(Mockito.any(Runnable.class), eq(500L));
+        Runnable timeout = lastTimeout(1);
+        scheduler.onFetched(peer.getDevice());
+        verify(executor).cancel(timeout);
+    }
+
+    @Test
+    public void itShouldGiveUpUnansweredQueries()
+    {
+        BluetoothPeer unresponsive = peerWithRssi(-40);
+        BluetoothPeer next = peerWithRssi(-50);
+        scheduler.setMaxInFlight(1);
+        scheduler.schedule(unresponsive);
+        scheduler.schedule(next);
+        scheduler.dispatch();
+        verify(next.getDevice(), never()).fetchUuidsWithSdp();
+
+        lastTimeout(1).run();
+        assertFalse(scheduler.isInFlight(unresponsive.getDevice()));
+        verify(next.getDevice()).fetchUuidsWithSdp();
+
+        // a late answer is ignored
+        scheduler.onFetched(unresponsive.getDevice());
+        assertEquals(0, drained);
+
+        scheduler.onFetched(next.getDevice());
+        assertEquals(1, drained);
+    }
+
+    @Test
+    public void itShouldNotifyWhenTheLastQueryTimedOut()
+    {
+        BluetoothPeer peer = peerWithRssi(-40);
+        scheduler.schedule(peer);
+        scheduler.dispatch();
+
+        Runnable timeout = lastTimeout(1);
+        timeout.run();
+        assertEquals(1, drained);
+        assertTrue(scheduler.isIdle());
+
+        // running it twice does not notify again
+        timeout.run();
+        assertEquals(1, drained);
+    }
+
+    //
+    //  ----------  clear and ranking ----------
+    //
+
+    @Test
+    public void itShouldDropEverythingOnClear()
+    {
+        BluetoothPeer fetched = peerWithRssi(-40);
+        BluetoothPeer queued = peerWithRssi(-50);
+        scheduler.setMaxInFlight(1);
+        scheduler.schedule(fetched);
+        scheduler.schedule(queued);
+        scheduler.dispatch();
+        Runnable timeout = lastTimeout(1);
+
+        scheduler.clear();
+        assertTrue(scheduler.isIdle());
+        verify(executor).cancel(timeout);
+
+        scheduler.onFetched(fetched.getDevice());
+        scheduler.dispatch();
+        verify(queued.getDevice(), never()).fetchUuidsWithSdp();
+        assertEquals(0, drained);
+    }
+
+    @Test
+    public void itShouldFetchTheMostRecentlySeenPeerFirstOnEqualSignals()
+    {
+        BluetoothPeer earlier = peerWithRssi(-50);
+        now += 5000;
+        BluetoothPeer later = peerWithRssi(-50);
+        scheduler.setMaxInFlight(1);
+        scheduler.schedule(earlier);
+        scheduler.schedule(later);
+
+        scheduler.dispatch();
+        verify(later.getDevice()).fetchUuidsWithSdp();
+        verify(earlier.getDevice(), never()).fetchUuidsWithSdp();
+    }
+
+    @Test
+    public void itShouldReorderQueuedPeersWithANewPolicy()
+    {
+        BluetoothPeer strong = peerWithRssi(-40);
+        BluetoothPeer weak = peerWithRssi(-90);
+        scheduler.setMaxInFlight(1);
+        scheduler.schedule(strong);
+        scheduler.schedule(weak);
+
+        scheduler.setRankingPolicy((a, b) -> Short.compare(a.getRssi(), b.getRssi()));
+        scheduler.dispatch();
+
+        verify(weak.getDevice()).fetchUuidsWithSdp();
+        verify(strong.getDevice(), never()).fetchUuidsWithSdp();
+    }
+}
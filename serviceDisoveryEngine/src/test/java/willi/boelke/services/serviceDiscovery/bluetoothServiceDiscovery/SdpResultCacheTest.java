@@ -0,0 +1,122 @@
+package willi.boelke.services.serviceDiscovery.bluetoothServiceDiscovery;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * Unit tests for {@link SdpResultCache}
+ *
+ * @author WilliBoelke
+ */
+public class SdpResultCacheTest
+{
+    private static final long TTL = 10000;
+    private static final long REFRESH_INTERVAL = 1000;
+
+    private File file;
+    private UUID[] uuids;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        file = File.createTempFile("sdp_results", ".bin");
+        file.delete();
+        uuids = new UUID[]{
+                UUID.fromString("e3d4932e-1016-4b95-8466-9f160ec1b553"),
+                UUID.fromString("12345678-1234-1234-1234-123456789abc")
+        };
+    }
+
+    @After
+    public void tearDown()
+    {
+        file.delete();
+    }
+
+    @Test
+    public void itShouldSurviveARestart()
+    {
+        SdpResultCache cache = new SdpResultCache(file, TTL, REFRESH_INTERVAL, 10);
+        cache.put("AA:BB:CC:DD:EE:FF", uuids);
+        cache.put("11:22:33:44:55:66", new UUID[0]);
+        cache.save();
+
+        SdpResultCache restarted = new SdpResultCache(file, TTL, REFRESH_INTERVAL, 10);
+        restarted.load();
+        assertEquals(2, restarted.size());
+        assertArrayEquals(uuids, restarted.get("AA:BB:CC:DD:EE:FF").uuids);
+        assertEquals(0, restarted.get("11:22:33:44:55:66").uuids.length);
+    }
+
+    @Test
+    public void itShouldExpireEntries()
+    {
+        SdpResultCache cache = new SdpResultCache(file, TTL, REFRESH_INTERVAL, 10);
+        cache.put("AA:BB:CC:DD:EE:FF", uuids, 0);
+        cache.put("11:22:33:44:55:66", uuids, 5000);
+
+        SdpResultCache.Entry entry = cache.get("11:22:33:44:55:66", 5500);
+        assertNotNull(entry);
+        assertFalse(cache.isStale(entry, 5500));
+        assertTrue(cache.isStale(entry, 6000));
+
+        assertEquals(1, cache.getValidEntries(TTL).size());
+        assertNull(cache.get("11:22:33:44:55:66", 5000 + TTL));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void itShouldRemoveEntries()
+    {
+        SdpResultCache cache = new SdpResultCache(file, TTL, REFRESH_INTERVAL, 10);
+        cache.put("AA:BB:CC:DD:EE:FF", uuids);
+        cache.put("not an address", uuids);
+        cache.remove("not an address");
+        cache.remove("11:22:33:44:55:66");
+        cache.save();
+
+        SdpResultCache restarted = new SdpResultCache(file, TTL, REFRESH_INTERVAL, 10);
+        restarted.load();
+        assertEquals(1, restarted.size());
+        assertNull(restarted.get("not an address"));
+    }
+
+    @Test
+    public void itShouldEvictTheLeastRecentlyUsedEntry()
+    {
+        SdpResultCache cache = new SdpResultCache(file, TTL, REFRESH_INTERVAL, 2);
+        cache.put("A", uuids, 0);
+        cache.put("B", uuids, 0);
+        cache.get("A", 0);
+        cache.put("C", uuids, 0);
+        assertEquals(2, cache.size());
+        assertNotNull(cache.get("A", 0));
+        assertNull(cache.get("B", 0));
+        assertNotNull(cache.get("C", 0));
+    }
+
+    @Test
+    public void itShouldIgnoreACorruptedFile() throws IOException
+    {
+        try (FileOutputStream out = new FileOutputStream(file))
+        {
+            out.write(new byte[]{1, 2, 3});
+        }
+        SdpResultCache cache = new SdpResultCache(file, TTL, REFRESH_INTERVAL, 10);
+        cache.load();
+        assertEquals(0, cache.size());
+    }
+}